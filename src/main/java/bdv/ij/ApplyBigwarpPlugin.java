@@ -19,6 +19,7 @@ import bdv.viewer.SourceAndConverter;
 import bigwarp.BigWarp.BigWarpData;
 import bigwarp.BigWarp;
 import bigwarp.BigWarpExporter;
+import bigwarp.BigWarpExporter.ParallelizationPolicy;
 import bigwarp.BigWarpInit;
 import bigwarp.landmarks.LandmarkTableModel;
 import ij.IJ;
@@ -253,7 +254,7 @@ public class ApplyBigwarpPlugin implements PlugIn
 			final String fieldOfViewOption,
 			final double[] outputResolution )
 	{
-		RandomAccessibleInterval< ? > rai = source.getSource( 0, 0 );
+		RandomAccessibleInterval< ? > rai = WarpedSource.getSourceBlocking( source, 0, 0 );
 		
 
 		if( fieldOfViewOption.equals( TARGET ))
@@ -646,14 +647,53 @@ public class ApplyBigwarpPlugin implements PlugIn
 			final Interpolation interp,
 			final boolean isVirtual,
 			final int nThreads )
+	{
+		return apply( movingIp, targetIp, landmarks, fieldOfViewOption, fieldOfViewPointFilter,
+				resolutionOption, resolutionSpec, fovSpec, offsetSpec,
+				interp, isVirtual, nThreads, null, new ProgressWriterIJ() );
+	}
+
+	/**
+	 * Exports the moving image warped into the target space.
+	 *
+	 * @param movingIp the moving image
+	 * @param targetIp the target image
+	 * @param landmarks the landmarks
+	 * @param fieldOfViewOption the field of view option
+	 * @param fieldOfViewPointFilter the regexp for filtering landmarks points by name
+	 * @param resolutionOption the resolution option
+	 * @param resolutionSpec the resolution (if applicable)
+	 * @param fovSpec the field of view specification
+	 * @param offsetSpec the offset specification
+	 * @param interp the interpolation
+	 * @param isVirtual export a virtual stack
+	 * @param nThreads the number of threads
+	 * @param policy the parallelization policy, the default of the exporter if null
+	 * @param progressWriter the progress writer
+	 * @return the exported images, one per landmark for the landmark point cube options
+	 */
+	public static <T> List<ImagePlus> apply(
+			final ImagePlus movingIp,
+			final ImagePlus targetIp,
+			final LandmarkTableModel landmarks,
+			final String fieldOfViewOption,
+			final String fieldOfViewPointFilter,
+			final String resolutionOption,
+			final double[] resolutionSpec,
+			final double[] fovSpec,
+			final double[] offsetSpec,
+			final Interpolation interp,
+			final boolean isVirtual,
+			final int nThreads,
+			final ParallelizationPolicy policy,
+			final ProgressWriter progressWriter )
 	{
 		BigWarpData<?> bwData = BigWarpInit.createBigWarpDataFromImages( movingIp, targetIp );
 		return apply( bwData, landmarks, fieldOfViewOption, fieldOfViewPointFilter,
 				resolutionOption, resolutionSpec, fovSpec, offsetSpec, 
-				interp, isVirtual, nThreads );
+				interp, isVirtual, nThreads, policy, progressWriter );
 	}
 
-	@SuppressWarnings( { "rawtypes" } )
 	public static <T> List<ImagePlus> apply(
 			final BigWarpData<T> bwData,
 			final LandmarkTableModel landmarks,
@@ -666,6 +706,27 @@ public class ApplyBigwarpPlugin implements PlugIn
 			final Interpolation interp,
 			final boolean isVirtual,
 			final int nThreads )
+	{
+		return apply( bwData, landmarks, fieldOfViewOption, fieldOfViewPointFilter,
+				resolutionOption, resolutionSpec, fovSpec, offsetSpec,
+				interp, isVirtual, nThreads, null, new ProgressWriterIJ() );
+	}
+
+	@SuppressWarnings( { "rawtypes" } )
+	public static <T> List<ImagePlus> apply(
+			final BigWarpData<T> bwData,
+			final LandmarkTableModel landmarks,
+			final String fieldOfViewOption,
+			final String fieldOfViewPointFilter,
+			final String resolutionOption,
+			final double[] resolutionSpec,
+			final double[] fovSpec,
+			final double[] offsetSpec,
+			final Interpolation interp,
+			final boolean isVirtual,
+			final int nThreads,
+			final ParallelizationPolicy policy,
+			final ProgressWriter progressWriter )
 	{
 		int numChannels = bwData.movingSourceIndices.length;
 		List< SourceAndConverter<T> > sources = bwData.sources;
@@ -678,7 +739,7 @@ public class ApplyBigwarpPlugin implements PlugIn
 		ThinPlateR2LogRSplineKernelTransform xfm = landmarks.getTransform();
 		InvertibleRealTransform invXfm = new WrappedIterativeInvertibleRealTransform<>( new ThinplateSplineTransform( xfm ) );
 
-		boolean is2d = sources.get( movingSourceIndexList[ 0 ] ).getSpimSource().getSource( 0, 0 ).dimension( 2 ) < 2;
+		boolean is2d = WarpedSource.getSourceBlocking( sources.get( movingSourceIndexList[ 0 ] ).getSpimSource(), 0, 0 ).dimension( 2 ) < 2;
 		if( is2d )
 		{
 			invXfm = new Wrapped2DTransformAs3D( invXfm );
@@ -691,8 +752,6 @@ public class ApplyBigwarpPlugin implements PlugIn
 			((WarpedSource< T >) (sourcesxfm.get( movingSourceIndexList[ i ]).getSpimSource())).setIsTransformed( true );
 		}
 
-		ProgressWriter progressWriter = new ProgressWriterIJ();
-
 		// Generate the properties needed to generate the transform from output pixel space
 		// to physical space
 		double[] res = getResolution( bwData, resolutionOption, resolutionSpec );
@@ -709,7 +768,7 @@ public class ApplyBigwarpPlugin implements PlugIn
 		
 		return runExport( bwData, sourcesxfm, fieldOfViewOption,
 				outputIntervalList, matchedPtNames, interp,
-				offset, res, isVirtual, nThreads, 
+				offset, res, isVirtual, nThreads, policy,
 				progressWriter, false );
 	}
 
@@ -727,6 +786,26 @@ public class ApplyBigwarpPlugin implements PlugIn
 			final ProgressWriter progressWriter,
 			final boolean show
 			)
+	{
+		return runExport( data, sources, fieldOfViewOption, outputIntervalList, matchedPtNames,
+				interp, offsetIn, resolution, isVirtual, nThreads, null, progressWriter, show );
+	}
+
+	public static <T> List<ImagePlus> runExport(
+			final BigWarpData<T> data,
+			final List< SourceAndConverter< T >> sources,
+			final String fieldOfViewOption,
+			final List<Interval> outputIntervalList,
+			final List<String> matchedPtNames,
+			final Interpolation interp,
+			final double[] offsetIn,
+			final double[] resolution,
+			final boolean isVirtual,
+			final int nThreads,
+			final ParallelizationPolicy policy,
+			final ProgressWriter progressWriter,
+			final boolean show
+			)
 	{
 		ArrayList<ImagePlus> ipList = new ArrayList<>();
 
@@ -742,6 +821,8 @@ public class ApplyBigwarpPlugin implements PlugIn
 			exporter.setOffset( offset );
 			exporter.setVirtual( isVirtual );
 			exporter.setNumThreads( nThreads );
+			if( policy != null )
+				exporter.setParallelizationPolicy( policy );
 
 			System.out.println( "interval: " + Util.printInterval( outputInterval ) );
 			exporter.setInterval( outputInterval );
@@ -9,7 +9,11 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import org.janelia.utility.parse.ParseUtils;
+
+import bdv.ij.util.ProgressWriterIJ;
 import bigwarp.BigWarpExporter;
+import bigwarp.DeformationFieldExporter;
 import bigwarp.landmarks.LandmarkTableModel;
 
 import ij.IJ;
@@ -96,6 +100,12 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 		gd.addChoice( "reference_image", titles, current );
 		gd.addCheckbox( "Ignore affine part", false );
 		gd.addNumericField( "threads", 1, 0 );
+		gd.addMessage( "Optional n5 output, written block by block instead of to an image:" );
+		gd.addStringField( "n5_root", "" );
+		gd.addStringField( "n5_dataset", DeformationFieldExporter.DEFAULT_DATASET );
+		gd.addChoice( "n5_storage", storageNames(), DeformationFieldExporter.Storage.FLOAT32.name() );
+		gd.addNumericField( "n5_quantization", DeformationFieldExporter.DEFAULT_QUANTIZATION, 4 );
+		gd.addStringField( "n5_block_size", Integer.toString( DeformationFieldExporter.DEFAULT_BLOCK_SIZE ) );
 		gd.showDialog();
 
 		if ( gd.wasCanceled() )
@@ -105,6 +115,13 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 		ref_imp = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
 		boolean ignoreAffine = gd.getNextBoolean();
 		nThreads = ( int ) gd.getNextNumber();
+		String n5Root = gd.getNextString();
+		String n5Dataset = gd.getNextString();
+		DeformationFieldExporter.Storage storage = DeformationFieldExporter.Storage.valueOf( gd.getNextChoice() );
+		double quantization = gd.getNextNumber();
+		int[] blockSize = parseBlockSize( gd.getNextString() );
+		if ( blockSize == null )
+			return;
 
 		int nd = 2;
 		if ( ref_imp.getNSlices() > 1 )
@@ -136,6 +153,19 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 
 		tps = new ThinplateSplineTransform( tpsUseMe );
 
+		if ( !n5Root.isEmpty() )
+		{
+			long[] dims = new long[ nd ];
+			dims[ 0 ] = ref_imp.getWidth();
+			dims[ 1 ] = ref_imp.getHeight();
+			if ( nd > 2 )
+				dims[ 2 ] = ref_imp.getNSlices();
+
+			new DeformationFieldExporter.ExportThread( tps, pixToPhysical, dims, n5Root, n5Dataset, blockSize,
+					storage, quantization, nThreads, new ProgressWriterIJ() ).start();
+			return;
+		}
+
 		FloatImagePlus< FloatType > dfield = convertToDeformationField();
 
 		String title = "bigwarp dfield";
@@ -176,12 +206,48 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 		if( nThreads <= 1 )
 			fromRealTransform( tps, pixToPhysical, Views.permute( deformationField, 2, 3 ));
 		else
-			fromRealTransform( tps, pixToPhysical, Views.permute( deformationField, 2, 3 ), 8 );
+			fromRealTransform( tps, pixToPhysical, Views.permute( deformationField, 2, 3 ), nThreads );
 		
 
 		return deformationField;
 	}
 	
+	public static String[] storageNames()
+	{
+		DeformationFieldExporter.Storage[] values = DeformationFieldExporter.Storage.values();
+		String[] names = new String[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+			names[ i ] = values[ i ].name();
+
+		return names;
+	}
+
+	/**
+	 * Parses a block size of the form "#,#,...#", the last entry is repeated
+	 * for the remaining dimensions. Invalid sizes are reported with
+	 * {@link IJ#error(String, String)}.
+	 *
+	 * @param blockSize the block size
+	 * @return the block size, or null if it is invalid
+	 */
+	public static int[] parseBlockSize( String blockSize )
+	{
+		try
+		{
+			int[] size = ParseUtils.parseIntArray( blockSize.replaceAll( "\\s", "" ) );
+			for ( int s : size )
+				if ( s < 1 )
+					throw new NumberFormatException();
+
+			return size;
+		}
+		catch ( NumberFormatException e )
+		{
+			IJ.error( "Invalid block size", "The block size must be positive integers, e.g. \"64\" or \"64,64,32\", but was \"" + blockSize + "\"" );
+			return null;
+		}
+	}
+
 	public static boolean areTransformsTheSame( RealTransform xfm1, RealTransform xfm2, Interval itvl, final double EPS )
 	{
 
@@ -1,22 +1,49 @@
 package bdv.img;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.render.DefaultMipmapOrdering;
 import bdv.viewer.render.MipmapOrdering;
+import bigwarp.metrics.Counter;
+import bigwarp.metrics.CountingRealTransform;
+import bigwarp.metrics.Metrics;
+import bigwarp.util.BoundingBoxEstimator;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealTransformRealRandomAccessible;
+import net.imglib2.realtransform.RealTransformSequence;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.view.Views;
 
 public class WarpedSource < T > implements Source< T >, MipmapOrdering
 {
+	// requests for transformed interpolated sources, about one per source and rendered frame
+	private static final Counter FRAMES = Metrics.counter( "warpedsource.frames" );
+
+	private static final Counter TRANSFORM_EVALUATIONS = Metrics.counter( "warpedsource.transform.evaluations" );
+
+	/**
+	 * Estimates bounding intervals in the background, one at a time, so that
+	 * estimates for transforms superseded while dragging are skipped.
+	 */
+	private static final ExecutorService BOUNDS_ESTIMATOR = Executors.newSingleThreadExecutor( r -> {
+		final Thread t = new Thread( r, "bigwarp-bounds-estimator" );
+		t.setDaemon( true );
+		return t;
+	} );
 
 	public static < T > SourceAndConverter< T > wrap( final SourceAndConverter< T > wrap, final String name, int ndims )
 	{
@@ -39,9 +66,46 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 	 */
 	private final MipmapOrdering sourceMipmapOrdering;
 
-	private RealTransform xfm;
+	private volatile RealTransform xfm;
+
+	/**
+	 * An optional approximation of {@link #xfm} used for display only.
+	 */
+	private volatile RealTransform renderXfm;
 
 	private boolean isTransformed;
+
+	/**
+	 * The size of the screen in pixels, used to sample the warp for
+	 * {@link #getMipmapHints(AffineTransform3D, int, int)}.
+	 */
+	private int screenWidth = 800;
+
+	private int screenHeight = 600;
+
+	/*
+	 * the last result of warpedScreenTransform and what it was computed from
+	 */
+	private final AffineTransform3D lastScreenTransform = new AffineTransform3D();
+
+	private RealTransform lastScreenXfm;
+
+	private AffineTransform3D lastWarpedScreenTransform;
+
+	/*
+	 * incremented whenever the transform changes, the bounds in boundsCache
+	 * were estimated for boundsVersion, older bounds are kept in staleBounds
+	 * until new ones are estimated
+	 */
+	private long transformVersion = 0;
+
+	private long boundsVersion = -1;
+
+	private final HashMap< Long, Interval > boundsCache = new HashMap<>();
+
+	private final HashMap< Long, Interval > staleBounds = new HashMap<>();
+
+	private final HashSet< Long > boundsPending = new HashSet<>();
 	
 	public WarpedSource( final Source< T > source, final String name )
 	{
@@ -61,14 +125,44 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 		return source.isPresent( t );
 	}
 	
-	public void updateTransform( RealTransform xfm )
+	public synchronized void updateTransform( RealTransform xfm )
 	{
 		this.xfm = xfm;
+		this.renderXfm = null;
+		transformVersion++;
+	}
+
+	/**
+	 * Sets a transform used in place of the current transform when rendering,
+	 * for example a {@link net.imglib2.realtransform.DisplacementGridApproximation}.
+	 * The approximation is ignored if the transform has changed since
+	 * approximation was computed.
+	 *
+	 * @param approximated the transform that was approximated
+	 * @param approximation the approximation
+	 * @return true if the approximation will be used
+	 */
+	public synchronized boolean setRenderTransform( final RealTransform approximated, final RealTransform approximation )
+	{
+		if ( approximated != xfm )
+			return false;
+
+		this.renderXfm = approximation;
+		return true;
+	}
+
+	/**
+	 * Stop using the render transform, if any, and render with the exact transform.
+	 */
+	public synchronized void clearRenderTransform()
+	{
+		this.renderXfm = null;
 	}
 	
-	public void setIsTransformed( boolean isTransformed )
+	public synchronized void setIsTransformed( boolean isTransformed )
 	{
 		this.isTransformed = isTransformed;
+		transformVersion++;
 	}
 	
 	public boolean isTransformed( )
@@ -89,15 +183,205 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 				estimateBoundingInterval( t, level ));
 	}
 
-	private Interval estimateBoundingInterval( final int t, final int level )
+	/**
+	 * Like {@link #getSource(int, int)}, but bounded by the interval of the
+	 * current transform, computed on the calling thread if it is not cached.
+	 * Use this rather than {@link #getSource(int, int)} wherever the interval
+	 * must not depend on thread timing, for example when exporting.
+	 *
+	 * @param t the timepoint
+	 * @param level the mipmap level
+	 * @return the warped source
+	 */
+	public RandomAccessibleInterval< T > getSourceBlocking( final int t, final int level )
+	{
+		return Views.interval(
+				Views.raster( getInterpolatedSource( t, level, Interpolation.NEARESTNEIGHBOR ) ),
+				computeBoundingInterval( t, level ));
+	}
+
+	/**
+	 * Calls {@link #getSourceBlocking(int, int)} if the source is a
+	 * {@link WarpedSource}, {@link Source#getSource(int, int)} otherwise.
+	 *
+	 * @param source the source
+	 * @param t the timepoint
+	 * @param level the mipmap level
+	 * @return the source
+	 */
+	public static < T > RandomAccessibleInterval< T > getSourceBlocking( final Source< T > source, final int t, final int level )
+	{
+		if ( source instanceof WarpedSource )
+			return ( ( WarpedSource< T > ) source ).getSourceBlocking( t, level );
+
+		return source.getSource( t, level );
+	}
+
+	/**
+	 * Returns the interval of {@link #getSource(int, int)}, the bounding box of
+	 * the wrapped source after it is transformed, estimated with a
+	 * {@link BoundingBoxEstimator}. The result is cached until the transform
+	 * changes. If the transform can not be inverted, this returns the interval
+	 * of the wrapped source.
+	 * <p>
+	 * Estimating evaluates the inverse transform many times, so it runs on a
+	 * background thread. Until the estimate for the current transform is
+	 * ready, this returns the estimate for an earlier transform, or the
+	 * interval of the wrapped source if there is none. This is meant for the
+	 * viewer, other callers should use {@link #computeBoundingInterval(int, int)}.
+	 *
+	 * @param t the timepoint
+	 * @param level the mipmap level
+	 * @return the bounding interval
+	 */
+	public Interval estimateBoundingInterval( final int t, final int level )
+	{
+		final long key = boundsKey( t, level );
+		final long version;
+		final RealTransform xfm;
+		final Interval fallback;
+		synchronized ( this )
+		{
+			final Interval interval = cachedBoundingInterval( key, t, level );
+			if ( interval != null )
+				return interval;
+
+			final Interval stale = staleBounds.get( key );
+			fallback = stale != null ? stale : source.getSource( t, level );
+			if ( !boundsPending.add( key ) )
+				return fallback;
+
+			version = transformVersion;
+			xfm = this.xfm;
+		}
+
+		BOUNDS_ESTIMATOR.execute( () -> {
+			synchronized ( this )
+			{
+				// superseded before it started
+				if ( version != transformVersion )
+					return;
+			}
+
+			cacheBoundingInterval( key, version, computeBoundingInterval( t, level, xfm ) );
+		} );
+
+		return fallback;
+	}
+
+	/**
+	 * Returns the bounding interval of the current transform, like
+	 * {@link #estimateBoundingInterval(int, int)}, but computes it on the
+	 * calling thread if it is not cached, so the result never depends on
+	 * whether a background estimate has finished.
+	 *
+	 * @param t the timepoint
+	 * @param level the mipmap level
+	 * @return the bounding interval
+	 */
+	public Interval computeBoundingInterval( final int t, final int level )
+	{
+		final long key = boundsKey( t, level );
+		final long version;
+		final RealTransform xfm;
+		synchronized ( this )
+		{
+			final Interval interval = cachedBoundingInterval( key, t, level );
+			if ( interval != null )
+				return interval;
+
+			version = transformVersion;
+			xfm = this.xfm;
+		}
+
+		final Interval interval = computeBoundingInterval( t, level, xfm );
+		cacheBoundingInterval( key, version, interval );
+		return interval;
+	}
+
+	private static long boundsKey( final int t, final int level )
+	{
+		return ( ( long ) t << 32 ) | level;
+	}
+
+	/*
+	 * Returns the cached bounds of the current transform, or null if they must
+	 * be estimated. Must hold the lock.
+	 */
+	private Interval cachedBoundingInterval( final long key, final int t, final int level )
+	{
+		if ( boundsVersion != transformVersion )
+		{
+			staleBounds.putAll( boundsCache );
+			boundsCache.clear();
+			boundsPending.clear();
+			boundsVersion = transformVersion;
+		}
+
+		final Interval interval = boundsCache.get( key );
+		if ( interval != null )
+			return interval;
+
+		if ( !isTransformed )
+		{
+			final Interval wrappedInterval = source.getSource( t, level );
+			boundsCache.put( key, wrappedInterval );
+			return wrappedInterval;
+		}
+
+		return null;
+	}
+
+	private synchronized void cacheBoundingInterval( final long key, final long version, final Interval interval )
+	{
+		if ( version == transformVersion )
+		{
+			boundsCache.put( key, interval );
+			staleBounds.put( key, interval );
+		}
+	}
+
+	private Interval computeBoundingInterval( final int t, final int level, final RealTransform xfm )
 	{
 		final Interval wrappedInterval = source.getSource( t, level );
-		// TODO: Do something meaningful: apply transform, estimate bounding box, etc.
-		return wrappedInterval;
+
+		// the wrapped pixels are mapped to world coordinates, then through the
+		// inverse of xfm, which maps the target space to the moving space
+		final AffineTransform3D sourceTransform = new AffineTransform3D();
+		source.getSourceTransform( t, level, sourceTransform );
+
+		final RealTransformSequence seq = new RealTransformSequence();
+		seq.add( sourceTransform );
+		if ( xfm instanceof InvertibleRealTransform )
+			seq.add( ( ( InvertibleRealTransform ) xfm.copy() ).inverse() );
+		else if ( xfm != null )
+			return wrappedInterval;
+
+		final Interval bounds = BoundingBoxEstimator.estimateInterval( seq, wrappedInterval );
+		return bounds != null ? bounds : wrappedInterval;
 	}
 
 	@Override
 	public RealRandomAccessible< T > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		final RealTransform renderXfm = this.renderXfm;
+		return getInterpolatedSource( t, level, method, renderXfm != null ? renderXfm : this.xfm );
+	}
+
+	/**
+	 * Returns the wrapped source, transformed by the given transform instead
+	 * of the current or render transform if this source is transformed. This
+	 * neither reads nor changes the render transform, so exports can use the
+	 * exact transform, or their own approximation of it, while the viewers
+	 * display an approximation.
+	 *
+	 * @param t the timepoint
+	 * @param level the mipmap level
+	 * @param method the interpolation
+	 * @param xfm the transform, from the target to the moving space, may be null
+	 * @return the transformed source
+	 */
+	public RealRandomAccessible< T > getInterpolatedSource( final int t, final int level, final Interpolation method, final RealTransform xfm )
 	{
 		final RealRandomAccessible< T > sourceRealAccessible = source.getInterpolatedSource( t, level, method );
 
@@ -109,6 +393,13 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 
 			if( xfm == null )
 				return srcRaTransformed;
+
+			if( Metrics.ENABLED )
+			{
+				FRAMES.inc();
+				return new RealTransformRealRandomAccessible< T, RealTransform >( srcRaTransformed,
+						new CountingRealTransform( xfm, TRANSFORM_EVALUATIONS ) );
+			}
 			else
 				return new RealTransformRealRandomAccessible< T, RealTransform >( srcRaTransformed, xfm );
 		}
@@ -157,9 +448,144 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 		return source.getNumMipmapLevels();
 	}
 
+	/**
+	 * Sets the size of the screen the source is rendered to, over which the
+	 * local scaling of the warp is estimated when choosing mipmap levels.
+	 *
+	 * @param width the width in pixels
+	 * @param height the height in pixels
+	 */
+	public synchronized void setScreenSize( final int width, final int height )
+	{
+		if ( width > 0 && height > 0 )
+		{
+			screenWidth = width;
+			screenHeight = height;
+			lastWarpedScreenTransform = null;
+		}
+	}
+
+	/**
+	 * When transformed, the mipmap levels of the wrapped source are chosen as
+	 * if the warp were the linear map given by its Jacobian, estimated over the
+	 * screen. A warp that shrinks the moving image therefore selects coarser
+	 * levels, and a warp that magnifies it finer levels.
+	 */
 	@Override
 	public synchronized MipmapHints getMipmapHints( final AffineTransform3D screenTransform, final int timepoint, final int previousTimepoint )
 	{
-		return sourceMipmapOrdering.getMipmapHints( screenTransform, timepoint, previousTimepoint );
+		final RealTransform xfm = renderXfm != null ? renderXfm : this.xfm;
+		if ( !isTransformed || xfm == null )
+			return sourceMipmapOrdering.getMipmapHints( screenTransform, timepoint, previousTimepoint );
+
+		if ( lastWarpedScreenTransform == null || xfm != lastScreenXfm ||
+				!Arrays.equals( screenTransform.getRowPackedCopy(), lastScreenTransform.getRowPackedCopy() ) )
+		{
+			lastScreenTransform.set( screenTransform );
+			lastScreenXfm = xfm;
+			lastWarpedScreenTransform = warpedScreenTransform( screenTransform, xfm.copy(), screenWidth, screenHeight );
+		}
+		return sourceMipmapOrdering.getMipmapHints( lastWarpedScreenTransform, timepoint, previousTimepoint );
+	}
+
+	/**
+	 * Approximates the transform from the moving space to the screen through
+	 * a warp by an affine transform. The Jacobian of the warp is estimated by
+	 * central differences on a 3x3 grid of points over the screen, and the one
+	 * with the median determinant is used, so that a few points at strongly
+	 * distorted landmarks do not dominate.
+	 *
+	 * @param screenTransform the transform from the target space to the screen
+	 * @param xfm the warp, from the target to the moving space
+	 * @param width the screen width
+	 * @param height the screen height
+	 * @return the transform from the moving space to the screen, or a copy of
+	 *         screenTransform if the warp is degenerate everywhere on screen
+	 */
+	public static AffineTransform3D warpedScreenTransform( final AffineTransform3D screenTransform, final RealTransform xfm,
+			final int width, final int height )
+	{
+		final int nd = Math.min( 3, xfm.numSourceDimensions() );
+		final AffineTransform3D screenToWorld = screenTransform.inverse();
+
+		// the step size is one screen pixel in world units
+		double h = 0;
+		for ( int r = 0; r < 3; r++ )
+			h += screenToWorld.get( r, 0 ) * screenToWorld.get( r, 0 );
+		h = Math.sqrt( h );
+		if ( !( h > 0 ) )
+			return screenTransform.copy();
+
+		final double[] screen = new double[ 3 ];
+		final double[] p = new double[ xfm.numSourceDimensions() ];
+		final double[] q = new double[ xfm.numTargetDimensions() ];
+		final double[] pplus = new double[ p.length ];
+		final double[] qplus = new double[ q.length ];
+		final double[] qminus = new double[ q.length ];
+
+		final ArrayList< AffineTransform3D > jacobians = new ArrayList<>();
+		final ArrayList< Double > dets = new ArrayList<>();
+		for ( int j = 0; j < 3; j++ )
+			for ( int i = 0; i < 3; i++ )
+			{
+				screen[ 0 ] = 0.5 * i * width;
+				screen[ 1 ] = 0.5 * j * height;
+				screen[ 2 ] = 0;
+				final double[] world = new double[ 3 ];
+				screenToWorld.apply( screen, world );
+				System.arraycopy( world, 0, p, 0, nd );
+				xfm.apply( p, q );
+
+				// jacobian of the warp at p, with the translation that maps p to q
+				final AffineTransform3D jac = new AffineTransform3D();
+				boolean finite = true;
+				for ( int c = 0; c < nd; c++ )
+				{
+					System.arraycopy( p, 0, pplus, 0, p.length );
+					pplus[ c ] = p[ c ] + h;
+					xfm.apply( pplus, qplus );
+					pplus[ c ] = p[ c ] - h;
+					xfm.apply( pplus, qminus );
+					for ( int r = 0; r < nd; r++ )
+					{
+						final double v = ( qplus[ r ] - qminus[ r ] ) / ( 2 * h );
+						finite &= !Double.isNaN( v ) && !Double.isInfinite( v );
+						jac.set( v, r, c );
+					}
+				}
+				if ( !finite )
+					continue;
+
+				for ( int r = 0; r < 3; r++ )
+				{
+					double t = r < nd ? q[ r ] : world[ r ];
+					for ( int c = 0; c < 3; c++ )
+						t -= jac.get( r, c ) * world[ c ];
+					jac.set( t, r, 3 );
+				}
+
+				final double det =
+						jac.get( 0, 0 ) * ( jac.get( 1, 1 ) * jac.get( 2, 2 ) - jac.get( 1, 2 ) * jac.get( 2, 1 ) ) -
+						jac.get( 0, 1 ) * ( jac.get( 1, 0 ) * jac.get( 2, 2 ) - jac.get( 1, 2 ) * jac.get( 2, 0 ) ) +
+						jac.get( 0, 2 ) * ( jac.get( 1, 0 ) * jac.get( 2, 1 ) - jac.get( 1, 1 ) * jac.get( 2, 0 ) );
+				if ( det != 0 && !Double.isNaN( det ) )
+				{
+					jacobians.add( jac );
+					dets.add( Math.abs( det ) );
+				}
+			}
+
+		if ( jacobians.isEmpty() )
+			return screenTransform.copy();
+
+		// the sample with the median determinant
+		final Integer[] order = new Integer[ dets.size() ];
+		for ( int i = 0; i < order.length; i++ )
+			order[ i ] = i;
+		Arrays.sort( order, ( a, b ) -> Double.compare( dets.get( a ), dets.get( b ) ) );
+
+		final AffineTransform3D warped = screenTransform.copy();
+		warped.concatenate( jacobians.get( order[ order.length / 2 ] ).inverse() );
+		return warped;
 	}
 }
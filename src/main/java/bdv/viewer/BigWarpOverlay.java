@@ -13,6 +13,7 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import bdv.gui.BigWarpLandmarkPanel;
 import bdv.viewer.state.ViewerState;
+import bigwarp.landmarks.LandmarkPointStore;
 import bigwarp.landmarks.LandmarkTableModel;
 
 public class BigWarpOverlay {
@@ -109,9 +110,14 @@ public class BigWarpOverlay {
 				textBoxColor = Color.BLACK;
 			}
 			
+			final LandmarkPointStore pts = landmarkModel.getPointStore( isMoving );
+			final LandmarkPointStore targetPts = landmarkModel.getPointStore( false );
+			final LandmarkPointStore warpedPts = landmarkModel.getWarpedPointStore();
+			final double[] globalCoords = new double[ 3 ];
+			final double[] viewerCoords = new double[ 3 ];
 			for( int index = 0; index < landmarkModel.getRowCount(); index++ )
 			{
-				Double[] spot; // = landmarkModel.getPoints().get( index );
+				LandmarkPointStore spot;
 
 				if ( landmarkModel.isActive( index ) )
 					color = viewer.getSettings().getSpotColor();
@@ -121,11 +127,10 @@ public class BigWarpOverlay {
 				g.setColor( color );
 				g.setStroke( stroke );
 
-				double x = 0.0, y = 0.0, z = 0.0;
-				spot = landmarkModel.getPoints( isMoving ).get( index );
+				spot = pts;
 
 				// if this point is not set, don't render it.
-				if ( Double.isInfinite( spot[ 0 ] ) )
+				if ( !spot.isSet( index ) )
 					continue;
 
 				// if the viewer is moving but transformed, render the points
@@ -134,20 +139,17 @@ public class BigWarpOverlay {
 				if ( isMoving && viewer.isInFixedImageSpace() )
 				{
 					if ( landmarkModel.isWarped( index ) )
-						spot = landmarkModel.getWarpedPoints().get( index );
+						spot = warpedPts;
 					else
-						spot = landmarkModel.getPoints( false ).get( index );
+						spot = targetPts;
 				}
 
 				// have to do this song and dance because globalCoords should be a length-3 array
 				// all the time with z=0 if we're in a 2d
-				x = spot[ 0 ];
-				y = spot[ 1 ];
-				if ( is3d )
-					z = spot[ 2 ];
+				globalCoords[ 0 ] = spot.get( index, 0 );
+				globalCoords[ 1 ] = spot.get( index, 1 );
+				globalCoords[ 2 ] = is3d ? spot.get( index, 2 ) : 0.0;
 
-				final double[] globalCoords = new double[] { x, y, z };
-				final double[] viewerCoords = new double[ 3 ];
 				transform.apply( globalCoords, viewerCoords );
 
 				// final double rad = radius * transformScale * radiusRatio;
@@ -7,6 +7,8 @@ import java.awt.FileDialog;
 import java.awt.KeyEventPostProcessor;
 import java.awt.KeyboardFocusManager;
 import java.awt.Point;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
@@ -21,6 +23,10 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 
 import javax.swing.ActionMap;
@@ -96,6 +102,7 @@ import bdv.viewer.animate.TranslationAnimator;
 import bdv.viewer.overlay.BigWarpSourceOverlayRenderer;
 import bdv.viewer.overlay.MultiBoxOverlayRenderer;
 import bdv.viewer.state.ViewerState;
+import bigwarp.landmarks.LandmarkPointStore;
 import bigwarp.landmarks.LandmarkTableModel;
 import bigwarp.loader.ImagePlusLoader.SetupSettings;
 import bigwarp.source.GridSource;
@@ -126,6 +133,7 @@ import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.RealPositionable;
@@ -137,8 +145,10 @@ import net.imglib2.img.imageplus.FloatImagePlus;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.realtransform.AffineTransform;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.DisplacementGridApproximation;
 import net.imglib2.realtransform.InverseRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.ThinplateSplineTransform;
 import net.imglib2.realtransform.Wrapped2DTransformAs3D;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
@@ -148,6 +158,7 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.type.volatiles.VolatileFloatType;
 import net.imglib2.ui.TransformEventHandler;
 import net.imglib2.ui.TransformListener;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 public class BigWarp< T >
@@ -291,6 +302,22 @@ public class BigWarp< T >
 
 	protected boolean firstWarpEstimation = true;
 
+	/*
+	 * if true, the moving image is displayed with a displacement grid that
+	 * approximates the current transform
+	 */
+	protected boolean approximateWarpForDisplay = false;
+
+	// number of coarse grid cells along the longest dimension of the target
+	protected int displayApproximationCells = 32;
+
+	// approximation tolerance in units of the smallest target voxel spacing
+	protected double displayApproximationTolerance = 0.25;
+
+	private ExecutorService displayApproximationExecutor;
+
+	private Future< ? > displayApproximationTask;
+
 	JMenu landmarkMenu;
 
 	final ProgressWriter progressWriter;
@@ -377,6 +404,20 @@ public class BigWarp< T >
 
 		viewerQ = getViewerFrameQ().getViewerPanel();
 
+		// the warped sources choose their mipmap levels by sampling the warp over the screen
+		for ( final WarpedSource< ? > ws : getMovingWarpedSources() )
+			ws.setScreenSize( DEFAULT_WIDTH, DEFAULT_HEIGHT );
+
+		viewerQ.getDisplay().addComponentListener( new ComponentAdapter()
+		{
+			@Override
+			public void componentResized( final ComponentEvent e )
+			{
+				for ( final WarpedSource< ? > ws : getMovingWarpedSources() )
+					ws.setScreenSize( viewerQ.getDisplay().getWidth(), viewerQ.getDisplay().getHeight() );
+			}
+		} );
+
 		// setup messaging
 		message = options.getMessageAnimator();
 		message.setViewers( viewerP, viewerQ );
@@ -646,6 +687,14 @@ public class BigWarp< T >
 		viewerFrameP.dispose();
 		viewerFrameQ.dispose();
 		landmarkFrame.dispose();
+
+		solverThread.interrupt();
+
+		synchronized ( this )
+		{
+			if ( displayApproximationExecutor != null )
+				displayApproximationExecutor.shutdownNow();
+		}
 	}
 
 	public void setUpdateWarpOnChange( final boolean updateWarpOnPtChange )
@@ -1074,6 +1123,12 @@ public class BigWarp< T >
 		gd.addMessage( "Deformation field export:" );
 		gd.addCheckbox( "Ignore affine part", false );
 		gd.addNumericField( "threads", 1, 0 );
+		gd.addMessage( "Optional n5 output, written block by block instead of to an image:" );
+		gd.addStringField( "n5_root", "" );
+		gd.addStringField( "n5_dataset", DeformationFieldExporter.DEFAULT_DATASET );
+		gd.addChoice( "n5_storage", BigWarpToDeformationFieldPlugIn.storageNames(), DeformationFieldExporter.Storage.FLOAT32.name() );
+		gd.addNumericField( "n5_quantization", DeformationFieldExporter.DEFAULT_QUANTIZATION, 4 );
+		gd.addStringField( "n5_block_size", Integer.toString( DeformationFieldExporter.DEFAULT_BLOCK_SIZE ) );
 		gd.showDialog();
 
 		if ( gd.wasCanceled() )
@@ -1081,6 +1136,13 @@ public class BigWarp< T >
 
 		boolean ignoreAffine = gd.getNextBoolean();
 		int nThreads = ( int ) gd.getNextNumber();
+		String n5Root = gd.getNextString();
+		String n5Dataset = gd.getNextString();
+		DeformationFieldExporter.Storage storage = DeformationFieldExporter.Storage.valueOf( gd.getNextChoice() );
+		double quantization = gd.getNextNumber();
+		int[] blockSize = BigWarpToDeformationFieldPlugIn.parseBlockSize( gd.getNextString() );
+		if ( blockSize == null )
+			return;
 
 		RandomAccessibleInterval< ? > tgtInterval = sources.get( targetSourceIndexList[ 0 ] ).getSpimSource().getSource( 0, 0 );
 
@@ -1112,6 +1174,13 @@ public class BigWarp< T >
 		if ( ndims > 2 )
 			pixToPhysical.set( resolutions[ 2 ], 2, 2 );
 
+		if ( !n5Root.isEmpty() )
+		{
+			exportWarpFieldN5( ignoreAffine, pixToPhysical, Intervals.dimensionsAsLongArray( tgtInterval ),
+					n5Root, n5Dataset, blockSize, storage, quantization, nThreads );
+			return;
+		}
+
 		FloatImagePlus< FloatType > deformationField = ImagePlusImgs.floats( dims );
 
 		RandomAccessibleInterval< FloatType > dfieldPerm;
@@ -1142,6 +1211,28 @@ public class BigWarp< T >
 		dfieldIp.show();
 	}
 
+	/*
+	 * writes the deformation field in a separate thread, so that large fields
+	 * do not block the ui
+	 */
+	private void exportWarpFieldN5( final boolean ignoreAffine, final AffineTransform pixToPhysical, final long[] targetDims,
+			final String n5Root, final String n5Dataset, final int[] blockSize, final DeformationFieldExporter.Storage storage,
+			final double quantization, final int nThreads )
+	{
+		final int ndims = pixToPhysical.numDimensions();
+		final long[] dims = Arrays.copyOf( targetDims, ndims );
+
+		ThinPlateR2LogRSplineKernelTransform tpsRaw = landmarkModel.getTransform();
+		ThinPlateR2LogRSplineKernelTransform tpsUseMe = tpsRaw;
+		if ( ignoreAffine )
+			tpsUseMe = new ThinPlateR2LogRSplineKernelTransform( tpsRaw.getSourceLandmarks(), null, null, tpsRaw.getKnotWeights() );
+
+		final ThinplateSplineTransform tps = new ThinplateSplineTransform( tpsUseMe );
+		new DeformationFieldExporter.ExportThread( tps, pixToPhysical, dims, n5Root, n5Dataset, blockSize,
+				storage, quantization, nThreads, new ProgressWriterIJ() ).start();
+		message.showMessage( "Writing the warp field to " + n5Root );
+	}
+
 	protected void setUpLandmarkMenus()
 	{
 		final ActionMap actionMap = landmarkFrame.getKeybindings().getConcatenatedActionMap();
@@ -1582,9 +1673,6 @@ public class BigWarp< T >
 	{
 		logger.trace( "clicked: " + XfmUtils.printArray( pt ) );
 
-		// TODO selectedLandmark
-		final int N = landmarkModel.getRowCount();
-
 		// a point will be selected if you click inside the spot ( with a 5 pixel buffer )
 		double radsq = ( viewerSettings.getSpotSize() * viewerSettings.getSpotSize() ) + 5 ;
 		final AffineTransform3D viewerXfm = new AffineTransform3D();
@@ -1601,42 +1689,29 @@ public class BigWarp< T >
 		radsq = ( radsq * radsq );
 		final double scale = computeScaleAssumeRigid( viewerXfm );
 
-		double dist = 0.0;
-		int bestIdx = -1;
-		double smallestDist = Double.MAX_VALUE;
-
 		logger.trace( "  selectedLandmarkHelper dist scale: " + scale );
 		logger.trace( "  selectedLandmarkHelper      radsq: " + radsq );
 
-		for ( int n = 0; n < N; n++ )
+		// the selection radius in physical units
+		final double radius = Math.sqrt( radsq ) / scale;
+
+		int bestIdx;
+		if( isMoving && isMovingDisplayTransformed() )
 		{
-			final Double[] lmpt;
-			if( isMoving && landmarkModel.isWarped( n ) && isMovingDisplayTransformed() )
-			{
-				lmpt = landmarkModel.getWarpedPoints().get( n );
-			}
-			else if( isMoving && isMovingDisplayTransformed() )
-			{
-				lmpt = landmarkModel.getPoints( false ).get( n );
-			}
+			// warped points are shown for rows that have them, target points otherwise
+			final int warpedIdx = landmarkModel.getWarpedSpatialIndex().nearest( pt, radius, n -> landmarkModel.isWarped( n ) );
+			final int targetIdx = landmarkModel.getSpatialIndex( false ).nearest( pt, radius, n -> !landmarkModel.isWarped( n ) );
+			if( warpedIdx < 0 )
+				bestIdx = targetIdx;
+			else if( targetIdx < 0 )
+				bestIdx = warpedIdx;
 			else
-			{
-				lmpt = landmarkModel.getPoints( isMoving ).get( n );
-			}
-
-			dist = 0.0;
-			for ( int i = 0; i < landmarkModel.getNumdims(); i++ )
-			{
-				dist += ( pt[ i ] - lmpt[ i ] ) * ( pt[ i ] - lmpt[ i ] );
-			}
-
-			dist *= ( scale * scale );
-			logger.trace( "    dist squared of lm index : " + n + " is " + dist );
-			if ( dist < radsq && dist < smallestDist )
-			{
-				smallestDist = dist;
-				bestIdx = n;
-			}
+				bestIdx = squaredDistance( landmarkModel.getWarpedPointStore(), warpedIdx, pt ) <=
+						squaredDistance( landmarkModel.getPointStore( false ), targetIdx, pt ) ? warpedIdx : targetIdx;
+		}
+		else
+		{
+			bestIdx = landmarkModel.getSpatialIndex( isMoving ).nearest( pt, radius, null );
 		}
 
 		if ( selectInTable && landmarkFrame.isVisible() )
@@ -1653,6 +1728,15 @@ public class BigWarp< T >
 		return bestIdx;
 	}
 
+	private static double squaredDistance( final LandmarkPointStore pts, final int i, final double[] pt )
+	{
+		double dist = 0;
+		for ( int d = 0; d < pts.numDimensions(); d++ )
+			dist += ( pts.get( i, d ) - pt[ d ] ) * ( pts.get( i, d ) - pt[ d ] );
+
+		return dist;
+	}
+
 	public static double computeScaleAssumeRigid( final AffineTransform3D xfm )
 	{
 		return xfm.get( 0, 0 ) + xfm.get( 0, 1 ) + xfm.get( 0, 2 );
@@ -1795,7 +1879,7 @@ public class BigWarp< T >
 		{
 			if ( BigWarp.this.landmarkModel.isWarped( row ) )
 			{
-				pt = LandmarkTableModel.toPrimitive( BigWarp.this.landmarkModel.getWarpedPoints().get( row ) );
+				pt = BigWarp.this.landmarkModel.getWarpedPointStore().get( row );
 			}
 			else
 			{
@@ -1969,7 +2053,7 @@ public class BigWarp< T >
 
 		data.converterSetups.add( new RealARGBColorConverterSetup( JACDET_SOURCE_ID, converter, vconverter ) );
 
-		final SourceAndConverter soc = new SourceAndConverter( jdSource, converter, null );
+		final SourceAndConverter soc = new SourceAndConverter( jdSource, converter, new SourceAndConverter( jdSource.asVolatile(), vconverter ) );
 		data.sources.add( soc );
 
 		return data.sources.size() - 1;
@@ -1990,7 +2074,7 @@ public class BigWarp< T >
 
 		data.converterSetups.add( new RealARGBColorConverterSetup( WARPMAG_SOURCE_ID, converter, vconverter ) );
 
-		final SourceAndConverter soc = new SourceAndConverter( magSource, converter, null );
+		final SourceAndConverter soc = new SourceAndConverter( magSource, converter, new SourceAndConverter( magSource.asVolatile(), vconverter ) );
 		data.sources.add( soc );
 
 		return data.sources.size() - 1;
@@ -2078,35 +2162,36 @@ public class BigWarp< T >
 	}
 
 	protected void fitBaselineWarpMagModel()
+	{
+		final RealTransform baseline = fitBaseline();
+		if( baseline != null )
+			( ( WarpMagnitudeSource< ? > ) sources.get( warpMagSourceIndex ).getSpimSource() ).setBaseline( baseline );
+
+		getViewerFrameP().getViewerPanel().requestRepaint();
+		getViewerFrameQ().getViewerPanel().requestRepaint();
+	}
+
+	/**
+	 * Fits a copy of the selected baseline model to the active landmarks.
+	 *
+	 * @return the inverse of the baseline, or null if it could not be fit
+	 */
+	protected RealTransform fitBaseline()
 	{
 		final int numActive = landmarkModel.numActive();
 		if( numActive < 4 )
-			return;
+			return null;
 
 		final int ndims = landmarkModel.getNumdims();
-		final double[][] p = new double[ ndims ][ numActive ];
-		final double[][] q = new double[ ndims ][ numActive ];
+		final double[][] p = landmarkModel.getActivePoints( true );
+		final double[][] q = landmarkModel.getActivePoints( false );
 		final double[] w = new double[ numActive ];
-
-		int k = 0;
-		for ( int i = 0; i < landmarkModel.getTransform().getNumLandmarks(); i++ )
-		{
-			if ( landmarkModel.isActive( i ) )
-			{
-				w[ k ] = 1.0;
-
-				for ( int d = 0; d < ndims; d++ )
-				{
-					p[ d ][ k ] = landmarkModel.getMovingPoint( i )[ d ];
-					q[ d ][ k ] = landmarkModel.getFixedPoint( i )[ d ];
-				}
-				k++;
-			}
-		}
+		Arrays.fill( w, 1.0 );
 
 		try
 		{
-			final AbstractModel< ? > baseline = this.baseXfmList[ baselineModelIndex ];
+			// fit a copy, the sources may still be rendering with the previous fit
+			final AbstractModel< ? > baseline = this.baseXfmList[ baselineModelIndex ].copy();
 
 			baseline.fit( p, q, w );  // FITBASELINE
 			WrappedCoordinateTransform baselineTransform = new WrappedCoordinateTransform( 
@@ -2114,7 +2199,7 @@ public class BigWarp< T >
 
 			// the transform to compare is the inverse (because we use it for rendering)
 			// so need to give the inverse transform for baseline as well
-			( ( WarpMagnitudeSource< ? > ) sources.get( warpMagSourceIndex ).getSpimSource() ).setBaseline( baselineTransform.inverse() );
+			return baselineTransform.inverse();
 		}
 		catch ( final NotEnoughDataPointsException e )
 		{
@@ -2124,8 +2209,7 @@ public class BigWarp< T >
 		{
 			e.printStackTrace();
 		}
-		getViewerFrameP().getViewerPanel().requestRepaint();
-		getViewerFrameQ().getViewerPanel().requestRepaint();
+		return null;
 	}
 
 	public void setMovingSpimData( SpimData movingSpimData, File movingImageXml )
@@ -2318,26 +2402,175 @@ public class BigWarp< T >
 			if ( sources.get( 0 ).asVolatile() != null )
 				( ( WarpedSource< ? > ) ( sources.get( idx ).asVolatile().getSpimSource() ) ).updateTransform( transform );
 		}
+
+		if ( approximateWarpForDisplay )
+			requestDisplayApproximation( transform );
+	}
+
+	/**
+	 * Toggles whether the moving image is displayed using an approximation of
+	 * the current transform. The approximation interpolates a displacement grid
+	 * that is sampled in the background every time the transform changes, and
+	 * the exact transform is displayed until the grid is ready. Exported images
+	 * always use the exact transform.
+	 *
+	 * @param approximate whether to display using the approximation
+	 */
+	public synchronized void setApproximateWarpForDisplay( final boolean approximate )
+	{
+		this.approximateWarpForDisplay = approximate;
+		if ( approximate )
+		{
+			if ( currentTransform != null )
+				requestDisplayApproximation( currentTransform );
+		}
+		else
+		{
+			if ( displayApproximationTask != null )
+				displayApproximationTask.cancel( true );
+
+			for ( final WarpedSource< ? > ws : getMovingWarpedSources() )
+				ws.clearRenderTransform();
+
+			viewerP.requestRepaint();
+			viewerQ.requestRepaint();
+		}
+	}
+
+	public boolean isApproximateWarpForDisplay()
+	{
+		return approximateWarpForDisplay;
+	}
+
+	private synchronized void requestDisplayApproximation( final InvertibleRealTransform transform )
+	{
+		if ( displayApproximationTask != null )
+			displayApproximationTask.cancel( true );
+
+		// the grid covers the target sources, without them the exact transform is displayed
+		if ( targetSourceIndexList.length == 0 )
+			return;
+
+		if ( displayApproximationExecutor == null )
+		{
+			displayApproximationExecutor = Executors.newSingleThreadExecutor( r -> {
+				final Thread t = new Thread( r, "bigwarp-display-approximation" );
+				t.setDaemon( true );
+				return t;
+			} );
+		}
+
+		displayApproximationTask = displayApproximationExecutor.submit( () -> {
+			final AffineTransform3D voxelToPhysical = new AffineTransform3D();
+			RealInterval interval = null;
+			double minSpacing = Double.MAX_VALUE;
+			for ( final int idx : targetSourceIndexList )
+			{
+				final Source< ? > src = sources.get( idx ).getSpimSource();
+				src.getSourceTransform( 0, 0, voxelToPhysical );
+				final RealInterval physical = voxelToPhysical.estimateBounds( src.getSource( 0, 0 ) );
+				interval = interval == null ? physical : Intervals.union( interval, physical );
+
+				for ( int d = 0; d < landmarkModel.getNumdims(); d++ )
+				{
+					final double spacing = Math.sqrt(
+							voxelToPhysical.get( 0, d ) * voxelToPhysical.get( 0, d ) +
+							voxelToPhysical.get( 1, d ) * voxelToPhysical.get( 1, d ) +
+							voxelToPhysical.get( 2, d ) * voxelToPhysical.get( 2, d ) );
+					minSpacing = Math.min( minSpacing, spacing );
+				}
+			}
+
+			double maxExtent = 0;
+			for ( int d = 0; d < interval.numDimensions(); d++ )
+				maxExtent = Math.max( maxExtent, interval.realMax( d ) - interval.realMin( d ) );
+
+			final DisplacementGridApproximation approximation;
+			try
+			{
+				// a sub-pixel tolerance makes the approximation indistinguishable
+				// from the exact transform on screen
+				approximation = DisplacementGridApproximation.build( transform, interval,
+						maxExtent / displayApproximationCells, displayApproximationTolerance * minSpacing,
+						3, Runtime.getRuntime().availableProcessors() );
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+
+			boolean used = false;
+			for ( final WarpedSource< ? > ws : getMovingWarpedSources() )
+				used |= ws.setRenderTransform( transform, approximation );
+
+			if ( used )
+			{
+				logger.trace( "display approximation refined " + approximation.numRefinedCells() + " cells" );
+				viewerP.requestRepaint();
+				viewerQ.requestRepaint();
+			}
+		} );
+	}
+
+	private List< WarpedSource< ? > > getMovingWarpedSources()
+	{
+		final ArrayList< WarpedSource< ? > > warpedSources = new ArrayList<>();
+		for ( final int idx : movingSourceIndexList )
+		{
+			warpedSources.add( ( WarpedSource< ? > ) ( sources.get( idx ).getSpimSource() ) );
+			if ( sources.get( idx ).asVolatile() != null )
+				warpedSources.add( ( WarpedSource< ? > ) ( sources.get( idx ).asVolatile().getSpimSource() ) );
+		}
+		return warpedSources;
 	}
 
+	/**
+	 * Updates the moving sources, the visualization sources and the baseline
+	 * of the warp magnitude, all on the calling thread. The {@link SolveThread}
+	 * runs these as separate stages.
+	 *
+	 * @param transform the transform
+	 */
 	private void setTransformationAll( final InvertibleRealTransform transform )
 	{
 		setTransformationMovingSourceOnly( transform );
+		setTransformationVisualizationSources( transform, fitBaseline() );
+		getViewerFrameP().getViewerPanel().requestRepaint();
+		getViewerFrameQ().getViewerPanel().requestRepaint();
+	}
 
+	/**
+	 * Updates the warp magnitude, jacobian determinant and grid sources. The
+	 * warp magnitude and jacobian determinant setters invalidate the blocks they
+	 * cached for the previous transform.
+	 *
+	 * @param transform the transform
+	 * @param baseline the baseline of the warp magnitude, or null to keep the current one
+	 */
+	private void setTransformationVisualizationSources( final InvertibleRealTransform transform, final RealTransform baseline )
+	{
 		final WarpMagnitudeSource< ? > wmSrc = ( ( WarpMagnitudeSource< ? > ) sources.get( warpMagSourceIndex ).getSpimSource() );
 		final JacobianDeterminantSource< ? > jdSrc = ( ( JacobianDeterminantSource< ? > ) sources.get( jacDetSourceIndex ).getSpimSource() );
 		final GridSource< ? > gSrc = ( ( GridSource< ? > ) sources.get( gridSourceIndex ).getSpimSource() );
 
-		wmSrc.setWarp( transform );
-		fitBaselineWarpMagModel();
-	
-		if( transform instanceof ThinplateSplineTransform )
+		// warp and baseline change together, so the magnitude never combines the new warp with the old baseline
+		if ( baseline != null )
+			wmSrc.setWarpAndBaseline( transform, baseline );
+		else
+			wmSrc.setWarp( transform );
+
+		// 2d transforms are wrapped as 3d, the jacobian of the 2d part is what we want
+		final InvertibleRealTransform jdTransform = transform instanceof Wrapped2DTransformAs3D ?
+				( ( Wrapped2DTransformAs3D ) transform ).transform : transform;
+
+		if( jdTransform instanceof ThinplateSplineTransform )
 		{
-			jdSrc.setTransform( (ThinplateSplineTransform)transform );
+			jdSrc.setTransform( (ThinplateSplineTransform)jdTransform );
 		}
-		else if ( transform instanceof WrappedIterativeInvertibleRealTransform )
+		else if ( jdTransform instanceof WrappedIterativeInvertibleRealTransform &&
+				((WrappedIterativeInvertibleRealTransform<?>)jdTransform).getTransform() instanceof ThinplateSplineTransform )
 		{
-			jdSrc.setTransform( (ThinplateSplineTransform)((WrappedIterativeInvertibleRealTransform)transform).getTransform() );
+			jdSrc.setTransform( (ThinplateSplineTransform)((WrappedIterativeInvertibleRealTransform<?>)jdTransform).getTransform() );
 		}
 		else
 			jdSrc.setTransform( null );
@@ -2433,10 +2666,11 @@ public class BigWarp< T >
 		boolean isAnySource3d = false;
 		for ( SourceAndConverter< T > sac : sources )
 		{
-			long[] dims = new long[ sac.getSpimSource().getSource( 0, 0 ).numDimensions() ];
-			sac.getSpimSource().getSource( 0, 0 ).dimensions( dims );
+			final RandomAccessibleInterval< T > img = WarpedSource.getSourceBlocking( sac.getSpimSource(), 0, 0 );
+			long[] dims = new long[ img.numDimensions() ];
+			img.dimensions( dims );
 
-			if ( sac.getSpimSource().getSource( 0, 0 ).dimension( 2 ) > 1 )
+			if ( img.dimension( 2 ) > 1 )
 			{
 				isAnySource3d = true;
 				break;
@@ -2948,7 +3182,7 @@ public class BigWarp< T >
 
 					if ( BigWarp.this.viewerP.getOverlay().getIsTransformed() )
 						if ( BigWarp.this.landmarkModel.isWarped( row ) )
-							pt = LandmarkTableModel.toPrimitive( BigWarp.this.landmarkModel.getWarpedPoints().get( row ) );
+							pt = BigWarp.this.landmarkModel.getWarpedPointStore().get( row );
 						else
 							offset = ndims;
 				}
@@ -3129,16 +3363,11 @@ public class BigWarp< T >
 				if ( !tableModel.getIsActive( index ) )
 					return null;
 
-				int numActive = tableModel.numActive();
 				ndims = tableModel.getNumdims();
 
-				double[][] mvgPts = new double[ ndims ][ numActive ];
-				double[][] tgtPts = new double[ ndims ][ numActive ];
-
-				tableModel.copyLandmarks( mvgPts, tgtPts );
-
-				// need to find the "inverse TPS" - the transform from target space to moving space.
-				xfm = new ThinPlateR2LogRSplineKernelTransform( ndims, tgtPts, mvgPts );
+				// the "inverse TPS" - the transform from target space to moving space.
+				// only one point changed, so this is an incremental update
+				xfm = tableModel.estimateTransformation();
 			}
 			else // a point is added
 			{
@@ -3169,12 +3398,9 @@ public class BigWarp< T >
 		LandmarkTableModel tableModel = getLandmarkPanel().getTableModel();
 
 		int numActive = tableModel.numActive();
-		int ndims = tableModel.getNumdims();
-
-		double[][] mvgPts = new double[ ndims ][ numActive ];
-		double[][] tgtPts = new double[ ndims ][ numActive ];
 
-		tableModel.copyLandmarks( mvgPts, tgtPts );
+		double[][] mvgPts = tableModel.getActivePoints( true );
+		double[][] tgtPts = tableModel.getActivePoints( false );
 
 		double[] w = new double[ numActive ];
 		Arrays.fill( w, 1.0 );
@@ -3226,11 +3452,36 @@ public class BigWarp< T >
 		return null;
 	}
 
+	/**
+	 * Re-estimates the transform in the background, in a pipeline of stages.
+	 * <p>
+	 * Requests are versioned and coalesced: while a solve runs, newer requests
+	 * replace each other, and only the latest is solved next. A request for a
+	 * full re-solve is never dropped by coalescing with a point drag.
+	 * <p>
+	 * The first stage solves for the transform on this thread. A full solve
+	 * that is superseded by a newer full request is cancelled: this thread is
+	 * interrupted, and the solve stops at its next check, or is discarded
+	 * when it finishes if it can not be stopped.
+	 * <p>
+	 * As soon as a transform is ready, the moving sources are updated and the
+	 * viewers repaint. For full solves, two further stages then run in
+	 * parallel with each other and with the next solve: one updates the
+	 * warped points of the landmark model, the other fits the baseline of the
+	 * warp magnitude and updates the visualization sources. Each of them has
+	 * its own thread, so a stale stage always finishes before the same stage
+	 * of the next version starts. Stages of a version are cancelled when a
+	 * newer version is published, and skip their remaining steps once they
+	 * are stale.
+	 */
 	public static class SolveThread extends Thread
 	{
+		private final BigWarp<?> bw;
+
+		// guarded by this
 		private boolean pleaseResolve;
 
-		private BigWarp<?> bw;
+		private boolean pendingFull;
 
 		private boolean isMoving;
 
@@ -3238,103 +3489,273 @@ public class BigWarp< T >
 
 		private double[] pt;
 
+		private long requestedVersion = 0;
+
+		// whether a full solve runs, and whether it was interrupted to cancel it
+		private boolean solvingFull;
+
+		private boolean cancelling;
+
+		// set by interrupt(), to tell stopping from cancelling a solve
+		private volatile boolean stopped;
+
+		// the version whose transform is displayed
+		private volatile long publishedVersion = -1;
+
+		private final ExecutorService pointsExecutor;
+
+		private final ExecutorService visualizationExecutor;
+
+		private final ArrayList< Future< ? > > stageTasks = new ArrayList<>();
+
 		public SolveThread( final BigWarp<?> bw )
 		{
+			super( "bigwarp-solver" );
 			this.bw = bw;
 			pleaseResolve = false;
+			setDaemon( true );
+
+			pointsExecutor = stageExecutor( "bigwarp-solver-points" );
+			visualizationExecutor = stageExecutor( "bigwarp-solver-visualization" );
+		}
+
+		private static ExecutorService stageExecutor( final String name )
+		{
+			return Executors.newSingleThreadExecutor( r -> {
+				final Thread t = new Thread( r, name );
+				t.setDaemon( true );
+				return t;
+			} );
+		}
+
+		/**
+		 * Stops this thread.
+		 */
+		@Override
+		public void interrupt()
+		{
+			stopped = true;
+			super.interrupt();
 		}
 
 		@Override
 		public void run()
 		{
-			while ( !isInterrupted() )
+			try
 			{
-				final boolean b;
-				synchronized ( this )
+				while ( !stopped )
 				{
-					b = pleaseResolve;
-					pleaseResolve = false;
-				}
-				if ( b )
+					final boolean full;
+					final boolean moving;
+					final int idx;
+					final double[] newpt;
+					final long version;
 					try
 					{
-						InvertibleRealTransform invXfm = bw.getTransformation( index );
-
-//						System.out.println( "ct   : " + bw.getCoordinateTransform());
-//						System.out.println( "tpsb : " + bw.getTpsBase());
-//						System.out.println( "tps  : " + bw.getTps());
-//						System.out.println( "xfm  : " + bw.getTransformation());
-
-						if ( invXfm == null )
-							return;
-
-						if ( index < 0 )
+						synchronized ( this )
 						{
-							// reset active warped points
-							bw.landmarkModel.resetWarpedPoints();
-
-							// re-compute all warped points for non-active points
-							bw.landmarkModel.updateAllWarpedPoints();
-
-							// update sources with the new transformation
-							bw.setTransformationAll( invXfm );
-							bw.fitBaselineWarpMagModel();
+							while ( !pleaseResolve )
+								wait();
+
+							full = pendingFull;
+							moving = isMoving;
+							idx = index;
+							newpt = pt;
+							version = requestedVersion;
+
+							pleaseResolve = false;
+							pendingFull = false;
+							solvingFull = full;
 						}
-						else
-						{
-							// update the transform and warped point
-							bw.setTransformationMovingSourceOnly( invXfm );
-						}
-
-						// update fixed point - but don't allow undo/redo
-						// and update warped point
-						// both for rendering purposes
-						if ( !isMoving )
-							bw.getLandmarkPanel().getTableModel().setPoint( index, isMoving, pt, false );
-
-						/*
-						 * repaint both panels so that: 
-						 * 1) new transform is displayed
-						 * 2) points are rendered
-						 */
-						bw.getViewerFrameP().getViewerPanel().requestRepaint();
-						bw.getViewerFrameQ().getViewerPanel().requestRepaint();
+					}
+					catch ( final InterruptedException e )
+					{
+						// stopped, or a cancellation that arrived after the solve
+						continue;
 					}
 
+					try
+					{
+						if ( full )
+							solveAll( version, moving, idx, newpt );
+						else
+							solvePoint( version, moving, idx, newpt );
+					}
+					catch ( final CancellationException e )
+					{
+						logger.trace( "cancelled stale solve " + version );
+					}
 					catch ( final RejectedExecutionException e )
 					{
 						// this happens when the rendering threadpool
 						// is killed before the painter thread.
 					}
-				synchronized ( this )
-				{
-					try
-					{
-						if ( !pleaseResolve )
-							wait();
-					}
-					catch ( final InterruptedException e )
+					finally
 					{
-						break;
+						synchronized ( this )
+						{
+							solvingFull = false;
+							if ( cancelling && !stopped )
+								Thread.interrupted();
+
+							cancelling = false;
+						}
 					}
 				}
 			}
+			finally
+			{
+				pointsExecutor.shutdownNow();
+				visualizationExecutor.shutdownNow();
+			}
+		}
+
+		/**
+		 * Re-estimates the transform from all landmarks.
+		 */
+		private void solveAll( final long version, final boolean moving, final int idx, final double[] newpt )
+		{
+			final InvertibleRealTransform invXfm = bw.getTransformation( -1 );
+			if ( invXfm == null )
+				return;
+
+			// a newer full solve is pending, so this one is stale
+			synchronized ( this )
+			{
+				if ( cancelling || ( pleaseResolve && pendingFull ) )
+				{
+					logger.trace( "discarding stale solve " + version );
+					return;
+				}
+			}
+
+			publish( version, invXfm );
+			updatePoint( moving, idx, newpt );
+			repaint();
+
+			synchronized ( stageTasks )
+			{
+				stageTasks.add( pointsExecutor.submit( () -> {
+					if ( !isCurrent( version ) )
+						return;
+
+					// reset active warped points and
+					// re-compute all warped points for non-active points
+					bw.landmarkModel.resetWarpedPoints();
+					bw.landmarkModel.updateAllWarpedPoints();
+					if ( isCurrent( version ) )
+						repaint();
+				} ) );
+
+				stageTasks.add( visualizationExecutor.submit( () -> {
+					if ( !isCurrent( version ) )
+						return;
+
+					final RealTransform baseline = bw.fitBaseline();
+					if ( !isCurrent( version ) )
+						return;
+
+					bw.setTransformationVisualizationSources( invXfm, baseline );
+					if ( isCurrent( version ) )
+						repaint();
+				} ) );
+			}
+		}
+
+		/**
+		 * Updates the transform after a single point changed.
+		 */
+		private void solvePoint( final long version, final boolean moving, final int idx, final double[] newpt )
+		{
+			final InvertibleRealTransform invXfm = bw.getTransformation( idx );
+			if ( invXfm == null )
+				return;
+
+			publish( version, invXfm );
+			updatePoint( moving, idx, newpt );
+			repaint();
+		}
+
+		/**
+		 * Displays the transform of a version, and cancels the stages of older
+		 * versions.
+		 */
+		private void publish( final long version, final InvertibleRealTransform invXfm )
+		{
+			publishedVersion = version;
+			synchronized ( stageTasks )
+			{
+				for ( final Future< ? > f : stageTasks )
+					f.cancel( true );
+				stageTasks.clear();
+			}
+
+			// update the transform and warped point
+			bw.setTransformationMovingSourceOnly( invXfm );
+		}
+
+		private void updatePoint( final boolean moving, final int idx, final double[] newpt )
+		{
+			// update fixed point - but don't allow undo/redo
+			// and update warped point
+			// both for rendering purposes
+			if ( !moving && idx >= 0 && newpt != null )
+				bw.getLandmarkPanel().getTableModel().setPoint( idx, moving, newpt, false );
+		}
+
+		private boolean isCurrent( final long version )
+		{
+			return publishedVersion == version && !Thread.currentThread().isInterrupted();
+		}
+
+		/*
+		 * repaint both panels so that:
+		 * 1) new transform is displayed
+		 * 2) points are rendered
+		 */
+		private void repaint()
+		{
+			bw.getViewerFrameP().getViewerPanel().requestRepaint();
+			bw.getViewerFrameQ().getViewerPanel().requestRepaint();
+		}
+
+		/**
+		 * @return the version of the latest request
+		 */
+		public synchronized long getRequestedVersion()
+		{
+			return requestedVersion;
+		}
+
+		/**
+		 * @return the version of the transform that is displayed
+		 */
+		public long getPublishedVersion()
+		{
+			return publishedVersion;
 		}
 
 		public void requestResolve( final boolean isMoving, final int index, final double[] newpt )
 		{
 			synchronized ( this )
 			{
+				requestedVersion++;
 				pleaseResolve = true;
+				pendingFull |= index < 0;
 				this.isMoving = isMoving;
 				this.index = index;
-				if ( newpt != null )
-					this.pt = Arrays.copyOf( newpt, newpt.length );
+				this.pt = newpt == null ? null : Arrays.copyOf( newpt, newpt.length );
+
+				// a running full solve is stale now
+				if ( index < 0 && solvingFull && !cancelling )
+				{
+					cancelling = true;
+					super.interrupt();
+				}
 
 				notify();
 			}
 		}
-		
 	}
 	
 	public static class WrappedCoordinateTransform implements InvertibleRealTransform
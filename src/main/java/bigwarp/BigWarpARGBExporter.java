@@ -73,38 +73,38 @@ public class BigWarpARGBExporter extends BigWarpExporter<ARGBType>
 		return true;
 	}
 
-	public ImagePlus export()
+	@Override
+	public RandomAccessibleInterval< ARGBType > exportRai()
 	{
 		ArrayList< RandomAccessibleInterval< ARGBType > > raiList = new ArrayList< RandomAccessibleInterval< ARGBType > >(); 
-		ARGBType t = null;
 		
 		buildTotalRenderTransform();
 		
 		int numChannels = movingSourceIndexList.length;
-		VoxelDimensions voxdim = new FinalVoxelDimensions( unit,
-				resolutionTransform.get( 0, 0 ),
-				resolutionTransform.get( 1, 1 ),
-				resolutionTransform.get( 2, 2 ));
-
 		for ( int i = 0; i < numChannels; i++ )
 		{
 			int movingSourceIndex = movingSourceIndexList[ i ];
-
-			RealRandomAccessible< ARGBType > convertedSource;
-			convertedSource = ( RealRandomAccessible< ARGBType > ) sources.get( movingSourceIndex ).getSpimSource().getInterpolatedSource( 0, 0, interp );
-			
-			final RealRandomAccessible< ARGBType > raiRaw = ( RealRandomAccessible< ARGBType > )sources.get( movingSourceIndex ).getSpimSource().getInterpolatedSource( 0, 0, interp );
-
+			final RealRandomAccessible< ARGBType > raiRaw = getExportInterpolatedSource( movingSourceIndex );
 
 			// apply the transformations
-//			AffineTransform3D tmpAffine = new AffineTransform3D();
 			final AffineRandomAccessible< ARGBType, AffineGet > rai = RealViews.affine( 
 					raiRaw, pixelRenderToPhysical.inverse() );
 			
 			raiList.add( Views.interval( Views.raster( rai ), outputInterval ) );
 		}
 		
-		RandomAccessibleInterval< ARGBType > raiStack = Views.stack( raiList );
+		return Views.stack( raiList );
+	}
+
+	public ImagePlus export()
+	{
+		RandomAccessibleInterval< ARGBType > raiStack = exportRai();
+
+		int numChannels = movingSourceIndexList.length;
+		VoxelDimensions voxdim = new FinalVoxelDimensions( unit,
+				resolutionTransform.get( 0, 0 ),
+				resolutionTransform.get( 1, 1 ),
+				resolutionTransform.get( 2, 2 ));
 		
 		ImagePlus ip = null;
 		if ( isVirtual )
@@ -8,6 +8,8 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.utility.parse.ParseUtils;
 
 import com.beust.jcommander.JCommander;
@@ -64,10 +66,10 @@ public class BigWarpBatchTransformFOV
 	@Parameter(names = {"--image", "-i"}, description = "Input image file" )
 	private String imageFilePath;
 
-	@Parameter(names = {"--landmarks", "-l"}, description = "Input landmarks file" )
+	@Parameter(names = {"--landmarks", "-l"}, description = "Input landmarks file, csv or binary (see bigwarp.scripts.ConvertLandmarks)" )
 	private String landmarkFilePath;
 
-	@Parameter(names = {"--output", "-o"}, description = "Output image file" )
+	@Parameter(names = {"--output", "-o"}, description = "Output image file, or n5 container if it ends with .n5" )
 	private String outputFilePath;
 
 	@Parameter(names = {"--dimension", "-d"}, description = "Dimension of output image (overrides target image)", 
@@ -92,6 +94,22 @@ public class BigWarpBatchTransformFOV
 			converter = ParseUtils.DoubleArrayConverter.class )
 	private double[] offset;
 
+	@Parameter(names = { "--approximation-spacing" }, description = "Evaluate the transform exactly every this many output pixels and interpolate in between (0 for exact)" )
+	private int approximationSpacing = 0;
+
+	@Parameter(names = { "--approximation-error" }, description = "Largest interpolation error of the approximated transform, in physical units of the input image" )
+	private double approximationError = 0.1;
+
+	@Parameter(names = { "--n5-dataset" }, description = "Dataset of the n5 output" )
+	private String n5Dataset = "warped";
+
+	@Parameter(names = { "--block-size" }, description = "Block size of the n5 output, e.g. \"64,64,64\"", 
+			converter = ParseUtils.IntArrayConverter.class )
+	private int[] blockSize = new int[] { 64, 64, 64, 1 };
+
+	@Parameter(names = { "--n5-scales" }, description = "Number of scales of the n5 output, written as a multiscale group if more than 1, 0 to downsample until one block remains" )
+	private int n5Scales = 1;
+
 	@Parameter(names = {"--help", "-h"}, help = true)
 	private boolean help;
 
@@ -291,14 +309,25 @@ public class BigWarpBatchTransformFOV
 		exporter.setRenderResolution( spacingFull );
 		exporter.setOffset( offsetFull );
 		exporter.setInterp( Interpolation.valueOf( interpType ));
+		exporter.setTransformApproximation( approximationSpacing, approximationError );
 		exporter.showResult( false );
 
-		exporter.exportThread = new ExportThread( exporter );
-		exporter.exportThread.run();
-		final ImagePlus ipout = exporter.getResult();
+		if( outputFilePath.endsWith( ".n5" ) )
+		{
+			// stream blocks to disk, so the output does not have to fit in memory
+			System.out.println( "exporting to " + outputFilePath + " : " + n5Dataset );
+			final N5FSWriter n5 = new N5FSWriter( outputFilePath );
+			exporter.exportN5( n5, n5Dataset, blockSize, new GzipCompression(), n5Scales );
+		}
+		else
+		{
+			exporter.exportThread = new ExportThread( exporter );
+			exporter.exportThread.run();
+			final ImagePlus ipout = exporter.getResult();
 
-		System.out.println( "saving" );
-		IJ.save( ipout, outputFilePath );
+			System.out.println( "saving" );
+			IJ.save( ipout, outputFilePath );
+		}
 
 		long endTime = System.currentTimeMillis();
 		System.out.println( "total time: " + ( endTime - startTime ) + " ms" );
@@ -1,5 +1,15 @@
 package bigwarp;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -7,7 +17,20 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
 import bdv.export.ProgressWriter;
 import bdv.img.WarpedSource;
@@ -16,6 +39,10 @@ import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bigwarp.BigWarp.BigWarpData;
+import bigwarp.metrics.Counter;
+import bigwarp.metrics.Metrics;
+import bigwarp.metrics.Timer;
+import bigwarp.util.BoundingBoxEstimator;
 import ij.ImagePlus;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
@@ -25,21 +52,35 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.LocalGridApproximation;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
 public abstract class BigWarpExporter <T>
 {
+	private static final Counter EXPORT_BLOCKS = Metrics.counter( "export.blocks" );
+
+	// uncompressed size of the blocks written to n5
+	private static final Counter EXPORT_BYTES = Metrics.counter( "export.bytes" );
+
+	private static final Timer EXPORT_TIME = Metrics.timer( "export.time" );
+
+	private static final Logger logger = LogManager.getLogger( BigWarpExporter.class.getName() );
+
 	final protected List< SourceAndConverter< T >> sources;
 
 	final protected int[] movingSourceIndexList;
@@ -68,12 +109,40 @@ public abstract class BigWarpExporter <T>
 
 	protected ProgressWriter progress;
 
+	/**
+	 * How the output is split across threads, ITER by default.
+	 * <ul>
+	 * <li>SLICE - one contiguous chunk per thread along the last non-singleton dimension</li>
+	 * <li>ITER - every nThreads-th pixel of the output per thread</li>
+	 * <li>BLOCK - cache-sized blocks scheduled on a work-stealing pool, see {@link #setBlockSize(int...)}</li>
+	 * </ul>
+	 */
 	public enum ParallelizationPolicy {
-		SLICE, ITER
+		SLICE, ITER, BLOCK
 	};
 
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	/**
+	 * The attribute of an exported N5 dataset holding the
+	 * {@link #exportFingerprint() fingerprint} of the export that wrote it.
+	 */
+	public static final String EXPORT_FINGERPRINT_ATTRIBUTE = "bigwarpExportFingerprint";
+
+	/**
+	 * The number of samples per dimension of the transforms in
+	 * {@link #exportFingerprint()}.
+	 */
+	private static final int FINGERPRINT_SAMPLES = 5;
+
 	public ParallelizationPolicy policy = ParallelizationPolicy.ITER;
 
+	protected int[] blockSize = new int[] { DEFAULT_BLOCK_SIZE };
+
+	protected int approximationSpacing = 0;
+
+	protected double approximationTolerance = 0;
+
 	private ImagePlus result;
 
 	private boolean showResult = true;
@@ -118,6 +187,14 @@ public abstract class BigWarpExporter <T>
 
 	public abstract ImagePlus export();
 
+	/**
+	 * Returns the lazily transformed output, with channels as the last
+	 * dimension. Nothing is computed until it is accessed.
+	 *
+	 * @return the output
+	 */
+	public abstract RandomAccessibleInterval< T > exportRai();
+
 	public abstract boolean isRGB();
 
 	public void showResult( final boolean showResult )
@@ -145,6 +222,34 @@ public abstract class BigWarpExporter <T>
 		this.policy = policy;
 	}
 
+	/**
+	 * Sets the size of the blocks for the BLOCK {@link ParallelizationPolicy}.
+	 * If fewer sizes than output dimensions are given, the last size is
+	 * repeated.
+	 *
+	 * @param blockSize the block size in pixels
+	 */
+	public void setBlockSize( final int... blockSize )
+	{
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Approximate the transform during export by evaluating it exactly only on
+	 * a lattice aligned to the output pixels, and interpolating in between.
+	 * Lattice cells where the interpolation error at the cell center exceeds
+	 * the tolerance are transformed exactly.
+	 *
+	 * @param spacing the lattice spacing in output pixels, 0 or 1 to transform every pixel exactly
+	 * @param tolerance the largest allowed interpolation error, in physical units of the moving image
+	 * @see LocalGridApproximation
+	 */
+	public void setTransformApproximation( final int spacing, final double tolerance )
+	{
+		this.approximationSpacing = spacing;
+		this.approximationTolerance = tolerance;
+	}
+
 	public void setNumThreads( final int nThreads )
 	{
 		this.nThreads = nThreads;
@@ -184,6 +289,45 @@ public abstract class BigWarpExporter <T>
 		pixelRenderToPhysical.concatenate( offsetTransform );
 	}
 
+	/**
+	 * Returns a moving source transformed for export, by its exact transform
+	 * or by an approximation of it, see {@link #setTransformApproximation(int, double)}.
+	 * The transform is passed to the source for this call only, so the
+	 * approximation the viewers display is neither used nor changed.
+	 * 
+	 * Call this after buildTotalRenderTransform.
+	 *
+	 * @param movingSourceIndex the index of the moving source
+	 * @return the transformed source
+	 */
+	protected RealRandomAccessible< T > getExportInterpolatedSource( final int movingSourceIndex )
+	{
+		Source<T> src = sources.get( movingSourceIndex ).getSpimSource();
+		if( !( src instanceof WarpedSource ) )
+			return src.getInterpolatedSource( 0, 0, interp );
+
+		WarpedSource<T> ws = (WarpedSource<T>)src;
+		RealTransform xfm = ws.getTransform();
+		if( xfm == null || approximationSpacing <= 1 )
+			return ws.getInterpolatedSource( 0, 0, interp, xfm );
+
+		int nd = xfm.numSourceDimensions();
+		double[] origin = new double[ nd ];
+		double[] spacing = new double[ nd ];
+		for( int d = 0; d < nd; d++ )
+		{
+			if( d < 3 )
+			{
+				origin[ d ] = pixelRenderToPhysical.get( d, 3 );
+				spacing[ d ] = approximationSpacing * pixelRenderToPhysical.get( d, d );
+			}
+			else
+				spacing[ d ] = approximationSpacing;
+		}
+
+		return ws.getInterpolatedSource( 0, 0, interp, new LocalGridApproximation( xfm, origin, spacing, approximationTolerance ));
+	}
+
 	public void setInterval( final Interval outputInterval )
 	{
 		this.outputInterval = outputInterval;
@@ -259,13 +403,173 @@ public abstract class BigWarpExporter <T>
 			final int nThreads )
 	{
 		Img< T > target = factory.create( itvl );
-		if( policy == ParallelizationPolicy.ITER )
+		if( policy == ParallelizationPolicy.BLOCK )
+			return copyToImageStackByBlock( raible, itvl, target, blockSize, nThreads, progress );
+		else if( policy == ParallelizationPolicy.ITER )
 			return copyToImageStackIterOrder( raible, itvl, target, nThreads, progress );
 		else
 			return copyToImageStackBySlice( raible, itvl, target, nThreads, progress );
 		
 	}
 
+	public static < T extends NumericType<T> > RandomAccessibleInterval<T> copyToImageStackByBlock( 
+			final RandomAccessible< T > raible,
+			final Interval itvl,
+			final ImgFactory<T> factory,
+			final int[] blockSize,
+			final int nThreads,
+			final ProgressWriter progress )
+	{
+		// create the image plus image
+		Img< T > target = factory.create( itvl );
+		return copyToImageStackByBlock( raible, itvl, target, blockSize, nThreads, progress );
+	}
+
+	/**
+	 * Copies into the target by splitting it into blocks of the given size.
+	 * The blocks are scheduled on a work-stealing pool, so threads that finish
+	 * cheap blocks (e.g. where the transform is near the identity) pick up the
+	 * remaining work of the others. Each block is copied line by line with its
+	 * own {@link RandomAccess}es, and progress is the fraction of finished blocks.
+	 * If copying a block fails, the exception is rethrown once the pool stops.
+	 *
+	 * @param ra the source, with channels as the 4th dimension
+	 * @param itvl the output interval
+	 * @param target the target, with channels as the 3rd dimension
+	 * @param blockSize the block size, the last entry is repeated for the remaining dimensions
+	 * @param nThreads the number of threads
+	 * @param progress the progress writer
+	 * @param <T> the type
+	 * @return the target
+	 */
+	public static < T extends NumericType<T> > RandomAccessibleInterval<T> copyToImageStackByBlock( 
+			final RandomAccessible< T > ra,
+			final Interval itvl,
+			final RandomAccessibleInterval<T> target,
+			final int[] blockSize,
+			final int nThreads,
+			final ProgressWriter progress )
+	{
+		progress.setProgress(0.0);
+		MixedTransformView< T > raible = Views.permute( ra, 2, 3 );
+
+		final int nd = target.numDimensions();
+		final long[] min = Intervals.minAsLongArray( target );
+		final long[] max = Intervals.maxAsLongArray( target );
+		final long[] size = new long[ nd ];
+		final long[] gridSize = new long[ nd ];
+		long nBlocks = 1;
+		for( int d = 0; d < nd; d++ )
+		{
+			size[ d ] = Math.max( 1, blockSize[ Math.min( d, blockSize.length - 1 ) ] );
+			gridSize[ d ] = ( target.dimension( d ) + size[ d ] - 1 ) / size[ d ];
+			nBlocks *= gridSize[ d ];
+		}
+
+		final long numBlocks = nBlocks;
+		final AtomicLong numDone = new AtomicLong();
+
+		final LongConsumer copyBlock = index ->
+		{
+			final long[] bmin = new long[ nd ];
+			final long[] bmax = new long[ nd ];
+			long rest = index;
+			for( int d = 0; d < nd; d++ )
+			{
+				final long g = rest % gridSize[ d ];
+				rest /= gridSize[ d ];
+				bmin[ d ] = min[ d ] + g * size[ d ];
+				bmax[ d ] = Math.min( bmin[ d ] + size[ d ] - 1, max[ d ] );
+			}
+
+			final FinalInterval block = new FinalInterval( bmin, bmax );
+			final RandomAccess< T > src = raible.randomAccess( block );
+			final RandomAccess< T > tgt = target.randomAccess( block );
+			final long lineLength = block.dimension( 0 );
+
+			// iterate over the lines of the block
+			final long[] lineDims = new long[ nd ];
+			block.dimensions( lineDims );
+			lineDims[ 0 ] = 1;
+			final IntervalIterator lines = new IntervalIterator( lineDims );
+			final long[] pos = new long[ nd ];
+			while( lines.hasNext() )
+			{
+				lines.fwd();
+				lines.localize( pos );
+				for( int d = 0; d < nd; d++ )
+					pos[ d ] += bmin[ d ];
+
+				src.setPosition( pos );
+				tgt.setPosition( pos );
+				for( long x = 0; x < lineLength; x++ )
+				{
+					tgt.get().set( src.get() );
+					src.fwd( 0 );
+					tgt.fwd( 0 );
+				}
+			}
+
+			if( Metrics.ENABLED )
+				EXPORT_BLOCKS.inc();
+
+			synchronized( progress )
+			{
+				progress.setProgress( ( double ) numDone.incrementAndGet() / numBlocks );
+			}
+		};
+
+		final ForkJoinPool threadPool = new ForkJoinPool( Math.max( 1, nThreads ) );
+		try
+		{
+			threadPool.invoke( new BlockCopy( 0, numBlocks, copyBlock ) );
+		}
+		finally
+		{
+			threadPool.shutdown();
+		}
+
+		progress.setProgress(1.0);
+		return target;
+	}
+
+	/**
+	 * Copies a range of blocks, recursively splitting the range in half so
+	 * that idle threads of a {@link ForkJoinPool} can steal the other half.
+	 */
+	private static class BlockCopy extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final long start;
+
+		private final long end;
+
+		private final LongConsumer copyBlock;
+
+		public BlockCopy( final long start, final long end, final LongConsumer copyBlock )
+		{
+			this.start = start;
+			this.end = end;
+			this.copyBlock = copyBlock;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( end - start <= 1 )
+			{
+				if( end > start )
+					copyBlock.accept( start );
+
+				return;
+			}
+
+			final long mid = ( start + end ) >>> 1;
+			invokeAll( new BlockCopy( start, mid, copyBlock ), new BlockCopy( mid, end, copyBlock ) );
+		}
+	}
+
 	public static < T extends NumericType<T> > RandomAccessibleInterval<T> copyToImageStackBySlice( 
 			final RandomAccessible< T > raible,
 			final Interval itvl,
@@ -449,6 +753,407 @@ public abstract class BigWarpExporter <T>
 		return target;
 	}
 	
+	/**
+	 * Exports to a dataset of an N5 container, block by block, without ever
+	 * holding the whole output in memory. Each thread renders one block at a
+	 * time. The output has channels as the last dimension.
+	 * <p>
+	 * If the dataset already exists with the same dimensions, block size and
+	 * data type, and was written by an export with the same
+	 * {@link #exportFingerprint() fingerprint}, blocks that were already
+	 * written are skipped, so an export that was interrupted can be resumed by
+	 * calling this again. Resuming an export whose transform has changed since
+	 * fails.
+	 *
+	 * @param n5 the n5 writer
+	 * @param dataset the dataset
+	 * @param blockSize the block size, the last entry is repeated for the remaining dimensions
+	 * @param compression the compression
+	 * @throws IOException if the dataset can not be created or a block can not be written
+	 */
+	public void exportN5( final N5Writer n5, final String dataset, final int[] blockSize, final Compression compression ) throws IOException
+	{
+		exportN5( n5, dataset, blockSize, compression, 1 );
+	}
+
+	/**
+	 * Exports to an N5 container like {@link #exportN5(N5Writer, String, int[], Compression)},
+	 * optionally writing a multiscale pyramid in the same pass. With more than
+	 * one scale, dataset is a group with the datasets s0, s1, ..., each
+	 * downsampled by a factor of two in all but the channel dimension. The
+	 * coarser levels are averaged from the finer blocks as they are finished
+	 * and are rebuilt completely when an export is resumed.
+	 *
+	 * @param n5 the n5 writer
+	 * @param dataset the dataset, or group of the scales
+	 * @param blockSize the block size, the last entry is repeated for the remaining dimensions
+	 * @param compression the compression
+	 * @param numScales the number of scales, 1 for no pyramid, 0 to downsample until a single block remains
+	 * @throws IOException if the dataset can not be created or a block can not be written
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public void exportN5( final N5Writer n5, final String dataset, final int[] blockSize, final Compression compression, final int numScales ) throws IOException
+	{
+		final RandomAccessibleInterval< T > rai = exportRai();
+
+		// do not downsample channels
+		final int[] factors = new int[ rai.numDimensions() ];
+		Arrays.fill( factors, 2 );
+		factors[ factors.length - 1 ] = 1;
+
+		writeN5Blocks( ( RandomAccessibleInterval ) rai, n5, dataset, blockSize, compression, factors, numScales, exportFingerprint(), nThreads, progress );
+
+		final int nd = outputInterval.numDimensions();
+		final double[] res = new double[ nd ];
+		final double[] offset = new double[ nd ];
+		for( int d = 0; d < nd; d++ )
+		{
+			res[ d ] = resolutionTransform.get( d, d );
+			offset[ d ] = pixelRenderToPhysical.get( d, 3 );
+		}
+		n5.setAttribute( dataset, "resolution", res );
+		n5.setAttribute( dataset, "offset", offset );
+		n5.setAttribute( dataset, "unit", unit );
+	}
+
+	/**
+	 * Writes an image to a dataset of an N5 container block by block, see
+	 * {@link #exportN5(N5Writer, String, int[], Compression)}.
+	 *
+	 * @param img the image
+	 * @param n5 the n5 writer
+	 * @param dataset the dataset
+	 * @param blockSize the block size, the last entry is repeated for the remaining dimensions
+	 * @param compression the compression
+	 * @param nThreads the number of threads
+	 * @param progress the progress writer
+	 * @param <S> the type
+	 * @throws IOException if the dataset can not be created or a block can not be written
+	 */
+	public static < S extends NativeType< S > > void writeN5Blocks(
+			final RandomAccessibleInterval< S > img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression,
+			final int nThreads,
+			final ProgressWriter progress ) throws IOException
+	{
+		writeN5Blocks( img, n5, dataset, blockSize, compression, null, 1, nThreads, progress );
+	}
+
+	/**
+	 * Writes an image to an N5 container block by block, optionally with a
+	 * multiscale pyramid, see {@link #exportN5(N5Writer, String, int[], Compression, int)}.
+	 *
+	 * @param img the image
+	 * @param n5 the n5 writer
+	 * @param dataset the dataset, or group of the scales
+	 * @param blockSize the block size, the last entry is repeated for the remaining dimensions
+	 * @param compression the compression
+	 * @param factors the downsampling factor between scales for every dimension, may be null if numScales is 1
+	 * @param numScales the number of scales, 1 for no pyramid, 0 to downsample until a single block remains
+	 * @param nThreads the number of threads
+	 * @param progress the progress writer
+	 * @param <S> the type, must be a {@link RealType} for more than one scale
+	 * @throws IOException if the dataset can not be created or a block can not be written
+	 */
+	public static < S extends NativeType< S > > void writeN5Blocks(
+			final RandomAccessibleInterval< S > img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression,
+			final int[] factors,
+			final int numScales,
+			final int nThreads,
+			final ProgressWriter progress ) throws IOException
+	{
+		writeN5Blocks( img, n5, dataset, blockSize, compression, factors, numScales, null, nThreads, progress );
+	}
+
+	/**
+	 * Writes an image to an N5 container block by block, optionally with a
+	 * multiscale pyramid, see {@link #exportN5(N5Writer, String, int[], Compression, int)}.
+	 * Blocks are visited along a Morton curve, so that few blocks of the
+	 * coarser levels are incomplete at any time.
+	 * <p>
+	 * The fingerprint of what is written is stored in the
+	 * {@link #EXPORT_FINGERPRINT_ATTRIBUTE} of a new dataset, and an existing
+	 * dataset is only resumed if it holds the same fingerprint.
+	 *
+	 * @param img the image
+	 * @param n5 the n5 writer
+	 * @param dataset the dataset, or group of the scales
+	 * @param blockSize the block size, the last entry is repeated for the remaining dimensions
+	 * @param compression the compression
+	 * @param factors the downsampling factor between scales for every dimension, may be null if numScales is 1
+	 * @param numScales the number of scales, 1 for no pyramid, 0 to downsample until a single block remains
+	 * @param fingerprint identifies the image, e.g. {@link #exportFingerprint()}, not checked if null
+	 * @param nThreads the number of threads
+	 * @param progress the progress writer
+	 * @param <S> the type, must be a {@link RealType} for more than one scale
+	 * @throws IOException if the dataset can not be created, exists with another fingerprint, or a block can not be written
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < S extends NativeType< S > > void writeN5Blocks(
+			final RandomAccessibleInterval< S > img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression,
+			final int[] factors,
+			final int numScales,
+			final String fingerprint,
+			final int nThreads,
+			final ProgressWriter progress ) throws IOException
+	{
+		progress.setProgress( 0.0 );
+		final RandomAccessibleInterval< S > src = Views.zeroMin( img );
+		final S type = Util.getTypeFromInterval( src ).createVariable();
+		final DataType dataType = N5Utils.dataType( type );
+		if( dataType == null )
+			throw new IOException( "Can't export type " + type.getClass() + " to n5" );
+
+		final int nd = src.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( src );
+		final int[] size = new int[ nd ];
+		final long[] gridSize = new long[ nd ];
+		long nBlocks = 1;
+		for( int d = 0; d < nd; d++ )
+		{
+			size[ d ] = ( int )Math.min( dims[ d ], Math.max( 1, blockSize[ Math.min( d, blockSize.length - 1 ) ] ) );
+			gridSize[ d ] = ( dims[ d ] + size[ d ] - 1 ) / size[ d ];
+			nBlocks *= gridSize[ d ];
+		}
+
+		final N5PyramidWriter pyramid;
+		final String dataset0;
+		if( numScales == 1 )
+		{
+			pyramid = null;
+			dataset0 = dataset;
+		}
+		else
+		{
+			if( !( type instanceof RealType ) )
+				throw new IOException( "Can't write a multiscale pyramid of type " + type.getClass() );
+
+			final int n = numScales > 1 ? numScales : N5PyramidWriter.numScalesToSingleBlock( dims, size, factors );
+			dataset0 = N5PyramidWriter.scaleDataset( dataset, 0 );
+			pyramid = n > 1 ? new N5PyramidWriter( n5, dataset, dims, size, factors, n, ( RealType ) type, compression ) : null;
+		}
+
+		if( n5.datasetExists( dataset0 ) )
+		{
+			final DatasetAttributes existing = n5.getDatasetAttributes( dataset0 );
+			if( !Arrays.equals( existing.getDimensions(), dims ) ||
+					!Arrays.equals( existing.getBlockSize(), size ) ||
+					existing.getDataType() != dataType )
+				throw new IOException( "Dataset " + dataset0 + " exists but does not match the export" );
+
+			if( fingerprint != null && !fingerprint.equals( n5.getAttribute( dataset0, EXPORT_FINGERPRINT_ATTRIBUTE, String.class ) ) )
+				throw new IOException( "Dataset " + dataset0 + " exists but was written with other landmarks, transform or export settings" );
+
+			progress.out().println( "resuming export to existing dataset " + dataset0 );
+		}
+		else
+		{
+			n5.createDataset( dataset0, dims, size, dataType, compression );
+			if( fingerprint != null )
+				n5.setAttribute( dataset0, EXPORT_FINGERPRINT_ATTRIBUTE, fingerprint );
+		}
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset0 );
+		final RandomAccessibleInterval< S > existing = pyramid == null ? null : ( RandomAccessibleInterval< S > ) N5Utils.open( n5, dataset0 );
+		final long numBlocks = nBlocks;
+		final int[] bits = new int[ nd ];
+		final long curveLength = N5PyramidWriter.mortonLength( gridSize, bits );
+		final AtomicLong numDone = new AtomicLong();
+		final AtomicLong numSkipped = new AtomicLong();
+
+		final LongConsumer writeBlock = index ->
+		{
+			final long[] gridPosition = new long[ nd ];
+			N5PyramidWriter.mortonToGrid( index, bits, gridPosition );
+
+			final long[] bmin = new long[ nd ];
+			final long[] bmax = new long[ nd ];
+			for( int d = 0; d < nd; d++ )
+			{
+				if( gridPosition[ d ] >= gridSize[ d ] )
+					return; // padding of the curve
+
+				bmin[ d ] = gridPosition[ d ] * size[ d ];
+				bmax[ d ] = Math.min( bmin[ d ] + size[ d ], dims[ d ] ) - 1;
+			}
+
+			final FinalInterval block = new FinalInterval( bmin, bmax );
+			try
+			{
+				if( blockExists( n5, dataset0, attributes, gridPosition ) )
+				{
+					numSkipped.incrementAndGet();
+					if( pyramid != null )
+						pyramid.blockFinished( 0, gridPosition, Views.zeroMin( Views.interval( existing, block ) ) );
+				}
+				else
+				{
+					final Img< S > blockImg = new ArrayImgFactory< S >( type ).create( block );
+					final Cursor< S > c = blockImg.cursor();
+					final Cursor< S > sc = Views.flatIterable( Views.interval( src, block ) ).cursor();
+					while( c.hasNext() )
+						c.next().set( sc.next() );
+
+					N5Utils.saveBlock( blockImg, n5, dataset0, attributes, gridPosition );
+					if( Metrics.ENABLED )
+					{
+						EXPORT_BLOCKS.inc();
+						EXPORT_BYTES.add( Intervals.numElements( block ) * bytesPerElement( dataType ) );
+					}
+
+					if( pyramid != null )
+						pyramid.blockFinished( 0, gridPosition, blockImg );
+				}
+			}
+			catch( IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+
+			synchronized( progress )
+			{
+				progress.setProgress( ( double ) numDone.incrementAndGet() / numBlocks );
+			}
+		};
+
+		final ForkJoinPool threadPool = new ForkJoinPool( Math.max( 1, nThreads ) );
+		try
+		{
+			threadPool.invoke( new BlockCopy( 0, curveLength, writeBlock ) );
+		}
+		catch( UncheckedIOException e )
+		{
+			throw e.getCause();
+		}
+		finally
+		{
+			threadPool.shutdown();
+		}
+
+		if( numSkipped.get() > 0 )
+			progress.out().println( "skipped " + numSkipped.get() + " of " + numBlocks + " blocks that were already written" );
+
+		progress.setProgress( 1.0 );
+	}
+
+	/*
+	 * Checks whether a block was written. For containers on the file system,
+	 * this checks that the file of the block is not empty, without reading it.
+	 * Otherwise a block that can not be read, e.g. because writing it was
+	 * interrupted, is treated as missing and written again.
+	 */
+	private static boolean blockExists( final N5Writer n5, final String dataset, final DatasetAttributes attributes, final long[] gridPosition )
+	{
+		if( n5 instanceof N5FSReader )
+		{
+			Path path = Paths.get( ( ( N5FSReader ) n5 ).getBasePath(), dataset );
+			for( final long p : gridPosition )
+				path = path.resolve( Long.toString( p ) );
+
+			try
+			{
+				return Files.size( path ) > 0;
+			}
+			catch( IOException e )
+			{
+				return false;
+			}
+		}
+
+		try
+		{
+			return n5.readBlock( dataset, attributes, gridPosition ) != null;
+		}
+		catch( Exception e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a fingerprint of what this exporter renders: the output
+	 * interval and resolution, the interpolation, and the transforms of the
+	 * moving sources, sampled at a lattice of points over the output. Editing
+	 * the landmarks changes the fingerprint.
+	 *
+	 * @return the fingerprint, a hexadecimal SHA-256 digest
+	 */
+	public String exportFingerprint()
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch( NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		final int nd = outputInterval.numDimensions();
+		final ByteBuffer buf = ByteBuffer.allocate( 8 );
+		for( int d = 0; d < nd; d++ )
+			update( digest, buf, outputInterval.min( d ), outputInterval.max( d ) );
+
+		update( digest, buf, pixelRenderToPhysical.getRowPackedCopy() );
+		update( digest, buf, approximationSpacing, approximationTolerance );
+		digest.update( String.valueOf( interp ).getBytes( StandardCharsets.UTF_8 ) );
+
+		// the lattice spans the spatial dimensions of the output
+		final int ns = Math.min( nd, 3 );
+		final int numSamples = ( int ) Math.pow( FINGERPRINT_SAMPLES, ns );
+		final double[] pixel = new double[ 3 ];
+		for( final int i : movingSourceIndexList )
+		{
+			update( digest, buf, i );
+
+			final Source< T > src = sources.get( i ).getSpimSource();
+			if( !( src instanceof WarpedSource ) || ( ( WarpedSource< T > ) src ).getTransform() == null )
+				continue;
+
+			final RealTransform xfm = ( ( WarpedSource< T > ) src ).getTransform().copy();
+			final double[] physical = new double[ Math.max( 3, xfm.numSourceDimensions() ) ];
+			final double[] warped = new double[ xfm.numTargetDimensions() ];
+			for( int k = 0; k < numSamples; k++ )
+			{
+				int rem = k;
+				for( int d = 0; d < ns; d++ )
+				{
+					final int j = rem % FINGERPRINT_SAMPLES;
+					rem /= FINGERPRINT_SAMPLES;
+					pixel[ d ] = outputInterval.min( d ) + ( double ) j * ( outputInterval.max( d ) - outputInterval.min( d ) ) / ( FINGERPRINT_SAMPLES - 1 );
+				}
+
+				pixelRenderToPhysical.apply( pixel, physical );
+				xfm.apply( physical, warped );
+				update( digest, buf, warped );
+			}
+		}
+
+		return String.format( "%064x", new BigInteger( 1, digest.digest() ) );
+	}
+
+	private static void update( final MessageDigest digest, final ByteBuffer buf, final double... values )
+	{
+		for( final double v : values )
+		{
+			buf.clear();
+			buf.putDouble( v );
+			digest.update( buf.array() );
+		}
+	}
+
 	public static FinalInterval transformRealInterval( RealTransform xfm, RealInterval interval )
 	{
 		int nd = interval.numDimensions();
@@ -509,47 +1214,21 @@ public abstract class BigWarpExporter <T>
 		return new FinalInterval( min, max );
 	}
 	
+	/**
+	 * Estimates the bounding box of an interval after it is transformed, by
+	 * adaptively sampling its faces, see {@link BoundingBoxEstimator}.
+	 *
+	 * @param xfm the transform
+	 * @param interval the interval
+	 * @return the bounding box
+	 */
 	public static FinalInterval estimateBounds( RealTransform xfm, Interval interval )
 	{
-		int nd = interval.numDimensions();
-		double[] pt = new double[ nd ];
-		double[] ptxfm = new double[ nd ];
-
-		long[] min = new long[ nd ];
-		long[] max = new long[ nd ];
-		Arrays.fill( min, Long.MAX_VALUE );
-		Arrays.fill( max, Long.MIN_VALUE );
-
-		long[] unitInterval = new long[ nd ];
-		Arrays.fill( unitInterval, 2 );
-		
-		IntervalIterator it = new IntervalIterator( unitInterval );
-		while( it.hasNext() )
-		{
-			it.fwd();
-			for( int d = 0; d < nd; d++ )
-			{
-				if( it.getLongPosition( d ) == 0 )
-					pt[ d ] = interval.min( d );
-				else
-					pt[ d ] = interval.max( d );
-			}
-
-			xfm.apply( pt, ptxfm );
+		final FinalInterval bounds = BoundingBoxEstimator.estimateInterval( xfm, interval );
+		if( bounds == null )
+			return new FinalInterval( interval );
 
-			for( int d = 0; d < nd; d++ )
-			{
-				long lo = (long)Math.floor( ptxfm[d] );
-				long hi = (long)Math.ceil( ptxfm[d] );
-				
-				if( lo < min[ d ])
-					min[ d ] = lo;
-				
-				if( hi > max[ d ])
-					max[ d ] = hi;
-			}
-		}
-		return new FinalInterval( min, max );
+		return bounds;
 	}
 
 	public static void copyToLongFloor( final double[] src, final long[] dst )
@@ -586,6 +1265,34 @@ public abstract class BigWarpExporter <T>
 		return result;
 	}
 
+	/**
+	 * @param dataType the data type
+	 * @return the number of bytes of an element of the data type, zero if
+	 *         the size is not fixed
+	 */
+	static int bytesPerElement( final DataType dataType )
+	{
+		switch( dataType )
+		{
+		case INT8:
+		case UINT8:
+			return 1;
+		case INT16:
+		case UINT16:
+			return 2;
+		case INT32:
+		case UINT32:
+		case FLOAT32:
+			return 4;
+		case INT64:
+		case UINT64:
+		case FLOAT64:
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
 	public static class ExportThread extends Thread
 	{
 		BigWarpExporter<?> exporter;
@@ -599,11 +1306,13 @@ public abstract class BigWarpExporter <T>
 		public void run()
 		{
 			try {
-				long startTime = System.currentTimeMillis();
+				final long startTime = System.nanoTime();
 				exporter.result = exporter.export();
-				long endTime = System.currentTimeMillis();
+				final long duration = System.nanoTime() - startTime;
+				if( Metrics.ENABLED )
+					EXPORT_TIME.update( duration );
 
-				System.out.println("export took " + (endTime - startTime) + "ms");
+				logger.debug( "export took " + ( duration / 1e6 ) + " ms" );
 
 				if (exporter.result != null && exporter.showResult )
 					exporter.result.show();
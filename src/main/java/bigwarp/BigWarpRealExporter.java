@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import bdv.export.ProgressWriter;
+import bdv.img.WarpedSource;
 import bdv.viewer.Interpolation;
 import bdv.viewer.SourceAndConverter;
 import ij.IJ;
@@ -106,6 +107,7 @@ public class BigWarpRealExporter< T extends RealType< T > & NativeType< T >  > e
 		return true;
 	}
 	
+	@Override
 	public RandomAccessibleInterval< T > exportRai()
 	{
 		ArrayList< RandomAccessibleInterval< T > > raiList = new ArrayList< RandomAccessibleInterval< T > >(); 
@@ -122,7 +124,7 @@ public class BigWarpRealExporter< T extends RealType< T > & NativeType< T >  > e
 		for ( int i = 0; i < numChannels; i++ )
 		{
 			int movingSourceIndex = movingSourceIndexList[ i ];
-			final RealRandomAccessible< T > raiRaw = ( RealRandomAccessible< T > )sources.get( movingSourceIndex ).getSpimSource().getInterpolatedSource( 0, 0, interp );
+			final RealRandomAccessible< T > raiRaw = getExportInterpolatedSource( movingSourceIndex );
 
 			// apply the transformations
 			final AffineRandomAccessible< T, AffineGet > rai = RealViews.affine( 
@@ -323,44 +325,45 @@ public class BigWarpRealExporter< T extends RealType< T > & NativeType< T >  > e
 	public static RandomAccessibleInterval< FloatType > convertToFloat( SourceAndConverter< ? > source, int index )
 	{
 		Object type = source.getSpimSource().getType();
+		final RandomAccessibleInterval< ? > img = WarpedSource.getSourceBlocking( source.getSpimSource(), 0, 0 );
 		
 		RandomAccessibleInterval< FloatType > out; // = Converters.convert( (RandomAccessibleInterval<RealType<?>>)img, converter, destType );
 		if ( ByteType.class.isInstance( type ) )
 		{
 			 out = Converters.convert( 
-					 ( RandomAccessibleInterval< ByteType > ) source.getSpimSource().getSource( 0, 0 ), 
+					 ( RandomAccessibleInterval< ByteType > ) img, 
 					 new RealFloatConverter< ByteType >(),
 					 new FloatType());
 		}
 		else if ( UnsignedByteType.class.isInstance( type ) )
 		{
 			 out = Converters.convert( 
-					 ( RandomAccessibleInterval< UnsignedByteType > ) source.getSpimSource().getSource( 0, 0 ), 
+					 ( RandomAccessibleInterval< UnsignedByteType > ) img, 
 					 new RealFloatConverter< UnsignedByteType >(),
 					 new FloatType());
 		}
 		else if ( IntType.class.isInstance( type ) )
 		{
 			 out = Converters.convert( 
-					 ( RandomAccessibleInterval< IntType > ) source.getSpimSource().getSource( 0, 0 ), 
+					 ( RandomAccessibleInterval< IntType > ) img, 
 					 new RealFloatConverter< IntType >(),
 					 new FloatType());
 		}
 		else if ( FloatType.class.isInstance( type ) )
 		{
-			 out = ( RandomAccessibleInterval< FloatType > ) source.getSpimSource().getSource( 0, 0 );
+			 out = ( RandomAccessibleInterval< FloatType > ) img;
 		}
 		else if ( DoubleType.class.isInstance( type ) )
 		{
 			 out = Converters.convert( 
-					 ( RandomAccessibleInterval< DoubleType > ) source.getSpimSource().getSource( 0, 0 ), 
+					 ( RandomAccessibleInterval< DoubleType > ) img, 
 					 new RealFloatConverter< DoubleType >(),
 					 new FloatType());
 		}
 		else if ( ARGBType.class.isInstance( type ) )
 		{
 			out = Converters.convert( 
-					 ( RandomAccessibleInterval< ARGBType > ) source.getSpimSource().getSource( 0, 0 ), 
+					 ( RandomAccessibleInterval< ARGBType > ) img, 
 					 new ARGBFloatConverter(),
 					 new FloatType());
 		}
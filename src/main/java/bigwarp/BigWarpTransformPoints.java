@@ -0,0 +1,583 @@
+package bigwarp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+import org.janelia.utility.parse.ParseUtils;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import bdv.gui.TransformTypeSelectDialog;
+import bigwarp.BigWarp.WrappedCoordinateTransform;
+import bigwarp.landmarks.CachedInverseThinPlateSpline;
+import bigwarp.landmarks.LandmarkCsv;
+import bigwarp.landmarks.LandmarkTableModel;
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AbstractAffineModel3D;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.SimilarityModel3D;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * Transforms large tables of points with the transform of a landmark file,
+ * without holding the table in memory.
+ * <p>
+ * Points are read in batches, the batches are transformed in parallel, each
+ * thread with its own copy of the transform, and written in their original
+ * order as soon as they are done. At most a few batches per thread are in
+ * memory at any time.
+ * <p>
+ * Two table formats are supported:
+ * <ul>
+ * <li>csv, one point per line, with the coordinates in the first columns.
+ * Any further columns, e.g. ids, are copied to the output unchanged.</li>
+ * <li>binary, the coordinates of all points as little endian 64 bit floats,
+ * x, y (,z) of the first point, then of the second point, and so on, without
+ * a header. Used for every file whose name does not end with ".csv".</li>
+ * </ul>
+ * All transform types of {@link TransformTypeSelectDialog} are supported.
+ * Transforming from moving to target space with a thin plate spline needs
+ * its iterative inverse, which is much slower than the other directions and
+ * types, unless it is started from a {@link CachedInverseThinPlateSpline}
+ * grid.
+ */
+public class BigWarpTransformPoints
+{
+	public static final String MOVING_TO_TARGET = "moving-to-target";
+
+	public static final String TARGET_TO_MOVING = "target-to-moving";
+
+	public static final int DEFAULT_BATCH_SIZE = 65536;
+
+	private transient JCommander jCommander;
+
+	@Parameter(names = {"--landmarks", "-l"}, description = "Input landmarks file, csv or binary" )
+	private String landmarkFilePath;
+
+	@Parameter(names = {"--input", "-i"}, description = "Input points, csv if the name ends with .csv, binary otherwise" )
+	private String inputPath;
+
+	@Parameter(names = {"--output", "-o"}, description = "Output points, csv if the name ends with .csv, binary otherwise" )
+	private String outputPath;
+
+	@Parameter(names = {"--ndims", "-n"}, description = "Number of dimensions of the points and landmarks" )
+	private int nd = 3;
+
+	@Parameter(names = {"--direction"}, description = "Direction of the transform {" + MOVING_TO_TARGET + "," + TARGET_TO_MOVING + "}" )
+	private String direction = MOVING_TO_TARGET;
+
+	@Parameter(names = {"--type", "-t"}, description = "Transform type {\"Thin Plate Spline\",Affine,Similarity,Rotation,Translation}" )
+	private String transformType = TransformTypeSelectDialog.TPS;
+
+	@Parameter(names = {"--inverse-tolerance"}, description = "Tolerance of the iterative inverse of the thin plate spline" )
+	private double invTolerance = 0.1;
+
+	@Parameter(names = {"--inverse-max-iterations"}, description = "Maximum iterations of the iterative inverse of the thin plate spline" )
+	private int invMaxIters = 200;
+
+	@Parameter(names = {"--inverse-grid-spacing"}, description = "Spacing of a grid of precomputed inverse positions over the moving landmarks, "
+			+ "used to start the iterative inverse of the thin plate spline. Not used if zero" )
+	private double invGridSpacing = 0;
+
+	@Parameter(names = {"--scale", "-s"}, description = "Scale of the input coordinates, e.g. \"0.5,0.5,2.0\"",
+			converter = ParseUtils.DoubleArrayConverter.class )
+	private double[] scale;
+
+	@Parameter(names = {"--header"}, description = "The csv input has a header line, which is copied to the output" )
+	private boolean header = false;
+
+	@Parameter(names = {"--batch-size"}, description = "Number of points per batch" )
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	@Parameter(names = {"--threads", "-j"}, description = "Number of threads" )
+	private int nThreads = 1;
+
+	@Parameter(names = {"--help", "-h"}, help = true)
+	private boolean help;
+
+	public static void main( String[] args ) throws IOException
+	{
+		BigWarpTransformPoints alg = new BigWarpTransformPoints();
+		alg.jCommander = new JCommander( alg );
+		alg.jCommander.setProgramName( "input parser" );
+		try
+		{
+			alg.jCommander.parse( args );
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		if( alg.help || alg.landmarkFilePath == null || alg.inputPath == null || alg.outputPath == null )
+		{
+			alg.jCommander.usage();
+			return;
+		}
+
+		try
+		{
+			alg.process();
+		}
+		catch( IllegalArgumentException | IOException e )
+		{
+			System.err.println( "Error: " + e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	public void process() throws IOException
+	{
+		LandmarkTableModel ltm = new LandmarkTableModel( nd );
+		ltm.load( new File( landmarkFilePath ) );
+
+		RealTransform xfm = buildTransform( ltm, transformType, direction.equals( MOVING_TO_TARGET ),
+				invTolerance, invMaxIters, invGridSpacing, nThreads );
+
+		long start = System.currentTimeMillis();
+		long n;
+		File in = new File( inputPath );
+		File out = new File( outputPath );
+		if( isCsv( in ) )
+			n = transformCsv( xfm, nd, in, out, header, scale, batchSize, nThreads );
+		else
+			n = transformBinary( xfm, nd, in, out, scale, batchSize, nThreads );
+
+		System.out.println( "transformed " + n + " points in " + ( System.currentTimeMillis() - start ) + " ms" );
+	}
+
+	private static boolean isCsv( final File f )
+	{
+		return f.getName().toLowerCase().endsWith( ".csv" );
+	}
+
+	/**
+	 * Builds the transform of a landmark table.
+	 *
+	 * @param ltm the landmarks
+	 * @param transformType one of the types of {@link TransformTypeSelectDialog}
+	 * @param movingToTarget transform from moving to target space if true,
+	 *            from target to moving space otherwise
+	 * @param invTolerance the tolerance of the iterative inverse of a thin plate spline
+	 * @param invMaxIters the maximum number of iterations of the iterative inverse of a thin plate spline
+	 * @return the transform
+	 * @throws IllegalArgumentException if the transform can not be fit to the landmarks
+	 */
+	public static RealTransform buildTransform( final LandmarkTableModel ltm, final String transformType,
+			final boolean movingToTarget, final double invTolerance, final int invMaxIters )
+	{
+		return buildTransform( ltm, transformType, movingToTarget, invTolerance, invMaxIters, 0, 1 );
+	}
+
+	/**
+	 * Builds the transform of a landmark table. The inverse of a thin plate
+	 * spline can be backed by a {@link CachedInverseThinPlateSpline} over the
+	 * bounding box of the moving landmarks, padded by a tenth of its size on
+	 * every side.
+	 *
+	 * @param ltm the landmarks
+	 * @param transformType one of the types of {@link TransformTypeSelectDialog}
+	 * @param movingToTarget transform from moving to target space if true,
+	 *            from target to moving space otherwise
+	 * @param invTolerance the tolerance of the iterative inverse of a thin plate spline
+	 * @param invMaxIters the maximum number of iterations of the iterative inverse of a thin plate spline
+	 * @param invGridSpacing the spacing of the cached inverse grid, no grid is used if not positive
+	 * @param nThreads the number of threads used to compute the cached inverse grid
+	 * @return the transform
+	 * @throws IllegalArgumentException if the transform can not be fit to the landmarks
+	 */
+	public static RealTransform buildTransform( final LandmarkTableModel ltm, final String transformType,
+			final boolean movingToTarget, final double invTolerance, final int invMaxIters,
+			final double invGridSpacing, final int nThreads )
+	{
+		final int nd = ltm.getNumdims();
+		if( transformType.equals( TransformTypeSelectDialog.TPS ) )
+		{
+			// the thin plate spline maps target to moving space
+			final ThinplateSplineTransform tps = new ThinplateSplineTransform( ltm.getTransform() );
+			if( !movingToTarget )
+				return tps;
+
+			if( invGridSpacing > 0 )
+				return new CachedInverseThinPlateSpline( ltm.getTransform(), paddedBounds( ltm.getActivePoints( true ), 0.1 ),
+						new double[] { invGridSpacing }, invTolerance, invMaxIters, nThreads );
+
+			final WrappedIterativeInvertibleRealTransform< ? > invertible = new WrappedIterativeInvertibleRealTransform<>( tps );
+			invertible.getOptimzer().setTolerance( invTolerance );
+			invertible.getOptimzer().setMaxIters( invMaxIters );
+			return invertible.inverse();
+		}
+
+		// the models are fit from moving to target space
+		final Model< ? > model = nd == 2 ? getModel2D( transformType ) : getModel3D( transformType );
+		if( model == null )
+			throw new IllegalArgumentException( "Unknown transform type " + transformType + " for " + nd + " dimensions" );
+
+		final double[] w = new double[ ltm.numActive() ];
+		Arrays.fill( w, 1.0 );
+		try
+		{
+			model.fit( ltm.getActivePoints( true ), ltm.getActivePoints( false ), w );
+		}
+		catch ( NotEnoughDataPointsException | IllDefinedDataPointsException e )
+		{
+			throw new IllegalArgumentException( "Could not fit a " + transformType + " transform to "
+					+ ltm.numActive() + " active landmarks: " + e.getMessage(), e );
+		}
+
+		final WrappedCoordinateTransform xfm = new WrappedCoordinateTransform( ( InvertibleCoordinateTransform ) model, nd );
+		return movingToTarget ? xfm : xfm.inverse();
+	}
+
+	private static RealInterval paddedBounds( final double[][] pts, final double padFraction )
+	{
+		final int nd = pts.length;
+		final double[] min = new double[ nd ];
+		final double[] max = new double[ nd ];
+		for( int d = 0; d < nd; d++ )
+		{
+			min[ d ] = Arrays.stream( pts[ d ] ).min().orElse( 0 );
+			max[ d ] = Arrays.stream( pts[ d ] ).max().orElse( 0 );
+			final double pad = padFraction * ( max[ d ] - min[ d ] );
+			min[ d ] -= pad;
+			max[ d ] += pad;
+		}
+		return new FinalRealInterval( min, max );
+	}
+
+	public static AbstractAffineModel2D< ? > getModel2D( final String transformType )
+	{
+		switch( transformType ){
+		case TransformTypeSelectDialog.AFFINE:
+			return new AffineModel2D();
+		case TransformTypeSelectDialog.SIMILARITY:
+			return new SimilarityModel2D();
+		case TransformTypeSelectDialog.ROTATION:
+			return new RigidModel2D();
+		case TransformTypeSelectDialog.TRANSLATION:
+			return new TranslationModel2D();
+		}
+		return null;
+	}
+
+	public static AbstractAffineModel3D< ? > getModel3D( final String transformType )
+	{
+		switch( transformType ){
+		case TransformTypeSelectDialog.AFFINE:
+			return new AffineModel3D();
+		case TransformTypeSelectDialog.SIMILARITY:
+			return new SimilarityModel3D();
+		case TransformTypeSelectDialog.ROTATION:
+			return new RigidModel3D();
+		case TransformTypeSelectDialog.TRANSLATION:
+			return new TranslationModel3D();
+		}
+		return null;
+	}
+
+	/**
+	 * Transforms the points of a csv file, see {@link BigWarpTransformPoints}.
+	 *
+	 * @param xfm the transform
+	 * @param nd the number of dimensions
+	 * @param in the input file
+	 * @param out the output file
+	 * @param header whether the first line is a header, copied to the output
+	 * @param scale the scale of the input coordinates, may be null
+	 * @param batchSize the number of points per batch
+	 * @param nThreads the number of threads
+	 * @return the number of points
+	 * @throws IOException if a file can not be read or written, or a line can not be parsed
+	 */
+	public static long transformCsv( final RealTransform xfm, final int nd, final File in, final File out,
+			final boolean header, final double[] scale, final int batchSize, final int nThreads ) throws IOException
+	{
+		try ( final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( in ), StandardCharsets.UTF_8 ) );
+				final BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( out ), StandardCharsets.UTF_8 ) ) )
+		{
+			if( header )
+			{
+				final String line = reader.readLine();
+				if( line != null )
+				{
+					writer.write( line );
+					writer.newLine();
+				}
+			}
+
+			final ThreadLocal< PointTransformer > transformer = ThreadLocal.withInitial( () -> new PointTransformer( xfm, nd, scale ) );
+			return pipeline(
+					() -> {
+						final ArrayList< String > lines = new ArrayList<>( batchSize );
+						String line;
+						while( lines.size() < batchSize && ( line = reader.readLine() ) != null )
+							if( !line.trim().isEmpty() )
+								lines.add( line );
+
+						return lines.isEmpty() ? null : lines;
+					},
+					lines -> {
+						final PointTransformer t = transformer.get();
+						for( int i = 0; i < lines.size(); i++ )
+							lines.set( i, t.transformCsvLine( lines.get( i ) ) );
+
+						return lines;
+					},
+					lines -> {
+						for( final String line : lines )
+						{
+							writer.write( line );
+							writer.newLine();
+						}
+					},
+					List::size,
+					nThreads );
+		}
+	}
+
+	/**
+	 * Transforms the points of a binary file, see {@link BigWarpTransformPoints}.
+	 *
+	 * @param xfm the transform
+	 * @param nd the number of dimensions
+	 * @param in the input file
+	 * @param out the output file
+	 * @param scale the scale of the input coordinates, may be null
+	 * @param batchSize the number of points per batch
+	 * @param nThreads the number of threads
+	 * @return the number of points
+	 * @throws IOException if a file can not be read or written, or its size is not a multiple of a point
+	 */
+	public static long transformBinary( final RealTransform xfm, final int nd, final File in, final File out,
+			final double[] scale, final int batchSize, final int nThreads ) throws IOException
+	{
+		try ( final FileChannel reader = new FileInputStream( in ).getChannel();
+				final FileChannel writer = new FileOutputStream( out ).getChannel() )
+		{
+			final long pointBytes = 8L * nd;
+			if( reader.size() % pointBytes != 0 )
+				throw new IOException( "Invalid file - size is not a multiple of " + nd + " doubles" );
+
+			final ThreadLocal< PointTransformer > transformer = ThreadLocal.withInitial( () -> new PointTransformer( xfm, nd, scale ) );
+			return pipeline(
+					() -> {
+						final long remaining = reader.size() - reader.position();
+						if( remaining <= 0 )
+							return null;
+
+						final ByteBuffer buf = ByteBuffer.allocate( ( int ) Math.min( remaining, pointBytes * batchSize ) ).order( ByteOrder.LITTLE_ENDIAN );
+						while( buf.hasRemaining() )
+							if( reader.read( buf ) < 0 )
+								throw new IOException( "Invalid file - unexpected end" );
+
+						buf.flip();
+						return buf;
+					},
+					buf -> {
+						transformer.get().transform( buf.asDoubleBuffer() );
+						return buf;
+					},
+					buf -> {
+						while( buf.hasRemaining() )
+							writer.write( buf );
+					},
+					buf -> ( int ) ( buf.limit() / pointBytes ),
+					nThreads );
+		}
+	}
+
+	private interface BatchReader< B >
+	{
+		/**
+		 * @return the next batch, or null at the end
+		 */
+		B read() throws IOException;
+	}
+
+	private interface BatchWriter< B >
+	{
+		void write( B batch ) throws IOException;
+	}
+
+	private interface BatchSize< B >
+	{
+		int size( B batch );
+	}
+
+	/*
+	 * reads batches in the calling thread, transforms them in a pool, and
+	 * writes them in the calling thread in the order they were read, keeping
+	 * at most two batches per thread in flight
+	 */
+	private static < B > long pipeline(
+			final BatchReader< B > reader,
+			final UnaryOperator< B > transform,
+			final BatchWriter< B > writer,
+			final BatchSize< B > size,
+			final int nThreads ) throws IOException
+	{
+		final int threads = Math.max( 1, nThreads );
+		final ExecutorService threadPool = Executors.newFixedThreadPool( threads );
+		final ArrayDeque< Future< B > > inFlight = new ArrayDeque<>();
+		long n = 0;
+		try
+		{
+			B batch;
+			while( ( batch = reader.read() ) != null )
+			{
+				final B b = batch;
+				inFlight.add( threadPool.submit( () -> transform.apply( b ) ) );
+				if( inFlight.size() >= 2 * threads )
+				{
+					final B done = inFlight.poll().get();
+					writer.write( done );
+					n += size.size( done );
+				}
+			}
+
+			while( !inFlight.isEmpty() )
+			{
+				final B done = inFlight.poll().get();
+				writer.write( done );
+				n += size.size( done );
+			}
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted", e );
+		}
+		catch( ExecutionException e )
+		{
+			throw new IOException( e.getCause() );
+		}
+		finally
+		{
+			threadPool.shutdownNow();
+		}
+		return n;
+	}
+
+	/*
+	 * transforms points with its own copy of a transform
+	 */
+	private static class PointTransformer
+	{
+		private final RealTransform xfm;
+
+		private final int nd;
+
+		private final double[] scale;
+
+		private final double[] p;
+
+		private final double[] q;
+
+		private final StringBuilder sb = new StringBuilder();
+
+		private final LandmarkCsv.Fields fields = new LandmarkCsv.Fields();
+
+		public PointTransformer( final RealTransform xfm, final int nd, final double[] scale )
+		{
+			this.xfm = xfm.copy();
+			this.nd = nd;
+			this.scale = scale;
+			p = new double[ Math.max( nd, xfm.numSourceDimensions() ) ];
+			q = new double[ Math.max( nd, xfm.numTargetDimensions() ) ];
+		}
+
+		private void apply()
+		{
+			if( scale != null )
+				for( int d = 0; d < nd; d++ )
+					p[ d ] *= scale[ Math.min( d, scale.length - 1 ) ];
+
+			xfm.apply( p, q );
+		}
+
+		public void transform( final DoubleBuffer points )
+		{
+			final int n = points.remaining() / nd;
+			for( int i = 0; i < n; i++ )
+			{
+				final int offset = i * nd;
+				for( int d = 0; d < nd; d++ )
+					p[ d ] = points.get( offset + d );
+
+				apply();
+				for( int d = 0; d < nd; d++ )
+					points.put( offset + d, q[ d ] );
+			}
+		}
+
+		public String transformCsvLine( final String line )
+		{
+			fields.split( line );
+			if( fields.size() < nd )
+				throw new NumberFormatException( "Expected " + nd + " coordinates: " + line );
+
+			try
+			{
+				for( int d = 0; d < nd; d++ )
+					p[ d ] = fields.getDouble( d );
+			}
+			catch( final IOException e )
+			{
+				throw new NumberFormatException( e.getMessage() + ": " + line );
+			}
+
+			apply();
+
+			sb.setLength( 0 );
+			for( int d = 0; d < nd; d++ )
+			{
+				if( d > 0 )
+					sb.append( ',' );
+
+				sb.append( q[ d ] );
+			}
+
+			// the remaining columns
+			if( fields.size() > nd )
+				sb.append( ',' ).append( fields.getRemainder( nd ) );
+
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package bigwarp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.ObjDoubleConsumer;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.utility.parse.ParseUtils;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import bdv.export.ProgressWriter;
+import bdv.export.ProgressWriterConsole;
+import bigwarp.landmarks.CachedInverseThinPlateSpline;
+import bigwarp.landmarks.LandmarkTableModel;
+import ij.IJ;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Exports the displacement field of a transform to a dataset of an N5
+ * container, block by block and in parallel, so that fields far larger than
+ * the heap can be written.
+ * <p>
+ * The displacement vectors are stored along the first dimension, followed by
+ * the spatial dimensions, so that every block holds whole vectors. Every
+ * displacement is computed when its block is written, and never held in
+ * memory beyond that block. Interrupted exports are resumed like
+ * {@link BigWarpExporter#writeN5Blocks(RandomAccessibleInterval, N5Writer, String, int[], Compression, int, ProgressWriter)}.
+ * <p>
+ * The displacements can be stored as
+ * <ul>
+ * <li>{@link Storage#FLOAT32} 32 bit floats,</li>
+ * <li>{@link Storage#FLOAT16} the bits of 16 bit floats as uint16, see
+ * {@link #floatToHalf(float)}, which have about three significant digits,</li>
+ * <li>{@link Storage#QUANTIZED} int16 multiples of a quantization step, which
+ * are clamped to the range of int16.</li>
+ * </ul>
+ * The "dataEncoding" attribute names the storage, the "quantization" attribute
+ * holds the quantization step, and "resolution" and "offset" the spacing and
+ * origin of the grid in physical units.
+ */
+public class DeformationFieldExporter
+{
+	public enum Storage { FLOAT32, FLOAT16, QUANTIZED }
+
+	public static final String DEFAULT_DATASET = "dfield";
+
+	public static final double DEFAULT_QUANTIZATION = 0.01;
+
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	private transient JCommander jCommander;
+
+	@Parameter(names = {"--landmarks", "-l"}, description = "Input landmarks file, csv or binary" )
+	private String landmarkFilePath;
+
+	@Parameter(names = {"--output", "-o"}, description = "Output n5 container" )
+	private String outputPath;
+
+	@Parameter(names = { "--dataset" }, description = "Dataset of the n5 output" )
+	private String dataset = DEFAULT_DATASET;
+
+	@Parameter(names = {"--dimension", "-d"}, description = "Dimension of the displacement field grid, e.g. \"512,512,128\"",
+			converter = ParseUtils.LongArrayConverter.class )
+	private long[] dims;
+
+	@Parameter(names = {"--spacing", "-s"}, description = "Spacing of the displacement field grid, e.g. \"0.5,0.5,2.0\"",
+			converter = ParseUtils.DoubleArrayConverter.class )
+	private double[] spacing;
+
+	@Parameter(names = {"--offset", "-f"}, description = "Origin of the displacement field grid, e.g. \"5.0,5.0,-1.0\"",
+			converter = ParseUtils.DoubleArrayConverter.class )
+	private double[] offset;
+
+	@Parameter(names = { "--ignore-affine" }, description = "Ignore the affine part of the transform" )
+	private boolean ignoreAffine = false;
+
+	@Parameter(names = { "--inverse" }, description = "Export the displacement field of the inverse transform, from moving to target space" )
+	private boolean inverse = false;
+
+	@Parameter(names = { "--inverse-tolerance" }, description = "Tolerance of the inverse of the thin plate spline, in physical units" )
+	private double invTolerance = 0.1;
+
+	@Parameter(names = { "--inverse-max-iterations" }, description = "Maximum iterations of the inverse of the thin plate spline" )
+	private int invMaxIters = 200;
+
+	@Parameter(names = { "--inverse-grid-spacing" }, description = "Spacing of the grid of precomputed inverse positions, in physical units. "
+			+ "Four times the spacing of the field if not given",
+			converter = ParseUtils.DoubleArrayConverter.class )
+	private double[] invGridSpacing;
+
+	@Parameter(names = { "--storage" }, description = "Storage of the displacements {FLOAT32,FLOAT16,QUANTIZED}" )
+	private String storage = Storage.FLOAT32.name();
+
+	@Parameter(names = { "--quantization" }, description = "Quantization step of QUANTIZED storage, in physical units" )
+	private double quantization = DEFAULT_QUANTIZATION;
+
+	@Parameter(names = { "--block-size" }, description = "Spatial block size, e.g. \"64,64,64\"",
+			converter = ParseUtils.IntArrayConverter.class )
+	private int[] blockSize = new int[] { DEFAULT_BLOCK_SIZE };
+
+	@Parameter(names = {"--threads", "-j"}, description = "Number of threads" )
+	private int nThreads = 1;
+
+	@Parameter(names = {"--help", "-h"}, help = true)
+	private boolean help;
+
+	public static void main( String[] args ) throws IOException
+	{
+		DeformationFieldExporter alg = new DeformationFieldExporter();
+		alg.jCommander = new JCommander( alg );
+		alg.jCommander.setProgramName( "input parser" );
+		try
+		{
+			alg.jCommander.parse( args );
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		if( alg.help || alg.landmarkFilePath == null || alg.outputPath == null || alg.dims == null )
+		{
+			alg.jCommander.usage();
+			return;
+		}
+
+		alg.process();
+	}
+
+	public void process() throws IOException
+	{
+		int nd = dims.length;
+		LandmarkTableModel ltm = new LandmarkTableModel( nd );
+		ltm.load( new File( landmarkFilePath ) );
+
+		ThinPlateR2LogRSplineKernelTransform tpsRaw = ltm.getTransform();
+		ThinPlateR2LogRSplineKernelTransform tpsUseMe = tpsRaw;
+		if ( ignoreAffine )
+			tpsUseMe = new ThinPlateR2LogRSplineKernelTransform( tpsRaw.getSourceLandmarks(), null, null, tpsRaw.getKnotWeights() );
+
+		AffineTransform pixToPhysical = new AffineTransform( nd );
+		for( int d = 0; d < nd; d++ )
+		{
+			if( spacing != null )
+				pixToPhysical.set( spacing[ Math.min( d, spacing.length - 1 ) ], d, d );
+
+			if( offset != null )
+				pixToPhysical.set( offset[ Math.min( d, offset.length - 1 ) ], d, nd );
+		}
+
+		RealTransform transform = new ThinplateSplineTransform( tpsUseMe );
+		if( inverse )
+		{
+			// the inverse is looked up on a grid over the physical extent of the field
+			double[] min = new double[ nd ];
+			double[] max = new double[ nd ];
+			pixToPhysical.apply( min, min );
+			for( int d = 0; d < nd; d++ )
+				max[ d ] = dims[ d ] - 1;
+			pixToPhysical.apply( max, max );
+
+			double[] gridSpacing = invGridSpacing;
+			if( gridSpacing == null )
+			{
+				gridSpacing = new double[ nd ];
+				for( int d = 0; d < nd; d++ )
+					gridSpacing[ d ] = 4 * pixToPhysical.get( d, d );
+			}
+
+			long start = System.currentTimeMillis();
+			CachedInverseThinPlateSpline inv = new CachedInverseThinPlateSpline( tpsUseMe,
+					new FinalRealInterval( min, max ), gridSpacing, invTolerance, invMaxIters, nThreads );
+			System.out.println( "solved " + inv.getGrid().numValidNodes() + " of " + inv.getGrid().numNodes()
+					+ " inverse grid nodes in " + ( System.currentTimeMillis() - start ) + " ms" );
+			transform = inv;
+		}
+
+		N5Writer n5 = new N5FSWriter( outputPath );
+		exportN5( transform, pixToPhysical, dims,
+				n5, dataset, blockSize, new GzipCompression(),
+				Storage.valueOf( storage ), quantization, nThreads, new ProgressWriterConsole() );
+
+		System.out.println( "finished" );
+	}
+
+	/**
+	 * Writes the displacement field of a transform to an N5 dataset.
+	 *
+	 * @param transform the transform, from physical to physical coordinates
+	 * @param pixelToPhysical the transform from the grid of the field to physical coordinates
+	 * @param dims the dimensions of the grid
+	 * @param n5 the n5 writer
+	 * @param dataset the dataset
+	 * @param blockSize the spatial block size, the last entry is repeated for the remaining dimensions
+	 * @param compression the compression
+	 * @param storage how the displacements are stored
+	 * @param quantization the quantization step for {@link Storage#QUANTIZED}
+	 * @param nThreads the number of threads
+	 * @param progress the progress writer
+	 * @throws IOException if the dataset can not be created or a block can not be written
+	 * @throws IllegalArgumentException if the storage is {@link Storage#QUANTIZED}
+	 *             and the quantization step is not positive and finite
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static void exportN5(
+			final RealTransform transform,
+			final AffineTransform pixelToPhysical,
+			final long[] dims,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression,
+			final Storage storage,
+			final double quantization,
+			final int nThreads,
+			final ProgressWriter progress ) throws IOException
+	{
+		if( storage == Storage.QUANTIZED )
+			checkQuantization( quantization );
+
+		final int nd = dims.length;
+		final long[] fieldDims = new long[ nd + 1 ];
+		final int[] fieldBlockSize = new int[ nd + 1 ];
+		fieldDims[ 0 ] = nd;
+		fieldBlockSize[ 0 ] = nd;
+		for( int d = 0; d < nd; d++ )
+		{
+			fieldDims[ d + 1 ] = dims[ d ];
+			fieldBlockSize[ d + 1 ] = blockSize[ Math.min( d, blockSize.length - 1 ) ];
+		}
+
+		final RandomAccessibleInterval field;
+		switch( storage )
+		{
+		case FLOAT16:
+			field = displacementField( transform, pixelToPhysical, new FinalInterval( fieldDims ), new UnsignedShortType(),
+					( t, v ) -> t.set( floatToHalf( ( float ) v ) & 0xffff ) );
+			break;
+		case QUANTIZED:
+			field = displacementField( transform, pixelToPhysical, new FinalInterval( fieldDims ), new ShortType(),
+					( t, v ) -> t.set( quantize( v, quantization ) ) );
+			break;
+		default:
+			field = displacementField( transform, pixelToPhysical, new FinalInterval( fieldDims ), new FloatType(),
+					( t, v ) -> t.setReal( v ) );
+		}
+
+		BigWarpExporter.writeN5Blocks( field, n5, dataset, fieldBlockSize, compression, nThreads, progress );
+
+		final double[] res = new double[ nd ];
+		final double[] origin = new double[ nd ];
+		for( int d = 0; d < nd; d++ )
+		{
+			res[ d ] = pixelToPhysical.get( d, d );
+			origin[ d ] = pixelToPhysical.get( d, nd );
+		}
+		n5.setAttribute( dataset, "resolution", res );
+		n5.setAttribute( dataset, "offset", origin );
+		n5.setAttribute( dataset, "dataEncoding", storage.name().toLowerCase() );
+		if( storage == Storage.QUANTIZED )
+			n5.setAttribute( dataset, "quantization", quantization );
+	}
+
+	/**
+	 * Returns a lazy view of the displacement field of a transform, with the
+	 * components of the displacement along the first dimension. Every random
+	 * access uses its own copy of the transform, and transforms a point once
+	 * for all components if they are read in order.
+	 *
+	 * @param transform the transform, from physical to physical coordinates
+	 * @param pixelToPhysical the transform from the grid to physical coordinates
+	 * @param interval the interval of the field, the first dimension must hold
+	 *            the components
+	 * @param type the type of the field
+	 * @param setter sets a value of the field from a displacement
+	 * @param <S> the type
+	 * @return the displacement field
+	 */
+	public static < S extends NativeType< S > > RandomAccessibleInterval< S > displacementField(
+			final RealTransform transform,
+			final AffineTransform pixelToPhysical,
+			final Interval interval,
+			final S type,
+			final ObjDoubleConsumer< S > setter )
+	{
+		return Views.interval( new DisplacementField<>( transform, pixelToPhysical, type, setter ), interval );
+	}
+
+	/**
+	 * @param displacement the displacement
+	 * @param quantization the quantization step
+	 * @return the nearest multiple of the step, clamped to the range of a short
+	 * @throws IllegalArgumentException if the step is not positive and finite
+	 */
+	public static short quantize( final double displacement, final double quantization )
+	{
+		checkQuantization( quantization );
+		final long q = Math.round( displacement / quantization );
+		return ( short ) Math.max( Short.MIN_VALUE, Math.min( Short.MAX_VALUE, q ) );
+	}
+
+	private static void checkQuantization( final double quantization )
+	{
+		if( !( quantization > 0 ) || Double.isInfinite( quantization ) )
+			throw new IllegalArgumentException( "Quantization step must be positive and finite, was " + quantization );
+	}
+
+	/**
+	 * Converts a float to the bits of the nearest 16 bit float (IEEE 754
+	 * binary16). Values too large for binary16 become infinite.
+	 *
+	 * @param f the float
+	 * @return the bits of the 16 bit float
+	 */
+	public static short floatToHalf( final float f )
+	{
+		final int bits = Float.floatToIntBits( f );
+		final int sign = ( bits >>> 16 ) & 0x8000;
+		final int abs = bits & 0x7fffffff;
+
+		if( abs >= 0x7f800000 ) // infinite or NaN
+			return ( short ) ( sign | 0x7c00 | ( abs > 0x7f800000 ? 0x200 : 0 ) );
+
+		// round to nearest, ties to even, on the 13 bits that are dropped
+		final int rounded = abs + 0xfff + ( ( abs >>> 13 ) & 1 );
+		if( rounded >= 0x47800000 ) // too large
+			return ( short ) ( sign | 0x7c00 );
+
+		if( abs >= 0x38800000 ) // normal
+			return ( short ) ( sign | ( ( rounded - 0x38000000 ) >>> 13 ) );
+
+		if( abs < 0x33000000 ) // rounds to zero
+			return ( short ) sign;
+
+		// subnormal
+		final int exp = abs >>> 23;
+		final int mantissa = ( abs & 0x7fffff ) | 0x800000;
+		final int shift = 126 - exp;
+		final int half = 1 << ( shift - 1 );
+		final int dropped = mantissa & ( ( 1 << shift ) - 1 );
+		int value = mantissa >>> shift;
+		if( dropped > half || ( dropped == half && ( value & 1 ) != 0 ) )
+			value++;
+
+		return ( short ) ( sign | value );
+	}
+
+	/**
+	 * Converts the bits of a 16 bit float (IEEE 754 binary16) to a float.
+	 *
+	 * @param h the bits of the 16 bit float
+	 * @return the float
+	 */
+	public static float halfToFloat( final short h )
+	{
+		final int bits = h & 0xffff;
+		final int sign = ( bits & 0x8000 ) << 16;
+		int exp = ( bits >>> 10 ) & 0x1f;
+		int mantissa = bits & 0x3ff;
+
+		if( exp == 0x1f ) // infinite or NaN
+			return Float.intBitsToFloat( sign | 0x7f800000 | ( mantissa << 13 ) );
+
+		if( exp == 0 )
+		{
+			if( mantissa == 0 )
+				return Float.intBitsToFloat( sign );
+
+			// subnormal, normalize
+			exp = 1;
+			while( ( mantissa & 0x400 ) == 0 )
+			{
+				mantissa <<= 1;
+				exp--;
+			}
+			mantissa &= 0x3ff;
+		}
+
+		return Float.intBitsToFloat( sign | ( ( exp + 112 ) << 23 ) | ( mantissa << 13 ) );
+	}
+
+	private static class DisplacementField< S extends NativeType< S > > implements RandomAccessible< S >
+	{
+		private final RealTransform transform;
+
+		private final AffineTransform pixelToPhysical;
+
+		private final S type;
+
+		private final ObjDoubleConsumer< S > setter;
+
+		public DisplacementField( final RealTransform transform, final AffineTransform pixelToPhysical,
+				final S type, final ObjDoubleConsumer< S > setter )
+		{
+			this.transform = transform;
+			this.pixelToPhysical = pixelToPhysical;
+			this.type = type;
+			this.setter = setter;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return pixelToPhysical.numSourceDimensions() + 1;
+		}
+
+		@Override
+		public RandomAccess< S > randomAccess()
+		{
+			return new DisplacementAccess();
+		}
+
+		@Override
+		public RandomAccess< S > randomAccess( final Interval interval )
+		{
+			return randomAccess();
+		}
+
+		private class DisplacementAccess extends Point implements RandomAccess< S >
+		{
+			private final RealTransform xfm = transform.copy();
+
+			private final AffineTransform toPhysical = pixelToPhysical.copy();
+
+			private final S value = type.createVariable();
+
+			private final double[] grid;
+
+			private final double[] p;
+
+			private final double[] q;
+
+			private final long[] last;
+
+			private boolean valid = false;
+
+			public DisplacementAccess()
+			{
+				super( DisplacementField.this.numDimensions() );
+				final int nd = n - 1;
+				grid = new double[ nd ];
+				p = new double[ nd ];
+				q = new double[ Math.max( nd, xfm.numTargetDimensions() ) ];
+				last = new long[ nd ];
+			}
+
+			@Override
+			public S get()
+			{
+				boolean moved = !valid;
+				for( int d = 1; d < n; d++ )
+					moved |= position[ d ] != last[ d - 1 ];
+
+				if( moved )
+				{
+					for( int d = 1; d < n; d++ )
+					{
+						last[ d - 1 ] = position[ d ];
+						grid[ d - 1 ] = position[ d ];
+					}
+					toPhysical.apply( grid, p );
+					xfm.apply( p, q );
+					valid = true;
+				}
+
+				final int c = ( int ) position[ 0 ];
+				setter.accept( value, q[ c ] - p[ c ] );
+				return value;
+			}
+
+			@Override
+			public DisplacementAccess copy()
+			{
+				final DisplacementAccess copy = new DisplacementAccess();
+				copy.setPosition( this );
+				return copy;
+			}
+
+			@Override
+			public DisplacementAccess copyRandomAccess()
+			{
+				return copy();
+			}
+		}
+	}
+
+	/**
+	 * Exports a displacement field with
+	 * {@link DeformationFieldExporter#exportN5(RealTransform, AffineTransform, long[], N5Writer, String, int[], Compression, Storage, double, int, ProgressWriter)},
+	 * so that large fields do not block the ui. Failures are reported with
+	 * {@link IJ#error(String, String)}.
+	 */
+	public static class ExportThread extends Thread
+	{
+		private final RealTransform transform;
+
+		private final AffineTransform pixelToPhysical;
+
+		private final long[] dims;
+
+		private final String n5Root;
+
+		private final String dataset;
+
+		private final int[] blockSize;
+
+		private final Storage storage;
+
+		private final double quantization;
+
+		private final int nThreads;
+
+		private final ProgressWriter progress;
+
+		public ExportThread( final RealTransform transform, final AffineTransform pixelToPhysical, final long[] dims,
+				final String n5Root, final String dataset, final int[] blockSize, final Storage storage,
+				final double quantization, final int nThreads, final ProgressWriter progress )
+		{
+			super( "bigwarp-deformation-field-export" );
+			this.transform = transform;
+			this.pixelToPhysical = pixelToPhysical;
+			this.dims = dims;
+			this.n5Root = n5Root;
+			this.dataset = dataset;
+			this.blockSize = blockSize;
+			this.storage = storage;
+			this.quantization = quantization;
+			this.nThreads = nThreads;
+			this.progress = progress;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				exportN5( transform, pixelToPhysical, dims, new N5FSWriter( n5Root ), dataset, blockSize,
+						new GzipCompression(), storage, quantization, nThreads, progress );
+				IJ.showStatus( "Finished writing the warp field to " + n5Root );
+			}
+			catch ( final Exception e )
+			{
+				e.printStackTrace();
+				IJ.error( "Export warp field", "Could not write the warp field to " + n5Root + ":\n" + e.getMessage() );
+			}
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package bigwarp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes the coarser levels of a multiscale N5 dataset while the full
+ * resolution level is being written, so that it never has to be read again.
+ * <p>
+ * The levels are the datasets "s0", "s1", ... of a group, in the layout used
+ * by the n5-viewer. Every level has the same block size, so a block of level
+ * l + 1 is the average of at most factor^n blocks of level l. Whenever a block
+ * of level l is finished, it is passed to {@link #blockFinished(int, long[], RandomAccessibleInterval)},
+ * which adds it to the sums of its parent block. Once all children of a parent
+ * have been added, the parent is written and passed on to the next level.
+ * <p>
+ * Only the parents that have some but not all of their children finished are
+ * held in memory, so blocks of level 0 should be finished in an order that
+ * keeps siblings close together, see {@link #mortonToGrid(long, int[], long[])}.
+ */
+public class N5PyramidWriter< S extends RealType< S > & NativeType< S > >
+{
+	private final N5Writer n5;
+
+	private final String group;
+
+	private final S type;
+
+	private final int nd;
+
+	private final int numScales;
+
+	private final int[] blockSize;
+
+	private final int[] factors;
+
+	private final long[][] scaleDims;
+
+	private final long[][] scaleGrid;
+
+	private final DatasetAttributes[] attributes;
+
+	private final List< ConcurrentHashMap< Long, Accumulator > > pending;
+
+	/**
+	 * Creates the datasets of the levels 1 to numScales - 1. Level 0 is
+	 * written by the caller.
+	 *
+	 * @param n5 the n5 writer
+	 * @param group the group containing the levels
+	 * @param dims the dimensions of level 0
+	 * @param blockSize the block size of every level
+	 * @param factors the downsampling factor between successive levels along every dimension
+	 * @param numScales the number of levels, including level 0
+	 * @param type the type
+	 * @param compression the compression
+	 * @throws IOException if a dataset can not be created
+	 */
+	public N5PyramidWriter(
+			final N5Writer n5,
+			final String group,
+			final long[] dims,
+			final int[] blockSize,
+			final int[] factors,
+			final int numScales,
+			final S type,
+			final Compression compression ) throws IOException
+	{
+		this.n5 = n5;
+		this.group = group;
+		this.type = type.createVariable();
+		this.nd = dims.length;
+		this.numScales = numScales;
+		this.blockSize = blockSize;
+		this.factors = factors;
+
+		final DataType dataType = N5Utils.dataType( type );
+		scaleDims = new long[ numScales ][ nd ];
+		scaleGrid = new long[ numScales ][ nd ];
+		attributes = new DatasetAttributes[ numScales ];
+		pending = new ArrayList<>();
+
+		final double[][] scales = new double[ numScales ][ nd ];
+		for ( int s = 0; s < numScales; s++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+			{
+				scaleDims[ s ][ d ] = s == 0 ? dims[ d ] : ( scaleDims[ s - 1 ][ d ] + factors[ d ] - 1 ) / factors[ d ];
+				scaleGrid[ s ][ d ] = ( scaleDims[ s ][ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+				scales[ s ][ d ] = Math.pow( factors[ d ], s );
+			}
+
+			if ( s > 0 )
+			{
+				n5.createDataset( scaleDataset( group, s ), scaleDims[ s ], blockSize, dataType, compression );
+				n5.setAttribute( scaleDataset( group, s ), "downsamplingFactors", scales[ s ] );
+				attributes[ s ] = n5.getDatasetAttributes( scaleDataset( group, s ) );
+			}
+			pending.add( new ConcurrentHashMap<>() );
+		}
+		n5.setAttribute( group, "scales", scales );
+	}
+
+	/**
+	 * @param group the group
+	 * @param scale the level
+	 * @return the dataset of the level
+	 */
+	public static String scaleDataset( final String group, final int scale )
+	{
+		return group + "/s" + scale;
+	}
+
+	/**
+	 * @param dims the dimensions of level 0
+	 * @param blockSize the block size
+	 * @param factors the downsampling factors
+	 * @return the number of levels until level 0 is reduced to a single block
+	 *         along every dimension that is downsampled
+	 */
+	public static int numScalesToSingleBlock( final long[] dims, final int[] blockSize, final int[] factors )
+	{
+		int numScales = 1;
+		final long[] d = dims.clone();
+		while ( true )
+		{
+			boolean single = true;
+			boolean reducible = false;
+			for ( int i = 0; i < d.length; i++ )
+			{
+				if ( factors[ i ] > 1 )
+				{
+					single &= d[ i ] <= blockSize[ i ];
+					reducible |= d[ i ] > 1;
+				}
+			}
+
+			if ( single || !reducible )
+				return numScales;
+
+			for ( int i = 0; i < d.length; i++ )
+				d[ i ] = ( d[ i ] + factors[ i ] - 1 ) / factors[ i ];
+
+			numScales++;
+		}
+	}
+
+	/**
+	 * Adds a finished block to its parent, writing the parent and passing it
+	 * on if this was its last missing child. Safe to call from several
+	 * threads.
+	 *
+	 * @param scale the level of the block
+	 * @param gridPosition the grid position of the block
+	 * @param data the contents of the block, with zero min
+	 * @throws IOException if a parent block can not be written
+	 */
+	public void blockFinished( final int scale, final long[] gridPosition, final RandomAccessibleInterval< S > data ) throws IOException
+	{
+		final int parentScale = scale + 1;
+		if ( parentScale >= numScales )
+			return;
+
+		final long[] parentPosition = new long[ nd ];
+		long key = 0;
+		long stride = 1;
+		for ( int d = 0; d < nd; d++ )
+		{
+			parentPosition[ d ] = gridPosition[ d ] / factors[ d ];
+			key += parentPosition[ d ] * stride;
+			stride *= scaleGrid[ parentScale ][ d ];
+		}
+
+		final Accumulator parent = pending.get( parentScale ).computeIfAbsent( key, k -> new Accumulator( parentScale, parentPosition ) );
+		final boolean complete;
+		synchronized ( parent )
+		{
+			parent.add( gridPosition, data );
+			complete = parent.numAdded == parent.numChildren;
+		}
+
+		if ( complete )
+		{
+			pending.get( parentScale ).remove( key );
+			final Img< S > img = parent.average();
+			N5Utils.saveBlock( img, n5, scaleDataset( group, parentScale ), attributes[ parentScale ], parentPosition );
+			blockFinished( parentScale, parentPosition, img );
+		}
+	}
+
+	/**
+	 * @return the number of blocks that are waiting for some of their children
+	 */
+	public int numPending()
+	{
+		int n = 0;
+		for ( final ConcurrentHashMap< Long, Accumulator > map : pending )
+			n += map.size();
+
+		return n;
+	}
+
+	/**
+	 * Converts an index along a Morton (Z-order) curve to a grid position.
+	 * Every dimension uses as many bits as it needs, so the curve covers the
+	 * grid padded to the next power of two along every dimension. Consecutive
+	 * indexes visit the children of every parent block together.
+	 *
+	 * @param index the index
+	 * @param bits the number of bits of every dimension
+	 * @param position the grid position
+	 */
+	public static void mortonToGrid( long index, final int[] bits, final long[] position )
+	{
+		int maxBits = 0;
+		for ( int d = 0; d < bits.length; d++ )
+		{
+			position[ d ] = 0;
+			maxBits = Math.max( maxBits, bits[ d ] );
+		}
+
+		for ( int b = 0; b < maxBits; b++ )
+			for ( int d = 0; d < bits.length; d++ )
+				if ( b < bits[ d ] )
+				{
+					position[ d ] |= ( index & 1 ) << b;
+					index >>>= 1;
+				}
+	}
+
+	/**
+	 * @param gridSize the grid size
+	 * @param bits filled with the number of bits needed for every dimension
+	 * @return the length of the Morton curve covering the grid
+	 */
+	public static long mortonLength( final long[] gridSize, final int[] bits )
+	{
+		int total = 0;
+		for ( int d = 0; d < gridSize.length; d++ )
+		{
+			bits[ d ] = 64 - Long.numberOfLeadingZeros( Math.max( gridSize[ d ] - 1, 0 ) );
+			total += bits[ d ];
+		}
+		return 1L << total;
+	}
+
+	/*
+	 * sums of the children of a block
+	 */
+	private class Accumulator
+	{
+		private final long[] min;
+
+		private final int[] dims;
+
+		private final double[] sum;
+
+		private final int[] count;
+
+		private final int numChildren;
+
+		private int numAdded = 0;
+
+		public Accumulator( final int scale, final long[] gridPosition )
+		{
+			min = new long[ nd ];
+			dims = new int[ nd ];
+			int n = 1;
+			int children = 1;
+			for ( int d = 0; d < nd; d++ )
+			{
+				min[ d ] = gridPosition[ d ] * blockSize[ d ];
+				dims[ d ] = ( int ) Math.min( blockSize[ d ], scaleDims[ scale ][ d ] - min[ d ] );
+				n *= dims[ d ];
+
+				final long firstChild = gridPosition[ d ] * factors[ d ];
+				children *= Math.min( scaleGrid[ scale - 1 ][ d ], firstChild + factors[ d ] ) - firstChild;
+			}
+			sum = new double[ n ];
+			count = new int[ n ];
+			numChildren = children;
+		}
+
+		public void add( final long[] childPosition, final RandomAccessibleInterval< S > data )
+		{
+			final Cursor< S > c = Views.flatIterable( data ).localizingCursor();
+			while ( c.hasNext() )
+			{
+				c.fwd();
+				int i = 0;
+				int stride = 1;
+				for ( int d = 0; d < nd; d++ )
+				{
+					final long x = childPosition[ d ] * blockSize[ d ] + c.getLongPosition( d );
+					i += ( int ) ( x / factors[ d ] - min[ d ] ) * stride;
+					stride *= dims[ d ];
+				}
+				sum[ i ] += c.get().getRealDouble();
+				count[ i ]++;
+			}
+			numAdded++;
+		}
+
+		public Img< S > average()
+		{
+			final long[] size = new long[ nd ];
+			for ( int d = 0; d < nd; d++ )
+				size[ d ] = dims[ d ];
+
+			final Img< S > img = new ArrayImgFactory< S >( type ).create( size );
+			final Cursor< S > c = img.cursor();
+			for ( int i = 0; c.hasNext(); i++ )
+				c.next().setReal( count[ i ] == 0 ? 0 : sum[ i ] / count[ i ] );
+
+			return img;
+		}
+	}
+}
@@ -20,6 +20,7 @@ import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
+import javax.swing.JCheckBox;
 import javax.swing.Icon;
 import javax.swing.JButton;
 import javax.swing.JColorChooser;
@@ -51,6 +52,8 @@ public class WarpVisFrame extends JDialog
 	protected JRadioButton setWarpVisOffButton;
 	protected JRadioButton setWarpGridButton;
 	protected JRadioButton setWarpMagButton;
+
+	protected JCheckBox approximateWarpCheckbox;
 	
 	protected JLabel noOptionsLabel;
 	
@@ -154,6 +157,21 @@ public class WarpVisFrame extends JDialog
 		visTypePanel.add( setWarpVisOffButton );
 		visTypePanel.add( setWarpGridButton );
 		visTypePanel.add( setWarpMagButton );
+
+		// display the moving image with an approximate transform
+		approximateWarpCheckbox = new JCheckBox( "Fast display" );
+		approximateWarpCheckbox.setToolTipText( "Display the moving image using a cached approximation of the transform" );
+		approximateWarpCheckbox.setSelected( bw.isApproximateWarpForDisplay() );
+		approximateWarpCheckbox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				bw.setApproximateWarpForDisplay( approximateWarpCheckbox.isSelected() );
+			}
+		} );
+		visTypePanel.add( Box.createVerticalStrut( 10 ) );
+		visTypePanel.add( approximateWarpCheckbox );
 		
 		
 		// buttons for warp magnitude options
@@ -0,0 +1,721 @@
+package bigwarp.landmarks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bigwarp.metrics.Counter;
+import bigwarp.metrics.Histogram;
+import bigwarp.metrics.Metrics;
+import bigwarp.source.ThinPlateSplineJacobian;
+import bigwarp.source.ThinPlateSplines;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+/**
+ * Inverts a {@link ThinPlateR2LogRSplineKernelTransform} at many points at
+ * once.
+ * <p>
+ * Each point is solved with damped Newton iterations using the analytic
+ * Jacobian of the spline. Rather than starting every point from scratch, the
+ * iterations are warm-started from the inverse of the affine part of the
+ * spline or, for large batches, from a coarse grid of inverse positions that
+ * is solved first and interpolated. Points that do not converge from the warm
+ * start are retried from the affine start and from the point itself.
+ * <p>
+ * Points are solved in parallel on the {@link ForkJoinPool#commonPool() common
+ * pool}. The spline must not change while a batch is being solved, so a
+ * solver can be reused for as long as its spline is.
+ */
+public class BatchInverseSolver
+{
+	/**
+	 * Batches with at least this many points per grid node are warm-started
+	 * from a coarse inverse grid.
+	 */
+	public static final int GRID_POINTS_PER_NODE = 8;
+
+	// smaller batches are solved on the calling thread
+	protected static final int MIN_PARALLEL_POINTS = 64;
+
+	protected static final int CHUNK_SIZE = 32;
+
+	protected static final int MAX_STEP_HALVINGS = 12;
+
+	private static final Histogram ITERATIONS = Metrics.histogram( "inverse.iterations" );
+
+	private static final Counter POINTS = Metrics.counter( "inverse.points" );
+
+	private static final Counter FAILURES = Metrics.counter( "inverse.failures" );
+
+	protected final ThinPlateR2LogRSplineKernelTransform tps;
+
+	protected final int nd;
+
+	protected final ThinPlateSplineJacobian jacobian;
+
+	// inverse of the linear part, row-major, and translation of the spline
+	protected final double[] affineInverse;
+
+	protected final double[] translation;
+
+	protected double tolerance = 0.5;
+
+	protected int maxIters = 500;
+
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The result of solving a batch.
+	 */
+	public static class Result
+	{
+		/**
+		 * The estimated inverse of each point.
+		 */
+		public final double[][] points;
+
+		/**
+		 * The distance between the forward transform of the estimate and the
+		 * point, for each point.
+		 */
+		public final double[] errors;
+
+		/**
+		 * Set for points whose error is within the tolerance.
+		 */
+		public final BitSet converged;
+
+		public Result( final int n )
+		{
+			points = new double[ n ][];
+			errors = new double[ n ];
+			converged = new BitSet( n );
+		}
+
+		public int numUnconverged()
+		{
+			return points.length - converged.cardinality();
+		}
+	}
+
+	public BatchInverseSolver( final ThinPlateR2LogRSplineKernelTransform tps )
+	{
+		this.tps = tps;
+		this.nd = tps.getNumDims();
+		this.jacobian = new ThinPlateSplineJacobian( tps );
+
+		final double[][] a = tps.getAffine();
+		final double[] b = tps.getTranslation();
+		final double[][] lin = new double[ nd ][ nd ];
+		for ( int i = 0; i < nd; i++ )
+		{
+			lin[ i ][ i ] = 1;
+			if ( a != null )
+				for ( int j = 0; j < nd; j++ )
+					lin[ i ][ j ] += a[ i ][ j ];
+		}
+		affineInverse = invert( lin, nd );
+		translation = b == null ? new double[ nd ] : b.clone();
+	}
+
+	/**
+	 * @return the spline this inverts
+	 */
+	public ThinPlateR2LogRSplineKernelTransform getTransform()
+	{
+		return tps;
+	}
+
+	public BatchInverseSolver setTolerance( final double tolerance )
+	{
+		this.tolerance = tolerance;
+		return this;
+	}
+
+	public BatchInverseSolver setMaxIters( final int maxIters )
+	{
+		this.maxIters = maxIters;
+		return this;
+	}
+
+	public BatchInverseSolver setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		return this;
+	}
+
+	/**
+	 * Finds, for each point y, the point x such that the spline maps x to y.
+	 *
+	 * @param targets the points y, each of length at least the number of
+	 *            dimensions of the spline
+	 * @return the inverses and their convergence status
+	 */
+	public Result solve( final double[][] targets )
+	{
+		final int n = targets.length;
+		final Result result = new Result( n );
+		if ( n == 0 )
+			return result;
+
+		final InverseGrid grid = n >= GRID_POINTS_PER_NODE * Math.pow( 2, nd ) ? buildGrid( targets ) : null;
+		run( n, ( start, end ) -> {
+			final Worker worker = new Worker();
+			for ( int i = start; i < end; i++ )
+				worker.solve( targets[ i ], grid, result, i );
+		} );
+		return result;
+	}
+
+	/**
+	 * Solves the inverse at a single point, starting from the inverse of the
+	 * affine part.
+	 *
+	 * @param target the point y
+	 * @param x receives the estimate of the inverse
+	 * @return the error of the estimate
+	 */
+	public double solve( final double[] target, final double[] x )
+	{
+		return new Worker().solve( target, x, false );
+	}
+
+	/**
+	 * Applies the inverse of the affine part of the spline.
+	 *
+	 * @param y the point
+	 * @param x receives the result
+	 */
+	public void affineInverse( final double[] y, final double[] x )
+	{
+		for ( int i = 0; i < nd; i++ )
+		{
+			double v = 0;
+			for ( int j = 0; j < nd; j++ )
+				v += affineInverse[ i * nd + j ] * ( y[ j ] - translation[ j ] );
+			x[ i ] = v;
+		}
+	}
+
+	protected interface RangeTask
+	{
+		void run( int start, int end );
+	}
+
+	protected void run( final int n, final RangeTask task )
+	{
+		if ( numThreads <= 1 || n < MIN_PARALLEL_POINTS )
+		{
+			task.run( 0, n );
+			return;
+		}
+
+		// the common pool and the calling thread, split finely unless fewer threads are wanted
+		final int numParts;
+		if ( numThreads > ForkJoinPool.getCommonPoolParallelism() )
+			numParts = ( n + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+		else
+			numParts = numThreads;
+
+		ForkJoinPool.commonPool().invoke( new Range( 0, n, numParts, task ) );
+	}
+
+	/**
+	 * Solves the inverse on a coarse grid covering the bounding box of the
+	 * points. The number of nodes grows with the square root of the number of
+	 * points so that building the grid costs little compared to the batch.
+	 */
+	protected InverseGrid buildGrid( final double[][] targets )
+	{
+		final double[] min = new double[ nd ];
+		final double[] max = new double[ nd ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		for ( final double[] y : targets )
+			for ( int d = 0; d < nd; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], y[ d ] );
+				max[ d ] = Math.max( max[ d ], y[ d ] );
+			}
+
+		final int nodesPerDim = Math.max( 2, ( int ) Math.ceil( Math.pow( targets.length, 0.5 / nd ) ) );
+		final int[] nodes = new int[ nd ];
+		final double[] spacing = new double[ nd ];
+		for ( int d = 0; d < nd; d++ )
+		{
+			nodes[ d ] = nodesPerDim;
+			spacing[ d ] = Math.max( max[ d ] - min[ d ], 1e-9 ) / ( nodesPerDim - 1 );
+		}
+		return solveGrid( min, spacing, nodes );
+	}
+
+	/**
+	 * Solves the inverse at the nodes of a regular grid, in parallel. Nodes
+	 * whose inverse does not converge are marked invalid.
+	 *
+	 * @param min the position of the first node
+	 * @param spacing the spacing of the nodes
+	 * @param nodes the number of nodes per dimension, at least two
+	 * @return the grid
+	 */
+	public InverseGrid solveGrid( final double[] min, final double[] spacing, final int[] nodes )
+	{
+		final InverseGrid grid = new InverseGrid( min, spacing, nodes );
+		run( grid.numNodes(), ( start, end ) -> {
+			final Worker worker = new Worker();
+			final double[] y = new double[ nd ];
+			for ( int i = start; i < end; i++ )
+			{
+				grid.nodePosition( i, y );
+				worker.solveNode( y, grid, i );
+			}
+		} );
+		return grid;
+	}
+
+	/**
+	 * @return state for solving points one at a time on one thread
+	 */
+	public Worker newWorker()
+	{
+		return new Worker();
+	}
+
+	/**
+	 * Per-thread state.
+	 */
+	public class Worker
+	{
+		final ThinPlateSplineJacobian jac = jacobian.copy();
+
+		final double[] x = new double[ nd ];
+
+		final double[] best = new double[ nd ];
+
+		final double[] fx = new double[ nd ];
+
+		final double[] residual = new double[ nd ];
+
+		final double[] step = new double[ nd ];
+
+		final double[] trial = new double[ nd ];
+
+		final double[][] lu = new double[ nd ][ nd ];
+
+		// scratch of InverseGrid.interpolate
+		final int[] gridStrides = new int[ nd ];
+
+		final double[] gridFrac = new double[ nd ];
+
+		// Newton iterations of the current point, for metrics
+		int iterations;
+
+		/**
+		 * Interpolates a grid of inverse positions, like
+		 * {@link InverseGrid#interpolate(double[], double[])} but without
+		 * allocating.
+		 *
+		 * @param grid the grid
+		 * @param y the point
+		 * @param x receives the interpolated inverse, must not be y
+		 * @return false if a node of the cell containing y is not valid
+		 */
+		public boolean interpolate( final InverseGrid grid, final double[] y, final double[] x )
+		{
+			return grid.interpolate( y, x, gridStrides, gridFrac );
+		}
+
+		/**
+		 * Solves the inverse at a point. If a warm start is given and is
+		 * already within the tolerance, it costs a single evaluation of the
+		 * spline.
+		 *
+		 * @param y the point
+		 * @param out holds the warm start if warmStart is true, receives the estimate
+		 * @param warmStart start from the value of out
+		 * @return the error of the estimate
+		 */
+		public double solve( final double[] y, final double[] out, final boolean warmStart )
+		{
+			iterations = 0;
+			double err = Double.POSITIVE_INFINITY;
+			if ( warmStart )
+			{
+				System.arraycopy( out, 0, x, 0, nd );
+				err = keepBest( newton( y ), err );
+			}
+
+			if ( !( err <= tolerance ) )
+			{
+				affineInverse( y, x );
+				err = keepBest( newton( y ), err );
+			}
+
+			if ( !( err <= tolerance ) )
+			{
+				System.arraycopy( y, 0, x, 0, nd );
+				err = keepBest( newton( y ), err );
+			}
+
+			System.arraycopy( best, 0, out, 0, nd );
+			if ( Metrics.ENABLED )
+			{
+				POINTS.inc();
+				ITERATIONS.update( iterations );
+				if ( !( err <= tolerance ) )
+					FAILURES.inc();
+			}
+			return err;
+		}
+
+		void solve( final double[] y, final InverseGrid grid, final Result result, final int i )
+		{
+			final double[] out = new double[ nd ];
+			final double err = solve( y, out, grid != null && interpolate( grid, y, out ) );
+
+			result.points[ i ] = out;
+			result.errors[ i ] = err;
+			if ( err <= tolerance )
+			{
+				synchronized ( result.converged )
+				{
+					result.converged.set( i );
+				}
+			}
+		}
+
+		void solveNode( final double[] y, final InverseGrid grid, final int node )
+		{
+			affineInverse( y, x );
+			if ( newton( y ) <= tolerance )
+				grid.setNode( node, x );
+		}
+
+		/**
+		 * Keeps the better of the current estimate in x and the previous best.
+		 */
+		private double keepBest( final double err, final double bestErr )
+		{
+			if ( err < bestErr || bestErr == Double.POSITIVE_INFINITY )
+			{
+				System.arraycopy( x, 0, best, 0, nd );
+				return err;
+			}
+			return bestErr;
+		}
+
+		/**
+		 * Damped Newton iterations from the current value of x.
+		 *
+		 * @return the final error, x holds the estimate
+		 */
+		double newton( final double[] y )
+		{
+			double err = residual( x, y );
+			for ( int k = 0; k < maxIters && err > tolerance; k++ )
+			{
+				iterations++;
+				if ( !solveLinear( jac.jacobian( x ), residual, step ) )
+					return err;
+
+				// backtrack until the error decreases
+				double t = 1;
+				double trialErr = Double.POSITIVE_INFINITY;
+				for ( int h = 0; h <= MAX_STEP_HALVINGS; h++ )
+				{
+					for ( int d = 0; d < nd; d++ )
+						trial[ d ] = x[ d ] - t * step[ d ];
+
+					trialErr = error( trial, y );
+					if ( trialErr < err )
+						break;
+
+					t *= 0.5;
+				}
+
+				if ( !( trialErr < err ) )
+					return err;
+
+				System.arraycopy( trial, 0, x, 0, nd );
+				err = residual( x, y );
+			}
+			return err;
+		}
+
+		/**
+		 * Sets the residual f(p) - y and returns its norm.
+		 */
+		private double residual( final double[] p, final double[] y )
+		{
+			ThinPlateSplines.apply( tps, p, fx );
+			double sum = 0;
+			for ( int d = 0; d < nd; d++ )
+			{
+				residual[ d ] = fx[ d ] - y[ d ];
+				sum += residual[ d ] * residual[ d ];
+			}
+			return Double.isNaN( sum ) ? Double.POSITIVE_INFINITY : Math.sqrt( sum );
+		}
+
+		private double error( final double[] p, final double[] y )
+		{
+			ThinPlateSplines.apply( tps, p, fx );
+			double sum = 0;
+			for ( int d = 0; d < nd; d++ )
+			{
+				final double diff = fx[ d ] - y[ d ];
+				sum += diff * diff;
+			}
+			return Double.isNaN( sum ) ? Double.POSITIVE_INFINITY : Math.sqrt( sum );
+		}
+
+		/**
+		 * Solves m s = r by Gaussian elimination with partial pivoting.
+		 *
+		 * @return false if m is singular
+		 */
+		private boolean solveLinear( final double[][] m, final double[] r, final double[] s )
+		{
+			for ( int i = 0; i < nd; i++ )
+			{
+				System.arraycopy( m[ i ], 0, lu[ i ], 0, nd );
+				s[ i ] = r[ i ];
+			}
+			return gaussianElimination( lu, s, nd );
+		}
+	}
+
+	/**
+	 * Solves a s = b in place, leaving the solution in b.
+	 *
+	 * @return false if a is singular
+	 */
+	static boolean gaussianElimination( final double[][] a, final double[] b, final int n )
+	{
+		for ( int c = 0; c < n; c++ )
+		{
+			int pivot = c;
+			for ( int r = c + 1; r < n; r++ )
+				if ( Math.abs( a[ r ][ c ] ) > Math.abs( a[ pivot ][ c ] ) )
+					pivot = r;
+
+			if ( a[ pivot ][ c ] == 0 || Double.isNaN( a[ pivot ][ c ] ) )
+				return false;
+
+			if ( pivot != c )
+			{
+				final double[] swap = a[ pivot ];
+				a[ pivot ] = a[ c ];
+				a[ c ] = swap;
+				final double tmp = b[ pivot ];
+				b[ pivot ] = b[ c ];
+				b[ c ] = tmp;
+			}
+
+			for ( int r = c + 1; r < n; r++ )
+			{
+				final double f = a[ r ][ c ] / a[ c ][ c ];
+				for ( int k = c; k < n; k++ )
+					a[ r ][ k ] -= f * a[ c ][ k ];
+				b[ r ] -= f * b[ c ];
+			}
+		}
+
+		for ( int r = n - 1; r >= 0; r-- )
+		{
+			double v = b[ r ];
+			for ( int k = r + 1; k < n; k++ )
+				v -= a[ r ][ k ] * b[ k ];
+			b[ r ] = v / a[ r ][ r ];
+		}
+		return true;
+	}
+
+	/**
+	 * @return the inverse of the upper left n-by-n block of m, row-major, or
+	 *         the identity if m is singular
+	 */
+	static double[] invert( final double[][] m, final int n )
+	{
+		final double[] inv = new double[ n * n ];
+		final double[][] a = new double[ n ][ n ];
+		final double[] col = new double[ n ];
+		for ( int c = 0; c < n; c++ )
+		{
+			for ( int i = 0; i < n; i++ )
+			{
+				System.arraycopy( m[ i ], 0, a[ i ], 0, n );
+				col[ i ] = i == c ? 1 : 0;
+			}
+
+			if ( !gaussianElimination( a, col, n ) )
+			{
+				Arrays.fill( inv, 0 );
+				for ( int i = 0; i < n; i++ )
+					inv[ i * n + i ] = 1;
+				return inv;
+			}
+
+			for ( int i = 0; i < n; i++ )
+				inv[ i * n + c ] = col[ i ];
+		}
+		return inv;
+	}
+
+	/**
+	 * Inverse positions on a regular grid, interpolated linearly. Nodes whose
+	 * inverse did not converge are not used.
+	 */
+	public static class InverseGrid
+	{
+		final int nd;
+
+		final int[] nodes;
+
+		final int numNodes;
+
+		final double[] min;
+
+		final double[] spacing;
+
+		final double[] values;
+
+		final BitSet valid;
+
+		InverseGrid( final double[] min, final double[] spacing, final int[] nodes )
+		{
+			this.nd = nodes.length;
+			this.nodes = nodes.clone();
+			this.min = min.clone();
+			this.spacing = spacing.clone();
+
+			int nn = 1;
+			for ( int d = 0; d < nd; d++ )
+				nn *= nodes[ d ];
+
+			numNodes = nn;
+			values = new double[ nn * nd ];
+			valid = new BitSet( nn );
+		}
+
+		public int numNodes()
+		{
+			return numNodes;
+		}
+
+		public int numValidNodes()
+		{
+			return valid.cardinality();
+		}
+
+		void nodePosition( int node, final double[] y )
+		{
+			for ( int d = 0; d < nd; d++ )
+			{
+				y[ d ] = min[ d ] + ( node % nodes[ d ] ) * spacing[ d ];
+				node /= nodes[ d ];
+			}
+		}
+
+		void setNode( final int node, final double[] x )
+		{
+			System.arraycopy( x, 0, values, node * nd, nd );
+			synchronized ( valid )
+			{
+				valid.set( node );
+			}
+		}
+
+		/**
+		 * Interpolates the inverse at y into x. Points outside of the grid get
+		 * the values of the nearest cell on its boundary.
+		 *
+		 * @param y the point
+		 * @param x receives the interpolated inverse, must not be y
+		 * @return false if a node of the cell containing y is not valid
+		 */
+		public boolean interpolate( final double[] y, final double[] x )
+		{
+			return interpolate( y, x, new int[ nd ], new double[ nd ] );
+		}
+
+		boolean interpolate( final double[] y, final double[] x, final int[] strides, final double[] frac )
+		{
+			int base = 0;
+			int stride = 1;
+			for ( int d = 0; d < nd; d++ )
+			{
+				final double u = ( y[ d ] - min[ d ] ) / spacing[ d ];
+				final int b = Math.max( 0, Math.min( nodes[ d ] - 2, ( int ) Math.floor( u ) ) );
+				frac[ d ] = Math.max( 0, Math.min( 1, u - b ) );
+				base += b * stride;
+				strides[ d ] = stride;
+				stride *= nodes[ d ];
+			}
+
+			Arrays.fill( x, 0, nd, 0 );
+			for ( int corner = 0; corner < ( 1 << nd ); corner++ )
+			{
+				int node = base;
+				double w = 1;
+				for ( int d = 0; d < nd; d++ )
+				{
+					if ( ( ( corner >> d ) & 1 ) == 1 )
+					{
+						node += strides[ d ];
+						w *= frac[ d ];
+					}
+					else
+						w *= 1 - frac[ d ];
+				}
+
+				if ( !valid.get( node ) )
+					return false;
+
+				for ( int d = 0; d < nd; d++ )
+					x[ d ] += w * values[ node * nd + d ];
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Splits a range of points into a number of parts, in halves so that idle
+	 * threads of a {@link ForkJoinPool} can steal work. At most that many
+	 * parts run at once.
+	 */
+	private static class Range extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+
+		private final int end;
+
+		private final int numParts;
+
+		private final RangeTask task;
+
+		Range( final int start, final int end, final int numParts, final RangeTask task )
+		{
+			this.start = start;
+			this.end = end;
+			this.numParts = numParts;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( numParts <= 1 || end - start <= CHUNK_SIZE )
+				task.run( start, end );
+			else
+			{
+				final int half = numParts / 2;
+				final int mid = start + ( int ) ( ( long ) ( end - start ) * half / numParts );
+				invokeAll( new Range( start, mid, half, task ), new Range( mid, end, numParts - half, task ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package bigwarp.landmarks;
+
+import bigwarp.source.ThinPlateSplines;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+/**
+ * The inverse of a {@link ThinPlateR2LogRSplineKernelTransform}, backed by an
+ * inverse displacement field that is precomputed on a regular grid over a
+ * domain.
+ * <p>
+ * The spline maps target to moving space, so this maps moving to target
+ * space. Each query interpolates the grid, and checks the interpolated
+ * position by applying the spline once. If the forward transform of the
+ * position is farther than the tolerance from the query point, Newton
+ * iterations refine it, and fall back to the cold starts of
+ * {@link BatchInverseSolver} if they do not converge. So every result is as
+ * accurate as the one of the iterative inverse with the same tolerance, while
+ * most queries cost one or two evaluations of the spline instead of tens to
+ * hundreds.
+ * <p>
+ * Queries outside of the domain start from the nearest cell of the grid. The
+ * grid is shared between {@link #copy() copies}, but instances are not thread
+ * safe.
+ */
+public class CachedInverseThinPlateSpline implements InvertibleRealTransform
+{
+	protected final ThinPlateR2LogRSplineKernelTransform tps;
+
+	protected final BatchInverseSolver solver;
+
+	protected final BatchInverseSolver.InverseGrid grid;
+
+	protected final BatchInverseSolver.Worker worker;
+
+	protected final int nd;
+
+	protected final double tolerance;
+
+	protected final double[] src;
+
+	protected final double[] tgt;
+
+	/*
+	 * the query of apply, which may be overwritten by the initial guess when
+	 * it is applied in place
+	 */
+	protected final double[] query;
+
+	protected double lastError;
+
+	/**
+	 * Solves the inverse on a grid over the domain.
+	 *
+	 * @param tps the spline, from target to moving space
+	 * @param domain the domain in moving space where queries are expected
+	 * @param spacing the spacing of the grid per dimension, the last entry is
+	 *            repeated for the remaining dimensions
+	 * @param tolerance the largest accepted distance between the forward
+	 *            transform of a result and the query point
+	 * @param maxIters the maximum number of Newton iterations per point
+	 * @param nThreads the number of threads used to solve the grid
+	 */
+	public CachedInverseThinPlateSpline(
+			final ThinPlateR2LogRSplineKernelTransform tps,
+			final RealInterval domain,
+			final double[] spacing,
+			final double tolerance,
+			final int maxIters,
+			final int nThreads )
+	{
+		this.tps = tps;
+		this.nd = tps.getNumDims();
+		this.tolerance = tolerance;
+
+		solver = new BatchInverseSolver( tps )
+				.setTolerance( tolerance )
+				.setMaxIters( maxIters )
+				.setNumThreads( nThreads );
+
+		final double[] min = new double[ nd ];
+		final double[] gridSpacing = new double[ nd ];
+		final int[] nodes = new int[ nd ];
+		for ( int d = 0; d < nd; d++ )
+		{
+			final double s = spacing[ Math.min( d, spacing.length - 1 ) ];
+			final double extent = domain.realMax( d ) - domain.realMin( d );
+			nodes[ d ] = Math.max( 2, ( int ) Math.ceil( extent / s ) + 1 );
+			min[ d ] = domain.realMin( d );
+			gridSpacing[ d ] = extent > 0 ? extent / ( nodes[ d ] - 1 ) : s;
+		}
+		grid = solver.solveGrid( min, gridSpacing, nodes );
+
+		worker = solver.newWorker();
+		src = new double[ nd ];
+		tgt = new double[ nd ];
+		query = new double[ nd ];
+	}
+
+	protected CachedInverseThinPlateSpline( final CachedInverseThinPlateSpline other )
+	{
+		this.tps = other.tps;
+		this.nd = other.nd;
+		this.tolerance = other.tolerance;
+		this.solver = other.solver;
+		this.grid = other.grid;
+
+		worker = solver.newWorker();
+		src = new double[ nd ];
+		tgt = new double[ nd ];
+		query = new double[ nd ];
+	}
+
+	/**
+	 * @return the grid of precomputed inverse positions
+	 */
+	public BatchInverseSolver.InverseGrid getGrid()
+	{
+		return grid;
+	}
+
+	/**
+	 * @return the error of the last call to {@link #apply(double[], double[])}
+	 */
+	public double getLastError()
+	{
+		return lastError;
+	}
+
+	public ThinPlateR2LogRSplineKernelTransform getThinPlateSpline()
+	{
+		return tps;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return nd;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return nd;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		System.arraycopy( source, 0, query, 0, nd );
+		lastError = worker.solve( query, target, worker.interpolate( grid, query, target ) );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		for ( int d = 0; d < nd; d++ )
+			src[ d ] = source.getDoublePosition( d );
+
+		apply( src, tgt );
+		for ( int d = 0; d < nd; d++ )
+			target.setPosition( tgt[ d ], d );
+	}
+
+	@Override
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		ThinPlateSplines.apply( tps, target, source );
+	}
+
+	@Override
+	public void applyInverse( final RealPositionable source, final RealLocalizable target )
+	{
+		for ( int d = 0; d < nd; d++ )
+			tgt[ d ] = target.getDoublePosition( d );
+
+		ThinPlateSplines.apply( tps, tgt, src );
+		for ( int d = 0; d < nd; d++ )
+			source.setPosition( src[ d ], d );
+	}
+
+	@Override
+	public InvertibleRealTransform inverse()
+	{
+		return new Forward( this );
+	}
+
+	@Override
+	public CachedInverseThinPlateSpline copy()
+	{
+		return new CachedInverseThinPlateSpline( this );
+	}
+
+	/**
+	 * The spline itself, whose inverse is the cached inverse.
+	 */
+	protected static class Forward implements InvertibleRealTransform
+	{
+		private final CachedInverseThinPlateSpline inverse;
+
+		Forward( final CachedInverseThinPlateSpline inverse )
+		{
+			this.inverse = inverse;
+		}
+
+		@Override
+		public int numSourceDimensions()
+		{
+			return inverse.nd;
+		}
+
+		@Override
+		public int numTargetDimensions()
+		{
+			return inverse.nd;
+		}
+
+		@Override
+		public void apply( final double[] source, final double[] target )
+		{
+			inverse.applyInverse( target, source );
+		}
+
+		@Override
+		public void apply( final RealLocalizable source, final RealPositionable target )
+		{
+			inverse.applyInverse( target, source );
+		}
+
+		@Override
+		public void applyInverse( final double[] source, final double[] target )
+		{
+			inverse.apply( target, source );
+		}
+
+		@Override
+		public void applyInverse( final RealPositionable source, final RealLocalizable target )
+		{
+			inverse.apply( target, source );
+		}
+
+		@Override
+		public InvertibleRealTransform inverse()
+		{
+			return inverse;
+		}
+
+		@Override
+		public InvertibleRealTransform copy()
+		{
+			return new Forward( inverse.copy() );
+		}
+	}
+}
@@ -0,0 +1,563 @@
+package bigwarp.landmarks;
+
+import java.util.concurrent.CancellationException;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+/**
+ * Estimates {@link ThinPlateR2LogRSplineKernelTransform}s, keeping the inverse
+ * of the thin plate spline kernel system between calls so that small edits to
+ * the landmark set do not require a full re-solve.
+ * <p>
+ * The system matrix is ordered with the affine terms first, followed by one
+ * row and column per landmark. Its inverse is updated with low-rank updates
+ * when:
+ * <ul>
+ * <li>one or a few source landmarks move (rank-2 update per landmark),</li>
+ * <li>a landmark is inserted (bordering),</li>
+ * <li>a landmark is removed (downdate),</li>
+ * <li>only target landmarks change (the inverse is reused as is).</li>
+ * </ul>
+ * Each of these costs O(N<sup>2</sup>) rather than the O(N<sup>3</sup>) of a
+ * full solve. Any other change, a failed interpolation check, or too many
+ * consecutive updates triggers a full solve.
+ * <p>
+ * Point arrays passed to {@link #solve(double[][], double[][])} are kept as
+ * the reference state for the next call and must not be modified afterwards.
+ * <p>
+ * A full solve checks whether the calling thread is interrupted while it
+ * builds the system, and throws a {@link CancellationException} if so,
+ * leaving the cached state unchanged.
+ */
+public class IncrementalThinPlateSplineSolver
+{
+	protected final int ndims;
+
+	// number of affine terms, ndims + 1
+	protected final int m;
+
+	protected int numLandmarks = -1;
+
+	protected double[][] srcPts;
+
+	protected double[][] tgtPts;
+
+	// inverse of the system matrix, ( m + numLandmarks ) squared, row-major
+	protected double[] linv;
+
+	protected ThinPlateR2LogRSplineKernelTransform lastTransform;
+
+	protected int numUpdates = 0;
+
+	protected int maxUpdates = 500;
+
+	protected int maxChangedPoints = 8;
+
+	protected double residualTolerance = 1e-4;
+
+	public IncrementalThinPlateSplineSolver( final int ndims )
+	{
+		this.ndims = ndims;
+		this.m = ndims + 1;
+	}
+
+	public int getNumDims()
+	{
+		return ndims;
+	}
+
+	/**
+	 * Sets the number of low-rank updates after which the next change forces a
+	 * full solve, bounding the accumulation of round-off error.
+	 *
+	 * @param maxUpdates the maximum number of consecutive updates
+	 */
+	public void setMaxUpdates( final int maxUpdates )
+	{
+		this.maxUpdates = maxUpdates;
+	}
+
+	/**
+	 * Sets the largest number of moved landmarks that will be handled with
+	 * low-rank updates. More changes than this trigger a full solve.
+	 *
+	 * @param maxChangedPoints the maximum number of moved landmarks
+	 */
+	public void setMaxChangedPoints( final int maxChangedPoints )
+	{
+		this.maxChangedPoints = maxChangedPoints;
+	}
+
+	/**
+	 * Sets the largest interpolation error at an updated landmark that is
+	 * accepted before falling back to a full solve.
+	 *
+	 * @param residualTolerance the tolerance
+	 */
+	public void setResidualTolerance( final double residualTolerance )
+	{
+		this.residualTolerance = residualTolerance;
+	}
+
+	/**
+	 * Discards the cached factorization. The next call to solve will perform
+	 * a full solve.
+	 */
+	public synchronized void invalidate()
+	{
+		numLandmarks = -1;
+		srcPts = null;
+		tgtPts = null;
+		linv = null;
+		lastTransform = null;
+		numUpdates = 0;
+	}
+
+	/**
+	 * Returns a thin plate spline that maps srcPts to tgtPts.
+	 *
+	 * @param srcPts the source landmarks [ ndims ][ numLandmarks ]
+	 * @param tgtPts the target landmarks [ ndims ][ numLandmarks ]
+	 * @return the transformation
+	 */
+	public synchronized ThinPlateR2LogRSplineKernelTransform solve( final double[][] srcPts, final double[][] tgtPts )
+	{
+		final int n = srcPts[ 0 ].length;
+		if ( linv == null || numUpdates >= maxUpdates )
+			return fullSolve( srcPts, tgtPts );
+
+		final boolean ok;
+		if ( n == numLandmarks )
+			ok = updateSameSize( srcPts, tgtPts );
+		else if ( n == numLandmarks + 1 )
+			ok = updateAdded( srcPts, tgtPts );
+		else if ( n == numLandmarks - 1 )
+			ok = updateRemoved( srcPts, tgtPts );
+		else
+			ok = false;
+
+		if ( !ok )
+			return fullSolve( srcPts, tgtPts );
+
+		return lastTransform;
+	}
+
+	protected ThinPlateR2LogRSplineKernelTransform fullSolve( final double[][] srcPts, final double[][] tgtPts )
+	{
+		final int n = srcPts[ 0 ].length;
+		final int N = m + n;
+		final DenseMatrix64F L = new DenseMatrix64F( N, N );
+		final double[] col = new double[ N ];
+		for ( int i = 0; i < n; i++ )
+		{
+			checkInterrupted();
+			systemColumn( srcPts, n, i, srcPts, i, col );
+			for ( int j = 0; j < N; j++ )
+				L.unsafe_set( j, m + i, col[ j ] );
+
+			for ( int j = 0; j < m; j++ )
+				L.unsafe_set( m + i, j, col[ j ] );
+		}
+
+		checkInterrupted();
+		if ( n < m || !CommonOps.invert( L ) )
+		{
+			// degenerate landmarks, let the tps deal with them
+			invalidate();
+			return new ThinPlateR2LogRSplineKernelTransform( ndims, srcPts, tgtPts );
+		}
+
+		linv = L.getData();
+		numLandmarks = n;
+		this.srcPts = srcPts;
+		this.tgtPts = tgtPts;
+		numUpdates = 0;
+		lastTransform = buildTransform( computeCoefficients() );
+		return lastTransform;
+	}
+
+	private static void checkInterrupted()
+	{
+		if ( Thread.currentThread().isInterrupted() )
+			throw new CancellationException( "thin plate spline solve interrupted" );
+	}
+
+	private boolean updateSameSize( final double[][] src, final double[][] tgt )
+	{
+		final int n = numLandmarks;
+		final int[] moved = new int[ maxChangedPoints ];
+		int numMoved = 0;
+		boolean tgtChanged = false;
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( !equalPoints( src, i, srcPts, i ) )
+			{
+				if ( numMoved == maxChangedPoints )
+					return false;
+
+				moved[ numMoved++ ] = i;
+			}
+			if ( !tgtChanged && !equalPoints( tgt, i, tgtPts, i ) )
+				tgtChanged = true;
+		}
+
+		if ( numMoved == 0 && !tgtChanged )
+		{
+			srcPts = src;
+			tgtPts = tgt;
+			return true;
+		}
+
+		for ( int k = 0; k < numMoved; k++ )
+		{
+			if ( !moveLandmark( src, moved[ k ] ) )
+				return false;
+		}
+
+		srcPts = src;
+		tgtPts = tgt;
+		final double[] w = computeCoefficients();
+		for ( int k = 0; k < numMoved; k++ )
+			if ( !interpolates( w, moved[ k ] ) )
+				return false;
+
+		numUpdates++;
+		lastTransform = buildTransform( w );
+		return true;
+	}
+
+	/*
+	 * Rank-2 update of the inverse when source landmark k moves. Only row and
+	 * column ( m + k ) of the system matrix change: L' = L + d e^T + e d^T.
+	 * srcPts holds the old positions, except for landmarks already updated.
+	 */
+	private boolean moveLandmark( final double[][] src, final int k )
+	{
+		final int n = numLandmarks;
+		final int N = m + n;
+		final int K = m + k;
+
+		// srcPts already holds the new positions of landmarks moved earlier
+		final double[] oldCol = new double[ N ];
+		final double[] delta = new double[ N ];
+		systemColumn( srcPts, n, k, srcPts, k, oldCol );
+		systemColumn( srcPts, n, k, src, k, delta );
+		for ( int j = 0; j < N; j++ )
+			delta[ j ] -= oldCol[ j ];
+		delta[ K ] = 0;
+
+		final double[] a = new double[ N ];
+		final double[] b = new double[ N ];
+		double da = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			double s = 0;
+			final int row = i * N;
+			for ( int j = 0; j < N; j++ )
+				s += linv[ row + j ] * delta[ j ];
+			a[ i ] = s;
+			b[ i ] = linv[ row + K ];
+			da += delta[ i ] * s;
+		}
+
+		final double aK1 = 1 + a[ K ];
+		final double bK = b[ K ];
+		final double det = aK1 * aK1 - bK * da;
+		if ( Math.abs( det ) < 1e-12 )
+			return false;
+
+		for ( int i = 0; i < N; i++ )
+		{
+			final int row = i * N;
+			final double ai = a[ i ];
+			final double bi = b[ i ];
+			for ( int j = 0; j < N; j++ )
+				linv[ row + j ] -= ( aK1 * ( ai * b[ j ] + bi * a[ j ] ) - bK * ai * a[ j ] - da * bi * b[ j ] ) / det;
+		}
+
+		// keep the reference positions consistent with the updated inverse
+		final double[][] updated = copyPoints( srcPts );
+		for ( int d = 0; d < ndims; d++ )
+			updated[ d ][ k ] = src[ d ][ k ];
+		srcPts = updated;
+		return true;
+	}
+
+	private boolean updateAdded( final double[][] src, final double[][] tgt )
+	{
+		final int n = numLandmarks;
+		final int k = findInsertion( src, tgt, srcPts, tgtPts, n );
+		if ( k < 0 )
+			return false;
+
+		final int N = m + n;
+		final double[] c = new double[ N ];
+		systemColumn( srcPts, n, -1, src, k, c );
+
+		final double[] g = new double[ N ];
+		double s = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			double v = 0;
+			final int row = i * N;
+			for ( int j = 0; j < N; j++ )
+				v += linv[ row + j ] * c[ j ];
+			g[ i ] = v;
+			s -= c[ i ] * v;
+		}
+		if ( Math.abs( s ) < 1e-12 )
+			return false;
+
+		// build the bordered inverse with the new landmark at index m + k
+		final int K = m + k;
+		final int N1 = N + 1;
+		final double[] next = new double[ N1 * N1 ];
+		for ( int i = 0; i < N; i++ )
+		{
+			final int ii = i < K ? i : i + 1;
+			final int row = i * N;
+			final int nrow = ii * N1;
+			for ( int j = 0; j < N; j++ )
+			{
+				final int jj = j < K ? j : j + 1;
+				next[ nrow + jj ] = linv[ row + j ] + g[ i ] * g[ j ] / s;
+			}
+			next[ nrow + K ] = -g[ i ] / s;
+			next[ K * N1 + ii ] = -g[ i ] / s;
+		}
+		next[ K * N1 + K ] = 1 / s;
+
+		linv = next;
+		numLandmarks = n + 1;
+		srcPts = src;
+		tgtPts = tgt;
+
+		final double[] w = computeCoefficients();
+		if ( !interpolates( w, k ) )
+			return false;
+
+		numUpdates++;
+		lastTransform = buildTransform( w );
+		return true;
+	}
+
+	private boolean updateRemoved( final double[][] src, final double[][] tgt )
+	{
+		final int n = numLandmarks;
+		if ( n - 1 < m )
+			return false;
+
+		final int k = findInsertion( srcPts, tgtPts, src, tgt, n - 1 );
+		if ( k < 0 )
+			return false;
+
+		final int N = m + n;
+		final int R = m + k;
+		final double drr = linv[ R * N + R ];
+		if ( Math.abs( drr ) < 1e-12 )
+			return false;
+
+		final int N1 = N - 1;
+		final double[] next = new double[ N1 * N1 ];
+		for ( int i = 0; i < N; i++ )
+		{
+			if ( i == R )
+				continue;
+
+			final int ii = i < R ? i : i - 1;
+			final int row = i * N;
+			final double lir = linv[ row + R ];
+			for ( int j = 0; j < N; j++ )
+			{
+				if ( j == R )
+					continue;
+
+				final int jj = j < R ? j : j - 1;
+				next[ ii * N1 + jj ] = linv[ row + j ] - lir * linv[ R * N + j ] / drr;
+			}
+		}
+
+		linv = next;
+		numLandmarks = n - 1;
+		srcPts = src;
+		tgtPts = tgt;
+
+		final double[] w = computeCoefficients();
+		if ( !interpolates( w, Math.min( k, n - 2 ) ) )
+			return false;
+
+		numUpdates++;
+		lastTransform = buildTransform( w );
+		return true;
+	}
+
+	/*
+	 * Returns the index at which larger has one extra landmark compared to
+	 * smaller, or -1 if the two sets differ in any other way.
+	 */
+	private int findInsertion( final double[][] largerSrc, final double[][] largerTgt,
+			final double[][] smallerSrc, final double[][] smallerTgt, final int nSmaller )
+	{
+		int k = 0;
+		while ( k < nSmaller && equalPoints( largerSrc, k, smallerSrc, k ) && equalPoints( largerTgt, k, smallerTgt, k ) )
+			k++;
+
+		for ( int i = k; i < nSmaller; i++ )
+			if ( !equalPoints( largerSrc, i + 1, smallerSrc, i ) || !equalPoints( largerTgt, i + 1, smallerTgt, i ) )
+				return -1;
+
+		return k;
+	}
+
+	/*
+	 * Fills col with the column of the system matrix for the point pts[ . ][ i ]
+	 * against the landmarks in ref. Index skip (if non-negative) is the column's
+	 * own landmark, whose kernel value is zero.
+	 */
+	private void systemColumn( final double[][] ref, final int n, final int skip, final double[][] pts, final int i, final double[] col )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			col[ d ] = pts[ d ][ i ];
+		col[ ndims ] = 1;
+
+		for ( int l = 0; l < n; l++ )
+		{
+			if ( l == skip )
+			{
+				col[ m + l ] = 0;
+				continue;
+			}
+
+			double r2 = 0;
+			for ( int d = 0; d < ndims; d++ )
+			{
+				final double diff = pts[ d ][ i ] - ref[ d ][ l ];
+				r2 += diff * diff;
+			}
+			col[ m + l ] = kernel( r2 );
+		}
+	}
+
+	/*
+	 * Coefficients W = L^-1 Y stored [ m + n ][ ndims ] row major, where Y has
+	 * zeros in the affine rows and displacements in the landmark rows.
+	 */
+	private double[] computeCoefficients()
+	{
+		final int n = numLandmarks;
+		final int N = m + n;
+		final double[] y = new double[ n * ndims ];
+		for ( int l = 0; l < n; l++ )
+			for ( int d = 0; d < ndims; d++ )
+				y[ l * ndims + d ] = tgtPts[ d ][ l ] - srcPts[ d ][ l ];
+
+		final double[] w = new double[ N * ndims ];
+		for ( int i = 0; i < N; i++ )
+		{
+			final int row = i * N + m;
+			for ( int l = 0; l < n; l++ )
+			{
+				final double v = linv[ row + l ];
+				for ( int d = 0; d < ndims; d++ )
+					w[ i * ndims + d ] += v * y[ l * ndims + d ];
+			}
+		}
+		return w;
+	}
+
+	/*
+	 * Checks that the spline with coefficients w maps source landmark k onto
+	 * its target.
+	 */
+	private boolean interpolates( final double[] w, final int k )
+	{
+		final int n = numLandmarks;
+		final double[] disp = new double[ ndims ];
+		for ( int d = 0; d < ndims; d++ )
+		{
+			disp[ d ] = w[ ndims * ndims + d ];
+			for ( int j = 0; j < ndims; j++ )
+				disp[ d ] += w[ j * ndims + d ] * srcPts[ j ][ k ];
+		}
+
+		for ( int l = 0; l < n; l++ )
+		{
+			if ( l == k )
+				continue;
+
+			double r2 = 0;
+			for ( int d = 0; d < ndims; d++ )
+			{
+				final double diff = srcPts[ d ][ k ] - srcPts[ d ][ l ];
+				r2 += diff * diff;
+			}
+			final double u = kernel( r2 );
+			for ( int d = 0; d < ndims; d++ )
+				disp[ d ] += w[ ( m + l ) * ndims + d ] * u;
+		}
+
+		for ( int d = 0; d < ndims; d++ )
+		{
+			final double err = disp[ d ] - ( tgtPts[ d ][ k ] - srcPts[ d ][ k ] );
+			if ( !( Math.abs( err ) <= residualTolerance ) )
+				return false;
+		}
+		return true;
+	}
+
+	private ThinPlateR2LogRSplineKernelTransform buildTransform( final double[] w )
+	{
+		final int n = numLandmarks;
+		final double[][] aMatrix = new double[ ndims ][ ndims ];
+		final double[] bVector = new double[ ndims ];
+		final double[] dMatrixData = new double[ ndims * n ];
+		for ( int d = 0; d < ndims; d++ )
+		{
+			for ( int j = 0; j < ndims; j++ )
+				aMatrix[ d ][ j ] = w[ j * ndims + d ];
+
+			bVector[ d ] = w[ ndims * ndims + d ];
+
+			for ( int l = 0; l < n; l++ )
+				dMatrixData[ d * n + l ] = w[ ( m + l ) * ndims + d ];
+		}
+		return new ThinPlateR2LogRSplineKernelTransform( srcPts, aMatrix, bVector, dMatrixData );
+	}
+
+	private boolean equalPoints( final double[][] p, final int i, final double[][] q, final int j )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			if ( p[ d ][ i ] != q[ d ][ j ] )
+				return false;
+
+		return true;
+	}
+
+	private static double[][] copyPoints( final double[][] pts )
+	{
+		final double[][] out = new double[ pts.length ][];
+		for ( int d = 0; d < pts.length; d++ )
+			out[ d ] = pts[ d ].clone();
+
+		return out;
+	}
+
+	/**
+	 * The thin plate spline kernel r<sup>2</sup> log( r ), in terms of the
+	 * squared distance.
+	 *
+	 * @param r2 the squared distance
+	 * @return the kernel value
+	 */
+	public static double kernel( final double r2 )
+	{
+		if ( r2 < 1e-16 )
+			return 0;
+
+		// r^2 log( r ) = 0.5 r^2 log( r^2 )
+		return 0.5 * r2 * Math.log( r2 );
+	}
+}
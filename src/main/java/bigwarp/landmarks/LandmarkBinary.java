@@ -0,0 +1,226 @@
+package bigwarp.landmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * A binary landmark file format that loads without parsing.
+ * <p>
+ * All values are little endian. The file starts with a header
+ * <ul>
+ * <li>the magic number "BWLM"</li>
+ * <li>int version</li>
+ * <li>int number of dimensions</li>
+ * <li>int number of rows, n</li>
+ * <li>int number of longs of the active bit set</li>
+ * <li>int number of longs of the warped bit set</li>
+ * <li>long number of bytes of the names</li>
+ * </ul>
+ * followed by the active and warped rows as the longs of a {@link BitSet},
+ * n + 1 int offsets of the names, the UTF-8 bytes of the names, padding to a
+ * multiple of 8 bytes, and the moving, target and warped coordinates. Each of
+ * these is stored dimension-major, all x coordinates of the n rows, then all
+ * y coordinates, and so on.
+ * <p>
+ * Every section is copied into the arrays of a {@link LandmarkPointStore} in
+ * bulk. Sections of files of at least {@link LandmarkCsv#MIN_MAPPED_BYTES}
+ * are memory mapped, sections of smaller files are read into memory, so that
+ * the file is not left locked on Windows after loading.
+ */
+public class LandmarkBinary
+{
+	public static final int MAGIC = 0x4D4C5742; // "BWLM" little endian
+
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 32;
+
+	private LandmarkBinary()
+	{}
+
+	/**
+	 * @param f a file
+	 * @return true if the file starts with the magic number of this format
+	 */
+	public static boolean isBinary( final File f )
+	{
+		try ( final FileInputStream in = new FileInputStream( f ) )
+		{
+			final byte[] bytes = new byte[ 4 ];
+			if ( in.read( bytes ) != 4 )
+				return false;
+
+			return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN ).getInt() == MAGIC;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	public static Landmarks read( final File f ) throws IOException
+	{
+		try ( final RandomAccessFile raf = new RandomAccessFile( f, "r" );
+				final FileChannel channel = raf.getChannel() )
+		{
+			final boolean mapped = channel.size() >= LandmarkCsv.MIN_MAPPED_BYTES;
+			final ByteBuffer header = section( channel, 0, HEADER_BYTES, mapped );
+			if ( header.getInt() != MAGIC )
+				throw new IOException( "Invalid file - not a binary landmark file" );
+
+			final int version = header.getInt();
+			if ( version > VERSION )
+				throw new IOException( "Unsupported binary landmark file version " + version );
+
+			final int ndims = header.getInt();
+			final int n = header.getInt();
+			final int activeWords = header.getInt();
+			final int warpedWords = header.getInt();
+			final long nameBytes = header.getLong();
+			if ( ndims < 1 || n < 0 || activeWords < 0 || warpedWords < 0 || nameBytes < 0 || nameBytes > Integer.MAX_VALUE )
+				throw new IOException( "Invalid file - corrupt binary landmark header" );
+
+			long pos = HEADER_BYTES;
+			final BitSet active = BitSet.valueOf( section( channel, pos, 8L * activeWords, mapped ).asLongBuffer() );
+			pos += 8L * activeWords;
+
+			final BitSet warped = BitSet.valueOf( section( channel, pos, 8L * warpedWords, mapped ).asLongBuffer() );
+			pos += 8L * warpedWords;
+
+			final IntBuffer offsets = section( channel, pos, 4L * ( n + 1 ), mapped ).asIntBuffer();
+			pos += 4L * ( n + 1 );
+
+			final byte[] nameData = new byte[ ( int ) nameBytes ];
+			section( channel, pos, nameBytes, mapped ).get( nameData );
+			pos = pad( pos + nameBytes );
+
+			final ArrayList< String > names = new ArrayList<>( n );
+			for ( int i = 0; i < n; i++ )
+			{
+				final int start = offsets.get( i );
+				final int end = offsets.get( i + 1 );
+				if ( start < 0 || end < start || end > nameBytes )
+					throw new IOException( "Invalid file - corrupt names" );
+
+				names.add( new String( nameData, start, end - start, StandardCharsets.UTF_8 ) );
+			}
+
+			final long blockBytes = 8L * n;
+			final double[][][] blocks = new double[ 3 ][ ndims ][ Math.max( n, 1 ) ];
+			for ( final double[][] block : blocks )
+				for ( int d = 0; d < ndims; d++ )
+				{
+					section( channel, pos, blockBytes, mapped ).asDoubleBuffer().get( block[ d ], 0, n );
+					pos += blockBytes;
+				}
+
+			return new Landmarks( ndims, names, active,
+					new LandmarkPointStore( blocks[ 0 ], n ),
+					new LandmarkPointStore( blocks[ 1 ], n ),
+					new LandmarkPointStore( blocks[ 2 ], n ),
+					warped );
+		}
+	}
+
+	public static void write( final File f, final Landmarks landmarks ) throws IOException
+	{
+		final int ndims = landmarks.ndims;
+		final int n = landmarks.size();
+
+		final long[] active = landmarks.active.get( 0, n ).toLongArray();
+		final long[] warped = landmarks.warped.get( 0, n ).toLongArray();
+
+		final int[] offsets = new int[ n + 1 ];
+		final byte[][] names = new byte[ n ][];
+		for ( int i = 0; i < n; i++ )
+		{
+			names[ i ] = landmarks.names.get( i ).getBytes( StandardCharsets.UTF_8 );
+			final long end = ( long ) offsets[ i ] + names[ i ].length;
+			if ( end > Integer.MAX_VALUE )
+				throw new IOException( "Names too long for a binary landmark file" );
+
+			offsets[ i + 1 ] = ( int ) end;
+		}
+		final long nameBytes = offsets[ n ];
+
+		final long namesEnd = HEADER_BYTES + 8L * ( active.length + warped.length ) + 4L * ( n + 1 ) + nameBytes;
+		final long size = pad( namesEnd ) + 3L * ndims * 8L * n;
+
+		try ( final RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+				final FileChannel channel = raf.getChannel() )
+		{
+			raf.setLength( 0 );
+
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+			header.putInt( MAGIC );
+			header.putInt( VERSION );
+			header.putInt( ndims );
+			header.putInt( n );
+			header.putInt( active.length );
+			header.putInt( warped.length );
+			header.putLong( nameBytes );
+			header.flip();
+			channel.write( header, 0 );
+
+			long pos = HEADER_BYTES;
+			final ByteBuffer bits = ByteBuffer.allocate( 8 * ( active.length + warped.length ) ).order( ByteOrder.LITTLE_ENDIAN );
+			bits.asLongBuffer().put( active ).put( warped );
+			pos += write( channel, bits, pos );
+
+			final ByteBuffer offsetBuf = ByteBuffer.allocate( 4 * ( n + 1 ) ).order( ByteOrder.LITTLE_ENDIAN );
+			offsetBuf.asIntBuffer().put( offsets );
+			pos += write( channel, offsetBuf, pos );
+
+			final ByteBuffer nameBuf = ByteBuffer.allocate( ( int ) nameBytes );
+			for ( final byte[] name : names )
+				nameBuf.put( name );
+
+			nameBuf.flip();
+			pos += write( channel, nameBuf, pos );
+			pos = pad( pos );
+
+			final ByteBuffer block = ByteBuffer.allocate( 8 * n ).order( ByteOrder.LITTLE_ENDIAN );
+			for ( final LandmarkPointStore pts : new LandmarkPointStore[] { landmarks.movingPts, landmarks.targetPts, landmarks.warpedPts } )
+				for ( int d = 0; d < ndims; d++ )
+				{
+					block.clear();
+					block.asDoubleBuffer().put( pts.data()[ d ], 0, n );
+					block.limit( 8 * n );
+					pos += write( channel, block, pos );
+				}
+
+			raf.setLength( size );
+		}
+	}
+
+	private static ByteBuffer section( final FileChannel channel, final long position, final long size, final boolean mapped ) throws IOException
+	{
+		if ( position + size > channel.size() )
+			throw new IOException( "Invalid file - binary landmark file is truncated" );
+
+		return LandmarkCsv.buffer( channel, position, size, mapped ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	private static long write( final FileChannel channel, final ByteBuffer buf, final long position ) throws IOException
+	{
+		long written = 0;
+		while ( buf.hasRemaining() )
+			written += channel.write( buf, position + written );
+
+		return written;
+	}
+
+	private static long pad( final long pos )
+	{
+		return ( pos + 7 ) & ~7L;
+	}
+}
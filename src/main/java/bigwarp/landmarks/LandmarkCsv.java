@@ -0,0 +1,632 @@
+package bigwarp.landmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads and writes landmark csv files, the format of
+ * {@link LandmarkTableModel#load(File)} and {@link LandmarkTableModel#save(File)}.
+ * <p>
+ * Every row holds a name, whether the landmark is active, and the moving and
+ * target points, so rows have 6 columns for 2d landmarks and 8 columns for 3d
+ * landmarks. Fields may be quoted.
+ * <p>
+ * Large files are memory mapped and parsed in parallel, splitting them at
+ * line breaks, so quoted names must not contain line breaks. Files smaller
+ * than {@link #MIN_MAPPED_BYTES} are read into memory instead, because a
+ * mapped file stays locked on Windows until the mapping is garbage
+ * collected, so it could not be saved over right after loading. Numbers are parsed
+ * directly from the bytes of the file. Rows are written in blocks that are
+ * formatted in parallel and written in order.
+ */
+public class LandmarkCsv
+{
+	/**
+	 * Files smaller than this are read on the calling thread.
+	 */
+	private static final long MIN_PARALLEL_BYTES = 1 << 22;
+
+	/**
+	 * Files smaller than this are read into memory rather than mapped.
+	 */
+	static final long MIN_MAPPED_BYTES = 1 << 23;
+
+	/**
+	 * The number of rows written per block.
+	 */
+	private static final int WRITE_BLOCK_SIZE = 1 << 14;
+
+	private static final double[] POWERS_OF_TEN = new double[ 23 ];
+
+	static
+	{
+		POWERS_OF_TEN[ 0 ] = 1;
+		for ( int i = 1; i < POWERS_OF_TEN.length; i++ )
+			POWERS_OF_TEN[ i ] = 10 * POWERS_OF_TEN[ i - 1 ];
+	}
+
+	private LandmarkCsv()
+	{}
+
+	public static Landmarks read( final File f ) throws IOException
+	{
+		return read( f, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Reads a landmark file.
+	 *
+	 * @param f the file
+	 * @param numThreads the number of threads to parse with
+	 * @return the landmarks
+	 * @throws IOException if the file can not be read or is not a landmark
+	 *             file
+	 */
+	public static Landmarks read( final File f, final int numThreads ) throws IOException
+	{
+		return read( f, numThreads, MIN_PARALLEL_BYTES );
+	}
+
+	static Landmarks read( final File f, final int numThreads, final long minParallelBytes ) throws IOException
+	{
+		try ( final RandomAccessFile raf = new RandomAccessFile( f, "r" );
+				final FileChannel channel = raf.getChannel() )
+		{
+			final long size = channel.size();
+			final boolean mapped = size >= MIN_MAPPED_BYTES;
+
+			// split into chunks that are less than 2GB and start at a line
+			int numChunks = ( int ) Math.max( 1, Math.min( numThreads, size / minParallelBytes ) );
+			numChunks = ( int ) Math.max( numChunks, 1 + size / Integer.MAX_VALUE );
+
+			final long[] starts = new long[ numChunks + 1 ];
+			for ( int i = 1; i < numChunks; i++ )
+				starts[ i ] = nextLineStart( channel, Math.max( starts[ i - 1 ], size * i / numChunks ) );
+
+			starts[ numChunks ] = size;
+
+			final List< Landmarks > parts = new ArrayList<>( numChunks );
+			if ( numChunks == 1 )
+				parts.add( parse( buffer( channel, 0, size, mapped ) ) );
+			else
+			{
+				final ExecutorService exec = Executors.newFixedThreadPool( Math.min( numThreads, numChunks ) );
+				try
+				{
+					final List< Future< Landmarks > > futures = new ArrayList<>( numChunks );
+					for ( int i = 0; i < numChunks; i++ )
+					{
+						final ByteBuffer buf = buffer( channel, starts[ i ], starts[ i + 1 ] - starts[ i ], mapped );
+						futures.add( exec.submit( () -> parse( buf ) ) );
+					}
+
+					for ( final Future< Landmarks > future : futures )
+						parts.add( future.get() );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( e );
+				}
+				catch ( final ExecutionException e )
+				{
+					if ( e.getCause() instanceof IOException )
+						throw ( IOException ) e.getCause();
+
+					throw new IOException( e.getCause() );
+				}
+				finally
+				{
+					exec.shutdown();
+				}
+			}
+
+			return merge( parts );
+		}
+	}
+
+	private static Landmarks merge( final List< Landmarks > parts ) throws IOException
+	{
+		int ndims = -1;
+		int n = 0;
+		for ( final Landmarks part : parts )
+		{
+			if ( part == null )
+				continue;
+
+			if ( ndims < 0 )
+				ndims = part.ndims;
+			else if ( ndims != part.ndims )
+				throw new IOException( "Invalid file - rows have different numbers of columns" );
+
+			n += part.size();
+		}
+
+		if ( ndims < 0 )
+			return new Landmarks( 3, 0 );
+
+		int first = 0;
+		while ( parts.get( first ) == null )
+			first++;
+
+		if ( parts.get( first ).size() == n )
+			return parts.get( first );
+
+		final Landmarks out = new Landmarks( ndims, n );
+		for ( final Landmarks part : parts )
+			if ( part != null )
+				out.addAll( part );
+
+		return out;
+	}
+
+	/**
+	 * Maps a range of a file, or reads it into a heap buffer.
+	 *
+	 * @param channel the file
+	 * @param position the start of the range
+	 * @param size the size of the range
+	 * @param map whether to map the range
+	 * @return the bytes of the range
+	 * @throws IOException if the range can not be read
+	 */
+	static ByteBuffer buffer( final FileChannel channel, final long position, final long size, final boolean map ) throws IOException
+	{
+		if ( map )
+			return channel.map( FileChannel.MapMode.READ_ONLY, position, size );
+
+		final ByteBuffer buf = ByteBuffer.allocate( ( int ) size );
+		while ( buf.hasRemaining() )
+			if ( channel.read( buf, position + buf.position() ) < 0 )
+				throw new IOException( "Unexpected end of file" );
+
+		buf.flip();
+		return buf;
+	}
+
+	private static long nextLineStart( final FileChannel channel, long position ) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.allocate( 4096 );
+		while ( true )
+		{
+			buf.clear();
+			final int n = channel.read( buf, position );
+			if ( n <= 0 )
+				return channel.size();
+
+			for ( int i = 0; i < n; i++ )
+				if ( buf.get( i ) == '\n' )
+					return position + i + 1;
+
+			position += n;
+		}
+	}
+
+	/*
+	 * Parses the rows of a buffer, returns null if it has no rows.
+	 */
+	private static Landmarks parse( final ByteBuffer buf ) throws IOException
+	{
+		final int end = buf.limit();
+		final Fields fields = new Fields();
+
+		Landmarks out = null;
+		int ndims = 0;
+		int rowLength = 0;
+		double[] movingPt = null;
+		double[] targetPt = null;
+
+		int pos = 0;
+		while ( pos < end )
+		{
+			pos = fields.split( buf, pos, end );
+
+			// skip empty lines
+			if ( fields.isEmpty() )
+				continue;
+
+			final int numFields = fields.size();
+			if ( out == null )
+			{
+				// detect a file with 2d landmarks
+				ndims = numFields == 6 ? 2 : 3;
+				rowLength = 2 + 2 * ndims;
+				out = new Landmarks( ndims, Math.max( 16, end / ( 16 * rowLength ) ) );
+				movingPt = new double[ ndims ];
+				targetPt = new double[ ndims ];
+			}
+
+			if ( numFields != rowLength )
+				throw new IOException( "Invalid file - not enough columns" );
+
+			final int i = out.size();
+			out.names.add( fields.getString( 0 ) );
+			if ( parseBoolean( buf, fields.start[ 1 ], fields.end[ 1 ] ) )
+				out.active.set( i );
+
+			int k = 2;
+			for ( int d = 0; d < ndims; d++, k++ )
+				movingPt[ d ] = fields.getDouble( k );
+
+			for ( int d = 0; d < ndims; d++, k++ )
+				targetPt[ d ] = fields.getDouble( k );
+
+			out.movingPts.add( movingPt );
+			out.targetPts.add( targetPt );
+			out.warpedPts.insert( i );
+		}
+		return out;
+	}
+
+	/**
+	 * Splits lines of csv into fields, with the quoting of landmark files:
+	 * fields may be enclosed in double quotes, which are escaped by doubling
+	 * them inside quoted fields. Quoted fields must not contain line breaks.
+	 * The fields of the last line that was split refer to the bytes of its
+	 * buffer.
+	 */
+	public static class Fields
+	{
+		private ByteBuffer buf;
+
+		private int size;
+
+		private int lineEnd;
+
+		// the first byte of every field, including its opening quote
+		private int[] rawStart = new int[ 8 ];
+
+		// the contents of every field, without quotes
+		private int[] start = new int[ 8 ];
+
+		private int[] end = new int[ 8 ];
+
+		private boolean[] escaped = new boolean[ 8 ];
+
+		/**
+		 * Splits a line.
+		 *
+		 * @param line the line, without line break
+		 */
+		public void split( final String line )
+		{
+			final ByteBuffer bytes = ByteBuffer.wrap( line.getBytes( StandardCharsets.UTF_8 ) );
+			split( bytes, 0, bytes.limit() );
+		}
+
+		/**
+		 * Splits the line that starts at a position of a buffer.
+		 *
+		 * @param buf the buffer
+		 * @param pos the start of the line
+		 * @param limit the end of the bytes to split
+		 * @return the start of the next line
+		 */
+		public int split( final ByteBuffer buf, int pos, final int limit )
+		{
+			this.buf = buf;
+			size = 0;
+			boolean lineDone = false;
+			while ( !lineDone )
+			{
+				if ( size == start.length )
+				{
+					rawStart = Arrays.copyOf( rawStart, 2 * size );
+					start = Arrays.copyOf( start, 2 * size );
+					end = Arrays.copyOf( end, 2 * size );
+					escaped = Arrays.copyOf( escaped, 2 * size );
+				}
+
+				rawStart[ size ] = pos;
+				escaped[ size ] = false;
+				if ( pos < limit && buf.get( pos ) == '"' )
+				{
+					start[ size ] = ++pos;
+					while ( pos < limit )
+					{
+						if ( buf.get( pos ) == '"' )
+						{
+							if ( pos + 1 < limit && buf.get( pos + 1 ) == '"' )
+							{
+								escaped[ size ] = true;
+								pos += 2;
+								continue;
+							}
+							break;
+						}
+						pos++;
+					}
+					end[ size ] = pos;
+					pos++;
+
+					// skip anything between the closing quote and the separator
+					while ( pos < limit && buf.get( pos ) != ',' && buf.get( pos ) != '\n' )
+						pos++;
+				}
+				else
+				{
+					start[ size ] = pos;
+					while ( pos < limit && buf.get( pos ) != ',' && buf.get( pos ) != '\n' )
+						pos++;
+
+					int e = pos;
+					if ( e > start[ size ] && buf.get( e - 1 ) == '\r' )
+						e--;
+
+					end[ size ] = e;
+				}
+				size++;
+
+				if ( pos >= limit || buf.get( pos ) == '\n' )
+				{
+					lineDone = true;
+					lineEnd = Math.min( pos, limit );
+				}
+
+				pos++;
+			}
+			return pos;
+		}
+
+		/**
+		 * @return the number of fields of the line
+		 */
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * @return true if the line is empty
+		 */
+		public boolean isEmpty()
+		{
+			return size == 1 && end[ 0 ] == start[ 0 ];
+		}
+
+		/**
+		 * @param i the index of a field
+		 * @return the field, unquoted
+		 */
+		public String getString( final int i )
+		{
+			return parseString( buf, start[ i ], end[ i ], escaped[ i ] );
+		}
+
+		/**
+		 * @param i the index of a field
+		 * @return the number in the field
+		 * @throws IOException if the field is not a number
+		 */
+		public double getDouble( final int i ) throws IOException
+		{
+			return parseDouble( buf, start[ i ], end[ i ] );
+		}
+
+		/**
+		 * @param i the index of a field
+		 * @return the line from the start of the field to its end, as it was
+		 *         written, without the line break
+		 */
+		public String getRemainder( final int i )
+		{
+			int e = lineEnd;
+			if ( e > rawStart[ i ] && buf.get( e - 1 ) == '\r' )
+				e--;
+
+			final byte[] bytes = new byte[ Math.max( e - rawStart[ i ], 0 ) ];
+			for ( int j = 0; j < bytes.length; j++ )
+				bytes[ j ] = buf.get( rawStart[ i ] + j );
+
+			return new String( bytes, StandardCharsets.UTF_8 );
+		}
+	}
+
+	private static String parseString( final ByteBuffer buf, final int start, final int end, final boolean escaped )
+	{
+		final byte[] bytes = new byte[ end - start ];
+		int n = 0;
+		for ( int i = start; i < end; i++ )
+		{
+			bytes[ n++ ] = buf.get( i );
+			if ( escaped && buf.get( i ) == '"' )
+				i++;
+		}
+		return new String( bytes, 0, n, StandardCharsets.UTF_8 );
+	}
+
+	private static boolean parseBoolean( final ByteBuffer buf, final int start, final int end )
+	{
+		final String t = "true";
+		if ( end - start != t.length() )
+			return false;
+
+		for ( int i = 0; i < t.length(); i++ )
+			if ( Character.toLowerCase( ( char ) buf.get( start + i ) ) != t.charAt( i ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Parses a decimal number from bytes. Plain decimals with at most 15
+	 * significant digits, the numbers this class writes, are converted exactly
+	 * with one division, and others with {@link Double#parseDouble(String)}.
+	 */
+	static double parseDouble( final ByteBuffer buf, int start, int end ) throws IOException
+	{
+		while ( start < end && buf.get( start ) == ' ' )
+			start++;
+
+		while ( end > start && buf.get( end - 1 ) == ' ' )
+			end--;
+
+		int i = start;
+		boolean negative = false;
+		if ( i < end && ( buf.get( i ) == '-' || buf.get( i ) == '+' ) )
+			negative = buf.get( i++ ) == '-';
+
+		long mantissa = 0;
+		int numDigits = 0;
+		int numFractionDigits = 0;
+		boolean anyDigits = false;
+		boolean fraction = false;
+		for ( ; i < end; i++ )
+		{
+			final byte b = buf.get( i );
+			if ( b == '.' && !fraction )
+			{
+				fraction = true;
+				continue;
+			}
+
+			if ( !isDigit( b ) )
+				break;
+
+			anyDigits = true;
+			mantissa = 10 * mantissa + ( b - '0' );
+			if ( mantissa != 0 )
+				numDigits++;
+
+			if ( fraction )
+				numFractionDigits++;
+		}
+
+		if ( anyDigits && i == end && numDigits <= 15 && numFractionDigits < POWERS_OF_TEN.length )
+		{
+			final double v = mantissa / POWERS_OF_TEN[ numFractionDigits ];
+			return negative ? -v : v;
+		}
+
+		// exponents, Infinity, NaN, many digits, or not a number
+		final char[] chars = new char[ end - start ];
+		for ( int j = start; j < end; j++ )
+			chars[ j - start ] = ( char ) buf.get( j );
+
+		try
+		{
+			return Double.parseDouble( new String( chars ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( "Invalid file - not a number: " + new String( chars ) );
+		}
+	}
+
+	private static boolean isDigit( final byte b )
+	{
+		return b >= '0' && b <= '9';
+	}
+
+	public static void write( final File f, final Landmarks landmarks ) throws IOException
+	{
+		write( f, landmarks.names, landmarks.active, landmarks.movingPts, landmarks.targetPts,
+				Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Writes a landmark file.
+	 *
+	 * @param f the file
+	 * @param names the names of the rows
+	 * @param active the active rows
+	 * @param movingPts the moving points
+	 * @param targetPts the target points
+	 * @param numThreads the number of threads to format rows with
+	 * @throws IOException if the file can not be written
+	 */
+	public static void write( final File f, final List< String > names, final BitSet active,
+			final LandmarkPointStore movingPts, final LandmarkPointStore targetPts, final int numThreads ) throws IOException
+	{
+		final int n = names.size();
+		final int numBlocks = ( n + WRITE_BLOCK_SIZE - 1 ) / WRITE_BLOCK_SIZE;
+		try ( final OutputStream out = new BufferedOutputStream( new FileOutputStream( f ), 1 << 16 ) )
+		{
+			if ( numBlocks <= 1 || numThreads <= 1 )
+			{
+				for ( int b = 0; b < numBlocks; b++ )
+					out.write( format( names, active, movingPts, targetPts, b * WRITE_BLOCK_SIZE, Math.min( n, ( b + 1 ) * WRITE_BLOCK_SIZE ) ) );
+
+				return;
+			}
+
+			final ExecutorService exec = Executors.newFixedThreadPool( Math.min( numThreads, numBlocks ) );
+			try
+			{
+				// keep a bounded number of formatted blocks in memory
+				final ArrayDeque< Future< byte[] > > pending = new ArrayDeque<>();
+				for ( int b = 0; b < numBlocks; b++ )
+				{
+					final int from = b * WRITE_BLOCK_SIZE;
+					final int to = Math.min( n, from + WRITE_BLOCK_SIZE );
+					pending.add( exec.submit( () -> format( names, active, movingPts, targetPts, from, to ) ) );
+
+					if ( pending.size() >= 2 * numThreads )
+						out.write( pending.poll().get() );
+				}
+
+				while ( !pending.isEmpty() )
+					out.write( pending.poll().get() );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new IOException( e.getCause() );
+			}
+			finally
+			{
+				exec.shutdownNow();
+			}
+		}
+	}
+
+	private static byte[] format( final List< String > names, final BitSet active,
+			final LandmarkPointStore movingPts, final LandmarkPointStore targetPts, final int from, final int to )
+	{
+		final int ndims = movingPts.numDimensions();
+		final StringBuilder s = new StringBuilder( ( to - from ) * ( 16 + 24 * 2 * ndims ) );
+		for ( int i = from; i < to; i++ )
+		{
+			s.append( '"' );
+			final String name = names.get( i );
+			for ( int j = 0; j < name.length(); j++ )
+			{
+				final char c = name.charAt( j );
+				if ( c == '"' )
+					s.append( '"' );
+
+				s.append( c );
+			}
+			s.append( "\",\"" ).append( active.get( i ) ).append( '"' );
+
+			for ( int d = 0; d < ndims; d++ )
+				s.append( ",\"" ).append( movingPts.get( i, d ) ).append( '"' );
+
+			for ( int d = 0; d < ndims; d++ )
+				s.append( ",\"" ).append( targetPts.get( i, d ) ).append( '"' );
+
+			s.append( '\n' );
+		}
+		return s.toString().getBytes( StandardCharsets.UTF_8 );
+	}
+}
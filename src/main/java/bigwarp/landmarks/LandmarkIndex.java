@@ -0,0 +1,586 @@
+package bigwarp.landmarks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * A kd-tree over the points of one column of a {@link LandmarkTableModel},
+ * that answers nearest neighbor, k-nearest neighbor and radius queries with
+ * the row indexes of the table.
+ * <p>
+ * The tree is updated as rows are inserted, removed or moved rather than
+ * rebuilt. Moved and removed points are only marked as removed in the tree,
+ * and inserted points are added as leaves. The tree is rebuilt from scratch
+ * when too many nodes are removed or it gets too deep. Inserting or removing
+ * a row shifts the row indexes stored in the tree, which costs a pass over
+ * integers but no distance computations.
+ * <p>
+ * Rows whose point is not set (has infinite coordinates) are not indexed.
+ */
+public class LandmarkIndex
+{
+	private final int nd;
+
+	/*
+	 * tree nodes
+	 */
+	private double[][] coords;
+	private int[] rowOfNode;
+	private int[] left;
+	private int[] right;
+	private int[] splitDim;
+	private boolean[] removed;
+	private int numNodes;
+	private int numRemoved;
+	private int root;
+	private int maxDepth;
+
+	/*
+	 * row to node map, -1 for rows that are not indexed
+	 */
+	private int[] nodeOfRow;
+	private int numRows;
+
+	public LandmarkIndex( final int nd )
+	{
+		this.nd = nd;
+		nodeOfRow = new int[ 16 ];
+		numRows = 0;
+		allocateNodes( 16 );
+	}
+
+	public int numDimensions()
+	{
+		return nd;
+	}
+
+	/**
+	 * @return the number of indexed points
+	 */
+	public synchronized int size()
+	{
+		return numNodes - numRemoved;
+	}
+
+	/**
+	 * Inserts an empty row at the given index, shifting the rows after it.
+	 *
+	 * @param row the row index
+	 */
+	public synchronized void insertRow( final int row )
+	{
+		if ( numRows == nodeOfRow.length )
+			nodeOfRow = Arrays.copyOf( nodeOfRow, 2 * nodeOfRow.length );
+
+		System.arraycopy( nodeOfRow, row, nodeOfRow, row + 1, numRows - row );
+		nodeOfRow[ row ] = -1;
+		numRows++;
+
+		for ( int n = 0; n < numNodes; n++ )
+			if ( rowOfNode[ n ] >= row )
+				rowOfNode[ n ]++;
+	}
+
+	/**
+	 * Removes the row at the given index, shifting the rows after it.
+	 *
+	 * @param row the row index
+	 */
+	public synchronized void removeRow( final int row )
+	{
+		if ( row < 0 || row >= numRows )
+			return;
+
+		clear( row );
+		System.arraycopy( nodeOfRow, row + 1, nodeOfRow, row, numRows - row - 1 );
+		numRows--;
+
+		for ( int n = 0; n < numNodes; n++ )
+			if ( rowOfNode[ n ] > row )
+				rowOfNode[ n ]--;
+	}
+
+	/**
+	 * Sets the point for a row. Points with non-finite coordinates are not
+	 * indexed.
+	 *
+	 * @param row the row index
+	 * @param pt the point, only the first {@link #numDimensions()} are used
+	 */
+	public synchronized void set( final int row, final double[] pt )
+	{
+		clear( row );
+		if ( !isFinite( pt ) )
+			return;
+
+		final int node = addNode( row, pt );
+		nodeOfRow[ row ] = node;
+		insertNode( node );
+	}
+
+	/**
+	 * Removes the point for a row from the index, but keeps the row.
+	 *
+	 * @param row the row index
+	 */
+	public synchronized void clear( final int row )
+	{
+		if ( row < 0 || row >= numRows )
+			return;
+
+		final int node = nodeOfRow[ row ];
+		if ( node < 0 )
+			return;
+
+		removed[ node ] = true;
+		numRemoved++;
+		nodeOfRow[ row ] = -1;
+
+		if ( numRemoved > 32 && numRemoved > size() )
+			rebuild();
+	}
+
+	/**
+	 * Replaces the contents of this index.
+	 *
+	 * @param points the points of all rows
+	 * @param valid which rows to index, all rows if null
+	 */
+	public synchronized void reset( final LandmarkPointStore points, final BitSet valid )
+	{
+		numRows = 0;
+		numNodes = 0;
+		numRemoved = 0;
+		root = -1;
+		maxDepth = 0;
+
+		final double[] p = new double[ nd ];
+		for ( int i = 0; i < points.size(); i++ )
+		{
+			if ( numRows == nodeOfRow.length )
+				nodeOfRow = Arrays.copyOf( nodeOfRow, 2 * nodeOfRow.length );
+
+			nodeOfRow[ numRows++ ] = -1;
+			if ( valid != null && !valid.get( i ) )
+				continue;
+
+			points.get( i, p );
+			if ( isFinite( p ) )
+				nodeOfRow[ i ] = addNode( i, p );
+		}
+		rebuild();
+	}
+
+	/**
+	 * @param q the query point
+	 * @return the row of the nearest point, or -1 if the index is empty
+	 */
+	public int nearest( final double[] q )
+	{
+		return nearest( q, Double.POSITIVE_INFINITY, null );
+	}
+
+	/**
+	 * @param q the query point
+	 * @param maxDistance only points closer than this are returned
+	 * @param accept only rows for which this is true are returned, may be null
+	 * @return the row of the nearest point, or -1 if there is no such point
+	 */
+	public synchronized int nearest( final double[] q, final double maxDistance, final IntPredicate accept )
+	{
+		final double[] best = new double[]{ maxDistance * maxDistance };
+		final int[] bestRow = new int[]{ -1 };
+		nearest( root, q, accept, best, bestRow );
+		return bestRow[ 0 ];
+	}
+
+	/**
+	 * @param q the query point
+	 * @param k the number of neighbors
+	 * @return the rows of the k nearest points, nearest first. Fewer than k
+	 *         rows if fewer points are indexed.
+	 */
+	public synchronized int[] kNearest( final double[] q, final int k )
+	{
+		if ( k <= 0 )
+			return new int[ 0 ];
+
+		// max heap on distance
+		final int[] heapRows = new int[ k ];
+		final double[] heapDists = new double[ k ];
+		final int[] heapSize = new int[ 1 ];
+		kNearest( root, q, k, heapRows, heapDists, heapSize );
+
+		// sort by increasing distance
+		final int n = heapSize[ 0 ];
+		final int[] out = new int[ n ];
+		for ( int i = n - 1; i >= 0; i-- )
+		{
+			out[ i ] = heapRows[ 0 ];
+			heapRows[ 0 ] = heapRows[ i ];
+			heapDists[ 0 ] = heapDists[ i ];
+			siftDown( heapRows, heapDists, i, 0 );
+		}
+		return out;
+	}
+
+	/**
+	 * @param q the query point
+	 * @param radius the radius
+	 * @return the rows of all points within the radius, nearest first
+	 */
+	public synchronized int[] withinRadius( final double[] q, final double radius )
+	{
+		final IntList rows = new IntList();
+		final DoubleList dists = new DoubleList();
+		withinRadius( root, q, radius * radius, rows, dists );
+
+		final int n = rows.size;
+		final Integer[] order = new Integer[ n ];
+		for ( int i = 0; i < n; i++ )
+			order[ i ] = i;
+
+		Arrays.sort( order, ( a, b ) -> Double.compare( dists.data[ a ], dists.data[ b ] ) );
+
+		final int[] out = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+			out[ i ] = rows.data[ order[ i ] ];
+
+		return out;
+	}
+
+	private void nearest( final int node, final double[] q, final IntPredicate accept, final double[] best, final int[] bestRow )
+	{
+		if ( node < 0 )
+			return;
+
+		final int dim = splitDim[ node ];
+		final double diff = q[ dim ] - coords[ dim ][ node ];
+		final int near = diff < 0 ? left[ node ] : right[ node ];
+		final int far = diff < 0 ? right[ node ] : left[ node ];
+
+		nearest( near, q, accept, best, bestRow );
+
+		if ( !removed[ node ] )
+		{
+			final double dist = squaredDistance( q, node );
+			if ( dist < best[ 0 ] && ( accept == null || accept.test( rowOfNode[ node ] ) ) )
+			{
+				best[ 0 ] = dist;
+				bestRow[ 0 ] = rowOfNode[ node ];
+			}
+		}
+
+		if ( diff * diff < best[ 0 ] )
+			nearest( far, q, accept, best, bestRow );
+	}
+
+	private void kNearest( final int node, final double[] q, final int k, final int[] heapRows, final double[] heapDists, final int[] heapSize )
+	{
+		if ( node < 0 )
+			return;
+
+		final int dim = splitDim[ node ];
+		final double diff = q[ dim ] - coords[ dim ][ node ];
+		final int near = diff < 0 ? left[ node ] : right[ node ];
+		final int far = diff < 0 ? right[ node ] : left[ node ];
+
+		kNearest( near, q, k, heapRows, heapDists, heapSize );
+
+		if ( !removed[ node ] )
+		{
+			final double dist = squaredDistance( q, node );
+			if ( heapSize[ 0 ] < k )
+			{
+				// sift up
+				int i = heapSize[ 0 ]++;
+				while ( i > 0 && heapDists[ ( i - 1 ) / 2 ] < dist )
+				{
+					heapRows[ i ] = heapRows[ ( i - 1 ) / 2 ];
+					heapDists[ i ] = heapDists[ ( i - 1 ) / 2 ];
+					i = ( i - 1 ) / 2;
+				}
+				heapRows[ i ] = rowOfNode[ node ];
+				heapDists[ i ] = dist;
+			}
+			else if ( dist < heapDists[ 0 ] )
+			{
+				heapRows[ 0 ] = rowOfNode[ node ];
+				heapDists[ 0 ] = dist;
+				siftDown( heapRows, heapDists, k, 0 );
+			}
+		}
+
+		if ( heapSize[ 0 ] < k || diff * diff < heapDists[ 0 ] )
+			kNearest( far, q, k, heapRows, heapDists, heapSize );
+	}
+
+	private static void siftDown( final int[] heapRows, final double[] heapDists, final int size, int i )
+	{
+		final int row = heapRows[ i ];
+		final double dist = heapDists[ i ];
+		while ( 2 * i + 1 < size )
+		{
+			int child = 2 * i + 1;
+			if ( child + 1 < size && heapDists[ child + 1 ] > heapDists[ child ] )
+				child++;
+
+			if ( heapDists[ child ] <= dist )
+				break;
+
+			heapRows[ i ] = heapRows[ child ];
+			heapDists[ i ] = heapDists[ child ];
+			i = child;
+		}
+		heapRows[ i ] = row;
+		heapDists[ i ] = dist;
+	}
+
+	private void withinRadius( final int node, final double[] q, final double r2, final IntList rows, final DoubleList dists )
+	{
+		if ( node < 0 )
+			return;
+
+		final int dim = splitDim[ node ];
+		final double diff = q[ dim ] - coords[ dim ][ node ];
+
+		if ( !removed[ node ] )
+		{
+			final double dist = squaredDistance( q, node );
+			if ( dist <= r2 )
+			{
+				rows.add( rowOfNode[ node ] );
+				dists.add( dist );
+			}
+		}
+
+		if ( diff < 0 || diff * diff <= r2 )
+			withinRadius( left[ node ], q, r2, rows, dists );
+
+		if ( diff >= 0 || diff * diff <= r2 )
+			withinRadius( right[ node ], q, r2, rows, dists );
+	}
+
+	private double squaredDistance( final double[] q, final int node )
+	{
+		double dist = 0;
+		for ( int d = 0; d < nd; d++ )
+		{
+			final double diff = q[ d ] - coords[ d ][ node ];
+			dist += diff * diff;
+		}
+		return dist;
+	}
+
+	private boolean isFinite( final double[] pt )
+	{
+		for ( int d = 0; d < nd; d++ )
+			if ( Double.isNaN( pt[ d ] ) || Double.isInfinite( pt[ d ] ) )
+				return false;
+
+		return true;
+	}
+
+	private void allocateNodes( final int capacity )
+	{
+		coords = new double[ nd ][ capacity ];
+		rowOfNode = new int[ capacity ];
+		left = new int[ capacity ];
+		right = new int[ capacity ];
+		splitDim = new int[ capacity ];
+		removed = new boolean[ capacity ];
+		numNodes = 0;
+		numRemoved = 0;
+		root = -1;
+		maxDepth = 0;
+	}
+
+	private int addNode( final int row, final double[] pt )
+	{
+		if ( numNodes == rowOfNode.length )
+		{
+			final int capacity = 2 * rowOfNode.length;
+			for ( int d = 0; d < nd; d++ )
+				coords[ d ] = Arrays.copyOf( coords[ d ], capacity );
+
+			rowOfNode = Arrays.copyOf( rowOfNode, capacity );
+			left = Arrays.copyOf( left, capacity );
+			right = Arrays.copyOf( right, capacity );
+			splitDim = Arrays.copyOf( splitDim, capacity );
+			removed = Arrays.copyOf( removed, capacity );
+		}
+
+		final int node = numNodes++;
+		for ( int d = 0; d < nd; d++ )
+			coords[ d ][ node ] = pt[ d ];
+
+		rowOfNode[ node ] = row;
+		left[ node ] = -1;
+		right[ node ] = -1;
+		removed[ node ] = false;
+		return node;
+	}
+
+	/*
+	 * adds an existing node as a leaf
+	 */
+	private void insertNode( final int node )
+	{
+		if ( root < 0 )
+		{
+			root = node;
+			splitDim[ node ] = 0;
+			maxDepth = 1;
+			return;
+		}
+
+		int parent = root;
+		int depth = 2;
+		while ( true )
+		{
+			final int dim = splitDim[ parent ];
+			if ( coords[ dim ][ node ] < coords[ dim ][ parent ] )
+			{
+				if ( left[ parent ] < 0 )
+				{
+					left[ parent ] = node;
+					break;
+				}
+				parent = left[ parent ];
+			}
+			else
+			{
+				if ( right[ parent ] < 0 )
+				{
+					right[ parent ] = node;
+					break;
+				}
+				parent = right[ parent ];
+			}
+			depth++;
+		}
+		splitDim[ node ] = ( splitDim[ parent ] + 1 ) % nd;
+		maxDepth = Math.max( maxDepth, depth );
+
+		// rebuild if the tree is much deeper than a balanced one
+		final int size = size();
+		if ( size > 32 && maxDepth > 4 * ( 32 - Integer.numberOfLeadingZeros( size ) ) )
+			rebuild();
+	}
+
+	/*
+	 * builds a balanced tree from the nodes that are not removed
+	 */
+	private void rebuild()
+	{
+		final int n = size();
+		final double[][] oldCoords = coords;
+		final int[] oldRows = rowOfNode;
+		final boolean[] oldRemoved = removed;
+		final int oldNumNodes = numNodes;
+
+		allocateNodes( Math.max( 16, 2 * n ) );
+		Arrays.fill( nodeOfRow, 0, numRows, -1 );
+
+		final double[] p = new double[ nd ];
+		for ( int i = 0; i < oldNumNodes; i++ )
+		{
+			if ( oldRemoved[ i ] )
+				continue;
+
+			for ( int d = 0; d < nd; d++ )
+				p[ d ] = oldCoords[ d ][ i ];
+
+			nodeOfRow[ oldRows[ i ] ] = addNode( oldRows[ i ], p );
+		}
+
+		final int[] perm = new int[ numNodes ];
+		for ( int i = 0; i < numNodes; i++ )
+			perm[ i ] = i;
+
+		root = build( perm, 0, numNodes, 0, 1 );
+	}
+
+	private int build( final int[] perm, final int from, final int to, final int dim, final int depth )
+	{
+		if ( from >= to )
+			return -1;
+
+		final int mid = ( from + to ) >>> 1;
+		select( perm, from, to - 1, mid, dim );
+
+		final int node = perm[ mid ];
+		splitDim[ node ] = dim;
+		maxDepth = Math.max( maxDepth, depth );
+
+		final int next = ( dim + 1 ) % nd;
+		left[ node ] = build( perm, from, mid, next, depth + 1 );
+		right[ node ] = build( perm, mid + 1, to, next, depth + 1 );
+		return node;
+	}
+
+	/*
+	 * quickselect, so that perm[ k ] has the k-th smallest coordinate along
+	 * dim within [lo, hi], smaller values before it and larger or equal
+	 * values after it.
+	 */
+	private void select( final int[] perm, int lo, int hi, final int k, final int dim )
+	{
+		final double[] c = coords[ dim ];
+		while ( hi > lo )
+		{
+			final int pivotIndex = ( lo + hi ) >>> 1;
+			final double pivot = c[ perm[ pivotIndex ] ];
+			swap( perm, pivotIndex, hi );
+			int store = lo;
+			for ( int i = lo; i < hi; i++ )
+				if ( c[ perm[ i ] ] < pivot )
+					swap( perm, i, store++ );
+
+			swap( perm, store, hi );
+
+			if ( store == k )
+				return;
+			else if ( k < store )
+				hi = store - 1;
+			else
+				lo = store + 1;
+		}
+	}
+
+	private static void swap( final int[] a, final int i, final int j )
+	{
+		final int tmp = a[ i ];
+		a[ i ] = a[ j ];
+		a[ j ] = tmp;
+	}
+
+	private static class IntList
+	{
+		int[] data = new int[ 16 ];
+		int size = 0;
+
+		void add( final int v )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+
+			data[ size++ ] = v;
+		}
+	}
+
+	private static class DoubleList
+	{
+		double[] data = new double[ 16 ];
+		int size = 0;
+
+		void add( final double v )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+
+			data[ size++ ] = v;
+		}
+	}
+}
@@ -0,0 +1,496 @@
+package bigwarp.landmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A growable column of points, stored dimension-major in primitive arrays.
+ * <p>
+ * Points that are not set have infinite coordinates, like the points of a
+ * {@link LandmarkTableModel} row that was not clicked yet.
+ * <p>
+ * {@link #data()} gives direct access to the coordinates in the
+ * [ numDimensions ][ numPoints ] layout that thin plate spline and mpicbg
+ * model fitting expect, without boxing or copying.
+ * <p>
+ * {@link #asList()} gives the points as boxed arrays, like the lists of
+ * earlier versions. Until {@link #releaseList()} is called, the store keeps
+ * those arrays, and edits of their elements change the points.
+ */
+public class LandmarkPointStore
+{
+	private final int nd;
+
+	private double[][] coords;
+
+	private int size;
+
+	/*
+	 * the boxed points handed out by asList, null unless it was called since
+	 * the last releaseList. They take precedence over the coordinate arrays,
+	 * which are updated from them before they are handed out.
+	 */
+	private BoxedList boxed;
+
+	public LandmarkPointStore( final int nd )
+	{
+		this( nd, 16 );
+	}
+
+	public LandmarkPointStore( final int nd, final int capacity )
+	{
+		this.nd = nd;
+		coords = new double[ nd ][ Math.max( capacity, 1 ) ];
+		size = 0;
+	}
+
+	/**
+	 * Wraps existing coordinate arrays, without copying.
+	 *
+	 * @param coords the coordinates, [ numDimensions ][ capacity ]
+	 * @param size the number of points
+	 */
+	public LandmarkPointStore( final double[][] coords, final int size )
+	{
+		this.nd = coords.length;
+		this.coords = coords;
+		this.size = size;
+	}
+
+	public int numDimensions()
+	{
+		return nd;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Makes sure that capacity points can be stored without reallocating.
+	 *
+	 * @param capacity the capacity
+	 */
+	public void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= coords[ 0 ].length )
+			return;
+
+		final int newCapacity = Math.max( capacity, 2 * coords[ 0 ].length );
+		for ( int d = 0; d < nd; d++ )
+			coords[ d ] = Arrays.copyOf( coords[ d ], newCapacity );
+	}
+
+	/**
+	 * Reduces the capacity to the number of points.
+	 */
+	public void trimToSize()
+	{
+		if ( coords[ 0 ].length == size || size == 0 )
+			return;
+
+		for ( int d = 0; d < nd; d++ )
+			coords[ d ] = Arrays.copyOf( coords[ d ], size );
+	}
+
+	/**
+	 * Inserts an unset point at the given index, shifting the points after it.
+	 *
+	 * @param index the index
+	 */
+	public void insert( final int index )
+	{
+		ensureCapacity( size + 1 );
+		for ( int d = 0; d < nd; d++ )
+		{
+			System.arraycopy( coords[ d ], index, coords[ d ], index + 1, size - index );
+			coords[ d ][ index ] = Double.POSITIVE_INFINITY;
+		}
+		size++;
+
+		if ( boxed != null )
+			boxed.insertPoint( index, box( index ) );
+	}
+
+	/**
+	 * Appends a point.
+	 *
+	 * @param pt the point
+	 */
+	public void add( final double[] pt )
+	{
+		ensureCapacity( size + 1 );
+		size++;
+		if ( boxed != null )
+			boxed.insertPoint( size - 1, new Double[ nd ] );
+
+		set( size - 1, pt );
+	}
+
+	/**
+	 * Appends all points of another store.
+	 *
+	 * @param other the other store, must have the same number of dimensions
+	 */
+	public void addAll( final LandmarkPointStore other )
+	{
+		final double[][] src = other.data();
+		ensureCapacity( size + other.size );
+		for ( int d = 0; d < nd; d++ )
+			System.arraycopy( src[ d ], 0, coords[ d ], size, other.size );
+
+		if ( boxed != null )
+			for ( int i = size; i < size + other.size; i++ )
+				boxed.insertPoint( i, box( i ) );
+
+		size += other.size;
+	}
+
+	/**
+	 * Removes the point at the given index, shifting the points after it.
+	 *
+	 * @param index the index
+	 */
+	public void remove( final int index )
+	{
+		for ( int d = 0; d < nd; d++ )
+			System.arraycopy( coords[ d ], index + 1, coords[ d ], index, size - index - 1 );
+
+		size--;
+		if ( boxed != null )
+			boxed.removePoint( index );
+	}
+
+	public void clear()
+	{
+		size = 0;
+		if ( boxed != null )
+			boxed.removePoints();
+	}
+
+	public double get( final int index, final int d )
+	{
+		if ( boxed != null )
+			return boxed.get( index )[ d ];
+
+		return coords[ d ][ index ];
+	}
+
+	/**
+	 * @param index the index
+	 * @param pt the first {@link #numDimensions()} coordinates are set to the point
+	 */
+	public void get( final int index, final double[] pt )
+	{
+		for ( int d = 0; d < nd; d++ )
+			pt[ d ] = get( index, d );
+	}
+
+	/**
+	 * @param index the index
+	 * @return a copy of the point
+	 */
+	public double[] get( final int index )
+	{
+		final double[] pt = new double[ nd ];
+		get( index, pt );
+		return pt;
+	}
+
+	/**
+	 * @param index the index
+	 * @return a boxed copy of the point
+	 */
+	public Double[] getBoxed( final int index )
+	{
+		final Double[] pt = new Double[ nd ];
+		for ( int d = 0; d < nd; d++ )
+			pt[ d ] = get( index, d );
+
+		return pt;
+	}
+
+	public void set( final int index, final int d, final double value )
+	{
+		coords[ d ][ index ] = value;
+		if ( boxed != null )
+			boxed.get( index )[ d ] = value;
+	}
+
+	/**
+	 * @param index the index
+	 * @param pt the point, only the first {@link #numDimensions()} coordinates are used
+	 */
+	public void set( final int index, final double[] pt )
+	{
+		for ( int d = 0; d < nd; d++ )
+			set( index, d, pt[ d ] );
+	}
+
+	/**
+	 * @param index the index
+	 * @param pt the point, only the first {@link #numDimensions()} coordinates are used
+	 */
+	public void set( final int index, final Double[] pt )
+	{
+		for ( int d = 0; d < nd; d++ )
+			set( index, d, pt[ d ] );
+	}
+
+	/**
+	 * Marks the point at the given index as not set.
+	 *
+	 * @param index the index
+	 */
+	public void unset( final int index )
+	{
+		for ( int d = 0; d < nd; d++ )
+			set( index, d, Double.POSITIVE_INFINITY );
+	}
+
+	/**
+	 * @param index the index
+	 * @return true if the point at the index is set
+	 */
+	public boolean isSet( final int index )
+	{
+		return !Double.isInfinite( get( index, 0 ) );
+	}
+
+	/**
+	 * Returns the coordinate arrays of this store, [ numDimensions ][ capacity ].
+	 * Only the first {@link #size()} entries of every array are valid. The
+	 * arrays are replaced when the store grows, and are overwritten by edits.
+	 *
+	 * @return the coordinate arrays
+	 */
+	public double[][] data()
+	{
+		if ( boxed != null )
+			for ( int i = 0; i < size; i++ )
+			{
+				final Double[] pt = boxed.get( i );
+				for ( int d = 0; d < nd; d++ )
+					coords[ d ][ i ] = pt[ d ];
+			}
+
+		return coords;
+	}
+
+	/**
+	 * Returns a copy of the selected points, [ numDimensions ][ count ], that
+	 * may be used on other threads while this store changes.
+	 *
+	 * @param rows the selected points
+	 * @param count the number of selected points
+	 * @return the selected points
+	 */
+	public double[][] copy( final BitSet rows, final int count )
+	{
+		final double[][] out = new double[ nd ][ count ];
+		copyTo( rows, out );
+		return out;
+	}
+
+	/**
+	 * Copies the selected points into a [ numDimensions ][ count ] array.
+	 *
+	 * @param rows the selected points
+	 * @param dest the destination
+	 */
+	public void copyTo( final BitSet rows, final double[][] dest )
+	{
+		final double[][] coords = data();
+		int k = 0;
+		for ( int i = rows.nextSetBit( 0 ); i >= 0 && i < size; i = rows.nextSetBit( i + 1 ) )
+		{
+			for ( int d = 0; d < nd; d++ )
+				dest[ d ][ k ] = coords[ d ][ i ];
+
+			k++;
+		}
+	}
+
+	/**
+	 * Returns a list view of this store. The elements of the list are the
+	 * boxed points held by this store, so modifying them changes the points,
+	 * and {@link List#set(int, Object)} replaces a point. The list can not
+	 * grow or shrink.
+	 * <p>
+	 * While a list view exists, the store reads its points from the boxed
+	 * arrays. Call {@link #releaseList()} when done editing through it.
+	 *
+	 * @return the list view
+	 */
+	public ArrayList< Double[] > asList()
+	{
+		if ( boxed == null )
+		{
+			boxed = new BoxedList( Math.max( size, 16 ) );
+			for ( int i = 0; i < size; i++ )
+				boxed.insertPoint( i, box( i ) );
+		}
+
+		return boxed;
+	}
+
+	/**
+	 * Stops using the boxed points of the list returned by {@link #asList()},
+	 * keeping their values. Edits through that list do not change this store
+	 * afterwards, a new list view can be obtained with {@link #asList()}.
+	 */
+	public void releaseList()
+	{
+		if ( boxed == null )
+			return;
+
+		data();
+		boxed = null;
+	}
+
+	private Double[] box( final int index )
+	{
+		final Double[] pt = new Double[ nd ];
+		for ( int d = 0; d < nd; d++ )
+			pt[ d ] = coords[ d ][ index ];
+
+		return pt;
+	}
+
+	/**
+	 * Inserts a clear bit into a bit set, shifting the bits at and after the
+	 * index up by one.
+	 *
+	 * @param bits the bit set
+	 * @param index the index
+	 */
+	public static void insertBit( final BitSet bits, final int index )
+	{
+		final int length = bits.length();
+		if ( index >= length )
+			return;
+
+		final BitSet tail = bits.get( index, length );
+		bits.clear( index, length );
+		for ( int i = tail.nextSetBit( 0 ); i >= 0; i = tail.nextSetBit( i + 1 ) )
+			bits.set( index + 1 + i );
+	}
+
+	/**
+	 * Removes a bit from a bit set, shifting the bits after the index down by
+	 * one.
+	 *
+	 * @param bits the bit set
+	 * @param index the index
+	 */
+	public static void removeBit( final BitSet bits, final int index )
+	{
+		final int length = bits.length();
+		if ( index >= length )
+			return;
+
+		final BitSet tail = bits.get( index + 1, length );
+		bits.clear( index, length );
+		for ( int i = tail.nextSetBit( 0 ); i >= 0; i = tail.nextSetBit( i + 1 ) )
+			bits.set( index + i );
+	}
+
+	/*
+	 * The list view, which only this store may grow or shrink.
+	 */
+	private static class BoxedList extends ArrayList< Double[] >
+	{
+		private static final long serialVersionUID = 1L;
+
+		BoxedList( final int capacity )
+		{
+			super( capacity );
+		}
+
+		void insertPoint( final int index, final Double[] pt )
+		{
+			super.add( index, pt );
+		}
+
+		void removePoint( final int index )
+		{
+			super.remove( index );
+		}
+
+		void removePoints()
+		{
+			super.clear();
+		}
+
+		@Override
+		public boolean add( final Double[] pt )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void add( final int index, final Double[] pt )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean addAll( final Collection< ? extends Double[] > c )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean addAll( final int index, final Collection< ? extends Double[] > c )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Double[] remove( final int index )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean remove( final Object o )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeAll( final Collection< ? > c )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean retainAll( final Collection< ? > c )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeIf( final Predicate< ? super Double[] > filter )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void removeRange( final int fromIndex, final int toIndex )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void clear()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
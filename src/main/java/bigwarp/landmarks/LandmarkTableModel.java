@@ -5,14 +5,12 @@ package bigwarp.landmarks;
 
 import java.awt.Color;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.BitSet;
 
+import javax.swing.SwingUtilities;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.AbstractTableModel;
@@ -26,10 +24,11 @@ import bigwarp.landmarks.actions.AddPointEdit;
 import bigwarp.landmarks.actions.DeleteRowEdit;
 import bigwarp.landmarks.actions.LandmarkUndoManager;
 import bigwarp.landmarks.actions.ModifyPointEdit;
+import bigwarp.metrics.Histogram;
+import bigwarp.metrics.Metrics;
+import bigwarp.metrics.Timer;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.RealLocalizable;
-import com.opencsv.CSVReader;
-import com.opencsv.CSVWriter;
 
 import bdv.gui.BigWarpMessageAnimator;
 
@@ -40,6 +39,10 @@ import bdv.gui.BigWarpMessageAnimator;
 public class LandmarkTableModel extends AbstractTableModel {
 
 	private static final long serialVersionUID = -5865789085410559166L;
+
+	private static final Timer SOLVE_TIME = Metrics.timer( "landmarks.solve.time" );
+
+	private static final Histogram SOLVE_LANDMARKS = Metrics.histogram( "landmarks.solve.landmarks" );
 	
 	private final double[] PENDING_PT;
 
@@ -60,29 +63,42 @@ public class LandmarkTableModel extends AbstractTableModel {
 	protected int nextRowQ = 0;
 	
 	protected ArrayList<String> 	names;
-	protected ArrayList<Boolean>	activeList;
-	protected ArrayList<Double[]>	movingPts;
-	protected ArrayList<Double[]>	targetPts;
+	protected BitSet				activeList;
+	protected LandmarkPointStore	movingPts;
+	protected LandmarkPointStore	targetPts;
 
 	protected boolean pointUpdatePending = false; //
 	protected boolean pointUpdatePendingMoving = false; //
 	protected Double[] pointToOverride;	// hold a backup of a point for fallback
 	
 	// keeps track of whether points have been updated
-	protected ArrayList<Boolean> doesPointHaveAndNeedWarp;
+	protected BitSet doesPointHaveAndNeedWarp;
 	protected ArrayList<Integer> indicesOfChangedPoints;
 	protected boolean			 elementDeleted = false;
-	protected ArrayList<Boolean> needsInverse;
+	protected BitSet needsInverse;
 	
 	// true for a row if, after the transform is updated,
 	// the warped point has a higher error than the specified tolerance
-	protected ArrayList<Boolean> movingDisplayPointUnreliable;
+	protected BitSet movingDisplayPointUnreliable;
 
 	// the transformation 
 	protected ThinPlateR2LogRSplineKernelTransform estimatedXfm;
+
+	/*
+	 * inverts estimatedXfm, replaced when it or the inverse settings change
+	 */
+	private BatchInverseSolver inverseSolver;
+
+	// keeps the factorized tps system between estimates
+	protected IncrementalThinPlateSplineSolver solver;
 	
 	// keeps track of warped points so we don't always have to do it on the fly
-	protected ArrayList<Double[]> warpedPoints;
+	protected LandmarkPointStore warpedPoints;
+
+	// spatial indexes for nearest neighbor queries of the moving, target, and warped points
+	protected LandmarkIndex movingIndex;
+	protected LandmarkIndex targetIndex;
+	protected LandmarkIndex warpedIndex;
 
 
 	// inverse iterations
@@ -91,6 +107,9 @@ public class LandmarkTableModel extends AbstractTableModel {
 	// inverse threshold
 	protected double inverseThreshold = 0.5;
 
+	// threads used to compute warped points in bulk
+	protected int inverseThreads = Runtime.getRuntime().availableProcessors();
+
 	// keep track of the value of the last point that was edited but not-undoable
 	// this lets us both render points correctly, and create desirable undo behavior
 	// for point drags.
@@ -128,10 +147,10 @@ public class LandmarkTableModel extends AbstractTableModel {
 		lastPoint = PENDING_PT;
 		
 		names = new ArrayList<String>();
-		activeList = new ArrayList<Boolean>();
+		activeList = new BitSet();
 		
-		movingPts = new ArrayList<Double[]>();
-		targetPts = new ArrayList<Double[]>();
+		movingPts = new LandmarkPointStore( ndims );
+		targetPts = new LandmarkPointStore( ndims );
 
 		pointToOverride = new Double[ ndims ];
 		Arrays.fill( pointToOverride, Double.POSITIVE_INFINITY );
@@ -143,17 +162,22 @@ public class LandmarkTableModel extends AbstractTableModel {
 			columnNames = columnNames3d;
 		}
 		
-		warpedPoints = new ArrayList<Double[]>();
-		doesPointHaveAndNeedWarp = new ArrayList<Boolean>();
-		movingDisplayPointUnreliable = new ArrayList<Boolean>();
+		warpedPoints = new LandmarkPointStore( ndims );
+		doesPointHaveAndNeedWarp = new BitSet();
+		movingDisplayPointUnreliable = new BitSet();
 		indicesOfChangedPoints  = new ArrayList<Integer>();
-		needsInverse = new ArrayList<Boolean>();
+		needsInverse = new BitSet();
 		
 		setTableListener();
 		
 		undoRedoManager = new LandmarkUndoManager();
 
 		estimatedXfm = new ThinPlateR2LogRSplineKernelTransform ( ndims );
+		solver = new IncrementalThinPlateSplineSolver( ndims );
+
+		movingIndex = new LandmarkIndex( ndims );
+		targetIndex = new LandmarkIndex( ndims );
+		warpedIndex = new LandmarkIndex( ndims );
 	}
 
 	public void setMessage( final BigWarpMessageAnimator message )
@@ -183,8 +207,8 @@ public class LandmarkTableModel extends AbstractTableModel {
 			System.out.println("");
 			for( int d = 0; d < ndims; d++ )
 			{
-				System.out.print( " " + (movingPts.get( i )[ ndims + d ].doubleValue() - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
-				System.out.print( " " + (targetPts.get( i )[ ndims + d ].doubleValue() - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
+				System.out.print( " " + (movingPts.get( i, d ) - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
+				System.out.print( " " + (targetPts.get( i, d ) - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
 			}
 		}
 	}
@@ -212,7 +236,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 		{
 			for( int d = 0; d < ndims; d++ )
 			{
-				if ( targetPts.get( i )[ d ].doubleValue() != estimatedXfm.getSourceLandmarks()[ d ][ i ] )
+				if ( targetPts.get( i, d ) != estimatedXfm.getSourceLandmarks()[ d ][ i ] )
 				{
 					System.out.println("Wrong for pt: " + i );
 					return false;
@@ -263,7 +287,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 	
 	public void restorePendingUpdate( )
 	{
-		ArrayList< Double[] > pts;
+		LandmarkPointStore pts;
 		
 		int i = 0;
 		if( pointUpdatePendingMoving )
@@ -277,8 +301,8 @@ public class LandmarkTableModel extends AbstractTableModel {
 			pts = movingPts;
 		}
 		
-		for( int d = 0; d < ndims; d++ )
-			pts.get( i )[ d ] = pointToOverride[ d ];
+		pts.set( i, pointToOverride );
+		movingIndex.set( i, pts.get( i ) );
 		
 		activeList.set( i, true );
 		pointUpdatePending = false;
@@ -300,13 +324,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 
 	public int getActiveRowCount()
 	{
-		//TODO consider keeping track of this actively instead of recomputing
-		int N = 0;
-		for( Boolean b : activeList )
-			if( b ) 
-				N++;
-
-		return N;
+		return activeList.cardinality();
 	}
 
 	@Override 
@@ -314,7 +332,27 @@ public class LandmarkTableModel extends AbstractTableModel {
 		return columnNames[col];
 	}
 	
+	/**
+	 * Returns a list view of the moving or target points. Modifying the
+	 * elements changes the points, call {@link #rebuildSpatialIndexes()}
+	 * afterwards, which ends the view. Edits through
+	 * {@link #getPointStore(boolean)} avoid boxing.
+	 *
+	 * @param moving the moving points if true, the target points otherwise
+	 * @return the points
+	 */
 	public ArrayList<Double[]> getPoints( boolean moving ) {
+		return getPointStore( moving ).asList();
+	}
+
+	/**
+	 * Returns the moving or target points. Call {@link #rebuildSpatialIndexes()}
+	 * after modifying them directly.
+	 *
+	 * @param moving the moving points if true, the target points otherwise
+	 * @return the points
+	 */
+	public LandmarkPointStore getPointStore( boolean moving ) {
 		if( moving )
 			return movingPts;
 		else 
@@ -395,15 +433,20 @@ public class LandmarkTableModel extends AbstractTableModel {
 		names.remove( i );
 		movingPts.remove( i );
 		targetPts.remove( i );
-		activeList.remove( i );
+		LandmarkPointStore.removeBit( activeList, i );
 		
 		
 		if( indicesOfChangedPoints.contains( i ))
 			indicesOfChangedPoints.remove( indicesOfChangedPoints.indexOf( i ) );
 		
-		doesPointHaveAndNeedWarp.remove( i );
-		movingDisplayPointUnreliable.remove( i );
+		LandmarkPointStore.removeBit( doesPointHaveAndNeedWarp, i );
+		LandmarkPointStore.removeBit( movingDisplayPointUnreliable, i );
+		LandmarkPointStore.removeBit( needsInverse, i );
 		warpedPoints.remove( i );
+
+		movingIndex.removeRow( i );
+		targetIndex.removeRow( i );
+		warpedIndex.removeRow( i );
 		
 		numRows--;
 
@@ -425,8 +468,8 @@ public class LandmarkTableModel extends AbstractTableModel {
 	public boolean isRowUnpaired( final int i )
 	{
 		for( int d = 0; d < ndims; d++ )
-			if( Double.isInfinite( movingPts.get( i )[ d ] ) || 
-				Double.isInfinite( targetPts.get( i )[ d ] ))
+			if( Double.isInfinite( movingPts.get( i, d ) ) || 
+				Double.isInfinite( targetPts.get( i, d ) ))
 					return true;
 
 		return false;
@@ -463,7 +506,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 		for ( int i = lastAddedIndex; i < numRows; i++ )
 		{
 			// moving image
-			if ( Double.isInfinite( movingPts.get( i )[ 0 ] ) )
+			if ( !movingPts.isSet( i ) )
 			{
 				pointUpdatePendingMoving = true;
 
@@ -474,7 +517,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 			}
 
 			// target image
-			if ( Double.isInfinite( targetPts.get( i )[ 0 ] ) )
+			if ( !targetPts.isSet( i ) )
 			{
 				pointUpdatePendingMoving = true;
 
@@ -518,16 +561,16 @@ public class LandmarkTableModel extends AbstractTableModel {
 		if( pt == null )
 			return;
 
-		for ( int d = 0; d < ndims; d++ )
-			warpedPoints.get( i )[ d ] = pt[ d ];
+		warpedPoints.set( i, pt );
 
 		doesPointHaveAndNeedWarp.set( i, true );
+		warpedIndex.set( i, pt );
 	}
 	
 	public void printWarpedPoints()
 	{
 		String s = "";
-		int N = doesPointHaveAndNeedWarp.size();
+		int N = numRows;
 		for( int i = 0; i < N; i++ )
 		{
 			if( doesPointHaveAndNeedWarp.get( i ))
@@ -535,7 +578,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 //				String s = "" + i + " : ";
 				s += String.format("%04d : ", i);
 				for ( int d = 0; d < ndims; d++ )
-					s += String.format("%f\t", warpedPoints.get( i )[ d ] );
+					s += String.format("%f\t", warpedPoints.get( i, d ) );
 				
 				s+="\n";
 			}
@@ -543,12 +586,28 @@ public class LandmarkTableModel extends AbstractTableModel {
 		System.out.println( s );
 	}
 
+	/**
+	 * Returns a list view of the warped points. Modifying the elements changes
+	 * the points, until {@link #rebuildSpatialIndexes()} ends the view. They
+	 * are only meaningful for rows that are {@link #isWarped(int) warped}.
+	 *
+	 * @return the warped points
+	 */
 	public ArrayList< Double[] > getWarpedPoints()
+	{
+		return warpedPoints.asList();
+	}
+
+	/**
+	 * @return the warped points, only meaningful for rows that are
+	 *         {@link #isWarped(int) warped}
+	 */
+	public LandmarkPointStore getWarpedPointStore()
 	{
 		return warpedPoints;
 	}
 	
-	public ArrayList<Boolean> getChangedSinceWarp()
+	public BitSet getChangedSinceWarp()
 	{
 		return doesPointHaveAndNeedWarp;
 	}
@@ -556,17 +615,20 @@ public class LandmarkTableModel extends AbstractTableModel {
 	public void resetWarpedPoint( int i )
 	{
 		if ( activeList.get( i ) )
+		{
 			doesPointHaveAndNeedWarp.set( i, false );
+			warpedIndex.clear( i );
+		}
 	}
 
 	public void resetWarpedPoints()
 	{
-		for ( int i = 0; i < doesPointHaveAndNeedWarp.size(); i++ )
+		for ( int i = 0; i < numRows; i++ )
 			resetWarpedPoint( i );
 	}
 
 	public void resetNeedsInverse(){
-		Collections.fill( needsInverse, false );
+		needsInverse.clear();
 	}
 	
 	public void setNeedsInverse( int i )
@@ -587,20 +649,19 @@ public class LandmarkTableModel extends AbstractTableModel {
 
 	private void addEmptyRow( int index )
 	{
-		Double[] movingPt = new Double[ ndims ];
-		Double[] targetPt = new Double[ ndims ];
-		
-		Arrays.fill( targetPt, new Double( Double.POSITIVE_INFINITY ) );
-		Arrays.fill( movingPt, new Double( Double.POSITIVE_INFINITY ) );
-		
-		movingPts.add( index, movingPt );
-		targetPts.add( index, targetPt );
+		movingPts.insert( index );
+		targetPts.insert( index );
 		
 		names.add( index, nextName( index ));
-		activeList.add( index, false );
-		warpedPoints.add( index, new Double[ ndims ] );
-		doesPointHaveAndNeedWarp.add( index, false );
-		movingDisplayPointUnreliable.add( index, false );
+		LandmarkPointStore.insertBit( activeList, index );
+		warpedPoints.insert( index );
+		LandmarkPointStore.insertBit( doesPointHaveAndNeedWarp, index );
+		LandmarkPointStore.insertBit( movingDisplayPointUnreliable, index );
+		LandmarkPointStore.insertBit( needsInverse, index );
+
+		movingIndex.insertRow( index );
+		targetIndex.insertRow( index );
+		warpedIndex.insertRow( index );
 		
 		fireTableRowsInserted( index, index );
 		
@@ -681,28 +742,15 @@ public class LandmarkTableModel extends AbstractTableModel {
 			}
 			else
 			{
-				if ( isMoving )
-					oldpt = toPrimitive( movingPts.get( index ) );
-				else
-					oldpt = toPrimitive( targetPts.get( index ) );
+				oldpt = getPointStore( isMoving ).get( index );
 			}
 		}
 		
-		ArrayList< Double[] > pts;
-		
 		/********************
 		 * Update the point *
 		 ********************/
-		if( isMoving )
-			pts = movingPts;
-		else
-			pts = targetPts;
-		
-		Double[] exPts = new Double[ ndims ];
-		for( int i = 0; i < ndims; i++ ){
-			exPts[ i ] = pt[ i ];
-		}
-		pts.set( index, exPts );
+		getPointStore( isMoving ).set( index, pt );
+		getSpatialIndex( isMoving ).set( index, pt );
 		
 		/************************************************
 		 * Determine if we have to update warped points *
@@ -751,10 +799,7 @@ public class LandmarkTableModel extends AbstractTableModel {
 
 	public void setLastPoint( int i, boolean isMoving )
 	{
-		if( isMoving )
-			lastPoint = toPrimitive( movingPts.get( i ) );
-		else
-			lastPoint = toPrimitive( targetPts.get( i ) );
+		lastPoint = getPointStore( isMoving ).get( i );
 	}
 
 	public void resetLastPoint()
@@ -765,14 +810,93 @@ public class LandmarkTableModel extends AbstractTableModel {
 	/**
 	 * Looks through the table for points where there is a point in moving space but not fixed space.
 	 * For any such landmarks that are found, compute the inverse transform and add the result to the fixed points line.
-	 * 
+	 * <p>
+	 * The inverses are solved together in parallel with a {@link BatchInverseSolver},
+	 * without holding the lock on this model, so this should be called off the
+	 * event dispatch thread. Rows that are edited while the batch is solved
+	 * are left to {@link #computeWarpedPoint(int)}.
 	 */
 	public void updateAllWarpedPoints()
 	{
-		for ( int i = 0; i < numRows; i++ )
-			if ( !isFixedPoint( i ) && isMovingPoint( i ) )
-				computeWarpedPoint( i );
+		final ThinPlateR2LogRSplineKernelTransform xfm;
+		final BatchInverseSolver inverse;
+		final int[] rows;
+		final double[][] tgts;
+		synchronized ( this )
+		{
+			xfm = estimatedXfm;
+			if ( xfm.getNumLandmarks() <= 0 )
+				return;
+
+			inverse = inverseSolver();
+
+			int n = 0;
+			final int[] candidates = new int[ numRows ];
+			for ( int i = 0; i < numRows; i++ )
+				if ( !isFixedPoint( i ) && isMovingPoint( i ) )
+					candidates[ n++ ] = i;
 
+			if ( n == 0 )
+				return;
+
+			rows = Arrays.copyOf( candidates, n );
+			tgts = new double[ n ][];
+			for ( int k = 0; k < n; k++ )
+				tgts[ k ] = movingPts.get( rows[ k ] );
+		}
+
+		final BatchInverseSolver.Result result = inverse.solve( tgts );
+
+		int numUnreliable = 0;
+		String unreliableName = null;
+		int firstRow = -1;
+		int lastRow = -1;
+		synchronized ( this )
+		{
+			for ( int k = 0; k < rows.length; k++ )
+			{
+				final int i = rows[ k ];
+
+				// skip rows that changed while solving
+				if ( estimatedXfm != xfm || i >= numRows || isFixedPoint( i ) || !isMovingPoint( i )
+						|| !Arrays.equals( movingPts.get( i ), tgts[ k ] ) )
+					continue;
+
+				final boolean unreliable = !result.converged.get( k );
+				movingDisplayPointUnreliable.set( i, unreliable );
+				if ( unreliable )
+				{
+					numUnreliable++;
+					unreliableName = names.get( i );
+				}
+				updateWarpedPoint( i, result.points[ k ] );
+				if ( firstRow < 0 )
+					firstRow = i;
+				lastRow = i;
+			}
+		}
+
+		if ( numUnreliable > 0 && message != null )
+		{
+			if ( numUnreliable == 1 )
+				message.showMessage( String.format(
+					"Warning: location of moving point %s in warped space is innacurate", unreliableName ) );
+			else
+				message.showMessage( String.format(
+					"Warning: locations of %d moving points in warped space are innacurate", numUnreliable ) );
+		}
+
+		// rows are repainted for their warning color
+		if ( firstRow >= 0 )
+		{
+			final int first = firstRow;
+			final int last = lastRow;
+			SwingUtilities.invokeLater( () -> {
+				final int end = Math.min( last, getRowCount() - 1 );
+				if ( first <= end )
+					fireTableRowsUpdated( first, end );
+			} );
+		}
 	}
 
 	/**
@@ -793,55 +917,138 @@ public class LandmarkTableModel extends AbstractTableModel {
 	 */
 	public synchronized void computeWarpedPoint( int i )
 	{
-		// TODO Perhaps move this into its own thread. and expose the parameters for solving the inverse.
 		if ( !isFixedPoint( i ) && isMovingPoint( i ) && estimatedXfm.getNumLandmarks() > 0 )
 		{
-			double[] tgt = toPrimitive( movingPts.get( i ) );
+			double[] tgt = movingPts.get( i );
 
 			double[] warpedPt = new double[ ndims ];
-			double error = estimatedXfm.inverse( tgt, warpedPt, inverseThreshold, maxInverseIterations );
+			double error = inverseSolver().solve( tgt, warpedPt );
 
 			if( error > inverseThreshold )
 			{
 				movingDisplayPointUnreliable.set( i, true );
-				message.showMessage( String.format(
-					"Warning: location of moving point %s in warped space is innacurate", names.get( i )));
+				if( message != null )
+					message.showMessage( String.format(
+						"Warning: location of moving point %s in warped space is innacurate", names.get( i )));
 			}
 			else
 				movingDisplayPointUnreliable.set( i, false );
 
-			// TODO should check for failure or non-convergence here
-			// can use the error returned by the inverse method to do this. 
-			// BUT - it's not clear what to do upon failure 
 			updateWarpedPoint( i, warpedPt );
 		}
 	}
 
-	public void setMaxInverseIterations( final int maxIters )
+	/**
+	 * Returns the solver for the inverse of the current transformation,
+	 * reused until the transformation is estimated again. Must hold the lock.
+	 *
+	 * @return the solver
+	 */
+	private BatchInverseSolver inverseSolver()
+	{
+		if ( inverseSolver == null || inverseSolver.getTransform() != estimatedXfm )
+			inverseSolver = new BatchInverseSolver( estimatedXfm )
+					.setTolerance( inverseThreshold )
+					.setMaxIters( maxInverseIterations )
+					.setNumThreads( inverseThreads );
+
+		return inverseSolver;
+	}
+
+	/**
+	 * Sets the number of threads used by {@link #updateAllWarpedPoints()}.
+	 *
+	 * @param numThreads the number of threads
+	 */
+	public synchronized void setInverseThreads( final int numThreads )
+	{
+		inverseThreads = Math.max( 1, numThreads );
+		inverseSolver = null;
+	}
+
+	public synchronized void setMaxInverseIterations( final int maxIters )
 	{
 		maxInverseIterations = maxIters;
+		inverseSolver = null;
 	}
 
-	public void setInverseThreshold( final double inverseThreshold )
+	public synchronized void setInverseThreshold( final double inverseThreshold )
 	{
 		this.inverseThreshold = inverseThreshold;
+		inverseSolver = null;
 	}
+	/**
+	 * Returns the row whose moving or target point is nearest to the given point.
+	 *
+	 * @param pt the point
+	 * @param isMoving query the moving points if true, the target points otherwise
+	 * @return the index of the nearest row, or -1 if no points are set
+	 */
 	public int getIndexNearestTo( double[] pt, boolean isMoving )
 	{
-		Double[] p;
-		double minDist = Double.MAX_VALUE;
-		int minIndex = -1;
-		for( int i = 0; i < numRows; i++ )
-		{
-			p = getPoint( isMoving, i );
-			double thisdist = squaredDistance( p, pt );
-			if( thisdist < minDist )
-			{
-				minDist = thisdist;
-				minIndex = i;
-			}
-		}
-		return minIndex;
+		return getSpatialIndex( isMoving ).nearest( pt );
+	}
+
+	/**
+	 * Returns the rows whose moving or target points are the k nearest to the
+	 * given point.
+	 *
+	 * @param pt the point
+	 * @param k the number of rows
+	 * @param isMoving query the moving points if true, the target points otherwise
+	 * @return the row indexes, nearest first
+	 */
+	public int[] getIndicesNearestTo( double[] pt, int k, boolean isMoving )
+	{
+		return getSpatialIndex( isMoving ).kNearest( pt, k );
+	}
+
+	/**
+	 * Returns the rows whose moving or target points are within a radius of
+	 * the given point.
+	 *
+	 * @param pt the point
+	 * @param radius the radius
+	 * @param isMoving query the moving points if true, the target points otherwise
+	 * @return the row indexes, nearest first
+	 */
+	public int[] getIndicesWithinRadius( double[] pt, double radius, boolean isMoving )
+	{
+		return getSpatialIndex( isMoving ).withinRadius( pt, radius );
+	}
+
+	/**
+	 * @param isMoving the moving index if true, the target index otherwise
+	 * @return the spatial index of the moving or target points
+	 */
+	public LandmarkIndex getSpatialIndex( boolean isMoving )
+	{
+		return isMoving ? movingIndex : targetIndex;
+	}
+
+	/**
+	 * @return the spatial index of the warped points, only rows that are
+	 *         {@link #isWarped(int) warped} are indexed
+	 */
+	public LandmarkIndex getWarpedSpatialIndex()
+	{
+		return warpedIndex;
+	}
+
+	/**
+	 * Rebuilds the spatial indexes from the point lists. Call this after
+	 * modifying the lists returned by {@link #getPoints(boolean)} or
+	 * {@link #getWarpedPoints()} directly. Edits of those lists have no effect
+	 * afterwards, so that the points are kept unboxed again.
+	 */
+	public synchronized void rebuildSpatialIndexes()
+	{
+		movingPts.releaseList();
+		targetPts.releaseList();
+		warpedPoints.releaseList();
+		movingIndex.reset( movingPts, null );
+		targetIndex.reset( targetPts, null );
+		warpedIndex.reset( warpedPoints, doesPointHaveAndNeedWarp );
 	}
 
 	public double squaredDistance( Double[] p, double[] q )
@@ -856,20 +1063,9 @@ public class LandmarkTableModel extends AbstractTableModel {
 
 	public int getIndexNearestTo( RealLocalizable pt, boolean isMoving )
 	{
-		Double[] p;
-		double minDist = Double.MAX_VALUE;
-		int minIndex = -1;
-		for( int i = 0; i < numRows; i++ )
-		{
-			p = getPoint( isMoving, i );
-			double thisdist = squaredDistance( p, pt );
-			if( thisdist < minDist )
-			{
-				minDist = thisdist;
-				minIndex = i;
-			}
-		}
-		return minIndex;
+		double[] p = new double[ Math.max( ndims, pt.numDimensions() ) ];
+		pt.localize( p );
+		return getIndexNearestTo( p, isMoving );
 	}
 
 	public double squaredDistance( Double[] p, RealLocalizable q )
@@ -884,30 +1080,27 @@ public class LandmarkTableModel extends AbstractTableModel {
 
 	public Double[] getPoint( boolean isMoving, int index )
 	{
-		if ( isMoving )
-			return movingPts.get( index );
-		else
-			return targetPts.get( index );
+		return getPointStore( isMoving ).getBoxed( index );
 	}
 
 	public Double[] getMovingPoint( int index )
 	{
-		return movingPts.get( index );
+		return movingPts.getBoxed( index );
 	}
 
 	public Double[] getFixedPoint( int index )
 	{
-		return targetPts.get( index );
+		return targetPts.getBoxed( index );
 	}
 
 	public boolean isMovingPoint( int index )
 	{
-		return !Double.isInfinite( movingPts.get( index )[ 0 ] );
+		return movingPts.isSet( index );
 	}
 
 	public boolean isFixedPoint( int index )
 	{
-		return !Double.isInfinite( targetPts.get( index )[ 0 ] );
+		return targetPts.isSet( index );
 	}
 
 	public boolean isFixedPoint( int index, boolean isMoving )
@@ -1013,103 +1206,131 @@ public class LandmarkTableModel extends AbstractTableModel {
 	}
 	
 	/**
-	 * Loads this table from a file
+	 * Loads this table from a csv file, or a binary file written by
+	 * {@link #saveBinary(File)}
 	 * @param f the file
 	 * @param invert invert the moving and target point sets
 	 * @throws IOException an exception
 	 */
 	public void load( File f, boolean invert ) throws IOException
 	{
-		clear();
+		if( LandmarkBinary.isBinary( f ) )
+			setLandmarks( LandmarkBinary.read( f ), invert );
+		else
+			setLandmarks( LandmarkCsv.read( f ), invert );
+	}
 
-		CSVReader reader = new CSVReader( new FileReader( f.getAbsolutePath() ));
-		List<String[]> rows = reader.readAll();
-		reader.close();
+	/**
+	 * Replaces the contents of this table.
+	 *
+	 * @param landmarks the new contents, are used by this table and must
+	 *            not be modified afterwards
+	 * @param invert invert the moving and target point sets
+	 */
+	public void setLandmarks( Landmarks landmarks, boolean invert )
+	{
+		int ndims = landmarks.ndims;
+		int n = landmarks.size();
 
-		int ndims = 3;
-		int expectedRowLength = 8;
-		int numRowsTmp = 0;
-		
-		for( String[] row : rows )
+		synchronized( this )
 		{
-			// detect a file with 2d landmarks
-			if( numRowsTmp == 0 && // only check for the first row
-					row.length == 6 )
+			if ( this.ndims != ndims )
 			{
-				ndims = 2;
-				expectedRowLength = 6;
+				solver = new IncrementalThinPlateSplineSolver( ndims );
+				movingIndex = new LandmarkIndex( ndims );
+				targetIndex = new LandmarkIndex( ndims );
+				warpedIndex = new LandmarkIndex( ndims );
 			}
-			
-			if( row.length != expectedRowLength  )
-				throw new IOException( "Invalid file - not enough columns" );
-			
-			names.add( row[ 0 ] );
-			activeList.add( Boolean.parseBoolean( row[ 1 ]) );
-			
-			Double[] movingPt = new Double[ ndims ];
-			Double[] targetPt = new Double[ ndims ];
-			
-			int k = 2;
-			for( int d = 0; d < ndims; d++ )
-				movingPt[ d ] = Double.parseDouble( row[ k++ ]);
-			
-			for( int d = 0; d < ndims; d++ )
-				targetPt[ d ] = Double.parseDouble( row[ k++ ]);
-			
+			this.ndims = ndims;
+
+			names = landmarks.names;
+			activeList = landmarks.active;
 			if( invert )
 			{
-				movingPts.add( targetPt );
-				targetPts.add( movingPt );
+				// warped points are in the space of the old target points
+				movingPts = landmarks.targetPts;
+				targetPts = landmarks.movingPts;
+				warpedPoints = new LandmarkPointStore( ndims, n );
+				for( int i = 0; i < n; i++ )
+					warpedPoints.insert( i );
+
+				doesPointHaveAndNeedWarp = new BitSet();
 			}
 			else
 			{
-				movingPts.add( movingPt );
-				targetPts.add( targetPt );
+				movingPts = landmarks.movingPts;
+				targetPts = landmarks.targetPts;
+				warpedPoints = landmarks.warpedPts;
+				doesPointHaveAndNeedWarp = landmarks.warped;
 			}
-			
-			
-			warpedPoints.add( new Double[ ndims ] );
-			doesPointHaveAndNeedWarp.add( false );
-			movingDisplayPointUnreliable.add( false );
-			numRowsTmp++;
-			fireTableRowsInserted( numRows, numRows );
+
+			movingDisplayPointUnreliable.clear();
+			needsInverse.clear();
+			indicesOfChangedPoints.clear();
+			undoRedoManager.discardAllEdits();
+			lastPoint = PENDING_PT;
+
+			numRows = n;
+			rebuildSpatialIndexes();
+			pointUpdatePending = isUpdatePending();
 		}
 
-		this.ndims = ndims;
-		numRows = numRowsTmp;
+		fireTableDataChanged();
 		updateNextRows( 0 );
 		initTransformation();
 	}
 
+	/**
+	 * Returns the contents of this table. The columns are shared with this
+	 * table, not copied.
+	 *
+	 * @return the landmarks
+	 */
+	public Landmarks getLandmarks()
+	{
+		return new Landmarks( ndims, names, activeList, movingPts, targetPts, warpedPoints, doesPointHaveAndNeedWarp );
+	}
+
 	public int numActive()
 	{
-		int numActive = 0;
-		for ( int i = 0; i < this.numRows; i++ )
-		{
-			if ( activeList.get( i ) )
-				numActive++;
-		}
-		return numActive;
+		return activeList.cardinality();
 	}
 
 	public void copyLandmarks( double[][] movingLandmarks, double[][] targetLandmarks )
 	{
-		int k = 0;
-		for ( int i = 0; i < this.numRows; i++ )
-		{
-			if ( activeList.get( i ) )
-			{
-				for ( int d = 0; d < ndims; d++ )
-				{
-					movingLandmarks[ d ][ k ] = movingPts.get( i )[ d ];
-					targetLandmarks[ d ][ k ] = targetPts.get( i )[ d ];
-				}
-				k++;
-			}
-		}
+		movingPts.copyTo( activeList, movingLandmarks );
+		targetPts.copyTo( activeList, targetLandmarks );
+	}
+
+	/**
+	 * Returns a copy of the moving or target points of the active rows, in the
+	 * [ ndims ][ numActive ] layout used for model fitting, that may be used on
+	 * other threads while the table changes.
+	 *
+	 * @param isMoving the moving points if true, the target points otherwise
+	 * @return the active points
+	 */
+	public synchronized double[][] getActivePoints( boolean isMoving )
+	{
+		return getPointStore( isMoving ).copy( activeList, numActive() );
 	}
 
 	public void initTransformation()
+	{
+		estimatedXfm = estimateTransformation();
+	}
+
+	/**
+	 * Estimates a transformation from the active landmarks without replacing
+	 * the one returned by {@link #getTransform()}.
+	 * <p>
+	 * Successive calls share an {@link IncrementalThinPlateSplineSolver}, so
+	 * when only a few landmarks changed since the last estimate (e.g. while
+	 * dragging a point) this is much cheaper than a full solve.
+	 *
+	 * @return the transformation from target to moving space
+	 */
+	public ThinPlateR2LogRSplineKernelTransform estimateTransformation()
 	{
 		int numActive = numActive();
 		// TODO: better to pass a factory here so the transformation can be any
@@ -1120,7 +1341,14 @@ public class LandmarkTableModel extends AbstractTableModel {
 		copyLandmarks( mvgPts, tgtPts );
 
 		// need to find the "inverse TPS" so exchange moving and tgt
-		estimatedXfm = new ThinPlateR2LogRSplineKernelTransform( ndims, tgtPts, mvgPts );
+		final long start = Metrics.ENABLED ? System.nanoTime() : 0;
+		final ThinPlateR2LogRSplineKernelTransform xfm = solver.solve( tgtPts, mvgPts );
+		if ( Metrics.ENABLED )
+		{
+			SOLVE_TIME.updateSince( start );
+			SOLVE_LANDMARKS.update( numActive );
+		}
+		return xfm;
 	}
 	
 	/**
@@ -1130,33 +1358,19 @@ public class LandmarkTableModel extends AbstractTableModel {
 	 */
 	public void save( File f ) throws IOException
 	{
-		CSVWriter csvWriter = new CSVWriter(new FileWriter( f.getAbsoluteFile() ),','); 
-		int N = names.size();
-		List<String[]> rows = new ArrayList<String[]>( N );
-		
-		int rowLength = 2 * ndims + 2;
-		for( int i = 0; i < N; i++ )
-		{
-			String[] row = new String[ rowLength ];
-			row[ 0 ] = names.get( i );
-			row[ 1 ] = activeList.get( i ).toString();
-			
-			int k = 2;
-			int j = 0;
-			while( j < ndims )
-				row[ k++ ] = movingPts.get( i )[ j++ ].toString();
-			
-			j = 0;
-			while( j < ndims )
-				row[ k++ ] = targetPts.get( i )[ j++ ].toString();
-			
-			
-			rows.add( row );
-			
-		}
-		csvWriter.writeAll( rows );
-		csvWriter.close();
-		
+		LandmarkCsv.write( f, names, activeList, movingPts, targetPts, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Saves the table to a file in the binary format of {@link LandmarkBinary},
+	 * which {@link #load(File)} reads much faster than csv.
+	 *
+	 * @param f the file
+	 * @throws IOException an exception
+	 */
+	public void saveBinary( File f ) throws IOException
+	{
+		LandmarkBinary.write( f, getLandmarks() );
 	}
 	
 	public static String print( Double[] d )
@@ -1195,13 +1409,13 @@ public class LandmarkTableModel extends AbstractTableModel {
         }
         else if( col < 2 + ndims )
         {
-        	Double[] thesePts = movingPts.get(row);
-        	thesePts[ col - 2 ] = ((Double)value).doubleValue();
+        	movingPts.set( row, col - 2, ((Double)value).doubleValue() );
+        	movingIndex.set( row, movingPts.get( row ) );
         }
         else
         {
-        	Double[] thesePts = targetPts.get(row);
-        	thesePts[ col - ndims - 2 ] = ((Double)value).doubleValue();
+        	targetPts.set( row, col - ndims - 2, ((Double)value).doubleValue() );
+        	targetIndex.set( row, targetPts.get( row ) );
         }
 
         fireTableCellUpdated(row, col);
@@ -1217,9 +1431,9 @@ public class LandmarkTableModel extends AbstractTableModel {
 		else if ( columnIndex == ACTIVECOLUMN )
 			return activeList.get( rowIndex );
 		else if( columnIndex < 2 + ndims )
-			return new Double( movingPts.get( rowIndex )[ columnIndex - 2 ] );
+			return new Double( movingPts.get( rowIndex, columnIndex - 2 ) );
 		else 
-			return new Double( targetPts.get( rowIndex )[ columnIndex - ndims - 2 ] );
+			return new Double( targetPts.get( rowIndex, columnIndex - ndims - 2 ) );
 	}
 
 	/**
@@ -1245,17 +1459,10 @@ public class LandmarkTableModel extends AbstractTableModel {
 		double[] tmp = new double[ ndims ];
 		for ( int i = 0; i < N; i++ )
 		{
-			Double[] thisMoving = movingPts.get( i );
-			Double[] thisTarget = targetPts.get( i );
-
-			for ( int d = 0; d < ndims; d++ )
-				tmp[ d ] = thisMoving[ d ];
-
+			movingPts.get( i, tmp );
 			inv.add( tmp, false );
 
-			for ( int d = 0; d < ndims; d++ )
-				tmp[ d ] = thisTarget[ d ];
-
+			targetPts.get( i, tmp );
 			inv.setPoint( i, true, tmp );
 		}
 
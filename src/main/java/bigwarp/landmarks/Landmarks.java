@@ -0,0 +1,78 @@
+package bigwarp.landmarks;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * The columns of a landmark table, as read from or written to a file.
+ *
+ * @see LandmarkCsv
+ * @see LandmarkBinary
+ */
+public class Landmarks
+{
+	public final int ndims;
+
+	public final ArrayList< String > names;
+
+	public final BitSet active;
+
+	public final LandmarkPointStore movingPts;
+
+	public final LandmarkPointStore targetPts;
+
+	/**
+	 * The warped points, only meaningful for the rows in {@link #warped}.
+	 */
+	public final LandmarkPointStore warpedPts;
+
+	/**
+	 * The rows that have a warped point.
+	 */
+	public final BitSet warped;
+
+	public Landmarks( final int ndims, final int capacity )
+	{
+		this( ndims, new ArrayList<>( capacity ), new BitSet(),
+				new LandmarkPointStore( ndims, capacity ), new LandmarkPointStore( ndims, capacity ),
+				new LandmarkPointStore( ndims, capacity ), new BitSet() );
+	}
+
+	public Landmarks( final int ndims, final ArrayList< String > names, final BitSet active,
+			final LandmarkPointStore movingPts, final LandmarkPointStore targetPts,
+			final LandmarkPointStore warpedPts, final BitSet warped )
+	{
+		this.ndims = ndims;
+		this.names = names;
+		this.active = active;
+		this.movingPts = movingPts;
+		this.targetPts = targetPts;
+		this.warpedPts = warpedPts;
+		this.warped = warped;
+	}
+
+	public int size()
+	{
+		return names.size();
+	}
+
+	/**
+	 * Appends the rows of another table.
+	 *
+	 * @param other the other table, must have the same number of dimensions
+	 */
+	public void addAll( final Landmarks other )
+	{
+		final int offset = size();
+		names.addAll( other.names );
+		for ( int i = other.active.nextSetBit( 0 ); i >= 0; i = other.active.nextSetBit( i + 1 ) )
+			active.set( offset + i );
+
+		for ( int i = other.warped.nextSetBit( 0 ); i >= 0; i = other.warped.nextSetBit( i + 1 ) )
+			warped.set( offset + i );
+
+		movingPts.addAll( other.movingPts );
+		targetPts.addAll( other.targetPts );
+		warpedPts.addAll( other.warpedPts );
+	}
+}
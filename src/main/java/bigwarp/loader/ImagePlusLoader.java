@@ -50,6 +50,23 @@ import net.imglib2.type.numeric.ARGBType;
  */
 public class ImagePlusLoader implements Loader
 {
+	/**
+	 * Whether images are loaded as lazily computed multiresolution pyramids by
+	 * default, set with the system property bigwarp.mipmaps. Pyramids of
+	 * virtual stacks are loaded asynchronously through a
+	 * {@link VirtualStackPlaneCache}.
+	 */
+	public static final boolean DEFAULT_MIPMAPS = Boolean.getBoolean( "bigwarp.mipmaps" );
+
+	/**
+	 * Whether virtual stacks are loaded asynchronously through a
+	 * {@link VirtualStackPlaneCache} by default, so the viewers do not wait
+	 * for disk reads. True unless the system property
+	 * bigwarp.virtualStackCache is false, which loads them synchronously as
+	 * before.
+	 */
+	public static final boolean DEFAULT_VIRTUAL_STACK_CACHE = Boolean.parseBoolean( System.getProperty( "bigwarp.virtualStackCache", "true" ) );
+
 	final private ImagePlus[] impList;
 	final private int numChannels;
 	private int index; // keep track of the setupIds given to each source
@@ -57,6 +74,10 @@ public class ImagePlusLoader implements Loader
 	private boolean is3d;
 	private boolean isMultiChannel;
 
+	private boolean mipmaps = DEFAULT_MIPMAPS;
+
+	private boolean virtualStackCache = DEFAULT_VIRTUAL_STACK_CACHE;
+
 	private HashMap< Integer, SetupSettings > settingsMap;
 
 	public ImagePlusLoader( final ImagePlus imp )
@@ -90,6 +111,41 @@ public class ImagePlusLoader implements Loader
 		return isMultiChannel;
 	}
 
+	public boolean isMipmaps()
+	{
+		return mipmaps;
+	}
+
+	/**
+	 * Load images as multiresolution pyramids, whose coarse levels are
+	 * computed and cached block by block as they are viewed. Must be called
+	 * before {@link #load()}.
+	 *
+	 * @param mipmaps whether to load pyramids
+	 * @see ImagePlusPyramidImageLoader
+	 */
+	public void setMipmaps( final boolean mipmaps )
+	{
+		this.mipmaps = mipmaps;
+	}
+
+	public boolean isVirtualStackCache()
+	{
+		return virtualStackCache;
+	}
+
+	/**
+	 * Load virtual stacks asynchronously, reading and caching planes on
+	 * background threads. Must be called before {@link #load()}.
+	 *
+	 * @param virtualStackCache whether to load virtual stacks asynchronously
+	 * @see VirtualStackPlaneCache
+	 */
+	public void setVirtualStackCache( final boolean virtualStackCache )
+	{
+		this.virtualStackCache = virtualStackCache;
+	}
+
 	public HashMap< Integer, SetupSettings > getSetupSettings()
 	{
 		return settingsMap;
@@ -147,7 +203,14 @@ public class ImagePlusLoader implements Loader
 
 		// create ImgLoader wrapping the image
 		final BasicImgLoader imgLoader;
-		if ( imp.getStack().isVirtual() )
+		if ( mipmaps && ImagePlusPyramidImageLoader.isSupported( imp.getType() ) )
+			imgLoader = ImagePlusPyramidImageLoader.create( imp, setupIdOffset );
+		else if ( imp.getStack().isVirtual() && virtualStackCache && ImagePlusPyramidImageLoader.isSupported( imp.getType() ) )
+		{
+			// volatile blocks and cached planes, so the viewers do not wait for disk reads
+			imgLoader = ImagePlusPyramidImageLoader.create( imp, setupIdOffset, 1 );
+		}
+		else if ( imp.getStack().isVirtual() )
 		{
 			switch ( imp.getType() )
 			{
@@ -0,0 +1,636 @@
+package bigwarp.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.cache.CacheControl;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.img.cache.VolatileGlobalCellCache;
+import ij.ImagePlus;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.AbstractVolatileArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Exposes the channels of an {@link ImagePlus} as multiresolution sources, so
+ * that zoomed out views sample coarse levels instead of the full resolution
+ * stack.
+ * <p>
+ * Nothing is computed up front. The full resolution level is read from the
+ * stack block by block, and every coarser level is computed on demand by
+ * averaging the blocks of the level before it. Blocks of all levels are held
+ * in a {@link VolatileGlobalCellCache}, which keeps them softly referenced, so
+ * the cache is bounded by the available memory, and loads the blocks of the
+ * volatile images on background fetcher threads.
+ * <p>
+ * Levels halve the size of the image in the dimensions where its voxels are
+ * smallest, until the image fits in one block, like the pyramids proposed for
+ * HDF5 export.
+ * <p>
+ * Planes of virtual stacks are read through a {@link VirtualStackPlaneCache},
+ * so blocks that share a plane decode it once, and the planes of the blocks
+ * next to a block in z are prefetched when it is loaded. With a single level
+ * this makes virtual stacks load asynchronously without building a pyramid.
+ *
+ * @param <T> the pixel type
+ * @param <V> the volatile pixel type
+ * @param <A> the volatile array type
+ */
+public abstract class ImagePlusPyramidImageLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends AbstractVolatileArray< A > & VolatileAccess >
+		implements ViewerImgLoader, TypedBasicImgLoader< T >
+{
+	public static final int[] DEFAULT_BLOCK_SIZE = new int[] { 64, 64, 16 };
+
+	public static final int DEFAULT_NUM_FETCHER_THREADS = 2;
+
+	public static final int MAX_NUM_LEVELS = 16;
+
+	protected final ImagePlus imp;
+
+	protected final int setupOffset;
+
+	protected final int[] blockSize;
+
+	/**
+	 * The dimensions of every level.
+	 */
+	protected final long[][] dimensions;
+
+	/**
+	 * The downsampling factors of every level relative to the full
+	 * resolution.
+	 */
+	protected final int[][] factors;
+
+	protected final AffineTransform3D[] mipmapTransforms;
+
+	protected final VolatileGlobalCellCache cache;
+
+	/**
+	 * The planes of a virtual stack, null otherwise.
+	 */
+	protected final VirtualStackPlaneCache planeCache;
+
+	private final PyramidArrayLoader loader = new PyramidArrayLoader();
+
+	private final ArrayList< SetupImgLoader > setupImgLoaders;
+
+	/**
+	 * Creates a loader for the type of the image.
+	 *
+	 * @param imp the image
+	 * @param setupOffset the setup id of the first channel
+	 * @return the loader
+	 */
+	public static ImagePlusPyramidImageLoader< ?, ?, ? > create( final ImagePlus imp, final int setupOffset )
+	{
+		return create( imp, setupOffset, MAX_NUM_LEVELS );
+	}
+
+	/**
+	 * Creates a loader for the type of the image.
+	 *
+	 * @param imp the image
+	 * @param setupOffset the setup id of the first channel
+	 * @param maxNumLevels the maximum number of levels, 1 for no pyramid
+	 * @return the loader
+	 */
+	public static ImagePlusPyramidImageLoader< ?, ?, ? > create( final ImagePlus imp, final int setupOffset, final int maxNumLevels )
+	{
+		return create( imp, setupOffset, DEFAULT_BLOCK_SIZE, DEFAULT_NUM_FETCHER_THREADS, maxNumLevels );
+	}
+
+	/**
+	 * Creates a loader for the type of the image.
+	 *
+	 * @param imp the image
+	 * @param setupOffset the setup id of the first channel
+	 * @param blockSize the block size
+	 * @param numFetcherThreads the number of threads loading blocks of the volatile images
+	 * @param maxNumLevels the maximum number of levels, 1 for no pyramid
+	 * @return the loader
+	 * @throws IllegalArgumentException if the type of the image is not
+	 *             {@link #isSupported(int) supported}
+	 */
+	public static ImagePlusPyramidImageLoader< ?, ?, ? > create( final ImagePlus imp, final int setupOffset,
+			final int[] blockSize, final int numFetcherThreads, final int maxNumLevels )
+	{
+		switch ( imp.getType() )
+		{
+		case ImagePlus.GRAY8:
+			return new UnsignedByte( imp, setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		case ImagePlus.GRAY16:
+			return new UnsignedShort( imp, setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		case ImagePlus.GRAY32:
+			return new Float( imp, setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		case ImagePlus.COLOR_RGB:
+			return new ARGB( imp, setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		default:
+			throw new IllegalArgumentException( "Unsupported image type " + imp.getType() + " of " + imp.getTitle()
+					+ ", convert 8-bit color images to RGB first" );
+		}
+	}
+
+	/**
+	 * @param type the type of an {@link ImagePlus}
+	 * @return true if loaders can be created for images of the type, 8, 16
+	 *         and 32-bit gray and RGB images
+	 */
+	public static boolean isSupported( final int type )
+	{
+		switch ( type )
+		{
+		case ImagePlus.GRAY8:
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
+		case ImagePlus.COLOR_RGB:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	protected ImagePlusPyramidImageLoader( final ImagePlus imp, final T type, final V volatileType,
+			final int setupOffset, final int[] blockSize, final int numFetcherThreads, final int maxNumLevels )
+	{
+		this.imp = imp;
+		this.setupOffset = setupOffset;
+
+		final long[] size = new long[] { imp.getWidth(), imp.getHeight(), imp.getNSlices() };
+		this.blockSize = new int[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			this.blockSize[ d ] = ( int ) Math.min( size[ d ], blockSize[ Math.min( d, blockSize.length - 1 ) ] );
+
+		final int[][] proposed = proposeFactors( size, new double[] {
+				imp.getCalibration().pixelWidth,
+				imp.getCalibration().pixelHeight,
+				imp.getCalibration().pixelDepth }, this.blockSize );
+		factors = Arrays.copyOf( proposed, Math.max( 1, Math.min( proposed.length, maxNumLevels ) ) );
+
+		final int numLevels = factors.length;
+		dimensions = new long[ numLevels ][ 3 ];
+		mipmapTransforms = new AffineTransform3D[ numLevels ];
+		for ( int level = 0; level < numLevels; level++ )
+		{
+			final AffineTransform3D mipmapTransform = new AffineTransform3D();
+			for ( int d = 0; d < 3; d++ )
+			{
+				dimensions[ level ][ d ] = ( size[ d ] + factors[ level ][ d ] - 1 ) / factors[ level ][ d ];
+				mipmapTransform.set( factors[ level ][ d ], d, d );
+				mipmapTransform.set( 0.5 * ( factors[ level ][ d ] - 1 ), d, 3 );
+			}
+			mipmapTransforms[ level ] = mipmapTransform;
+		}
+
+		cache = new VolatileGlobalCellCache( numLevels, numFetcherThreads );
+		planeCache = imp.getStack().isVirtual() ? new VirtualStackPlaneCache( imp.getStack() ) : null;
+
+		setupImgLoaders = new ArrayList<>();
+		for ( int c = 0; c < imp.getNChannels(); c++ )
+			setupImgLoaders.add( new SetupImgLoader( setupOffset + c, type, volatileType ) );
+	}
+
+	/**
+	 * Proposes the downsampling factors of the levels of a pyramid. Every level
+	 * halves the size in the dimensions where the voxels of the level before
+	 * are less than twice as large as the smallest, and levels are added until
+	 * the image fits in one block.
+	 *
+	 * @param size the size of the image
+	 * @param voxelSize the voxel size
+	 * @param blockSize the block size
+	 * @return the factors of each level [ level ][ dimension ]
+	 */
+	public static int[][] proposeFactors( final long[] size, final double[] voxelSize, final int[] blockSize )
+	{
+		final int n = size.length;
+		final ArrayList< int[] > levels = new ArrayList<>();
+		int[] f = new int[ n ];
+		Arrays.fill( f, 1 );
+		levels.add( f );
+
+		while ( levels.size() < MAX_NUM_LEVELS )
+		{
+			boolean fits = true;
+			double minRes = Double.POSITIVE_INFINITY;
+			for ( int d = 0; d < n; d++ )
+			{
+				final long levelSize = ( size[ d ] + f[ d ] - 1 ) / f[ d ];
+				if ( levelSize > blockSize[ d ] )
+					fits = false;
+
+				if ( levelSize > 1 )
+					minRes = Math.min( minRes, voxelSize[ d ] * f[ d ] );
+			}
+
+			if ( fits )
+				break;
+
+			final int[] next = f.clone();
+			for ( int d = 0; d < n; d++ )
+			{
+				final long levelSize = ( size[ d ] + f[ d ] - 1 ) / f[ d ];
+				if ( levelSize > 1 && voxelSize[ d ] * f[ d ] < 2 * minRes )
+					next[ d ] = 2 * f[ d ];
+			}
+			f = next;
+			levels.add( f );
+		}
+
+		return levels.toArray( new int[ levels.size() ][] );
+	}
+
+	/**
+	 * @return the number of components of a pixel, averaged separately
+	 */
+	protected abstract int numComponents();
+
+	/**
+	 * Adds the components of a pixel to the sums of an output pixel.
+	 *
+	 * @param value the pixel
+	 * @param sums the sums, numComponents() per output pixel
+	 * @param i the index of the output pixel
+	 */
+	protected abstract void accumulate( T value, double[] sums, int i );
+
+	/**
+	 * @param sums the sums, numComponents() per output pixel
+	 * @param counts the number of pixels added to every output pixel
+	 * @return the averages
+	 */
+	protected abstract A average( double[] sums, int[] counts );
+
+	/**
+	 * @param n the number of elements
+	 * @return a valid array
+	 */
+	protected abstract A createArray( int n );
+
+	/**
+	 * Returns the pixels of a plane of the stack.
+	 *
+	 * @param stackIndex the one-based index into the stack
+	 * @return the pixels
+	 * @throws InterruptedException if interrupted while waiting for the plane
+	 */
+	protected Object getPlane( final int stackIndex ) throws InterruptedException
+	{
+		if ( planeCache != null )
+			return planeCache.get( stackIndex );
+		else
+			return imp.getStack().getPixels( stackIndex );
+	}
+
+	/**
+	 * Prefetches the planes of the blocks before and after a block in z.
+	 */
+	private void prefetchNeighbors( final int timepoint, final int channel, final int[] dims, final long[] min )
+	{
+		final int nz = imp.getNSlices();
+		final int z0 = ( int ) min[ 2 ];
+		for ( int i = 0; i < dims[ 2 ]; i++ )
+		{
+			final int after = z0 + dims[ 2 ] + i;
+			final int before = z0 - 1 - i;
+			if ( after < nz )
+				planeCache.prefetch( imp.getStackIndex( channel + 1, after + 1, timepoint + 1 ) );
+			if ( before >= 0 )
+				planeCache.prefetch( imp.getStackIndex( channel + 1, before + 1, timepoint + 1 ) );
+		}
+	}
+
+	public int numMipmapLevels()
+	{
+		return factors.length;
+	}
+
+	@Override
+	public VolatileGlobalCellCache getCacheControl()
+	{
+		return cache;
+	}
+
+	@Override
+	public SetupImgLoader getSetupImgLoader( final int setupId )
+	{
+		return setupImgLoaders.get( setupId - setupOffset );
+	}
+
+	protected < S extends NativeType< S > > VolatileCachedCellImg< S, A > prepareCachedImage(
+			final int timepointId, final int setupId, final int level, final LoadingStrategy loadingStrategy, final S type )
+	{
+		final CacheHints cacheHints = new CacheHints( loadingStrategy, level, false );
+		final CellGrid grid = new CellGrid( dimensions[ level ], blockSize );
+		return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
+	}
+
+	public class SetupImgLoader extends AbstractViewerSetupImgLoader< T, V >
+	{
+		private final int setupId;
+
+		protected SetupImgLoader( final int setupId, final T type, final V volatileType )
+		{
+			super( type, volatileType );
+			this.setupId = setupId;
+		}
+
+		@Override
+		public RandomAccessibleInterval< T > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return prepareCachedImage( timepointId, setupId, level, LoadingStrategy.BLOCKING, type );
+		}
+
+		@Override
+		public RandomAccessibleInterval< V > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return prepareCachedImage( timepointId, setupId, level, LoadingStrategy.BUDGETED, volatileType );
+		}
+
+		@Override
+		public double[][] getMipmapResolutions()
+		{
+			final double[][] resolutions = new double[ factors.length ][ 3 ];
+			for ( int level = 0; level < factors.length; level++ )
+				for ( int d = 0; d < 3; d++ )
+					resolutions[ level ][ d ] = factors[ level ][ d ];
+
+			return resolutions;
+		}
+
+		@Override
+		public AffineTransform3D[] getMipmapTransforms()
+		{
+			return mipmapTransforms;
+		}
+
+		@Override
+		public int numMipmapLevels()
+		{
+			return factors.length;
+		}
+	}
+
+	/**
+	 * Reads blocks of the full resolution level from the stack, and computes
+	 * blocks of the other levels from the level before.
+	 */
+	private class PyramidArrayLoader implements CacheArrayLoader< A >
+	{
+		public int getBytesPerElement()
+		{
+			return imp.getBitDepth() == 24 ? 4 : imp.getBitDepth() / 8;
+		}
+
+		@Override
+		public A loadArray( final int timepoint, final int setup, final int level, final int[] dims, final long[] min ) throws InterruptedException
+		{
+			if ( level == 0 )
+				return read( timepoint, setup - setupOffset, dims, min );
+			else
+				return downsample( timepoint, setup, level, dims, min );
+		}
+
+		private A read( final int timepoint, final int channel, final int[] dims, final long[] min ) throws InterruptedException
+		{
+			final int width = imp.getWidth();
+			final A array = createArray( dims[ 0 ] * dims[ 1 ] * dims[ 2 ] );
+			final Object data = array.getCurrentStorageArray();
+			int offset = 0;
+			for ( int z = 0; z < dims[ 2 ]; z++ )
+			{
+				final Object plane = getPlane( imp.getStackIndex( channel + 1, ( int ) min[ 2 ] + z + 1, timepoint + 1 ) );
+				for ( int y = 0; y < dims[ 1 ]; y++ )
+				{
+					System.arraycopy( plane, ( int ) ( ( min[ 1 ] + y ) * width + min[ 0 ] ), data, offset, dims[ 0 ] );
+					offset += dims[ 0 ];
+				}
+			}
+
+			if ( planeCache != null )
+				prefetchNeighbors( timepoint, channel, dims, min );
+
+			return array;
+		}
+
+		private A downsample( final int timepoint, final int setup, final int level, final int[] dims, final long[] min ) throws InterruptedException
+		{
+			final RandomAccessibleInterval< T > src = getSetupImgLoader( setup ).getImage( timepoint, level - 1 );
+
+			final long[] srcMin = new long[ 3 ];
+			final long[] srcMax = new long[ 3 ];
+			final int[] r = new int[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+			{
+				r[ d ] = factors[ level ][ d ] / factors[ level - 1 ][ d ];
+				srcMin[ d ] = min[ d ] * r[ d ];
+				srcMax[ d ] = Math.min( ( min[ d ] + dims[ d ] ) * r[ d ], src.dimension( d ) ) - 1;
+			}
+
+			final int n = dims[ 0 ] * dims[ 1 ] * dims[ 2 ];
+			final int nc = numComponents();
+			final double[] sums = new double[ n * nc ];
+			final int[] counts = new int[ n ];
+			final Cursor< T > c = Views.flatIterable( Views.interval( src, srcMin, srcMax ) ).localizingCursor();
+			while ( c.hasNext() )
+			{
+				c.fwd();
+				final int x = ( int ) ( c.getLongPosition( 0 ) / r[ 0 ] - min[ 0 ] );
+				final int y = ( int ) ( c.getLongPosition( 1 ) / r[ 1 ] - min[ 1 ] );
+				final int z = ( int ) ( c.getLongPosition( 2 ) / r[ 2 ] - min[ 2 ] );
+				final int i = x + dims[ 0 ] * ( y + dims[ 1 ] * z );
+				accumulate( c.get(), sums, i );
+				counts[ i ]++;
+			}
+
+			if ( Thread.interrupted() )
+				throw new InterruptedException();
+
+			return average( sums, counts );
+		}
+	}
+
+	public static class UnsignedByte extends ImagePlusPyramidImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray >
+	{
+		public UnsignedByte( final ImagePlus imp, final int setupOffset, final int[] blockSize, final int numFetcherThreads, final int maxNumLevels )
+		{
+			super( imp, new UnsignedByteType(), new VolatileUnsignedByteType(), setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		}
+
+		@Override
+		protected int numComponents()
+		{
+			return 1;
+		}
+
+		@Override
+		protected void accumulate( final UnsignedByteType value, final double[] sums, final int i )
+		{
+			sums[ i ] += value.get();
+		}
+
+		@Override
+		protected VolatileByteArray average( final double[] sums, final int[] counts )
+		{
+			final VolatileByteArray array = createArray( counts.length );
+			final byte[] data = array.getCurrentStorageArray();
+			for ( int i = 0; i < counts.length; i++ )
+				data[ i ] = ( byte ) Math.round( sums[ i ] / counts[ i ] );
+
+			return array;
+		}
+
+		@Override
+		protected VolatileByteArray createArray( final int n )
+		{
+			return new VolatileByteArray( n, true );
+		}
+	}
+
+	public static class UnsignedShort extends ImagePlusPyramidImageLoader< UnsignedShortType, VolatileUnsignedShortType, VolatileShortArray >
+	{
+		public UnsignedShort( final ImagePlus imp, final int setupOffset, final int[] blockSize, final int numFetcherThreads, final int maxNumLevels )
+		{
+			super( imp, new UnsignedShortType(), new VolatileUnsignedShortType(), setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		}
+
+		@Override
+		protected int numComponents()
+		{
+			return 1;
+		}
+
+		@Override
+		protected void accumulate( final UnsignedShortType value, final double[] sums, final int i )
+		{
+			sums[ i ] += value.get();
+		}
+
+		@Override
+		protected VolatileShortArray average( final double[] sums, final int[] counts )
+		{
+			final VolatileShortArray array = createArray( counts.length );
+			final short[] data = array.getCurrentStorageArray();
+			for ( int i = 0; i < counts.length; i++ )
+				data[ i ] = ( short ) Math.round( sums[ i ] / counts[ i ] );
+
+			return array;
+		}
+
+		@Override
+		protected VolatileShortArray createArray( final int n )
+		{
+			return new VolatileShortArray( n, true );
+		}
+	}
+
+	public static class Float extends ImagePlusPyramidImageLoader< FloatType, VolatileFloatType, VolatileFloatArray >
+	{
+		public Float( final ImagePlus imp, final int setupOffset, final int[] blockSize, final int numFetcherThreads, final int maxNumLevels )
+		{
+			super( imp, new FloatType(), new VolatileFloatType(), setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		}
+
+		@Override
+		protected int numComponents()
+		{
+			return 1;
+		}
+
+		@Override
+		protected void accumulate( final FloatType value, final double[] sums, final int i )
+		{
+			sums[ i ] += value.get();
+		}
+
+		@Override
+		protected VolatileFloatArray average( final double[] sums, final int[] counts )
+		{
+			final VolatileFloatArray array = createArray( counts.length );
+			final float[] data = array.getCurrentStorageArray();
+			for ( int i = 0; i < counts.length; i++ )
+				data[ i ] = ( float ) ( sums[ i ] / counts[ i ] );
+
+			return array;
+		}
+
+		@Override
+		protected VolatileFloatArray createArray( final int n )
+		{
+			return new VolatileFloatArray( n, true );
+		}
+	}
+
+	public static class ARGB extends ImagePlusPyramidImageLoader< ARGBType, VolatileARGBType, VolatileIntArray >
+	{
+		public ARGB( final ImagePlus imp, final int setupOffset, final int[] blockSize, final int numFetcherThreads, final int maxNumLevels )
+		{
+			super( imp, new ARGBType(), new VolatileARGBType(), setupOffset, blockSize, numFetcherThreads, maxNumLevels );
+		}
+
+		@Override
+		protected int numComponents()
+		{
+			return 4;
+		}
+
+		@Override
+		protected void accumulate( final ARGBType value, final double[] sums, final int i )
+		{
+			final int v = value.get();
+			sums[ 4 * i ] += ARGBType.alpha( v );
+			sums[ 4 * i + 1 ] += ARGBType.red( v );
+			sums[ 4 * i + 2 ] += ARGBType.green( v );
+			sums[ 4 * i + 3 ] += ARGBType.blue( v );
+		}
+
+		@Override
+		protected VolatileIntArray average( final double[] sums, final int[] counts )
+		{
+			final VolatileIntArray array = createArray( counts.length );
+			final int[] data = array.getCurrentStorageArray();
+			for ( int i = 0; i < counts.length; i++ )
+			{
+				final double n = counts[ i ];
+				data[ i ] = ARGBType.rgba(
+						( int ) Math.round( sums[ 4 * i + 1 ] / n ),
+						( int ) Math.round( sums[ 4 * i + 2 ] / n ),
+						( int ) Math.round( sums[ 4 * i + 3 ] / n ),
+						( int ) Math.round( sums[ 4 * i ] / n ) );
+			}
+			return array;
+		}
+
+		@Override
+		protected VolatileIntArray createArray( final int n )
+		{
+			return new VolatileIntArray( n, true );
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package bigwarp.loader;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import ij.ImageStack;
+
+/**
+ * A bounded least recently used cache of the decoded planes of an
+ * {@link ImageStack}, typically a virtual stack whose planes are read from
+ * disk on every access.
+ * <p>
+ * Concurrent requests for a plane that is being read wait for that read
+ * instead of reading it again, and planes can be prefetched before they are
+ * needed, on low priority daemon threads shared by all caches. A request for
+ * a plane whose prefetch is still queued reads it immediately.
+ */
+public class VirtualStackPlaneCache
+{
+	public static final int NUM_PREFETCH_THREADS = 2;
+
+	/**
+	 * The fraction of the maximum heap size planes may occupy by default.
+	 */
+	public static final double DEFAULT_MEMORY_FRACTION = 0.125;
+
+	private static ExecutorService prefetcher;
+
+	private final ImageStack stack;
+
+	private final int maxNumPlanes;
+
+	private final LinkedHashMap< Integer, Object > planes;
+
+	private final HashMap< Integer, FutureTask< Object > > loading;
+
+	/**
+	 * Creates a cache using a fraction {@link #DEFAULT_MEMORY_FRACTION} of the
+	 * heap.
+	 *
+	 * @param stack the stack
+	 */
+	public VirtualStackPlaneCache( final ImageStack stack )
+	{
+		this( stack, defaultNumPlanes( stack ) );
+	}
+
+	/**
+	 * @param stack the stack
+	 * @param maxNumPlanes the maximum number of planes held
+	 */
+	public VirtualStackPlaneCache( final ImageStack stack, final int maxNumPlanes )
+	{
+		this.stack = stack;
+		this.maxNumPlanes = Math.max( 1, maxNumPlanes );
+		planes = new LinkedHashMap< Integer, Object >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, Object > eldest )
+			{
+				return size() > VirtualStackPlaneCache.this.maxNumPlanes;
+			}
+		};
+		loading = new HashMap<>();
+	}
+
+	private static synchronized ExecutorService prefetcher()
+	{
+		if ( prefetcher == null )
+			prefetcher = Executors.newFixedThreadPool( NUM_PREFETCH_THREADS, r -> {
+				final Thread t = new Thread( r, "bigwarp-plane-prefetcher" );
+				t.setDaemon( true );
+				t.setPriority( Thread.MIN_PRIORITY );
+				return t;
+			} );
+
+		return prefetcher;
+	}
+
+	/**
+	 * @param stack the stack
+	 * @return the number of planes of the stack that fit in a fraction
+	 *         {@link #DEFAULT_MEMORY_FRACTION} of the heap
+	 */
+	public static int defaultNumPlanes( final ImageStack stack )
+	{
+		final long bytesPerPlane = ( long ) stack.getWidth() * stack.getHeight() * ( stack.getBitDepth() == 24 ? 4 : stack.getBitDepth() / 8 );
+		final long budget = ( long ) ( DEFAULT_MEMORY_FRACTION * Runtime.getRuntime().maxMemory() );
+		return ( int ) Math.max( 1, Math.min( stack.getSize(), budget / Math.max( 1, bytesPerPlane ) ) );
+	}
+
+	public int getMaxNumPlanes()
+	{
+		return maxNumPlanes;
+	}
+
+	/**
+	 * @return the number of planes held
+	 */
+	public synchronized int size()
+	{
+		return planes.size();
+	}
+
+	/**
+	 * @param index the one-based index of the plane
+	 * @return whether the plane is held
+	 */
+	public synchronized boolean contains( final int index )
+	{
+		return planes.containsKey( index );
+	}
+
+	/**
+	 * Returns the pixels of a plane, reading the plane if it is not held, or
+	 * waiting for it if it is being read.
+	 *
+	 * @param index the one-based index of the plane
+	 * @return the pixels
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Object get( final int index ) throws InterruptedException
+	{
+		final FutureTask< Object > task;
+		synchronized ( this )
+		{
+			final Object pixels = planes.get( index );
+			if ( pixels != null )
+				return pixels;
+
+			final FutureTask< Object > existing = loading.get( index );
+			task = existing == null ? newTask( index ) : existing;
+		}
+
+		// reads the plane here unless another thread started reading it,
+		// including prefetches still waiting in the queue
+		task.run();
+
+		try
+		{
+			return task.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Reads a plane on a background thread, if it is neither held nor being
+	 * read.
+	 *
+	 * @param index the one-based index of the plane
+	 */
+	public void prefetch( final int index )
+	{
+		if ( index < 1 || index > stack.getSize() )
+			return;
+
+		final FutureTask< Object > task;
+		synchronized ( this )
+		{
+			if ( planes.containsKey( index ) || loading.containsKey( index ) )
+				return;
+
+			task = newTask( index );
+		}
+		prefetcher().execute( task );
+	}
+
+	/**
+	 * Drops all held planes.
+	 */
+	public synchronized void clear()
+	{
+		planes.clear();
+	}
+
+	/*
+	 * must hold the lock
+	 */
+	private FutureTask< Object > newTask( final int index )
+	{
+		final FutureTask< Object > task = new FutureTask<>( () -> {
+			try
+			{
+				final Object pixels = stack.getPixels( index );
+				synchronized ( this )
+				{
+					planes.put( index, pixels );
+				}
+				return pixels;
+			}
+			finally
+			{
+				synchronized ( this )
+				{
+					loading.remove( index );
+				}
+			}
+		} );
+		loading.put( index, task );
+		return task;
+	}
+}
@@ -0,0 +1,36 @@
+package bigwarp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events. Increments from many threads do not contend.
+ */
+public class Counter implements CounterMBean
+{
+	private final LongAdder count = new LongAdder();
+
+	private final long startNanos = System.nanoTime();
+
+	public void inc()
+	{
+		count.increment();
+	}
+
+	public void add( final long n )
+	{
+		count.add( n );
+	}
+
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	@Override
+	public double getMeanRate()
+	{
+		final double seconds = ( System.nanoTime() - startNanos ) * 1e-9;
+		return seconds > 0 ? getCount() / seconds : 0;
+	}
+}
@@ -0,0 +1,15 @@
+package bigwarp.metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ */
+public interface CounterMBean
+{
+	long getCount();
+
+	/**
+	 * @return the mean number of events per second since the counter was
+	 *         created
+	 */
+	double getMeanRate();
+}
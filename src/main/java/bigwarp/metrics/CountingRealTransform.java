@@ -0,0 +1,54 @@
+package bigwarp.metrics;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Counts the evaluations of a transform. Only wrap transforms when
+ * {@link Metrics#ENABLED}.
+ */
+public class CountingRealTransform implements RealTransform
+{
+	private final RealTransform transform;
+
+	private final Counter evaluations;
+
+	public CountingRealTransform( final RealTransform transform, final Counter evaluations )
+	{
+		this.transform = transform;
+		this.evaluations = evaluations;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return transform.numSourceDimensions();
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return transform.numTargetDimensions();
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		evaluations.inc();
+		transform.apply( source, target );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		evaluations.inc();
+		transform.apply( source, target );
+	}
+
+	@Override
+	public RealTransform copy()
+	{
+		return new CountingRealTransform( transform.copy(), evaluations );
+	}
+}
@@ -0,0 +1,128 @@
+package bigwarp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The distribution of non-negative long values since creation.
+ * <p>
+ * Values are counted in buckets of powers of two, so percentiles are
+ * accurate to within a factor of two, while recording a value is a few
+ * atomic additions with no allocation.
+ */
+public class Histogram implements HistogramMBean
+{
+	private static final int NUM_BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray( NUM_BUCKETS );
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final LongAccumulator min = new LongAccumulator( Math::min, Long.MAX_VALUE );
+
+	private final LongAccumulator max = new LongAccumulator( Math::max, Long.MIN_VALUE );
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 *
+	 * @param value the value
+	 */
+	public void update( long value )
+	{
+		if ( value < 0 )
+			value = 0;
+
+		buckets.incrementAndGet( bucket( value ) );
+		count.increment();
+		sum.add( value );
+		min.accumulate( value );
+		max.accumulate( value );
+	}
+
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	@Override
+	public long getMin()
+	{
+		return getCount() == 0 ? 0 : min.get();
+	}
+
+	@Override
+	public long getMax()
+	{
+		return getCount() == 0 ? 0 : max.get();
+	}
+
+	@Override
+	public double getMean()
+	{
+		final long n = getCount();
+		return n == 0 ? 0 : ( double ) sum.sum() / n;
+	}
+
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	@Override
+	public long get50thPercentile()
+	{
+		return getPercentile( 0.5 );
+	}
+
+	@Override
+	public long get99thPercentile()
+	{
+		return getPercentile( 0.99 );
+	}
+
+	/**
+	 * @param quantile the quantile between 0 and 1
+	 * @return an upper bound of the quantile, the largest value of its bucket
+	 *         but at most the maximum
+	 */
+	public long getPercentile( final double quantile )
+	{
+		long total = 0;
+		final long[] counts = new long[ NUM_BUCKETS ];
+		for ( int i = 0; i < NUM_BUCKETS; i++ )
+		{
+			counts[ i ] = buckets.get( i );
+			total += counts[ i ];
+		}
+
+		if ( total == 0 )
+			return 0;
+
+		final long rank = ( long ) Math.ceil( quantile * total );
+		long seen = 0;
+		for ( int i = 0; i < NUM_BUCKETS; i++ )
+		{
+			seen += counts[ i ];
+			if ( seen >= rank && counts[ i ] > 0 )
+				return Math.min( bucketMax( i ), getMax() );
+		}
+		return getMax();
+	}
+
+	/**
+	 * Bucket 0 holds zero, bucket i &gt; 0 holds [2<sup>i-1</sup>, 2<sup>i</sup>).
+	 */
+	static int bucket( final long value )
+	{
+		return Math.min( NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( value ) );
+	}
+
+	static long bucketMax( final int bucket )
+	{
+		return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : ( 1L << bucket ) - 1;
+	}
+}
@@ -0,0 +1,19 @@
+package bigwarp.metrics;
+
+/**
+ * JMX view of a {@link Histogram}.
+ */
+public interface HistogramMBean
+{
+	long getCount();
+
+	long getMin();
+
+	long getMax();
+
+	double getMean();
+
+	long get50thPercentile();
+
+	long get99thPercentile();
+}
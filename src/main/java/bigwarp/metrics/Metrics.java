@@ -0,0 +1,159 @@
+package bigwarp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the counters, histograms and timers of BigWarp.
+ * <p>
+ * Metrics are disabled unless the system property {@code bigwarp.metrics} is
+ * true. Instrumented code checks {@link #ENABLED}, a compile time constant for
+ * the JIT, before measuring anything, so disabled metrics cost nothing on hot
+ * paths.
+ * <p>
+ * When enabled, every metric is registered with the platform MBean server
+ * under the domain "bigwarp", and all metrics are logged at INFO level every
+ * {@code bigwarp.metrics.logPeriod} seconds (60 by default, 0 to disable
+ * logging).
+ */
+public class Metrics
+{
+	public static final boolean ENABLED = Boolean.getBoolean( "bigwarp.metrics" );
+
+	public static final long LOG_PERIOD_SECONDS = Long.getLong( "bigwarp.metrics.logPeriod", 60 );
+
+	public static final String JMX_DOMAIN = "bigwarp";
+
+	private static final Logger logger = LogManager.getLogger( Metrics.class.getName() );
+
+	private static final Map< String, Object > metrics = new ConcurrentHashMap<>();
+
+	private static ScheduledExecutorService reporter;
+
+	static
+	{
+		if ( ENABLED && LOG_PERIOD_SECONDS > 0 )
+			startLogReporter( LOG_PERIOD_SECONDS );
+	}
+
+	private Metrics()
+	{}
+
+	public static Counter counter( final String name )
+	{
+		return get( name, Counter.class, Counter::new );
+	}
+
+	public static Histogram histogram( final String name )
+	{
+		return get( name, Histogram.class, Histogram::new );
+	}
+
+	public static Timer timer( final String name )
+	{
+		return get( name, Timer.class, Timer::new );
+	}
+
+	private static < M > M get( final String name, final Class< M > clazz, final Supplier< M > factory )
+	{
+		final Object m = metrics.computeIfAbsent( name, n -> {
+			final M created = factory.get();
+			if ( ENABLED )
+				register( n, clazz.getSimpleName(), created );
+			return created;
+		} );
+
+		if ( !clazz.isInstance( m ) )
+			throw new IllegalArgumentException( "Metric " + name + " is a " + m.getClass().getSimpleName() );
+
+		return clazz.cast( m );
+	}
+
+	private static void register( final String name, final String type, final Object metric )
+	{
+		try
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName objectName = new ObjectName( JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote( name ) );
+
+			if ( !server.isRegistered( objectName ) )
+				server.registerMBean( metric, objectName );
+		}
+		catch ( final JMException e )
+		{
+			logger.warn( "could not register metric " + name, e );
+		}
+	}
+
+	/**
+	 * Logs all metrics at a fixed rate on a daemon thread, replacing an
+	 * earlier schedule.
+	 *
+	 * @param periodSeconds the period
+	 */
+	public static synchronized void startLogReporter( final long periodSeconds )
+	{
+		if ( reporter != null )
+			reporter.shutdownNow();
+
+		reporter = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread t = new Thread( r, "bigwarp-metrics-reporter" );
+			t.setDaemon( true );
+			return t;
+		} );
+		reporter.scheduleAtFixedRate( () -> logger.info( report() ), periodSeconds, periodSeconds, TimeUnit.SECONDS );
+	}
+
+	public static synchronized void stopLogReporter()
+	{
+		if ( reporter != null )
+			reporter.shutdownNow();
+
+		reporter = null;
+	}
+
+	/**
+	 * @return one line per metric, sorted by name
+	 */
+	public static String report()
+	{
+		final StringBuilder sb = new StringBuilder( "metrics" );
+		for ( final Map.Entry< String, Object > e : new TreeMap<>( metrics ).entrySet() )
+		{
+			sb.append( "\n  " ).append( e.getKey() ).append( ": " );
+			final Object m = e.getValue();
+			if ( m instanceof Counter )
+			{
+				final Counter c = ( Counter ) m;
+				sb.append( String.format( "count=%d rate=%.2f/s", c.getCount(), c.getMeanRate() ) );
+			}
+			else if ( m instanceof Timer )
+			{
+				final Timer t = ( Timer ) m;
+				sb.append( String.format( "count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms total=%.1fms",
+						t.getCount(), t.getMeanMillis(), t.get50thPercentileMillis(), t.get99thPercentileMillis(),
+						t.getMaxMillis(), t.getTotalMillis() ) );
+			}
+			else if ( m instanceof Histogram )
+			{
+				final Histogram h = ( Histogram ) m;
+				sb.append( String.format( "count=%d mean=%.2f p50=%d p99=%d max=%d",
+						h.getCount(), h.getMean(), h.get50thPercentile(), h.get99thPercentile(), h.getMax() ) );
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,84 @@
+package bigwarp.metrics;
+
+/**
+ * The distribution of durations, recorded in nanoseconds.
+ * <p>
+ * Guard timing with {@link Metrics#ENABLED} so that nothing is measured when
+ * metrics are disabled:
+ *
+ * <pre>
+ * final long start = Metrics.ENABLED ? System.nanoTime() : 0;
+ * ...
+ * if ( Metrics.ENABLED )
+ * 	TIMER.updateSince( start );
+ * </pre>
+ */
+public class Timer implements TimerMBean
+{
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	private final Histogram nanos = new Histogram();
+
+	public void update( final long durationNanos )
+	{
+		nanos.update( durationNanos );
+	}
+
+	/**
+	 * @param startNanos a value of {@link System#nanoTime()}
+	 */
+	public void updateSince( final long startNanos )
+	{
+		nanos.update( System.nanoTime() - startNanos );
+	}
+
+	/**
+	 * @return the durations in nanoseconds
+	 */
+	public Histogram getHistogram()
+	{
+		return nanos;
+	}
+
+	@Override
+	public long getCount()
+	{
+		return nanos.getCount();
+	}
+
+	@Override
+	public double getMinMillis()
+	{
+		return nanos.getMin() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMaxMillis()
+	{
+		return nanos.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMeanMillis()
+	{
+		return nanos.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get50thPercentileMillis()
+	{
+		return nanos.get50thPercentile() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get99thPercentileMillis()
+	{
+		return nanos.get99thPercentile() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTotalMillis()
+	{
+		return nanos.getSum() / NANOS_PER_MILLI;
+	}
+}
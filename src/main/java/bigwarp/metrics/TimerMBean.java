@@ -0,0 +1,21 @@
+package bigwarp.metrics;
+
+/**
+ * JMX view of a {@link Timer}, in milliseconds.
+ */
+public interface TimerMBean
+{
+	long getCount();
+
+	double getMinMillis();
+
+	double getMaxMillis();
+
+	double getMeanMillis();
+
+	double get50thPercentileMillis();
+
+	double get99thPercentileMillis();
+
+	double getTotalMillis();
+}
@@ -0,0 +1,47 @@
+package bigwarp.scripts;
+
+import java.io.File;
+import java.io.IOException;
+
+import bigwarp.landmarks.LandmarkBinary;
+import bigwarp.landmarks.LandmarkCsv;
+import bigwarp.landmarks.Landmarks;
+
+/**
+ * Converts a landmark file between the csv and binary formats.
+ * <p>
+ * The binary format loads much faster, which matters when the same large
+ * landmark file is loaded for every image of a batch, e.g. with
+ * {@link bigwarp.BigWarpBatchTransformFOV}. {@link bigwarp.landmarks.LandmarkTableModel#load(File)}
+ * reads both formats.
+ * <p>
+ * Usage: ConvertLandmarks &lt;input&gt; &lt;output&gt;. The output is csv if
+ * its name ends with ".csv", binary otherwise.
+ */
+public class ConvertLandmarks
+{
+	public static void main( String[] args ) throws IOException
+	{
+		if( args.length != 2 )
+		{
+			System.err.println( "Usage: ConvertLandmarks <input> <output>" );
+			return;
+		}
+
+		File input = new File( args[ 0 ] );
+		File output = new File( args[ 1 ] );
+
+		Landmarks landmarks;
+		if( LandmarkBinary.isBinary( input ) )
+			landmarks = LandmarkBinary.read( input );
+		else
+			landmarks = LandmarkCsv.read( input );
+
+		if( output.getName().endsWith( ".csv" ) )
+			LandmarkCsv.write( output, landmarks );
+		else
+			LandmarkBinary.write( output, landmarks );
+
+		System.out.println( "finished" );
+	}
+}
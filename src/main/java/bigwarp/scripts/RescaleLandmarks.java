@@ -2,8 +2,8 @@ package bigwarp.scripts;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 
+import bigwarp.landmarks.LandmarkPointStore;
 import bigwarp.landmarks.LandmarkTableModel;
 
 /**
@@ -54,11 +54,13 @@ public class RescaleLandmarks
 
 	public static void scaleLandmarks( LandmarkTableModel ltm, double[] scales, boolean isMoving )
 	{
-		ArrayList< Double[] > pts = ltm.getPoints( isMoving );
+		LandmarkPointStore pts = ltm.getPointStore( isMoving );
 		for( int i = 0; i < ltm.getRowCount(); i++ )
 		{
-			scale( pts.get(i), scales );
+			for( int d = 0; d < pts.numDimensions(); d++ )
+				pts.set( i, d, pts.get( i, d ) * scales[ d ] );
 		}
+		ltm.rebuildSpatialIndexes();
 	}
 	
 	public static void scale( Double[] point, double[] scale )
@@ -0,0 +1,507 @@
+package bigwarp.source;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A lazily computed rasterization of a function over an interval, block by
+ * block. Blocks are computed on a worker pool when first accessed and held in
+ * a least recently used cache, and the minimum and maximum of every computed
+ * block are kept, so that the range of the whole image can be aggregated
+ * without computing blocks again.
+ * <p>
+ * All instances share one memory budget, a fraction
+ * {@link #DEFAULT_MEMORY_FRACTION} of the heap unless set with
+ * {@link #setMemoryBudget(long)}, and the least recently used blocks of any
+ * instance are evicted first.
+ * <p>
+ * The function is evaluated through a fresh {@link RealRandomAccess} for every
+ * block, and {@link #invalidate()} must be called whenever it changes. Blocks
+ * being computed while the cache is invalidated are not cached.
+ * <p>
+ * {@link #getImage()} waits for blocks being computed, {@link #getVolatileImage()}
+ * does not and is the one to render.
+ */
+public class BlockCache
+{
+	public static final int BLOCK_SIZE_2D = 64;
+
+	public static final int BLOCK_SIZE_3D = 32;
+
+	/**
+	 * The fraction of the maximum heap size blocks of all instances may
+	 * occupy by default.
+	 */
+	public static final double DEFAULT_MEMORY_FRACTION = 0.0625;
+
+	private static ExecutorService workers;
+
+	/*
+	 * the blocks of all instances, guarded by the class
+	 */
+	private static final LinkedHashMap< BlockKey, Cell< FloatArray > > blocks = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private static long memoryBudget = ( long ) ( DEFAULT_MEMORY_FRACTION * Runtime.getRuntime().maxMemory() );
+
+	private static long memoryUsed = 0;
+
+	private final Interval interval;
+
+	private final CellGrid grid;
+
+	private final Supplier< ? extends RealRandomAccess< ? extends RealType< ? > > > function;
+
+	private final HashMap< Long, FutureTask< Cell< FloatArray > > > computing;
+
+	private final HashMap< Long, double[] > stats;
+
+	private final RandomAccessibleInterval< FloatType > img;
+
+	private final RandomAccessibleInterval< VolatileFloatType > volatileImg;
+
+	/*
+	 * the data of blocks not computed yet, shared as it is never written
+	 */
+	private final VolatileFloatArray invalid;
+
+	private long version;
+
+	/**
+	 * @param interval the interval
+	 * @param function supplies accessors for the function
+	 */
+	public BlockCache( final Interval interval, final Supplier< ? extends RealRandomAccess< ? extends RealType< ? > > > function )
+	{
+		this( interval, defaultBlockSize( interval ), function );
+	}
+
+	/**
+	 * @param interval the interval
+	 * @param blockSize the block size
+	 * @param function supplies accessors for the function
+	 */
+	public BlockCache( final Interval interval, final int[] blockSize,
+			final Supplier< ? extends RealRandomAccess< ? extends RealType< ? > > > function )
+	{
+		this.interval = interval;
+		this.function = function;
+
+		grid = new CellGrid( Intervals.dimensionsAsLongArray( interval ), blockSize );
+		computing = new HashMap<>();
+		stats = new HashMap<>();
+
+		final LazyCellImg< FloatType, FloatArray > cells = new LazyCellImg<>( grid, new FloatType(), this::get );
+		img = Views.translate( cells, Intervals.minAsLongArray( interval ) );
+
+		invalid = new VolatileFloatArray( ( int ) Intervals.numElements( blockSize ), false );
+		final LazyCellImg< VolatileFloatType, VolatileFloatArray > volatileCells = new LazyCellImg<>( grid, new VolatileFloatType(), this::getVolatile );
+		volatileImg = Views.translate( volatileCells, Intervals.minAsLongArray( interval ) );
+	}
+
+	/**
+	 * @param interval the interval
+	 * @return blocks of {@link #BLOCK_SIZE_3D} in every dimension larger than
+	 *         one, or {@link #BLOCK_SIZE_2D} for two dimensional images
+	 */
+	public static int[] defaultBlockSize( final Interval interval )
+	{
+		int nd = 0;
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+			if ( interval.dimension( d ) > 1 )
+				nd++;
+
+		final int[] blockSize = new int[ interval.numDimensions() ];
+		for ( int d = 0; d < blockSize.length; d++ )
+			blockSize[ d ] = ( int ) Math.min( interval.dimension( d ), nd > 2 ? BLOCK_SIZE_3D : BLOCK_SIZE_2D );
+
+		return blockSize;
+	}
+
+	/**
+	 * Sets the number of bytes the blocks of all instances may occupy,
+	 * evicting blocks if needed.
+	 *
+	 * @param bytes the budget
+	 */
+	public static synchronized void setMemoryBudget( final long bytes )
+	{
+		memoryBudget = bytes;
+		evict();
+	}
+
+	public static synchronized long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	/**
+	 * @return the number of bytes the blocks of all instances occupy
+	 */
+	public static synchronized long getMemoryUsed()
+	{
+		return memoryUsed;
+	}
+
+	private static synchronized ExecutorService workers()
+	{
+		if ( workers == null )
+			workers = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+				final Thread t = new Thread( r, "bigwarp-block-cache" );
+				t.setDaemon( true );
+				return t;
+			} );
+
+		return workers;
+	}
+
+	/**
+	 * @return the image, computed as it is accessed
+	 */
+	public RandomAccessibleInterval< FloatType > getImage()
+	{
+		return img;
+	}
+
+	/**
+	 * Returns the image without waiting for blocks. Blocks not computed yet
+	 * are invalid and start being computed on the worker pool, so that a
+	 * later access finds them.
+	 *
+	 * @return the image, valid where it is computed
+	 */
+	public RandomAccessibleInterval< VolatileFloatType > getVolatileImage()
+	{
+		return volatileImg;
+	}
+
+	/**
+	 * @return the number of blocks of this instance held
+	 */
+	public int size()
+	{
+		synchronized ( BlockCache.class )
+		{
+			int n = 0;
+			for ( final BlockKey key : blocks.keySet() )
+				if ( key.cache == this )
+					n++;
+
+			return n;
+		}
+	}
+
+	/**
+	 * @return the version, incremented by every {@link #invalidate()}
+	 */
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Drops all blocks and statistics, to be called when the function changes.
+	 */
+	public synchronized void invalidate()
+	{
+		version++;
+		computing.clear();
+		stats.clear();
+		synchronized ( BlockCache.class )
+		{
+			final Iterator< Map.Entry< BlockKey, Cell< FloatArray > > > it = blocks.entrySet().iterator();
+			while ( it.hasNext() )
+			{
+				final Map.Entry< BlockKey, Cell< FloatArray > > entry = it.next();
+				if ( entry.getKey().cache == this )
+				{
+					memoryUsed -= bytes( entry.getValue() );
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the minimum and maximum of the image, computing the blocks not
+	 * computed since the last {@link #invalidate()} on the worker pool. If the
+	 * cache is invalidated meanwhile, the range is computed again for the new
+	 * function.
+	 *
+	 * @return the minimum and maximum
+	 */
+	public double[] minMax()
+	{
+		final long numBlocks = Intervals.numElements( grid.getGridDimensions() );
+		while ( true )
+		{
+			final long startVersion;
+			final ArrayList< Future< ? > > futures = new ArrayList<>();
+			synchronized ( this )
+			{
+				startVersion = version;
+				for ( long i = 0; i < numBlocks; i++ )
+					if ( !stats.containsKey( i ) )
+						futures.add( task( i ) );
+			}
+
+			try
+			{
+				for ( final Future< ? > f : futures )
+					f.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return new double[] { Double.NaN, Double.NaN };
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+
+			synchronized ( this )
+			{
+				if ( version != startVersion )
+					continue;
+
+				final double[] minmax = new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+				for ( final double[] s : stats.values() )
+				{
+					minmax[ 0 ] = Math.min( minmax[ 0 ], s[ 0 ] );
+					minmax[ 1 ] = Math.max( minmax[ 1 ], s[ 1 ] );
+				}
+				return minmax;
+			}
+		}
+	}
+
+	/**
+	 * Returns a block, computing it on the worker pool if it is not held, or
+	 * waiting for it if it is being computed.
+	 *
+	 * @param index the index of the block
+	 * @return the block
+	 */
+	private Cell< FloatArray > get( final long index )
+	{
+		final FutureTask< Cell< FloatArray > > task;
+		synchronized ( this )
+		{
+			synchronized ( BlockCache.class )
+			{
+				final Cell< FloatArray > block = blocks.get( new BlockKey( this, index ) );
+				if ( block != null )
+					return block;
+			}
+			task = task( index );
+		}
+
+		try
+		{
+			return task.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Returns a block if it is held, otherwise starts computing it on the
+	 * worker pool and returns an invalid block right away.
+	 *
+	 * @param index the index of the block
+	 * @return the block
+	 */
+	private Cell< VolatileFloatArray > getVolatile( final long index )
+	{
+		final Cell< FloatArray > block;
+		synchronized ( this )
+		{
+			synchronized ( BlockCache.class )
+			{
+				block = blocks.get( new BlockKey( this, index ) );
+			}
+			if ( block == null )
+				task( index );
+		}
+
+		final int nd = grid.numDimensions();
+		final long[] min = new long[ nd ];
+		final int[] dims = new int[ nd ];
+		grid.getCellDimensions( index, min, dims );
+		if ( block == null )
+			return new Cell<>( dims, min, invalid );
+
+		return new Cell<>( dims, min, new VolatileFloatArray( block.getData().getCurrentStorageArray(), true ) );
+	}
+
+	/*
+	 * Returns the task computing a block, submitting it to the worker pool if
+	 * there is none. Must hold the lock.
+	 */
+	private FutureTask< Cell< FloatArray > > task( final long index )
+	{
+		final FutureTask< Cell< FloatArray > > existing = computing.get( index );
+		if ( existing != null )
+			return existing;
+
+		final long taskVersion = version;
+		final FutureTask< Cell< FloatArray > > task = new FutureTask<>( () -> {
+			try
+			{
+				final double[] minmax = new double[ 2 ];
+				final Cell< FloatArray > block = compute( index, minmax );
+				synchronized ( this )
+				{
+					if ( version == taskVersion )
+					{
+						stats.put( index, minmax );
+						put( new BlockKey( this, index ), block );
+					}
+				}
+				return block;
+			}
+			finally
+			{
+				synchronized ( this )
+				{
+					if ( version == taskVersion )
+						computing.remove( index );
+				}
+			}
+		} );
+		computing.put( index, task );
+		workers().execute( task );
+		return task;
+	}
+
+	private static synchronized void put( final BlockKey key, final Cell< FloatArray > block )
+	{
+		final Cell< FloatArray > previous = blocks.put( key, block );
+		if ( previous != null )
+			memoryUsed -= bytes( previous );
+
+		memoryUsed += bytes( block );
+		evict();
+	}
+
+	/*
+	 * must hold the class lock
+	 */
+	private static void evict()
+	{
+		final Iterator< Cell< FloatArray > > it = blocks.values().iterator();
+		while ( memoryUsed > memoryBudget && it.hasNext() )
+		{
+			memoryUsed -= bytes( it.next() );
+			it.remove();
+		}
+	}
+
+	private static long bytes( final Cell< FloatArray > block )
+	{
+		return 4L * block.size();
+	}
+
+	private Cell< FloatArray > compute( final long index, final double[] minmax )
+	{
+		final int nd = grid.numDimensions();
+		final long[] min = new long[ nd ];
+		final int[] dims = new int[ nd ];
+		grid.getCellDimensions( index, min, dims );
+
+		final float[] data = new float[ ( int ) Intervals.numElements( dims ) ];
+		final RealRandomAccess< ? extends RealType< ? > > access = function.get();
+		final long[] offset = new long[ nd ];
+		final double[] position = new double[ nd ];
+		for ( int d = 0; d < nd; d++ )
+		{
+			min[ d ] += interval.min( d );
+			position[ d ] = min[ d ];
+		}
+
+		double lo = Double.POSITIVE_INFINITY;
+		double hi = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < data.length; i++ )
+		{
+			access.setPosition( position );
+			final float v = access.get().getRealFloat();
+			data[ i ] = v;
+			if ( v < lo )
+				lo = v;
+			if ( v > hi )
+				hi = v;
+
+			// next position, first dimension fastest
+			for ( int d = 0; d < nd; d++ )
+			{
+				if ( ++offset[ d ] < dims[ d ] )
+				{
+					position[ d ] = min[ d ] + offset[ d ];
+					break;
+				}
+				offset[ d ] = 0;
+				position[ d ] = min[ d ];
+			}
+		}
+		minmax[ 0 ] = lo;
+		minmax[ 1 ] = hi;
+
+		grid.getCellDimensions( index, min, dims );
+		return new Cell<>( dims, min, new FloatArray( data ) );
+	}
+
+	private static class BlockKey
+	{
+		final BlockCache cache;
+
+		final long index;
+
+		BlockKey( final BlockCache cache, final long index )
+		{
+			this.cache = cache;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof BlockKey ) )
+				return false;
+
+			final BlockKey other = ( BlockKey ) o;
+			return cache == other.cache && index == other.index;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash( System.identityHashCode( cache ), index );
+		}
+	}
+}
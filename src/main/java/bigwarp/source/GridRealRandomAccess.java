@@ -1,6 +1,7 @@
 package bigwarp.source;
 
 import bigwarp.source.GridSource.GRID_TYPE;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.AbstractRealLocalizable;
 import net.imglib2.Localizable;
 import net.imglib2.RealLocalizable;
@@ -25,6 +26,17 @@ public class GridRealRandomAccess< T extends RealType<T>> extends AbstractRealLo
 	private double gridHalfWidth = gridWidth / 2.0;
 	
 	private boolean is2d = false;
+
+	/*
+	 * buffers, reused for every call to get
+	 */
+	private final double[] pt;
+	private double[] warpRes;
+
+	/*
+	 * the warp, if it is a thin plate spline, evaluated here to avoid allocation
+	 */
+	private ThinPlateR2LogRSplineKernelTransform tps;
 	
 	protected GridRealRandomAccess( double[] dimensions )
 	{
@@ -40,9 +52,18 @@ public class GridRealRandomAccess< T extends RealType<T>> extends AbstractRealLo
 	{
 		super( dimensions.length );
 		this.value = value;
-		this.warp = warp;
 		this.method = method;
 		is2d = ( dimensions[2] == 0 );
+		pt = new double[ dimensions.length ];
+		setWarp( warp );
+	}
+
+	public void setWarp( final RealTransform warp )
+	{
+		this.warp = warp;
+		this.tps = ThinPlateSplines.getThinPlateSpline( warp );
+		if( warp != null && ( warpRes == null || warpRes.length != warp.numTargetDimensions() ) )
+			warpRes = new double[ warp.numTargetDimensions() ];
 	}
 	
 	
@@ -74,33 +95,43 @@ public class GridRealRandomAccess< T extends RealType<T>> extends AbstractRealLo
 		this.method = method;
 	}
 
+	/**
+	 * Not thread safe, use {@link #copy()} to get an accessor for every thread.
+	 */
 	@Override
 	public T get() 
 	{
-		double[] mypt = new double[ this.numDimensions() ];
-		this.localize( mypt );
+		this.localize( pt );
+
+		final double[] warpRes;
+		if( tps != null )
+		{
+			// dimensions the spline does not act on are unchanged
+			System.arraycopy( pt, 0, this.warpRes, 0, Math.min( pt.length, this.warpRes.length ) );
+			ThinPlateSplines.apply( tps, pt, this.warpRes );
+			warpRes = this.warpRes;
+		}
+		else if( warp != null )
+		{
+			warp.apply( pt, this.warpRes );
+			warpRes = this.warpRes;
+		}
+		else
+		{
+			warpRes = pt;
+		}
 		
 		switch( method )
 		{
 		case LINE:
-			return getLine( mypt );
+			return getLine( warpRes );
 		default:
-			return getMod( mypt );
+			return getMod( warpRes );
 		}
 	}
 
-	private T getLine( double[] pt )
+	private T getLine( final double[] warpRes )
 	{
-		double[] warpRes;
-		if( warp != null )
-		{
-			warpRes = new double[ warp.numTargetDimensions() ];
-			warp.apply( pt, warpRes );
-		}
-		else
-		{
-			warpRes = pt;
-		}
 		int nd = warpRes.length;
 		if( is2d )
 			nd = 2;
@@ -133,31 +164,19 @@ public class GridRealRandomAccess< T extends RealType<T>> extends AbstractRealLo
 			
 		}
 
-		T out = value.copy();
 		if( val < gridWidth )
 		{
 			// we want out to have a peak value of 255
 			// Note: val takes a max value of gridHalfWidth
-			out.setReal( val * ( 255.0 / gridHalfWidth) );
+			value.setReal( val * ( 255.0 / gridHalfWidth) );
 		}else
-			out.setZero();
+			value.setZero();
 
-		return out;
+		return value;
 	}
 
-	private T getMod( double[] pt )
+	private T getMod( final double[] warpRes )
 	{
-		double[] warpRes;
-		if( warp != null )
-		{
-			warpRes = new double[ warp.numTargetDimensions() ];
-			warp.apply( pt, warpRes );
-		}
-		else
-		{
-			warpRes = pt;
-		}
-
 		double val = 0.0;
 		for( int d = 0; d < warpRes.length; d++ )
 		{
@@ -166,9 +185,8 @@ public class GridRealRandomAccess< T extends RealType<T>> extends AbstractRealLo
 
 			val += tmp;
 		}
-		T out = value.copy();
-		out.setReal( val );
-		return out;
+		value.setReal( val );
+		return value;
 	}
 
 	private boolean withinRad( double[] pt1, double[] pt2, double rad )
@@ -201,7 +219,7 @@ public class GridRealRandomAccess< T extends RealType<T>> extends AbstractRealLo
 		else
 		{
 			GridRealRandomAccess< T > ra = new GridRealRandomAccess< T >( new double[ position.length ], value.copy(), 
-					warp, this.method  );
+					warp.copy(), this.method  );
 			ra.gridSpacing = this.gridSpacing;
 			ra.gridWidth = this.gridWidth;
 			ra.gridHalfWidth = this.gridHalfWidth;
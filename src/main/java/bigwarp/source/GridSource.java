@@ -67,7 +67,7 @@ public class GridSource< T extends RealType< T >> implements Source< T >
 	
 	public void setWarp( RealTransform warp )
 	{
-		gridImg.ra.warp = warp;
+		gridImg.ra.setWarp( warp );
 	}
 	
 	@Override
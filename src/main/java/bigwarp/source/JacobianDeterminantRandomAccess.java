@@ -1,8 +1,5 @@
 package bigwarp.source;
 
-import org.ejml.data.DenseMatrix64F;
-import org.ejml.ops.CommonOps;
-
 import net.imglib2.AbstractRealInterval;
 import net.imglib2.AbstractRealLocalizable;
 import net.imglib2.Interval;
@@ -12,16 +9,27 @@ import net.imglib2.RealLocalizable;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessibleRealInterval;
 import net.imglib2.realtransform.AffineTransform;
-import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
 import net.imglib2.realtransform.inverse.DifferentiableRealTransform;
 import net.imglib2.type.numeric.RealType;
 
 public class JacobianDeterminantRandomAccess< T extends RealType<T>> extends AbstractRealLocalizable implements RealRandomAccess< T >
 {
 	protected DifferentiableRealTransform transform;
+
+	/*
+	 * analytic jacobian, used when the transform is a thin plate spline
+	 */
+	protected ThinPlateSplineJacobian tpsJacobian;
 	
 	final private T value;
-	final double[] warpRes;
+
+	/*
+	 * buffers, reused for every call to get
+	 */
+	final private double[] x;
+	private double[][] jacobian;
+	private double[][] detBuffer;
 
 	protected JacobianDeterminantRandomAccess( double[] dimensions )
 	{
@@ -31,45 +39,84 @@ public class JacobianDeterminantRandomAccess< T extends RealType<T>> extends Abs
 	protected JacobianDeterminantRandomAccess( final double[] dimensions, final T value, final DifferentiableRealTransform transform )
 	{
 		super( dimensions.length );
-		setTransform( transform );
 		this.value = value;
-		warpRes = new double[ numDimensions() ]; 
+		x = new double[ numDimensions() ];
+		setTransform( transform );
+	}
+
+	private JacobianDeterminantRandomAccess( final JacobianDeterminantRandomAccess< T > other )
+	{
+		super( other.numDimensions() );
+		this.value = other.value.copy();
+		x = new double[ numDimensions() ];
+		if ( other.tpsJacobian != null )
+		{
+			this.transform = other.transform;
+			this.tpsJacobian = other.tpsJacobian.copy();
+		}
+		else
+			setTransform( other.transform );
 	}
 	
 	public void setTransform( final DifferentiableRealTransform transform )
 	{
-		if( transform != null)
+		if( transform == null )
+		{
+			this.transform = null;
+			this.tpsJacobian = null;
+		}
+		else if( transform instanceof ThinplateSplineTransform )
+		{
+			// the coefficients of the spline are not modified, so no copy is needed
+			this.transform = transform;
+			this.tpsJacobian = new ThinPlateSplineJacobian( ( ( ThinplateSplineTransform ) transform ).getKernelTransform() );
+		}
+		else
 		{
 			this.transform = transform.copy();
+			this.tpsJacobian = null;
 		}
 	}
 
+	/**
+	 * Not thread safe, use {@link #copy()} to get an accessor for every thread.
+	 */
 	@Override
 	public T get() 
 	{
-		// copy value here so this is thread safe
-		T out = value.copy();
 		if( transform == null )
 		{
-			out.setZero();
-			return out;
+			value.setZero();
+			return value;
 		}
 
 		// compute the jacobian determinant at this point
-		double[] x = new double[ numDimensions() ];
 		localize( x );
-		AffineTransform jacobian = transform.jacobian( x );
-		DenseMatrix64F jacMtx = new DenseMatrix64F();
-		jacMtx.data = jacobian.getRowPackedCopy(); 
-		out.setReal( CommonOps.det( jacMtx ) );
+		if ( tpsJacobian != null )
+		{
+			value.setReal( tpsJacobian.jacobianDeterminant( x ) );
+			return value;
+		}
+
+		final AffineTransform jac = transform.jacobian( x );
+		final int nd = jac.numDimensions();
+		if ( jacobian == null || jacobian.length != nd )
+		{
+			jacobian = new double[ nd ][ nd ];
+			detBuffer = new double[ nd ][ nd ];
+		}
+
+		for ( int i = 0; i < nd; i++ )
+			for ( int j = 0; j < nd; j++ )
+				jacobian[ i ][ j ] = jac.get( i, j );
 
-		return out;
+		value.setReal( ThinPlateSplineJacobian.determinant( jacobian, nd, detBuffer ) );
+		return value;
 	}
 
 	public RealRandomAccess<T> copy() 
 	{
-		return new JacobianDeterminantRandomAccess< T >( new double[ position.length ], value.copy(), 
-				transform );
+		return new JacobianDeterminantRandomAccess< T >( this );
 	}
 
 	public RealRandomAccess<T> copyRandomAccess() 
@@ -5,16 +5,19 @@ import java.util.Arrays;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bigwarp.BigWarp.BigWarpData;
+import bigwarp.landmarks.LandmarkPointStore;
 import bigwarp.landmarks.LandmarkTableModel;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import mpicbg.models.AbstractModel;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import mpicbg.spim.data.sequence.VoxelDimensions;
-import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.inverse.DifferentiableRealTransform;
@@ -33,6 +36,11 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	
 	protected final VoxelDimensions voxDims;
 
+	/**
+	 * The jacobian determinant over the interval, computed block by block as it is viewed
+	 */
+	protected final BlockCache blocks;
+
 	protected T type;
 	
 	public JacobianDeterminantSource( String name, BigWarpData<?> data, T t  )
@@ -49,6 +57,7 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 		voxDims = new FinalVoxelDimensions( unit, 1.0, 1.0, 1.0 );
 
 		jacDetImg = new JacobianDeterminantRandomAccess.JacobianDeterminantRandomAccessibleInterval< T >( interval, t, null );
+		blocks = new BlockCache( interval, jacDetImg::realRandomAccess );
 	}
 	
 	public double getMax( LandmarkTableModel lm )
@@ -58,10 +67,10 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 		int ndims = lm.getNumdims();
 		double[] pt = new double[ ndims ];
 		
-		for( Double[] movingPt : lm.getPoints( true ) )
+		final LandmarkPointStore movingPts = lm.getPointStore( true );
+		for( int i = 0; i < movingPts.size(); i++ )
 		{
-			for( int d = 0; d < ndims; d++ )
-				pt[ d ] = movingPt[ d ];
+			movingPts.get( i, pt );
 			
 			jacDetImg.ra.setPosition(  pt );
 			double val = jacDetImg.ra.get().getRealDouble();
@@ -75,6 +84,7 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	public void setTransform( final DifferentiableRealTransform transform )
 	{
 		jacDetImg.setTransform( transform );
+		blocks.invalidate();
 	}
 	
 	public void debug( double[] pt )
@@ -94,24 +104,23 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 		
 	}
 
+	/**
+	 * The range over the interval, aggregated from the range of every block.
+	 * Blocks not computed since the last change are computed on a worker pool.
+	 *
+	 * @return the minimum and maximum
+	 */
 	public double[] minMax()
 	{
-		double[] minmax = new double[ 2 ];
-		minmax[ 0 ] = Double.MAX_VALUE;
-		minmax[ 1 ] = Double.MIN_VALUE;
-		
-		Cursor<T> curs = Views.iterable( this.getSource( 0,0 ) ).cursor();
-		
-		while( curs.hasNext() )
-		{
-			double val = curs.next().getRealDouble();
-			if( val < minmax[ 0 ])
-				minmax[ 0 ] = val;
-			else if( val > minmax[ 1 ])
-				minmax[ 1 ] = val;
-			
-		}
-		return minmax;
+		return blocks.minMax();
+	}
+
+	/**
+	 * @return this source without waiting for blocks being computed, to render
+	 */
+	public VolatileBlockCacheSource asVolatile()
+	{
+		return new VolatileBlockCacheSource( this, blocks );
 	}
 	
 	@Override
@@ -138,15 +147,16 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	@Override
 	public RandomAccessibleInterval<T> getSource( int t, int level ) 
 	{
-		return Views.interval( Views.raster( 
-				getInterpolatedSource( t, level, Interpolation.NEARESTNEIGHBOR ) ), 
-				interval );
+		return Converters.convert( blocks.getImage(), ( a, b ) -> b.setReal( a.get() ), type.createVariable() );
 	}
 
 	@Override
 	public RealRandomAccessible<T> getInterpolatedSource( int t, int level, Interpolation method ) 
 	{
-		return jacDetImg;
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendZero( getSource( t, level ) ), new NLinearInterpolatorFactory< T >() );
+		else
+			return Views.interpolate( Views.extendZero( getSource( t, level ) ), new NearestNeighborInterpolatorFactory< T >() );
 	}
 
 	@Override
@@ -0,0 +1,176 @@
+package bigwarp.source;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+/**
+ * Evaluates the Jacobian of a thin plate spline analytically, without
+ * allocating.
+ * <p>
+ * For the kernel U(r) = r<sup>2</sup> log r, the derivative of the kernel with
+ * respect to p<sub>j</sub> is (2 log r + 1)( p<sub>j</sub> - x<sub>j</sub> ),
+ * so a single pass over the landmarks computes every entry of the Jacobian.
+ * <p>
+ * Instances hold their own buffers and are not thread safe; use
+ * {@link #copy()} to get an instance for another thread.
+ */
+public class ThinPlateSplineJacobian
+{
+	private final int nd;
+
+	private final int nLandmarks;
+
+	private final double[][] srcPts;
+
+	private final double[][] affine;
+
+	private final double[] weights;
+
+	private final double[][] jac;
+
+	private final double[][] tmp;
+
+	public ThinPlateSplineJacobian( final ThinPlateR2LogRSplineKernelTransform tps )
+	{
+		this( tps.getNumDims(), tps.getNumLandmarks(), tps.getSourceLandmarks(), tps.getAffine(), tps.getKnotWeights() );
+	}
+
+	private ThinPlateSplineJacobian( final int nd, final int nLandmarks,
+			final double[][] srcPts, final double[][] affine, final double[] weights )
+	{
+		this.nd = nd;
+		this.nLandmarks = nLandmarks;
+		this.srcPts = srcPts;
+		this.affine = affine;
+		this.weights = weights;
+
+		jac = new double[ nd ][ nd ];
+		tmp = new double[ nd ][ nd ];
+	}
+
+	/**
+	 * @return a copy that shares the spline coefficients but not the buffers
+	 */
+	public ThinPlateSplineJacobian copy()
+	{
+		return new ThinPlateSplineJacobian( nd, nLandmarks, srcPts, affine, weights );
+	}
+
+	public int numDimensions()
+	{
+		return nd;
+	}
+
+	/**
+	 * Computes the Jacobian at a point. Only the first {@link #numDimensions()}
+	 * coordinates of the point are used.
+	 *
+	 * @param p the point
+	 * @return the Jacobian, jac[ i ][ j ] = d f_i / d p_j. This array is
+	 *         overwritten by the next call.
+	 */
+	public double[][] jacobian( final double[] p )
+	{
+		for ( int i = 0; i < nd; i++ )
+			for ( int j = 0; j < nd; j++ )
+			{
+				jac[ i ][ j ] = ( i == j ) ? 1 : 0;
+				if ( affine != null )
+					jac[ i ][ j ] += affine[ i ][ j ];
+			}
+
+		if ( weights == null )
+			return jac;
+
+		for ( int l = 0; l < nLandmarks; l++ )
+		{
+			double r2 = 0;
+			for ( int j = 0; j < nd; j++ )
+			{
+				final double diff = p[ j ] - srcPts[ j ][ l ];
+				r2 += diff * diff;
+			}
+
+			// the derivative vanishes at the landmark
+			if ( r2 < 1e-16 )
+				continue;
+
+			// 2 log r + 1
+			final double g = Math.log( r2 ) + 1;
+			for ( int i = 0; i < nd; i++ )
+			{
+				final double gw = g * weights[ i * nLandmarks + l ];
+				if ( gw == 0 )
+					continue;
+
+				for ( int j = 0; j < nd; j++ )
+					jac[ i ][ j ] += gw * ( p[ j ] - srcPts[ j ][ l ] );
+			}
+		}
+		return jac;
+	}
+
+	/**
+	 * @param p the point
+	 * @return the determinant of the Jacobian at the point
+	 */
+	public double jacobianDeterminant( final double[] p )
+	{
+		return determinant( jacobian( p ), nd, tmp );
+	}
+
+	/**
+	 * Determinant of the upper left n-by-n block of a matrix. Closed form for
+	 * n &le; 3, otherwise Gaussian elimination in the given buffer.
+	 *
+	 * @param m the matrix
+	 * @param n the size of the block
+	 * @param buffer an n-by-n buffer, may be null if n &le; 3
+	 * @return the determinant
+	 */
+	public static double determinant( final double[][] m, final int n, final double[][] buffer )
+	{
+		switch ( n )
+		{
+		case 1:
+			return m[ 0 ][ 0 ];
+		case 2:
+			return m[ 0 ][ 0 ] * m[ 1 ][ 1 ] - m[ 0 ][ 1 ] * m[ 1 ][ 0 ];
+		case 3:
+			return m[ 0 ][ 0 ] * ( m[ 1 ][ 1 ] * m[ 2 ][ 2 ] - m[ 1 ][ 2 ] * m[ 2 ][ 1 ] )
+				 - m[ 0 ][ 1 ] * ( m[ 1 ][ 0 ] * m[ 2 ][ 2 ] - m[ 1 ][ 2 ] * m[ 2 ][ 0 ] )
+				 + m[ 0 ][ 2 ] * ( m[ 1 ][ 0 ] * m[ 2 ][ 1 ] - m[ 1 ][ 1 ] * m[ 2 ][ 0 ] );
+		default:
+			for ( int i = 0; i < n; i++ )
+				System.arraycopy( m[ i ], 0, buffer[ i ], 0, n );
+
+			double det = 1;
+			for ( int c = 0; c < n; c++ )
+			{
+				int pivot = c;
+				for ( int r = c + 1; r < n; r++ )
+					if ( Math.abs( buffer[ r ][ c ] ) > Math.abs( buffer[ pivot ][ c ] ) )
+						pivot = r;
+
+				if ( buffer[ pivot ][ c ] == 0 )
+					return 0;
+
+				if ( pivot != c )
+				{
+					final double[] swap = buffer[ pivot ];
+					buffer[ pivot ] = buffer[ c ];
+					buffer[ c ] = swap;
+					det = -det;
+				}
+
+				det *= buffer[ c ][ c ];
+				for ( int r = c + 1; r < n; r++ )
+				{
+					final double f = buffer[ r ][ c ] / buffer[ c ][ c ];
+					for ( int k = c; k < n; k++ )
+						buffer[ r ][ k ] -= f * buffer[ c ][ k ];
+				}
+			}
+			return det;
+		}
+	}
+}
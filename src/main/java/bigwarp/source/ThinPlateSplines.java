@@ -0,0 +1,102 @@
+package bigwarp.source;
+
+import bigwarp.landmarks.IncrementalThinPlateSplineSolver;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * Helpers for evaluating thin plate splines in the visualization sources
+ * without allocating.
+ */
+public class ThinPlateSplines
+{
+	private ThinPlateSplines()
+	{}
+
+	/**
+	 * Finds the thin plate spline whose forward transform is computed by the
+	 * given transform, looking through the wrappers that {@link bigwarp.BigWarp} uses.
+	 *
+	 * @param xfm the transform
+	 * @return the spline, or null if the transform is not a thin plate spline
+	 */
+	public static ThinPlateR2LogRSplineKernelTransform getThinPlateSpline( final RealTransform xfm )
+	{
+		if( xfm instanceof Wrapped2DTransformAs3D )
+			return getThinPlateSpline( ( ( Wrapped2DTransformAs3D ) xfm ).transform );
+		else if( xfm instanceof WrappedIterativeInvertibleRealTransform )
+			return getThinPlateSpline( ( ( WrappedIterativeInvertibleRealTransform< ? > ) xfm ).getTransform() );
+		else if( xfm instanceof ThinplateSplineTransform )
+			return ( ( ThinplateSplineTransform ) xfm ).getKernelTransform();
+		else
+			return null;
+	}
+
+	/**
+	 * Applies the spline to the first {@link ThinPlateR2LogRSplineKernelTransform#getNumDims()}
+	 * coordinates of a point. Other coordinates of the target are not modified.
+	 *
+	 * @param tps the spline
+	 * @param p the source point
+	 * @param result the target point, must not be p
+	 */
+	public static void apply( final ThinPlateR2LogRSplineKernelTransform tps, final double[] p, final double[] result )
+	{
+		final int nd = tps.getNumDims();
+		final double[][] a = tps.getAffine();
+		final double[] b = tps.getTranslation();
+		for( int i = 0; i < nd; i++ )
+		{
+			double v = p[ i ];
+			if( b != null )
+				v += b[ i ];
+
+			if( a != null )
+				for( int j = 0; j < nd; j++ )
+					v += a[ i ][ j ] * p[ j ];
+
+			result[ i ] = v;
+		}
+
+		addKernelSum( tps, p, result );
+	}
+
+	/**
+	 * Adds the kernel sum of the spline at p to the first
+	 * {@link ThinPlateR2LogRSplineKernelTransform#getNumDims()} coordinates of
+	 * result.
+	 *
+	 * @param tps the spline
+	 * @param p the point
+	 * @param result the vector to add to
+	 */
+	public static void addKernelSum( final ThinPlateR2LogRSplineKernelTransform tps, final double[] p, final double[] result )
+	{
+		final double[] weights = tps.getKnotWeights();
+		if( weights == null )
+			return;
+
+		final int nd = tps.getNumDims();
+		final int nLandmarks = tps.getNumLandmarks();
+		final double[][] srcPts = tps.getSourceLandmarks();
+		for( int l = 0; l < nLandmarks; l++ )
+		{
+			double r2 = 0;
+			for( int j = 0; j < nd; j++ )
+			{
+				final double diff = p[ j ] - srcPts[ j ][ l ];
+				r2 += diff * diff;
+			}
+
+			final double u = IncrementalThinPlateSplineSolver.kernel( r2 );
+			if( u == 0 )
+				continue;
+
+			for( int i = 0; i < nd; i++ )
+				result[ i ] += weights[ i * nLandmarks + l ] * u;
+		}
+	}
+}
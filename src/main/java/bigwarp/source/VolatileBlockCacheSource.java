@@ -0,0 +1,90 @@
+package bigwarp.source;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.view.Views;
+
+/**
+ * The volatile counterpart of a source rasterized by a {@link BlockCache}, so
+ * that the viewer renders the blocks computed so far and repaints as the rest
+ * is computed, instead of waiting for them.
+ */
+public class VolatileBlockCacheSource implements Source< VolatileFloatType >
+{
+	private final Source< ? > source;
+
+	private final BlockCache blocks;
+
+	private final VolatileFloatType outOfBounds;
+
+	/**
+	 * @param source the source rasterized by the cache
+	 * @param blocks the cache
+	 */
+	public VolatileBlockCacheSource( final Source< ? > source, final BlockCache blocks )
+	{
+		this.source = source;
+		this.blocks = blocks;
+
+		outOfBounds = new VolatileFloatType( 0 );
+		outOfBounds.setValid( true );
+	}
+
+	@Override
+	public boolean isPresent( final int t )
+	{
+		return source.isPresent( t );
+	}
+
+	@Override
+	public RandomAccessibleInterval< VolatileFloatType > getSource( final int t, final int level )
+	{
+		return blocks.getVolatileImage();
+	}
+
+	@Override
+	public RealRandomAccessible< VolatileFloatType > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendValue( getSource( t, level ), outOfBounds ), new NLinearInterpolatorFactory< VolatileFloatType >() );
+		else
+			return Views.interpolate( Views.extendValue( getSource( t, level ), outOfBounds ), new NearestNeighborInterpolatorFactory< VolatileFloatType >() );
+	}
+
+	@Override
+	public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	{
+		source.getSourceTransform( t, level, transform );
+	}
+
+	@Override
+	public VolatileFloatType getType()
+	{
+		return new VolatileFloatType();
+	}
+
+	@Override
+	public String getName()
+	{
+		return source.getName();
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions()
+	{
+		return source.getVoxelDimensions();
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return 1;
+	}
+}
@@ -1,7 +1,8 @@
 package bigwarp.source;
 
-import mpicbg.models.AbstractModel;
-import mpicbg.models.CoordinateTransform;
+import java.util.Arrays;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.AbstractRealLocalizable;
 import net.imglib2.Localizable;
 import net.imglib2.RealLocalizable;
@@ -12,14 +13,25 @@ import net.imglib2.type.numeric.RealType;
 public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractRealLocalizable implements RealRandomAccess< T >
 {
 
-	RealTransform warp;
-	RealTransform baseline;
+	// written by the setters, which may run on another thread than the copies
+	volatile RealTransform warp;
+	volatile RealTransform baseline;
 	
 	T value;
 	
+	final double[] pt;
 	final double[] warpRes;
 	final double[] baseRes;
 
+	/*
+	 * When the warp is a thin plate spline and the baseline is affine, the
+	 * difference between the two is the difference of their affine parts plus
+	 * the kernel sum of the spline, so both are evaluated in one pass.
+	 * 
+	 * This is shared between copies and never modified.
+	 */
+	private volatile FusedWarp fused;
+
 	protected WarpMagnitudeRandomAccess( double[] dimensions )
 	{
 		this( dimensions, null, null, null );
@@ -38,52 +50,211 @@ public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractR
 			this.baseline = baseline.copy();
 		}
 		this.value = value;
+		pt = new double[ numDimensions() ];
 		warpRes = new double[ numDimensions() ]; 
 		baseRes = new double[ numDimensions() ]; 
+		updateFused();
+	}
+
+	private WarpMagnitudeRandomAccess( final WarpMagnitudeRandomAccess< T > other )
+	{
+		super( other.numDimensions() );
+		synchronized ( other )
+		{
+			warp = other.warp == null ? null : other.warp.copy();
+			baseline = other.baseline == null ? null : other.baseline.copy();
+			fused = other.fused;
+		}
+		value = other.value.copy();
+		pt = new double[ numDimensions() ];
+		warpRes = new double[ numDimensions() ]; 
+		baseRes = new double[ numDimensions() ]; 
+	}
+
+	public synchronized void setWarp( final RealTransform warp )
+	{
+		this.warp = warp;
+		updateFused();
+	}
+
+	public synchronized void setBaseline( final RealTransform baseline )
+	{
+		this.baseline = baseline;
+		updateFused();
 	}
 
+	/**
+	 * Sets the warp and the baseline at once, so that copies never combine
+	 * one with the other's predecessor.
+	 *
+	 * @param warp the warp
+	 * @param baseline the baseline
+	 */
+	public synchronized void set( final RealTransform warp, final RealTransform baseline )
+	{
+		this.warp = warp;
+		this.baseline = baseline;
+		updateFused();
+	}
+
+	/**
+	 * Not thread safe, use {@link #copy()} to get an accessor for every thread.
+	 */
 	@Override
 	public T get() 
 	{
-		T out = value.copy();
 		if( warp == null || baseline == null )
 		{
-			out.setZero();
-			return out;
+			value.setZero();
+			return value;
 		}
 					
-		double[] mypt = new double[ this.numDimensions() ];
-		this.localize( mypt );
+		this.localize( pt );
 
-		// apply the warp
-		warp.apply( mypt, warpRes );
+		final FusedWarp fused = this.fused;
+		final double distSqr;
+		if( fused != null )
+			distSqr = fusedDistanceSquared( fused.tps, fused.affineDifference );
+		else
+		{
+			// apply the warp
+			warp.apply( pt, warpRes );
 
-		// apply the baseline transform
-		baseline.apply( mypt, baseRes );
+			// apply the baseline transform
+			baseline.apply( pt, baseRes );
 
-		double dist = 0.0;
-		for( int d = 0; d < warpRes.length; d++ )
-			dist += ( warpRes[ d ] - baseRes[ d ] ) * ( warpRes[ d ] - baseRes[ d ] );  
+			double sum = 0.0;
+			for( int d = 0; d < warpRes.length; d++ )
+				sum += ( warpRes[ d ] - baseRes[ d ] ) * ( warpRes[ d ] - baseRes[ d ] );  
 
-		out.setReal( Math.sqrt( dist ));
+			distSqr = sum;
+		}
 
-		return out;
+		value.setReal( Math.sqrt( distSqr ));
+		return value;
 	}
-	
-	private boolean withinRad( double[] pt1, double[] pt2, double rad )
+
+	private double fusedDistanceSquared( final ThinPlateR2LogRSplineKernelTransform tps, final double[][] affineDifference )
 	{
-		double radSquared = rad * rad;
-		double distSquared = 0.0;
-		for( int d = 0; d < pt2.length; d++ )
-			distSquared += ( pt1[ d ] - pt2[ d ] ) * ( pt1[ d ] - pt2[ d ] );
-		
-		return distSquared  < radSquared;
+		final int nd = tps.getNumDims();
+
+		// difference of the affine parts
+		for( int i = 0; i < nd; i++ )
+		{
+			double v = affineDifference[ i ][ nd ];
+			for( int j = 0; j < nd; j++ )
+				v += affineDifference[ i ][ j ] * pt[ j ];
+
+			warpRes[ i ] = v;
+		}
+
+		// kernel sum of the spline
+		ThinPlateSplines.addKernelSum( tps, pt, warpRes );
+
+		double distSqr = 0.0;
+		for( int i = 0; i < nd; i++ )
+			distSqr += warpRes[ i ] * warpRes[ i ];
+
+		return distSqr;
+	}
+
+	/*
+	 * Checks whether the warp and baseline can be evaluated together, and if
+	 * so, computes the difference of their affine parts.
+	 */
+	private void updateFused()
+	{
+		fused = null;
+		final RealTransform warp = this.warp;
+		final RealTransform baseline = this.baseline;
+		if( warp == null || baseline == null )
+			return;
+
+		final ThinPlateR2LogRSplineKernelTransform tps = ThinPlateSplines.getThinPlateSpline( warp );
+		if( tps == null || tps.getKnotWeights() == null )
+			return;
+
+		final int nd = tps.getNumDims();
+		final double[][] baseAffine = affineOf( baseline, nd );
+		if( baseAffine == null )
+			return;
+
+		// the warp is p + A p + b + kernel sum
+		final double[][] a = tps.getAffine();
+		final double[] b = tps.getTranslation();
+		final double[][] diff = new double[ nd ][ nd + 1 ];
+		for( int i = 0; i < nd; i++ )
+		{
+			for( int j = 0; j < nd; j++ )
+				diff[ i ][ j ] = ( i == j ? 1 : 0 ) + ( a == null ? 0 : a[ i ][ j ] ) - baseAffine[ i ][ j ];
+
+			diff[ i ][ nd ] = ( b == null ? 0 : b[ i ] ) - baseAffine[ i ][ nd ];
+		}
+
+		fused = new FusedWarp( tps, diff );
+	}
+
+	private static class FusedWarp
+	{
+		final ThinPlateR2LogRSplineKernelTransform tps;
+
+		final double[][] affineDifference;
+
+		FusedWarp( final ThinPlateR2LogRSplineKernelTransform tps, final double[][] affineDifference )
+		{
+			this.tps = tps;
+			this.affineDifference = affineDifference;
+		}
+	}
+
+	/*
+	 * Probes the first nd dimensions of the transform at the origin and the
+	 * unit vectors. Returns the nd x (nd+1) affine matrix, or null if the
+	 * transform does not behave like an affine at a test point.
+	 */
+	private static double[][] affineOf( final RealTransform xfm, final int nd )
+	{
+		final int n = Math.max( nd, xfm.numSourceDimensions() );
+		final double[] p = new double[ n ];
+		final double[] q = new double[ Math.max( n, xfm.numTargetDimensions() ) ];
+		final double[][] affine = new double[ nd ][ nd + 1 ];
+
+		xfm.apply( p, q );
+		for( int i = 0; i < nd; i++ )
+			affine[ i ][ nd ] = q[ i ];
+
+		for( int j = 0; j < nd; j++ )
+		{
+			Arrays.fill( p, 0 );
+			p[ j ] = 1;
+			xfm.apply( p, q );
+			for( int i = 0; i < nd; i++ )
+				affine[ i ][ j ] = q[ i ] - affine[ i ][ nd ];
+		}
+
+		// check
+		double scale = 1;
+		for( int j = 0; j < nd; j++ )
+		{
+			p[ j ] = 137.0 * ( j + 1 ) - 91.0 * j * j;
+			scale = Math.max( scale, Math.abs( p[ j ] ) );
+		}
+		xfm.apply( p, q );
+		for( int i = 0; i < nd; i++ )
+		{
+			double expected = affine[ i ][ nd ];
+			for( int j = 0; j < nd; j++ )
+				expected += affine[ i ][ j ] * p[ j ];
+
+			if( Math.abs( expected - q[ i ] ) > 1e-9 * scale )
+				return null;
+		}
+		return affine;
 	}
 
 	public RealRandomAccess<T> copy() 
 	{
-		return new WarpMagnitudeRandomAccess< T >( new double[ position.length ], value.copy(), 
-				warp, baseline );
+		return new WarpMagnitudeRandomAccess< T >( this );
 	}
 
 	public RealRandomAccess<T> copyRandomAccess() 
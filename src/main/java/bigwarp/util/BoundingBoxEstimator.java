@@ -0,0 +1,325 @@
+package bigwarp.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Estimates the bounding box of a box transformed by a non-linear transform,
+ * by sampling the faces of the box.
+ * <p>
+ * Transforming only the corners of the box is exact for affine transforms, but
+ * misses bulges of the faces under a thin plate spline. Instead, every face is
+ * split into a grid of patches, and a patch is split further where the
+ * transformed center of the patch is further than the tolerance from the mean
+ * of its transformed corners, that is, where the face is strongly curved.
+ * The result is padded by the largest such deviation of a patch that was not
+ * split, along every dimension in which it has an extent, so it is exact for
+ * affine transforms.
+ * <p>
+ * The interior of the box is not sampled, so the transform is assumed to map
+ * the boundary of the box to the boundary of its image, which holds for the
+ * invertible warps bigwarp produces. Points that transform to non-finite
+ * values, for example where an iterative inverse did not converge, are
+ * ignored.
+ */
+public class BoundingBoxEstimator
+{
+	public static final int DEFAULT_SAMPLES = 8;
+
+	public static final int DEFAULT_MAX_DEPTH = 4;
+
+	public static final double DEFAULT_TOLERANCE = 0.5;
+
+	public static final double ROUNDING_EPS = 1e-6;
+
+	private final RealTransform xfm;
+
+	private final RealInterval interval;
+
+	private final int samples;
+
+	private final int maxDepth;
+
+	private final double tolerance;
+
+	private final int nd;
+
+	private final double[] min;
+
+	private final double[] max;
+
+	private final double[] src;
+
+	private final double[] tgt;
+
+	/*
+	 * the dimensions along the current face, and the transformed points on it
+	 * by their position on the finest lattice of the face
+	 */
+	private int[] faceDims;
+
+	private final HashMap< Long, double[] > facePoints = new HashMap<>();
+
+	private final long finest;
+
+	private double maxDeviation = 0;
+
+	private BoundingBoxEstimator( final RealTransform xfm, final RealInterval interval, final int samples, final int maxDepth, final double tolerance )
+	{
+		this.xfm = xfm;
+		this.interval = interval;
+		this.samples = Math.max( samples, 1 );
+		this.maxDepth = Math.max( maxDepth, 0 );
+		this.tolerance = tolerance;
+
+		nd = interval.numDimensions();
+		// like the 2d transforms of 3d images, coordinates the transform does
+		// not have are left unchanged
+		final int n = Math.max( nd, xfm.numTargetDimensions() );
+		min = new double[ n ];
+		max = new double[ n ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		src = new double[ Math.max( nd, xfm.numSourceDimensions() ) ];
+		tgt = new double[ n ];
+		// every patch on the finest level still has a center
+		finest = ( long ) this.samples << ( this.maxDepth + 1 );
+	}
+
+	/**
+	 * Estimates the bounding box of the image of an interval under a
+	 * transform with the default parameters.
+	 *
+	 * @param xfm the transform
+	 * @param interval the interval
+	 * @return the bounding box, or null if no point transformed to a finite value
+	 */
+	public static RealInterval estimate( final RealTransform xfm, final RealInterval interval )
+	{
+		return estimate( xfm, interval, DEFAULT_SAMPLES, DEFAULT_MAX_DEPTH, DEFAULT_TOLERANCE );
+	}
+
+	/**
+	 * Estimates the bounding box of the image of an interval under a
+	 * transform.
+	 *
+	 * @param xfm the transform
+	 * @param interval the interval
+	 * @param samples the number of patches along every dimension of a face
+	 * @param maxDepth the number of times a patch may be split in half
+	 * @param tolerance the largest deviation of a patch from flat for which
+	 *            it is not split, in the units of the target space
+	 * @return the bounding box, or null if no point transformed to a finite value
+	 */
+	public static RealInterval estimate( final RealTransform xfm, final RealInterval interval,
+			final int samples, final int maxDepth, final double tolerance )
+	{
+		final BoundingBoxEstimator est = new BoundingBoxEstimator( xfm, interval, samples, maxDepth, tolerance );
+		return est.run();
+	}
+
+	/**
+	 * Estimates the bounding box of the image of an interval under a transform
+	 * with the default parameters, rounded outwards to integer coordinates.
+	 * Coordinates within {@link #ROUNDING_EPS} of an integer are rounded to it.
+	 *
+	 * @param xfm the transform
+	 * @param interval the interval
+	 * @return the bounding box, or null if no point transformed to a finite value
+	 */
+	public static FinalInterval estimateInterval( final RealTransform xfm, final RealInterval interval )
+	{
+		final RealInterval bounds = estimate( xfm, interval );
+		if ( bounds == null )
+			return null;
+
+		final int n = bounds.numDimensions();
+		final long[] lo = new long[ n ];
+		final long[] hi = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			lo[ d ] = ( long ) Math.floor( bounds.realMin( d ) + ROUNDING_EPS );
+			hi[ d ] = ( long ) Math.ceil( bounds.realMax( d ) - ROUNDING_EPS );
+		}
+		return new FinalInterval( lo, hi );
+	}
+
+	private RealInterval run()
+	{
+		int numActive = 0;
+		final int[] active = new int[ nd ];
+		for ( int d = 0; d < nd; d++ )
+			if ( interval.realMax( d ) > interval.realMin( d ) )
+				active[ numActive++ ] = d;
+
+		if ( numActive == 0 )
+		{
+			faceDims = new int[ 0 ];
+			facePoints.clear();
+			point( -1, 0, new long[ 0 ] );
+		}
+
+		// the faces normal to every dimension that has an extent
+		for ( int a = 0; a < numActive; a++ )
+		{
+			faceDims = new int[ numActive - 1 ];
+			for ( int i = 0, j = 0; i < numActive; i++ )
+				if ( i != a )
+					faceDims[ j++ ] = active[ i ];
+
+			for ( int side = 0; side < 2; side++ )
+			{
+				facePoints.clear();
+				final long[] cell = new long[ faceDims.length ];
+				final long numCells = pow( samples, faceDims.length );
+				final long step = finest / samples;
+				for ( long c = 0; c < numCells; c++ )
+				{
+					long r = c;
+					for ( int i = 0; i < cell.length; i++ )
+					{
+						cell[ i ] = ( r % samples ) * step;
+						r /= samples;
+					}
+					patch( active[ a ], side, cell, step );
+				}
+			}
+		}
+
+		for ( int d = 0; d < min.length; d++ )
+			if ( !( min[ d ] <= max[ d ] ) )
+				return null;
+
+		final double[] lo = new double[ min.length ];
+		final double[] hi = new double[ max.length ];
+		for ( int d = 0; d < min.length; d++ )
+		{
+			// flat dimensions, like z of a 2d image, stay flat
+			final double pad = max[ d ] > min[ d ] ? maxDeviation : 0;
+			lo[ d ] = min[ d ] - pad;
+			hi[ d ] = max[ d ] + pad;
+		}
+		return new FinalRealInterval( lo, hi );
+	}
+
+	/*
+	 * samples the patch of the face normal to dimension normal at the given
+	 * side, with the given lower corner and size on the finest lattice of the
+	 * face, splitting it if it is curved
+	 */
+	private void patch( final int normal, final int side, final long[] corner, final long size )
+	{
+		final int k = faceDims.length;
+		final int numCorners = 1 << k;
+		final double[] mean = new double[ tgt.length ];
+		final long[] pos = new long[ k ];
+		boolean finite = true;
+		for ( int c = 0; c < numCorners; c++ )
+		{
+			for ( int i = 0; i < k; i++ )
+				pos[ i ] = corner[ i ] + ( ( c & ( 1 << i ) ) != 0 ? size : 0 );
+
+			final double[] q = point( normal, side, pos );
+			if ( q == null )
+				finite = false;
+			else
+				for ( int d = 0; d < q.length; d++ )
+					mean[ d ] += q[ d ] / numCorners;
+		}
+
+		if ( k == 0 )
+			return;
+
+		final long half = size / 2;
+		for ( int i = 0; i < k; i++ )
+			pos[ i ] = corner[ i ] + half;
+
+		final double[] center = point( normal, side, pos );
+		double deviation = Double.POSITIVE_INFINITY;
+		if ( finite && center != null )
+		{
+			double sqrErr = 0;
+			for ( int d = 0; d < center.length; d++ )
+				sqrErr += ( center[ d ] - mean[ d ] ) * ( center[ d ] - mean[ d ] );
+
+			deviation = Math.sqrt( sqrErr );
+		}
+
+		if ( deviation <= tolerance || half % 2 != 0 )
+		{
+			if ( deviation < Double.POSITIVE_INFINITY )
+				maxDeviation = Math.max( maxDeviation, deviation );
+
+			return;
+		}
+
+		final long[] child = new long[ k ];
+		for ( int c = 0; c < numCorners; c++ )
+		{
+			for ( int i = 0; i < k; i++ )
+				child[ i ] = corner[ i ] + ( ( c & ( 1 << i ) ) != 0 ? half : 0 );
+
+			patch( normal, side, child, half );
+		}
+	}
+
+	/*
+	 * transforms a point of the current face, given on its finest lattice, and
+	 * includes it in the bounds
+	 */
+	private double[] point( final int normal, final int side, final long[] pos )
+	{
+		long key = 0;
+		for ( int i = pos.length - 1; i >= 0; i-- )
+			key = key * ( finest + 1 ) + pos[ i ];
+
+		if ( facePoints.containsKey( key ) )
+			return facePoints.get( key );
+
+		Arrays.fill( src, 0 );
+		for ( int d = 0; d < nd; d++ )
+			src[ d ] = interval.realMin( d );
+
+		if ( normal >= 0 )
+			src[ normal ] = side == 0 ? interval.realMin( normal ) : interval.realMax( normal );
+
+		for ( int i = 0; i < pos.length; i++ )
+		{
+			final int d = faceDims[ i ];
+			final double w = ( double ) pos[ i ] / finest;
+			src[ d ] = ( 1 - w ) * interval.realMin( d ) + w * interval.realMax( d );
+		}
+
+		System.arraycopy( src, 0, tgt, 0, Math.min( src.length, tgt.length ) );
+		xfm.apply( src, tgt );
+
+		boolean finite = true;
+		for ( int d = 0; d < tgt.length; d++ )
+			finite &= !Double.isNaN( tgt[ d ] ) && !Double.isInfinite( tgt[ d ] );
+
+		final double[] q = finite ? tgt.clone() : null;
+		if ( finite )
+			for ( int d = 0; d < q.length; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], q[ d ] );
+				max[ d ] = Math.max( max[ d ], q[ d ] );
+			}
+
+		facePoints.put( key, q );
+		return q;
+	}
+
+	private static long pow( final long base, final int exp )
+	{
+		long r = 1;
+		for ( int i = 0; i < exp; i++ )
+			r *= base;
+
+		return r;
+	}
+}
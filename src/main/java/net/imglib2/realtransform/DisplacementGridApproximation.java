@@ -0,0 +1,549 @@
+package net.imglib2.realtransform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+
+/**
+ * A {@link RealTransform} that approximates another transform by
+ * interpolating displacements sampled on a regular grid.
+ * <p>
+ * The grid covers a fixed real interval. Cells whose center is not reproduced
+ * to within a tolerance by linear interpolation are refined with a finer
+ * sub-grid, so that regions near landmarks get more samples than smooth
+ * regions. Points outside of the interval are passed to the exact transform.
+ * Dimensions with zero extent are sampled once and treated as constant.
+ * <p>
+ * The sampled displacements are immutable and shared between copies, so
+ * copies are cheap. This is meant for interactive rendering only; anything
+ * that needs the exact result should use the exact transform.
+ */
+public class DisplacementGridApproximation implements RealTransform
+{
+	private final RealTransform exact;
+
+	private final int nd;
+
+	private final double[] origin;
+
+	private final double[] spacing;
+
+	private final int[] dims;
+
+	/*
+	 * coarse displacements [ d ][ node ]
+	 */
+	private final double[][] displacements;
+
+	/*
+	 * refined sub grids [ cell ][ d ][ subnode ], null for cells that are not refined
+	 */
+	private final double[][][] refined;
+
+	private final int[] refineFactor;
+
+	private final double[] tmpSrc;
+
+	private final double[] tmpTgt;
+
+	private final double[] frac;
+
+	private final double[] disp;
+
+	private final int[] subDims;
+
+	private DisplacementGridApproximation(
+			final RealTransform exact,
+			final double[] origin, final double[] spacing, final int[] dims,
+			final double[][] displacements, final double[][][] refined, final int[] refineFactor )
+	{
+		this.exact = exact;
+		this.nd = origin.length;
+		this.origin = origin;
+		this.spacing = spacing;
+		this.dims = dims;
+		this.displacements = displacements;
+		this.refined = refined;
+		this.refineFactor = refineFactor;
+
+		tmpSrc = new double[ nd ];
+		tmpTgt = new double[ nd ];
+		frac = new double[ nd ];
+		disp = new double[ nd ];
+		subDims = new int[ nd ];
+	}
+
+	/**
+	 * Samples a transform over an interval.
+	 *
+	 * @param exact the transform to approximate
+	 * @param interval the region over which the approximation is valid
+	 * @param coarseSpacing the spacing of the coarse grid along every dimension
+	 * @param tolerance the interpolation error at which a cell is refined
+	 * @param maxRefineLevel the maximum number of times a cell is subdivided (by a factor of two each time)
+	 * @param numThreads number of threads
+	 * @return the approximation
+	 * @throws InterruptedException if the calling thread is interrupted while sampling
+	 */
+	public static DisplacementGridApproximation build(
+			final RealTransform exact,
+			final RealInterval interval,
+			final double coarseSpacing,
+			final double tolerance,
+			final int maxRefineLevel,
+			final int numThreads ) throws InterruptedException
+	{
+		final int nThreads = Math.max( 1, numThreads );
+		final int nd = interval.numDimensions();
+		final double[] origin = new double[ nd ];
+		final double[] spacing = new double[ nd ];
+		final int[] dims = new int[ nd ];
+		for ( int d = 0; d < nd; d++ )
+		{
+			origin[ d ] = interval.realMin( d );
+			final double extent = interval.realMax( d ) - interval.realMin( d );
+			if ( extent <= 0 )
+			{
+				dims[ d ] = 1;
+				spacing[ d ] = 1;
+			}
+			else
+			{
+				final int nCells = Math.max( 1, ( int ) Math.ceil( extent / coarseSpacing ) );
+				dims[ d ] = nCells + 1;
+				spacing[ d ] = extent / nCells;
+			}
+		}
+
+		int numNodes = 1;
+		for ( int d = 0; d < nd; d++ )
+			numNodes *= dims[ d ];
+
+		final int[] cellDims = cellDimensions( dims );
+		int numCells = 1;
+		for ( int d = 0; d < nd; d++ )
+			numCells *= cellDims[ d ];
+
+		final double[][] displacements = new double[ nd ][ numNodes ];
+		final double[][][] refined = new double[ numCells ][][];
+		final int[] refineFactor = new int[ numCells ];
+
+		final ExecutorService threadPool = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			// sample the coarse grid
+			final List< Callable< Void > > jobs = new ArrayList<>();
+			for ( int t = 0; t < nThreads; t++ )
+			{
+				final int offset = t;
+				jobs.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws InterruptedException
+					{
+						final RealTransform xfm = exact.copy();
+						final double[] p = new double[ nd ];
+						final double[] q = new double[ nd ];
+						final int[] pos = new int[ nd ];
+						for ( int i = offset; i < displacements[ 0 ].length; i += nThreads )
+						{
+							if ( Thread.currentThread().isInterrupted() )
+								throw new InterruptedException();
+
+							indexToPosition( i, dims, pos );
+							for ( int d = 0; d < nd; d++ )
+								p[ d ] = origin[ d ] + pos[ d ] * spacing[ d ];
+
+							xfm.apply( p, q );
+							for ( int d = 0; d < nd; d++ )
+								displacements[ d ][ i ] = q[ d ] - p[ d ];
+						}
+						return null;
+					}
+				} );
+			}
+			invokeAll( threadPool, jobs );
+
+			// refine cells that the coarse grid does not reproduce well
+			final DisplacementGridApproximation coarseGrid = new DisplacementGridApproximation(
+					exact, origin, spacing, dims, displacements, new double[ numCells ][][], new int[ numCells ] );
+
+			jobs.clear();
+			for ( int t = 0; t < nThreads; t++ )
+			{
+				final int offset = t;
+				jobs.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws InterruptedException
+					{
+						final DisplacementGridApproximation coarse = coarseGrid.copy();
+						final RealTransform xfm = coarse.exact;
+						final double[] p = new double[ nd ];
+						final double[] q = new double[ nd ];
+						final double[] r = new double[ nd ];
+						final int[] cellPos = new int[ nd ];
+						for ( int c = offset; c < refined.length; c += nThreads )
+						{
+							if ( Thread.currentThread().isInterrupted() )
+								throw new InterruptedException();
+
+							indexToPosition( c, cellDims, cellPos );
+							for ( int d = 0; d < nd; d++ )
+								p[ d ] = origin[ d ] + ( cellPos[ d ] + ( dims[ d ] > 1 ? 0.5 : 0 ) ) * spacing[ d ];
+
+							xfm.apply( p, q );
+							coarse.interpolate( p, r );
+							if ( distance( q, r ) <= tolerance )
+								continue;
+
+							for ( int level = 1; level <= maxRefineLevel; level++ )
+							{
+								final int f = 1 << level;
+								refined[ c ] = sampleCell( xfm, origin, spacing, dims, cellPos, f );
+								refineFactor[ c ] = f;
+
+								if ( level == maxRefineLevel ||
+										subCellError( xfm, origin, spacing, dims, cellPos, f, refined[ c ] ) <= tolerance )
+									break;
+							}
+						}
+						return null;
+					}
+				} );
+			}
+			invokeAll( threadPool, jobs );
+		}
+		finally
+		{
+			threadPool.shutdownNow();
+		}
+
+		return new DisplacementGridApproximation( exact, origin, spacing, dims, displacements, refined, refineFactor );
+	}
+
+	/**
+	 * @return the exact transform this approximates
+	 */
+	public RealTransform getExactTransform()
+	{
+		return exact;
+	}
+
+	/**
+	 * @return the number of coarse cells that were refined
+	 */
+	public int numRefinedCells()
+	{
+		int count = 0;
+		for ( final int f : refineFactor )
+			if ( f > 0 )
+				count++;
+
+		return count;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return nd;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return nd;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		if ( !interpolate( source, target ) )
+			exact.apply( source, target );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		source.localize( tmpSrc );
+		apply( tmpSrc, tmpTgt );
+		target.setPosition( tmpTgt );
+	}
+
+	@Override
+	public DisplacementGridApproximation copy()
+	{
+		return new DisplacementGridApproximation( exact.copy(), origin, spacing, dims, displacements, refined, refineFactor );
+	}
+
+	/**
+	 * Interpolates the displacement at the source point.
+	 *
+	 * @return false if the point is outside of the sampled interval, in which
+	 *         case target is not modified
+	 */
+	private boolean interpolate( final double[] source, final double[] target )
+	{
+		// locate the coarse cell
+		int cell = 0;
+		int cellStride = 1;
+		int node = 0;
+		int nodeStride = 1;
+		for ( int d = 0; d < nd; d++ )
+		{
+			if ( dims[ d ] == 1 )
+			{
+				frac[ d ] = 0;
+				continue;
+			}
+
+			final double u = ( source[ d ] - origin[ d ] ) / spacing[ d ];
+			if ( u < 0 || u > dims[ d ] - 1 )
+				return false;
+
+			final int i = Math.min( ( int ) u, dims[ d ] - 2 );
+			frac[ d ] = u - i;
+			cell += i * cellStride;
+			node += i * nodeStride;
+			cellStride *= dims[ d ] - 1;
+			nodeStride *= dims[ d ];
+		}
+
+		final int f = refineFactor[ cell ];
+		if ( f == 0 )
+			multilinear( displacements, dims, node, source, target );
+		else
+		{
+			// locate the sub cell
+			for ( int d = 0; d < nd; d++ )
+				subDims[ d ] = dims[ d ] == 1 ? 1 : f + 1;
+
+			int subNode = 0;
+			int subStride = 1;
+			for ( int d = 0; d < nd; d++ )
+			{
+				if ( subDims[ d ] == 1 )
+					continue;
+
+				final double u = frac[ d ] * f;
+				final int i = Math.min( ( int ) u, f - 1 );
+				frac[ d ] = u - i;
+				subNode += i * subStride;
+				subStride *= subDims[ d ];
+			}
+			multilinear( refined[ cell ], subDims, subNode, source, target );
+		}
+		return true;
+	}
+
+	/*
+	 * target = source + multilinear interpolation of the displacements in the
+	 * cell whose first corner is node
+	 */
+	private void multilinear( final double[][] values, final int[] gridDims, final int node,
+			final double[] source, final double[] target )
+	{
+		for ( int d = 0; d < nd; d++ )
+			disp[ d ] = 0;
+
+		final int numCorners = 1 << nd;
+		for ( int corner = 0; corner < numCorners; corner++ )
+		{
+			double w = 1;
+			int idx = node;
+			int stride = 1;
+			boolean skip = false;
+			for ( int d = 0; d < nd; d++ )
+			{
+				final boolean upper = ( corner & ( 1 << d ) ) != 0;
+				if ( gridDims[ d ] == 1 )
+				{
+					if ( upper )
+					{
+						skip = true;
+						break;
+					}
+					continue;
+				}
+
+				if ( upper )
+				{
+					w *= frac[ d ];
+					idx += stride;
+				}
+				else
+					w *= 1 - frac[ d ];
+
+				stride *= gridDims[ d ];
+			}
+
+			if ( skip || w == 0 )
+				continue;
+
+			for ( int d = 0; d < nd; d++ )
+				disp[ d ] += w * values[ d ][ idx ];
+		}
+
+		for ( int d = 0; d < nd; d++ )
+			target[ d ] = source[ d ] + disp[ d ];
+	}
+
+	private static double[][] sampleCell( final RealTransform xfm,
+			final double[] origin, final double[] spacing, final int[] dims, final int[] cellPos, final int f )
+	{
+		final int nd = origin.length;
+		final int[] subDims = subDimensions( dims, f );
+		int n = 1;
+		for ( int d = 0; d < nd; d++ )
+			n *= subDims[ d ];
+
+		final double[][] disp = new double[ nd ][ n ];
+		final double[] p = new double[ nd ];
+		final double[] q = new double[ nd ];
+		final int[] pos = new int[ nd ];
+		for ( int i = 0; i < n; i++ )
+		{
+			indexToPosition( i, subDims, pos );
+			for ( int d = 0; d < nd; d++ )
+				p[ d ] = origin[ d ] + ( cellPos[ d ] + ( double ) pos[ d ] / f ) * spacing[ d ];
+
+			xfm.apply( p, q );
+			for ( int d = 0; d < nd; d++ )
+				disp[ d ][ i ] = q[ d ] - p[ d ];
+		}
+		return disp;
+	}
+
+	/*
+	 * the largest interpolation error at the centers of the sub cells
+	 */
+	private static double subCellError( final RealTransform xfm,
+			final double[] origin, final double[] spacing, final int[] dims, final int[] cellPos, final int f,
+			final double[][] disp )
+	{
+		final int nd = origin.length;
+		final int[] subDims = subDimensions( dims, f );
+		final int[] subCellDims = cellDimensions( subDims );
+		int n = 1;
+		for ( int d = 0; d < nd; d++ )
+			n *= subCellDims[ d ];
+
+		final double[] p = new double[ nd ];
+		final double[] q = new double[ nd ];
+		final double[] r = new double[ nd ];
+		final int[] pos = new int[ nd ];
+		double maxErr = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			indexToPosition( i, subCellDims, pos );
+			for ( int d = 0; d < nd; d++ )
+			{
+				final double offset = subDims[ d ] > 1 ? 0.5 : 0;
+				p[ d ] = origin[ d ] + ( cellPos[ d ] + ( pos[ d ] + offset ) / f ) * spacing[ d ];
+			}
+			xfm.apply( p, q );
+
+			// the sub cell centers are the average of their corners
+			for ( int d = 0; d < nd; d++ )
+				r[ d ] = p[ d ] + cornerAverage( disp[ d ], subDims, pos );
+
+			maxErr = Math.max( maxErr, distance( q, r ) );
+		}
+		return maxErr;
+	}
+
+	private static double cornerAverage( final double[] disp, final int[] gridDims, final int[] cellPos )
+	{
+		final int nd = gridDims.length;
+		double sum = 0;
+		int count = 0;
+		for ( int corner = 0; corner < ( 1 << nd ); corner++ )
+		{
+			int idx = 0;
+			int stride = 1;
+			boolean skip = false;
+			for ( int d = 0; d < nd; d++ )
+			{
+				final boolean upper = ( corner & ( 1 << d ) ) != 0;
+				if ( gridDims[ d ] == 1 && upper )
+				{
+					skip = true;
+					break;
+				}
+				idx += ( cellPos[ d ] + ( upper ? 1 : 0 ) ) * stride;
+				stride *= gridDims[ d ];
+			}
+			if ( skip )
+				continue;
+
+			sum += disp[ idx ];
+			count++;
+		}
+		return sum / count;
+	}
+
+	private static int[] subDimensions( final int[] dims, final int f )
+	{
+		final int[] subDims = new int[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			subDims[ d ] = dims[ d ] == 1 ? 1 : f + 1;
+
+		return subDims;
+	}
+
+	private static int[] cellDimensions( final int[] dims )
+	{
+		final int[] cellDims = new int[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			cellDims[ d ] = Math.max( 1, dims[ d ] - 1 );
+
+		return cellDims;
+	}
+
+	private static void indexToPosition( int index, final int[] dims, final int[] pos )
+	{
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			pos[ d ] = index % dims[ d ];
+			index /= dims[ d ];
+		}
+	}
+
+	private static double distance( final double[] a, final double[] b )
+	{
+		double sqr = 0;
+		for ( int d = 0; d < a.length; d++ )
+		{
+			final double diff = a[ d ] - b[ d ];
+			sqr += diff * diff;
+		}
+		return Math.sqrt( sqr );
+	}
+
+	private static void invokeAll( final ExecutorService threadPool, final List< Callable< Void > > jobs ) throws InterruptedException
+	{
+		final List< Future< Void > > futures = threadPool.invokeAll( jobs );
+		for ( final Future< Void > f : futures )
+		{
+			try
+			{
+				f.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof InterruptedException )
+					throw ( InterruptedException ) e.getCause();
+
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+	}
+}
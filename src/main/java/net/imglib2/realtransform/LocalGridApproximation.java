@@ -0,0 +1,243 @@
+package net.imglib2.realtransform;
+
+import java.util.Arrays;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+
+/**
+ * A {@link RealTransform} that approximates another transform by multilinear
+ * interpolation on a regular lattice, evaluating the exact transform lazily
+ * only at the corners of the lattice cells that are actually visited.
+ * <p>
+ * Unlike {@link DisplacementGridApproximation}, the lattice is unbounded and
+ * nothing is sampled up front, which suits exporting large images block by
+ * block: every copy keeps a small cache of recently visited cells, and
+ * neighbouring points of an output block fall into the same few cells.
+ * <p>
+ * When a cell is first visited, the exact transform is also evaluated at its
+ * center. If the interpolated value there is further than the tolerance from
+ * the exact one, or any corner is not finite, every point in that cell is
+ * transformed exactly instead.
+ * <p>
+ * Copies share nothing mutable, so every thread should use its own copy.
+ */
+public class LocalGridApproximation implements RealTransform
+{
+	private static final int NUM_SLOTS = 1024;
+
+	private final RealTransform exact;
+
+	private final int nd;
+
+	private final int numCorners;
+
+	private final double[] origin;
+
+	private final double[] spacing;
+
+	private final double tolerance;
+
+	/*
+	 * direct mapped cell cache
+	 */
+	private final long[] keys;
+
+	private final boolean[] used;
+
+	private final boolean[] useExact;
+
+	/*
+	 * transformed cell corners [ slot ][ corner * nd + d ]
+	 */
+	private final double[][] corners;
+
+	private final long[] cell;
+
+	private final double[] frac;
+
+	private final double[] p;
+
+	private final double[] q;
+
+	private final double[] tmpSrc;
+
+	private final double[] tmpTgt;
+
+	/**
+	 * @param exact the transform to approximate
+	 * @param origin a node of the lattice
+	 * @param spacing the spacing of the lattice along every dimension
+	 * @param tolerance the largest interpolation error at a cell center for
+	 *            which the cell is interpolated
+	 */
+	public LocalGridApproximation( final RealTransform exact, final double[] origin, final double[] spacing, final double tolerance )
+	{
+		this.exact = exact;
+		this.nd = exact.numSourceDimensions();
+		this.numCorners = 1 << nd;
+		this.origin = origin;
+		this.spacing = spacing;
+		this.tolerance = tolerance;
+
+		keys = new long[ NUM_SLOTS * nd ];
+		used = new boolean[ NUM_SLOTS ];
+		useExact = new boolean[ NUM_SLOTS ];
+		corners = new double[ NUM_SLOTS ][ numCorners * nd ];
+
+		cell = new long[ nd ];
+		frac = new double[ nd ];
+		p = new double[ nd ];
+		q = new double[ nd ];
+		tmpSrc = new double[ nd ];
+		tmpTgt = new double[ nd ];
+	}
+
+	/**
+	 * @return the exact transform this approximates
+	 */
+	public RealTransform getExactTransform()
+	{
+		return exact;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return nd;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return exact.numTargetDimensions();
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		for ( int d = 0; d < nd; d++ )
+		{
+			final double u = ( source[ d ] - origin[ d ] ) / spacing[ d ];
+			if ( Double.isNaN( u ) || Double.isInfinite( u ) )
+			{
+				exact.apply( source, target );
+				return;
+			}
+
+			final double c = Math.floor( u );
+			cell[ d ] = ( long ) c;
+			frac[ d ] = u - c;
+		}
+
+		final int slot = lookup();
+		if ( useExact[ slot ] )
+		{
+			exact.apply( source, target );
+			return;
+		}
+
+		final double[] values = corners[ slot ];
+		Arrays.fill( target, 0, nd, 0 );
+		for ( int corner = 0; corner < numCorners; corner++ )
+		{
+			double w = 1;
+			for ( int d = 0; d < nd; d++ )
+				w *= ( corner & ( 1 << d ) ) != 0 ? frac[ d ] : 1 - frac[ d ];
+
+			if ( w == 0 )
+				continue;
+
+			final int offset = corner * nd;
+			for ( int d = 0; d < nd; d++ )
+				target[ d ] += w * values[ offset + d ];
+		}
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		source.localize( tmpSrc );
+		apply( tmpSrc, tmpTgt );
+		target.setPosition( tmpTgt );
+	}
+
+	@Override
+	public LocalGridApproximation copy()
+	{
+		return new LocalGridApproximation( exact.copy(), origin, spacing, tolerance );
+	}
+
+	/*
+	 * returns the cache slot of the current cell, transforming its corners if
+	 * it is not cached
+	 */
+	private int lookup()
+	{
+		long h = 0;
+		for ( int d = 0; d < nd; d++ )
+			h = h * 0x9E3779B97F4A7C15L + cell[ d ];
+
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+
+		final int slot = ( int ) h & ( NUM_SLOTS - 1 );
+		final int key = slot * nd;
+		if ( used[ slot ] )
+		{
+			boolean hit = true;
+			for ( int d = 0; d < nd && hit; d++ )
+				hit = keys[ key + d ] == cell[ d ];
+
+			if ( hit )
+				return slot;
+		}
+
+		used[ slot ] = true;
+		for ( int d = 0; d < nd; d++ )
+			keys[ key + d ] = cell[ d ];
+
+		final double[] values = corners[ slot ];
+		boolean finite = true;
+		for ( int corner = 0; corner < numCorners; corner++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				p[ d ] = origin[ d ] + ( cell[ d ] + ( ( corner & ( 1 << d ) ) != 0 ? 1 : 0 ) ) * spacing[ d ];
+
+			exact.apply( p, q );
+			final int offset = corner * nd;
+			for ( int d = 0; d < nd; d++ )
+			{
+				values[ offset + d ] = q[ d ];
+				finite &= !Double.isNaN( q[ d ] ) && !Double.isInfinite( q[ d ] );
+			}
+		}
+
+		if ( !finite )
+		{
+			useExact[ slot ] = true;
+			return slot;
+		}
+
+		// the interpolated value at the center is the average of the corners
+		for ( int d = 0; d < nd; d++ )
+			p[ d ] = origin[ d ] + ( cell[ d ] + 0.5 ) * spacing[ d ];
+
+		exact.apply( p, q );
+
+		double sqrErr = 0;
+		for ( int d = 0; d < nd; d++ )
+		{
+			double mean = 0;
+			for ( int corner = 0; corner < numCorners; corner++ )
+				mean += values[ corner * nd + d ];
+
+			final double diff = mean / numCorners - q[ d ];
+			sqrErr += diff * diff;
+		}
+		useExact[ slot ] = !( Math.sqrt( sqrErr ) <= tolerance );
+
+		return slot;
+	}
+}
@@ -0,0 +1,121 @@
+package bdv.img;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bigwarp.landmarks.SyntheticLandmarks;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Per-sample cost of rendering a {@link WarpedSource}, with the transform
+ * BigWarp sets on moving sources for a thin plate spline.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx8g" )
+public class WarpedSourceBenchmark
+{
+	private static final int SIZE = ( int ) SyntheticLandmarks.SIZE;
+
+	@Param( { "2", "3" } )
+	public int nd;
+
+	@Param( { "10", "100", "1000", "10000" } )
+	public int numLandmarks;
+
+	@Param( { "NEARESTNEIGHBOR", "NLINEAR" } )
+	public Interpolation interpolation;
+
+	private RealRandomAccess< FloatType > access;
+
+	private final double[] position = new double[ 3 ];
+
+	@Setup
+	public void setup()
+	{
+		final ThinPlateR2LogRSplineKernelTransform tps = SyntheticLandmarks.model( nd, numLandmarks, 1 ).getTransform();
+		InvertibleRealTransform xfm = new WrappedIterativeInvertibleRealTransform<>( new ThinplateSplineTransform( tps ) );
+
+		// 128 slices keep the volume at 128 MB
+		final ArrayImg< FloatType, FloatArray > img;
+		if ( nd == 2 )
+		{
+			img = ArrayImgs.floats( SIZE, SIZE, 1 );
+			xfm = new Wrapped2DTransformAs3D( xfm );
+		}
+		else
+			img = ArrayImgs.floats( SIZE, SIZE, 128 );
+
+		int v = 0;
+		for ( final FloatType t : img )
+			t.set( v++ % 251 );
+
+		final WarpedSource< FloatType > source = new WarpedSource<>(
+				new RandomAccessibleIntervalSource<>( img, new FloatType(), "image" ), "warped" );
+		source.updateTransform( xfm );
+		source.setIsTransformed( true );
+
+		access = source.getInterpolatedSource( 0, 0, interpolation ).realRandomAccess();
+	}
+
+	/*
+	 * walk through the volume like a renderer would
+	 */
+	private void next()
+	{
+		position[ 0 ] += 0.731;
+		if ( position[ 0 ] > SIZE )
+		{
+			position[ 0 ] = 0;
+			position[ 1 ] = ( position[ 1 ] + 1.37 ) % SIZE;
+			if ( nd == 3 )
+				position[ 2 ] = ( position[ 2 ] + 0.11 ) % 128;
+		}
+	}
+
+	@Benchmark
+	public double sample()
+	{
+		next();
+		access.setPosition( position );
+		return access.get().getRealDouble();
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( WarpedSourceBenchmark.class.getSimpleName() )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
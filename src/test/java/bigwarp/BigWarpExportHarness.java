@@ -0,0 +1,724 @@
+package bigwarp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.janelia.utility.parse.ParseUtils;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import bdv.export.ProgressWriter;
+import bdv.ij.ApplyBigwarpPlugin;
+import bdv.viewer.Interpolation;
+import bigwarp.BigWarpExporter.ParallelizationPolicy;
+import bigwarp.landmarks.LandmarkTableModel;
+import bigwarp.landmarks.Landmarks;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Runs {@link ApplyBigwarpPlugin#apply} headless for every combination of
+ * field of view and resolution option, on generated images, checks the
+ * output against stored checksums and reports the throughput of every
+ * thread count and {@link ParallelizationPolicy}.
+ * <p>
+ * The scenarios are named "fov_res" like the methods of the ExportTester,
+ * with a "v_" prefix for virtual stacks, e.g. tgt_tgt, pix_spc, lmk_mvg or
+ * v_tgt_tgt. Fields of view are tgt (target), mvg (warped moving), uni
+ * (union of both), lmk (landmark points), spc (specified in physical units),
+ * pix (specified in pixels), lmphy and lmpix (cubes around the landmarks
+ * matching ".*5"); resolutions are tgt, mvg and spc.
+ * <p>
+ * The moving image is size x size x size/4 pixels of 0.2 x 0.2 x 0.4, the
+ * target image has the same number of pixels of 1 x 1 x 1, and 32 landmarks
+ * map between them with a smooth deformation. Everything is generated from
+ * fixed seeds, so the output only changes if the export does.
+ * <p>
+ * The expected checksums are read from {@link #CHECKSUMS_RESOURCE} unless a
+ * file is given. They include the checksums of the generated images, so that
+ * a change of the generators is not mistaken for a change of the export.
+ * Record checksums once with {@code --record}, into
+ * src/test/resources/export-checksums.properties to update the stored ones,
+ * then run on every node type with the thread counts and policies to
+ * compare. Virtual stacks are
+ * rendered lazily, so they are run once, and their time includes reading
+ * every voxel. The exit code is non-zero if any output differs from its
+ * checksum, or, for new scenarios, from the first run of the scenario.
+ */
+public class BigWarpExportHarness
+{
+	public static final String[] FIELDS_OF_VIEW = new String[] {
+			ApplyBigwarpPlugin.TARGET,
+			ApplyBigwarpPlugin.MOVING_WARPED,
+			ApplyBigwarpPlugin.UNION_TARGET_MOVING,
+			ApplyBigwarpPlugin.LANDMARK_POINTS,
+			ApplyBigwarpPlugin.SPECIFIED_PHYSICAL,
+			ApplyBigwarpPlugin.SPECIFIED_PIXEL,
+			ApplyBigwarpPlugin.LANDMARK_POINT_CUBE_PHYSICAL,
+			ApplyBigwarpPlugin.LANDMARK_POINT_CUBE_PIXEL };
+
+	private static final String[] FIELD_OF_VIEW_NAMES = new String[] {
+			"tgt", "mvg", "uni", "lmk", "spc", "pix", "lmphy", "lmpix" };
+
+	public static final String[] RESOLUTIONS = new String[] {
+			ApplyBigwarpPlugin.TARGET,
+			ApplyBigwarpPlugin.MOVING,
+			ApplyBigwarpPlugin.SPECIFIED };
+
+	private static final String[] RESOLUTION_NAMES = new String[] { "tgt", "mvg", "spc" };
+
+	public static final String POINT_FILTER = ".*5";
+
+	public static final int NUM_LANDMARKS = 32;
+
+	public static final double[] MOVING_RESOLUTION = new double[] { 0.2, 0.2, 0.4 };
+
+	public static final double[] TARGET_RESOLUTION = new double[] { 1, 1, 1 };
+
+	public static final double[] SPECIFIED_RESOLUTION = new double[] { 0.8, 0.8, 0.8 };
+
+	/**
+	 * The checksums checked if no file is given.
+	 */
+	public static final String CHECKSUMS_RESOURCE = "/export-checksums.properties";
+
+	private transient JCommander jCommander;
+
+	@Parameter(names = {"--size", "-s"}, description = "Width and height of the generated images, the depth is a quarter of it" )
+	private int size = 64;
+
+	@Parameter(names = {"--threads", "-j"}, description = "Thread counts to compare, e.g. \"1,4,16\". "
+			+ "Defaults to powers of two up to the number of processors",
+			converter = ParseUtils.IntArrayConverter.class )
+	private int[] threads;
+
+	@Parameter(names = {"--policies", "-p"}, description = "Parallelization policies to compare {BLOCK,SLICE,ITER}" )
+	private List< String > policies = Arrays.asList( "BLOCK", "SLICE", "ITER" );
+
+	@Parameter(names = {"--scenarios"}, description = "Regular expression selecting the scenarios to run, e.g. \"tgt_.*|v_.*\"" )
+	private String scenarioPattern = ".*";
+
+	@Parameter(names = {"--repeats", "-r"}, description = "Runs per setting, the fastest is reported" )
+	private int repeats = 1;
+
+	@Parameter(names = {"--checksums", "-c"}, description = "Properties file of the expected checksums, " + CHECKSUMS_RESOURCE + " on the class path by default" )
+	private String checksumPath;
+
+	@Parameter(names = {"--record"}, description = "Write the checksums of this run to the checksums file instead of checking them" )
+	private boolean record = false;
+
+	@Parameter(names = {"--help", "-h"}, help = true)
+	private boolean help;
+
+	/**
+	 * An export with one field of view and resolution option.
+	 */
+	public static class Scenario
+	{
+		public final String name;
+
+		public final String fieldOfView;
+
+		public final String resolution;
+
+		public final boolean isVirtual;
+
+		public Scenario( final String name, final String fieldOfView, final String resolution, final boolean isVirtual )
+		{
+			this.name = name;
+			this.fieldOfView = fieldOfView;
+			this.resolution = resolution;
+			this.isVirtual = isVirtual;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * The result of one export.
+	 */
+	public static class Run
+	{
+		public final Scenario scenario;
+
+		/**
+		 * The policy, null for single threaded and virtual exports, which
+		 * do not use one.
+		 */
+		public final ParallelizationPolicy policy;
+
+		public final int nThreads;
+
+		public final long voxels;
+
+		public final long nanos;
+
+		public final String checksum;
+
+		public Run( final Scenario scenario, final ParallelizationPolicy policy, final int nThreads,
+				final long voxels, final long nanos, final String checksum )
+		{
+			this.scenario = scenario;
+			this.policy = policy;
+			this.nThreads = nThreads;
+			this.voxels = voxels;
+			this.nanos = nanos;
+			this.checksum = checksum;
+		}
+
+		public double voxelsPerSecond()
+		{
+			return voxels * 1e9 / nanos;
+		}
+
+		public String setting()
+		{
+			if ( scenario.isVirtual )
+				return "virtual";
+
+			return ( policy == null ? "serial" : policy.name() ) + "/" + nThreads;
+		}
+	}
+
+	public BigWarpExportHarness()
+	{}
+
+	public BigWarpExportHarness( final int size, final int[] threads, final List< String > policies,
+			final String scenarioPattern, final String checksumPath, final boolean record )
+	{
+		this.size = size;
+		this.threads = threads;
+		this.policies = policies;
+		this.scenarioPattern = scenarioPattern;
+		this.checksumPath = checksumPath;
+		this.record = record;
+	}
+
+	public static void main( String[] args ) throws IOException
+	{
+		BigWarpExportHarness alg = new BigWarpExportHarness();
+		alg.jCommander = new JCommander( alg );
+		alg.jCommander.setProgramName( "input parser" );
+		try
+		{
+			alg.jCommander.parse( args );
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		if( alg.help || ( alg.record && alg.checksumPath == null ) )
+		{
+			alg.jCommander.usage();
+			return;
+		}
+
+		if( !alg.process() )
+			System.exit( 1 );
+	}
+
+	/**
+	 * @return every combination of field of view and resolution, exported
+	 *         to a stack and to a virtual stack
+	 */
+	public static List< Scenario > scenarios()
+	{
+		final ArrayList< Scenario > scenarios = new ArrayList<>();
+		for ( final boolean isVirtual : new boolean[] { false, true } )
+			for ( int f = 0; f < FIELDS_OF_VIEW.length; f++ )
+				for ( int r = 0; r < RESOLUTIONS.length; r++ )
+				{
+					final String name = ( isVirtual ? "v_" : "" ) + FIELD_OF_VIEW_NAMES[ f ] + "_" + RESOLUTION_NAMES[ r ];
+					scenarios.add( new Scenario( name, FIELDS_OF_VIEW[ f ], RESOLUTIONS[ r ], isVirtual ) );
+				}
+
+		return scenarios;
+	}
+
+	/**
+	 * Runs the selected scenarios with every setting, and prints one line per
+	 * run and the throughput of every setting.
+	 *
+	 * @return true if all outputs match their checksums
+	 * @throws IOException if the checksums can not be read or written
+	 */
+	public boolean process() throws IOException
+	{
+		final Properties stored = loadChecksums( checksumPath );
+		final Properties expected = record ? new Properties() : stored;
+
+		final int[] threadCounts = threads != null ? threads : defaultThreadCounts();
+		final ImagePlus moving = movingImage( size );
+		final ImagePlus target = targetImage( size );
+		final LandmarkTableModel landmarks = landmarks( size );
+
+		final Pattern pattern = Pattern.compile( scenarioPattern );
+		final Map< String, String > checksums = new LinkedHashMap<>();
+		final List< Run > runs = new ArrayList<>();
+		int numFailed = 0;
+		int numNew = 0;
+
+		for ( final ImagePlus input : new ImagePlus[] { moving, target } )
+		{
+			final String key = input.getTitle() + "." + size;
+			final String checksum = checksum( Collections.singletonList( input ) );
+			final String reference = expected.getProperty( key );
+			checksums.put( key, checksum );
+			if ( reference != null && !reference.equals( checksum ) )
+			{
+				System.out.println( "generated " + key + " differs from its checksum, expected " + reference + " but was " + checksum );
+				numFailed++;
+			}
+		}
+
+		System.out.println( String.format( "%-12s %-12s %12s %10s %12s  %s", "scenario", "setting", "voxels", "ms", "voxels/s", "checksum" ) );
+		for ( final Scenario scenario : scenarios() )
+		{
+			if ( !pattern.matcher( scenario.name ).matches() )
+				continue;
+
+			final String key = scenario.name + "." + size;
+			String reference = expected.getProperty( key );
+			if ( reference == null )
+				numNew++;
+
+			for ( final Run run : runScenario( scenario, moving, target, landmarks, threadCounts ) )
+			{
+				final String status;
+				if ( reference == null )
+				{
+					reference = run.checksum;
+					status = "new";
+				}
+				else if ( reference.equals( run.checksum ) )
+					status = "ok";
+				else
+				{
+					status = "FAILED, expected " + reference;
+					numFailed++;
+				}
+
+				checksums.putIfAbsent( key, run.checksum );
+				runs.add( run );
+				System.out.println( String.format( "%-12s %-12s %12d %10.1f %12.4g  %s %s",
+						scenario.name, run.setting(), run.voxels, run.nanos / 1e6, run.voxelsPerSecond(), run.checksum, status ) );
+			}
+		}
+
+		printThroughput( runs );
+
+		if ( numFailed > 0 )
+			System.out.println( numFailed + " exports differ from their checksums" );
+		else if ( !record && numNew > 0 )
+			System.out.println( numNew + " scenarios have no stored checksum, record them with --record" );
+
+		if ( record && numFailed == 0 )
+		{
+			stored.putAll( checksums );
+			try ( OutputStream os = new FileOutputStream( checksumPath ) )
+			{
+				stored.store( os, "bigwarp export checksums, key: scenario.size" );
+			}
+			System.out.println( "wrote " + checksums.size() + " checksums to " + checksumPath );
+		}
+
+		return numFailed == 0;
+	}
+
+	/**
+	 * Reads checksums from a file, or from {@link #CHECKSUMS_RESOURCE} if the
+	 * path is null.
+	 *
+	 * @param path the path of the file
+	 * @return the checksums, empty if the file does not exist
+	 * @throws IOException if the checksums can not be read
+	 */
+	public static Properties loadChecksums( final String path ) throws IOException
+	{
+		final Properties checksums = new Properties();
+		if ( path == null )
+		{
+			try ( InputStream in = BigWarpExportHarness.class.getResourceAsStream( CHECKSUMS_RESOURCE ) )
+			{
+				if ( in != null )
+					checksums.load( in );
+			}
+		}
+		else if ( new File( path ).exists() )
+		{
+			try ( InputStream in = new FileInputStream( path ) )
+			{
+				checksums.load( in );
+			}
+		}
+		return checksums;
+	}
+
+	private List< Run > runScenario( final Scenario scenario, final ImagePlus moving, final ImagePlus target,
+			final LandmarkTableModel landmarks, final int[] threadCounts )
+	{
+		final List< Run > runs = new ArrayList<>();
+		if ( scenario.isVirtual )
+		{
+			runs.add( best( scenario, null, 1, moving, target, landmarks ) );
+			return runs;
+		}
+
+		for ( final int nThreads : threadCounts )
+		{
+			if ( nThreads == 1 )
+			{
+				// a single thread does not use the policy
+				runs.add( best( scenario, null, 1, moving, target, landmarks ) );
+				continue;
+			}
+
+			for ( final String policy : policies )
+				runs.add( best( scenario, ParallelizationPolicy.valueOf( policy.trim().toUpperCase() ),
+						nThreads, moving, target, landmarks ) );
+		}
+		return runs;
+	}
+
+	private Run best( final Scenario scenario, final ParallelizationPolicy policy, final int nThreads,
+			final ImagePlus moving, final ImagePlus target, final LandmarkTableModel landmarks )
+	{
+		Run best = null;
+		for ( int i = 0; i < Math.max( 1, repeats ); i++ )
+		{
+			final Run run = run( scenario, policy, nThreads, moving, target, landmarks );
+			if ( best == null || run.nanos < best.nanos )
+				best = run;
+		}
+		return best;
+	}
+
+	/**
+	 * Exports one scenario.
+	 *
+	 * @param scenario the scenario
+	 * @param policy the policy, the default if null
+	 * @param nThreads the number of threads
+	 * @param moving the moving image
+	 * @param target the target image
+	 * @param landmarks the landmarks
+	 * @return the run
+	 */
+	public Run run( final Scenario scenario, final ParallelizationPolicy policy, final int nThreads,
+			final ImagePlus moving, final ImagePlus target, final LandmarkTableModel landmarks )
+	{
+		final double[] res = resolution( scenario.resolution );
+		final double[] fovSpec = new double[ 3 ];
+		final double[] offsetSpec = new double[ 3 ];
+		final double depth = Math.max( 1, size / 4 );
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double extent = d < 2 ? size : depth;
+			switch ( scenario.fieldOfView )
+			{
+			case ApplyBigwarpPlugin.SPECIFIED_PHYSICAL:
+				fovSpec[ d ] = extent / 2;
+				offsetSpec[ d ] = extent / 4;
+				break;
+			case ApplyBigwarpPlugin.SPECIFIED_PIXEL:
+				// the same region as the physical specification
+				fovSpec[ d ] = extent / 2 / res[ d ];
+				offsetSpec[ d ] = extent / 4 / res[ d ];
+				break;
+			case ApplyBigwarpPlugin.LANDMARK_POINT_CUBE_PHYSICAL:
+				fovSpec[ d ] = depth / 2;
+				break;
+			case ApplyBigwarpPlugin.LANDMARK_POINT_CUBE_PIXEL:
+				fovSpec[ d ] = Math.ceil( depth / 2 / res[ d ] );
+				break;
+			default:
+				break;
+			}
+		}
+
+		final boolean isCube = scenario.fieldOfView.equals( ApplyBigwarpPlugin.LANDMARK_POINT_CUBE_PHYSICAL ) ||
+				scenario.fieldOfView.equals( ApplyBigwarpPlugin.LANDMARK_POINT_CUBE_PIXEL );
+
+		final long start = System.nanoTime();
+		final List< ImagePlus > result = ApplyBigwarpPlugin.apply( moving, target, landmarks,
+				scenario.fieldOfView, isCube ? POINT_FILTER : "",
+				scenario.resolution, SPECIFIED_RESOLUTION, fovSpec, offsetSpec,
+				Interpolation.NLINEAR, scenario.isVirtual, nThreads, policy, new SilentProgressWriter() );
+
+		long nanos = System.nanoTime() - start;
+		final String checksum = checksum( result );
+		if ( scenario.isVirtual )
+			nanos = System.nanoTime() - start;
+
+		long voxels = 0;
+		for ( final ImagePlus ip : result )
+			if ( ip != null )
+				voxels += ( long ) ip.getWidth() * ip.getHeight() * ip.getStackSize();
+
+		return new Run( scenario, policy, nThreads, voxels, nanos, checksum );
+	}
+
+	private static double[] resolution( final String resolutionOption )
+	{
+		if ( resolutionOption.equals( ApplyBigwarpPlugin.MOVING ) )
+			return MOVING_RESOLUTION;
+		else if ( resolutionOption.equals( ApplyBigwarpPlugin.SPECIFIED ) )
+			return SPECIFIED_RESOLUTION;
+		else
+			return TARGET_RESOLUTION;
+	}
+
+	/**
+	 * Prints the throughput of every setting over all non-virtual runs, and
+	 * the fastest setting.
+	 */
+	private static void printThroughput( final List< Run > runs )
+	{
+		final Map< String, long[] > totals = new LinkedHashMap<>();
+		for ( final Run run : runs )
+		{
+			if ( run.scenario.isVirtual )
+				continue;
+
+			final long[] t = totals.computeIfAbsent( run.setting(), k -> new long[ 2 ] );
+			t[ 0 ] += run.voxels;
+			t[ 1 ] += run.nanos;
+		}
+
+		if ( totals.isEmpty() )
+			return;
+
+		System.out.println();
+		System.out.println( String.format( "%-12s %12s %12s", "setting", "voxels/s", "per thread" ) );
+		String fastest = null;
+		double fastestRate = 0;
+		for ( final Map.Entry< String, long[] > e : totals.entrySet() )
+		{
+			final double rate = e.getValue()[ 0 ] * 1e9 / e.getValue()[ 1 ];
+			final int nThreads = Integer.parseInt( e.getKey().substring( e.getKey().indexOf( '/' ) + 1 ) );
+			System.out.println( String.format( "%-12s %12.4g %12.4g", e.getKey(), rate, rate / nThreads ) );
+			if ( rate > fastestRate )
+			{
+				fastest = e.getKey();
+				fastestRate = rate;
+			}
+		}
+		System.out.println( "fastest: " + fastest );
+	}
+
+	private static int[] defaultThreadCounts()
+	{
+		final int numProcessors = Runtime.getRuntime().availableProcessors();
+		final ArrayList< Integer > counts = new ArrayList<>();
+		for ( int n = 1; n < numProcessors; n *= 2 )
+			counts.add( n );
+
+		counts.add( numProcessors );
+		return counts.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	/**
+	 * The checksum of a list of images: their dimensions and a CRC32 of their
+	 * calibrations and voxels. Virtual stacks are rendered.
+	 *
+	 * @param images the images
+	 * @return the checksum, e.g. "64x64x1x16:1c291ca3"
+	 */
+	public static String checksum( final List< ImagePlus > images )
+	{
+		final CRC32 crc = new CRC32();
+		final StringBuilder dims = new StringBuilder();
+		for ( final ImagePlus ip : images )
+		{
+			if ( dims.length() > 0 )
+				dims.append( "," );
+
+			if ( ip == null )
+			{
+				dims.append( "null" );
+				continue;
+			}
+
+			final int[] d = ip.getDimensions();
+			dims.append( d[ 0 ] ).append( "x" ).append( d[ 1 ] ).append( "x" ).append( d[ 2 ] ).append( "x" ).append( d[ 3 ] * d[ 4 ] );
+
+			final Calibration cal = ip.getCalibration();
+			final ByteBuffer header = ByteBuffer.allocate( 6 * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+			header.putDouble( cal.pixelWidth ).putDouble( cal.pixelHeight ).putDouble( cal.pixelDepth );
+			header.putDouble( cal.xOrigin ).putDouble( cal.yOrigin ).putDouble( cal.zOrigin );
+			crc.update( header.array() );
+
+			final ImageStack stack = ip.getStack();
+			for ( int i = 1; i <= stack.getSize(); i++ )
+				update( crc, stack.getProcessor( i ) );
+		}
+		return dims + ":" + String.format( "%08x", crc.getValue() );
+	}
+
+	private static void update( final CRC32 crc, final ImageProcessor ip )
+	{
+		final Object pixels = ip.getPixels();
+		if ( pixels instanceof byte[] )
+		{
+			crc.update( ( byte[] ) pixels );
+			return;
+		}
+
+		final ByteBuffer buf;
+		if ( pixels instanceof short[] )
+		{
+			final short[] p = ( short[] ) pixels;
+			buf = ByteBuffer.allocate( 2 * p.length ).order( ByteOrder.LITTLE_ENDIAN );
+			buf.asShortBuffer().put( p );
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = ( float[] ) pixels;
+			buf = ByteBuffer.allocate( 4 * p.length ).order( ByteOrder.LITTLE_ENDIAN );
+			buf.asFloatBuffer().put( p );
+		}
+		else
+		{
+			final int[] p = ( int[] ) pixels;
+			buf = ByteBuffer.allocate( 4 * p.length ).order( ByteOrder.LITTLE_ENDIAN );
+			buf.asIntBuffer().put( p );
+		}
+		crc.update( buf.array() );
+	}
+
+	/**
+	 * @param size the width and height
+	 * @return an 8 bit image of size x size x size/4 pixels of 0.2 x 0.2 x 0.4
+	 */
+	public static ImagePlus movingImage( final int size )
+	{
+		return image( "moving", size, MOVING_RESOLUTION, 1 );
+	}
+
+	/**
+	 * @param size the width and height
+	 * @return an 8 bit image of size x size x size/4 pixels of 1 x 1 x 1
+	 */
+	public static ImagePlus targetImage( final int size )
+	{
+		return image( "target", size, TARGET_RESOLUTION, 2 );
+	}
+
+	private static ImagePlus image( final String title, final int size, final double[] res, final long seed )
+	{
+		final int depth = Math.max( 1, size / 4 );
+		final Random rand = new Random( seed );
+		final ImageStack stack = new ImageStack( size, size );
+		for ( int z = 0; z < depth; z++ )
+		{
+			final byte[] pixels = new byte[ size * size ];
+			for ( int y = 0, i = 0; y < size; y++ )
+				for ( int x = 0; x < size; x++, i++ )
+				{
+					// smooth structure with edges, and some noise
+					final double v = 100 + 60 * Math.sin( x * 0.3 ) * Math.cos( y * 0.2 + z * 0.5 )
+							+ ( ( ( x / 8 + y / 8 + z / 4 ) & 1 ) == 0 ? 40 : 0 )
+							+ 10 * rand.nextDouble();
+					pixels[ i ] = ( byte ) Math.max( 0, Math.min( 255, ( int ) v ) );
+				}
+			stack.addSlice( new ByteProcessor( size, size, pixels ) );
+		}
+
+		final ImagePlus ip = new ImagePlus( title, stack );
+		ip.setDimensions( 1, depth, 1 );
+		final Calibration cal = ip.getCalibration();
+		cal.pixelWidth = res[ 0 ];
+		cal.pixelHeight = res[ 1 ];
+		cal.pixelDepth = res[ 2 ];
+		cal.setUnit( "pixel" );
+		return ip;
+	}
+
+	/**
+	 * Landmarks uniformly distributed over the target image, and moved in the
+	 * moving image by a smooth deformation of a few percent of its size.
+	 *
+	 * @param size the width and height of the images
+	 * @return the landmarks
+	 */
+	public static LandmarkTableModel landmarks( final int size )
+	{
+		final double[] extent = new double[] { size, size, Math.max( 1, size / 4 ) };
+		final Random rand = new Random( 3 );
+		final Landmarks landmarks = new Landmarks( 3, NUM_LANDMARKS );
+		final double[] tgt = new double[ 3 ];
+		final double[] mvg = new double[ 3 ];
+		for ( int i = 0; i < NUM_LANDMARKS; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				tgt[ d ] = extent[ d ] * ( 0.05 + 0.9 * rand.nextDouble() );
+
+			for ( int d = 0; d < 3; d++ )
+				mvg[ d ] = MOVING_RESOLUTION[ d ] * ( tgt[ d ]
+						+ 0.03 * extent[ d ] * Math.sin( 2 * Math.PI * tgt[ ( d + 1 ) % 3 ] / extent[ ( d + 1 ) % 3 ] ) );
+
+			landmarks.names.add( String.format( "Pt-%d", i ) );
+			landmarks.active.set( i );
+			landmarks.movingPts.add( mvg );
+			landmarks.targetPts.add( tgt );
+			landmarks.warpedPts.insert( i );
+		}
+
+		final LandmarkTableModel ltm = new LandmarkTableModel( 3 );
+		ltm.setLandmarks( landmarks, false );
+		return ltm;
+	}
+
+	private static class SilentProgressWriter implements ProgressWriter
+	{
+		private final PrintStream silent = new PrintStream( new OutputStream()
+		{
+			@Override
+			public void write( final int b )
+			{}
+		} );
+
+		@Override
+		public PrintStream out()
+		{
+			return silent;
+		}
+
+		@Override
+		public PrintStream err()
+		{
+			return silent;
+		}
+
+		@Override
+		public void setProgress( final double completionRatio )
+		{}
+	}
+}
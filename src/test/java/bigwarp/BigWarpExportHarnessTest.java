@@ -0,0 +1,78 @@
+package bigwarp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import bigwarp.BigWarpExportHarness.Scenario;
+import ij.ImagePlus;
+
+public class BigWarpExportHarnessTest
+{
+	@Test
+	public void testScenarios()
+	{
+		final List< String > names = BigWarpExportHarness.scenarios().stream()
+				.map( Scenario::toString ).collect( Collectors.toList() );
+
+		assertEquals( 2 * BigWarpExportHarness.FIELDS_OF_VIEW.length * BigWarpExportHarness.RESOLUTIONS.length, names.size() );
+		assertEquals( names.size(), new HashSet<>( names ).size() );
+		assertTrue( names.containsAll( Arrays.asList( "pix_spc", "lmk_mvg", "tgt_tgt", "lmpix_tgt", "v_tgt_tgt", "v_spc_spc" ) ) );
+	}
+
+	@Test
+	public void testChecksum()
+	{
+		final ImagePlus a = BigWarpExportHarness.movingImage( 16 );
+		final ImagePlus b = BigWarpExportHarness.movingImage( 16 );
+		final String checksum = BigWarpExportHarness.checksum( Collections.singletonList( a ) );
+		assertTrue( checksum.startsWith( "16x16x1x4:" ) );
+		assertEquals( checksum, BigWarpExportHarness.checksum( Collections.singletonList( b ) ) );
+
+		b.getStack().getProcessor( 3 ).set( 5, 7, b.getStack().getProcessor( 3 ).get( 5, 7 ) + 1 );
+		assertNotEquals( checksum, BigWarpExportHarness.checksum( Collections.singletonList( b ) ) );
+
+		b.getStack().getProcessor( 3 ).set( 5, 7, b.getStack().getProcessor( 3 ).get( 5, 7 ) - 1 );
+		b.getCalibration().xOrigin = 1;
+		assertNotEquals( checksum, BigWarpExportHarness.checksum( Collections.singletonList( b ) ) );
+	}
+
+	@Test
+	public void testSettingsAgree() throws IOException
+	{
+		// every thread count and policy must give the output of a single thread
+		final BigWarpExportHarness harness = new BigWarpExportHarness( 16, new int[] { 1, 3 },
+				Arrays.asList( "BLOCK", "SLICE", "ITER" ), "tgt_tgt|spc_spc|pix_mvg|lmpix_tgt|v_tgt_tgt", null, false );
+
+		assertTrue( harness.process() );
+	}
+
+	@Test
+	public void testStoredChecksums() throws IOException
+	{
+		final Properties stored = BigWarpExportHarness.loadChecksums( null );
+		for ( final int size : new int[] { 16, 64 } )
+		{
+			assertEquals( stored.getProperty( "moving." + size ),
+					BigWarpExportHarness.checksum( Collections.singletonList( BigWarpExportHarness.movingImage( size ) ) ) );
+			assertEquals( stored.getProperty( "target." + size ),
+					BigWarpExportHarness.checksum( Collections.singletonList( BigWarpExportHarness.targetImage( size ) ) ) );
+		}
+
+		// every scenario against the stored exports
+		final BigWarpExportHarness harness = new BigWarpExportHarness( 16, new int[] { 1 },
+				Arrays.asList( "BLOCK" ), ".*", null, false );
+
+		assertTrue( harness.process() );
+	}
+}
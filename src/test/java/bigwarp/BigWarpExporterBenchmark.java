@@ -0,0 +1,145 @@
+package bigwarp;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.export.ProgressWriter;
+import bigwarp.BigWarpExporter.ParallelizationPolicy;
+import bigwarp.landmarks.SyntheticLandmarks;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Time to render a warped volume into an image stack with each
+ * {@link ParallelizationPolicy} of the {@link BigWarpExporter}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class BigWarpExporterBenchmark
+{
+	private static final int SIZE = 128;
+
+	@Param( { "BLOCK", "SLICE", "ITER" } )
+	public ParallelizationPolicy policy;
+
+	@Param( { "1", "4" } )
+	public int nThreads;
+
+	@Param( { "100" } )
+	public int numLandmarks;
+
+	private RandomAccessible< FloatType > warped;
+
+	private FinalInterval outputInterval;
+
+	private final ArrayImgFactory< FloatType > factory = new ArrayImgFactory<>( new FloatType() );
+
+	private final int[] blockSize = new int[] { BigWarpExporter.DEFAULT_BLOCK_SIZE };
+
+	private final ProgressWriter progress = new SilentProgressWriter();
+
+	@Setup
+	public void setup()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( SIZE, SIZE, SIZE );
+		int v = 0;
+		for ( final FloatType t : img )
+			t.set( v++ % 251 );
+
+		final ThinplateSplineTransform tps = new ThinplateSplineTransform(
+				SyntheticLandmarks.model( 3, numLandmarks, 1 ).getTransform() );
+
+		final RandomAccessibleInterval< FloatType > channel = Views.interval(
+				Views.raster( RealViews.transform(
+						Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory< FloatType >() ),
+						tps ) ),
+				img );
+
+		// x, y, z, c as exported
+		warped = Views.stack( Collections.singletonList( channel ) );
+
+		// x, y, c, z as in an ImagePlus
+		outputInterval = new FinalInterval( SIZE, SIZE, 1, SIZE );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > copy()
+	{
+		switch ( policy )
+		{
+		case BLOCK:
+			return BigWarpExporter.copyToImageStackByBlock( warped, outputInterval, factory, blockSize, nThreads, progress );
+		case ITER:
+			return BigWarpExporter.copyToImageStackIterOrder( warped, outputInterval, factory, nThreads, progress );
+		default:
+			return BigWarpExporter.copyToImageStackBySlice( warped, outputInterval, factory, nThreads, progress );
+		}
+	}
+
+	private static class SilentProgressWriter implements ProgressWriter
+	{
+		private final PrintStream silent = new PrintStream( new OutputStream()
+		{
+			@Override
+			public void write( final int b )
+			{}
+		} );
+
+		@Override
+		public PrintStream out()
+		{
+			return silent;
+		}
+
+		@Override
+		public PrintStream err()
+		{
+			return silent;
+		}
+
+		@Override
+		public void setProgress( final double completionRatio )
+		{}
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( BigWarpExporterBenchmark.class.getSimpleName() )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,48 @@
+package bigwarp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bdv.export.ProgressWriterConsole;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class BigWarpExporterTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testResumeChecksFingerprint() throws IOException
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 10, 7, 3 );
+		final N5FSWriter n5 = new N5FSWriter( folder.getRoot().getAbsolutePath() );
+		final int[] blockSize = new int[] { 4 };
+
+		BigWarpExporter.writeN5Blocks( img, n5, "data", blockSize, new RawCompression(), null, 1, "a", 2, new ProgressWriterConsole() );
+		assertEquals( "a", n5.getAttribute( "data", BigWarpExporter.EXPORT_FINGERPRINT_ATTRIBUTE, String.class ) );
+
+		// same fingerprint, resumes
+		BigWarpExporter.writeN5Blocks( img, n5, "data", blockSize, new RawCompression(), null, 1, "a", 2, new ProgressWriterConsole() );
+
+		try
+		{
+			BigWarpExporter.writeN5Blocks( img, n5, "data", blockSize, new RawCompression(), null, 1, "b", 2, new ProgressWriterConsole() );
+			fail( "resumed an export with another fingerprint" );
+		}
+		catch ( final IOException e )
+		{
+			// expected
+		}
+	}
+}
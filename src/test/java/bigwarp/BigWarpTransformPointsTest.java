@@ -0,0 +1,131 @@
+package bigwarp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+public class BigWarpTransformPointsTest
+{
+	@Test
+	public void testCsv() throws IOException
+	{
+		final File in = File.createTempFile( "points", ".csv" );
+		final File out = File.createTempFile( "points-xfm", ".csv" );
+		in.deleteOnExit();
+		out.deleteOnExit();
+
+		final List< String > lines = new ArrayList<>();
+		lines.add( "x,y,z,id" );
+		for ( int i = 0; i < 1000; i++ )
+			lines.add( i + "," + ( 2 * i ) + "," + ( 0.5 * i ) + ",cell" + i );
+
+		Files.write( in.toPath(), lines );
+
+		// small batches so that many are in flight
+		final long n = BigWarpTransformPoints.transformCsv( new Shift(), 3, in, out, true, new double[] { 2.0 }, 7, 4 );
+		assertEquals( 1000, n );
+
+		final List< String > result = Files.readAllLines( out.toPath() );
+		assertEquals( 1001, result.size() );
+		assertEquals( "x,y,z,id", result.get( 0 ) );
+		for ( int i = 0; i < 1000; i++ )
+		{
+			final String[] cols = result.get( i + 1 ).split( "," );
+			assertEquals( 4, cols.length );
+			assertEquals( 2.0 * i + 1, Double.parseDouble( cols[ 0 ] ), 1e-9 );
+			assertEquals( 4.0 * i + 2, Double.parseDouble( cols[ 1 ] ), 1e-9 );
+			assertEquals( 1.0 * i + 3, Double.parseDouble( cols[ 2 ] ), 1e-9 );
+			assertEquals( "cell" + i, cols[ 3 ] );
+		}
+	}
+
+	@Test
+	public void testQuotedCsv() throws IOException
+	{
+		final File in = File.createTempFile( "points-quoted", ".csv" );
+		final File out = File.createTempFile( "points-quoted-xfm", ".csv" );
+		in.deleteOnExit();
+		out.deleteOnExit();
+
+		final List< String > lines = new ArrayList<>();
+		lines.add( "\"1\",\"2\",\"3\",\"a, \"\"b\"\"\",c" );
+		Files.write( in.toPath(), lines );
+
+		assertEquals( 1, BigWarpTransformPoints.transformCsv( new Shift(), 3, in, out, false, null, 10, 1 ) );
+		assertEquals( "2.0,4.0,6.0,\"a, \"\"b\"\"\",c", Files.readAllLines( out.toPath() ).get( 0 ) );
+	}
+
+	@Test
+	public void testBinary() throws IOException
+	{
+		final File in = File.createTempFile( "points", ".bin" );
+		final File out = File.createTempFile( "points-xfm", ".bin" );
+		in.deleteOnExit();
+		out.deleteOnExit();
+
+		final int numPoints = 10001;
+		final ByteBuffer buf = ByteBuffer.allocate( 24 * numPoints ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( int i = 0; i < 3 * numPoints; i++ )
+			buf.putDouble( i );
+
+		Files.write( in.toPath(), buf.array() );
+
+		final long n = BigWarpTransformPoints.transformBinary( new Shift(), 3, in, out, null, 100, 3 );
+		assertEquals( numPoints, n );
+
+		final ByteBuffer result = ByteBuffer.wrap( Files.readAllBytes( out.toPath() ) ).order( ByteOrder.LITTLE_ENDIAN );
+		assertEquals( 24 * numPoints, result.limit() );
+		for ( int i = 0; i < 3 * numPoints; i++ )
+			assertEquals( i + ( i % 3 ) + 1, result.getDouble(), 0 );
+	}
+
+	/**
+	 * Adds 1, 2, 3 to x, y, z.
+	 */
+	private static class Shift implements RealTransform
+	{
+		@Override
+		public int numSourceDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public int numTargetDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public void apply( final double[] source, final double[] target )
+		{
+			for ( int d = 0; d < 3; d++ )
+				target[ d ] = source[ d ] + d + 1;
+		}
+
+		@Override
+		public void apply( final RealLocalizable source, final RealPositionable target )
+		{
+			for ( int d = 0; d < 3; d++ )
+				target.setPosition( source.getDoublePosition( d ) + d + 1, d );
+		}
+
+		@Override
+		public RealTransform copy()
+		{
+			return new Shift();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package bigwarp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class DeformationFieldExporterTest
+{
+	@Test
+	public void testHalfRoundTrip()
+	{
+		// every 16 bit float that is a number survives the round trip
+		for ( int h = 0; h < 0x10000; h++ )
+		{
+			final float f = DeformationFieldExporter.halfToFloat( ( short ) h );
+			if ( !Float.isNaN( f ) )
+				assertEquals( h, DeformationFieldExporter.floatToHalf( f ) & 0xffff );
+		}
+
+		assertEquals( 1.0f, DeformationFieldExporter.halfToFloat( DeformationFieldExporter.floatToHalf( 1.0004f ) ), 0 );
+		assertEquals( 65504f, DeformationFieldExporter.halfToFloat( DeformationFieldExporter.floatToHalf( 65519f ) ), 0 );
+		assertTrue( Float.isInfinite( DeformationFieldExporter.halfToFloat( DeformationFieldExporter.floatToHalf( 70000f ) ) ) );
+		assertTrue( Float.isNaN( DeformationFieldExporter.halfToFloat( DeformationFieldExporter.floatToHalf( Float.NaN ) ) ) );
+	}
+
+	@Test
+	public void testQuantize()
+	{
+		assertEquals( 123, DeformationFieldExporter.quantize( 1.234, 0.01 ) );
+		assertEquals( -123, DeformationFieldExporter.quantize( -1.234, 0.01 ) );
+		assertEquals( Short.MAX_VALUE, DeformationFieldExporter.quantize( 1000, 0.01 ) );
+		assertEquals( Short.MIN_VALUE, DeformationFieldExporter.quantize( -1000, 0.01 ) );
+
+		for ( final double step : new double[] { 0, -0.01, Double.NaN, Double.POSITIVE_INFINITY } )
+		{
+			try
+			{
+				DeformationFieldExporter.quantize( 1.234, step );
+				fail( "quantized with a step of " + step );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testDisplacementField()
+	{
+		final AffineTransform pixToPhysical = new AffineTransform( 2 );
+		pixToPhysical.set( 0.5, 0, 0 );
+		pixToPhysical.set( 2.0, 1, 1 );
+		pixToPhysical.set( 3.0, 0, 2 );
+
+		final AffineTransform xfm = new AffineTransform( 2 );
+		xfm.set( 1.1, 0, 0 );
+		xfm.set( 0.2, 0, 1 );
+		xfm.set( -4.0, 1, 2 );
+
+		final RandomAccessibleInterval< FloatType > field = DeformationFieldExporter.displacementField(
+				xfm, pixToPhysical, new FinalInterval( 2, 5, 7 ), new FloatType(), ( t, v ) -> t.setReal( v ) );
+
+		final double[] p = new double[ 2 ];
+		final double[] q = new double[ 2 ];
+		final Cursor< FloatType > c = Views.flatIterable( field ).localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			pixToPhysical.apply( new double[] { c.getDoublePosition( 1 ), c.getDoublePosition( 2 ) }, p );
+			xfm.apply( p, q );
+			final int i = c.getIntPosition( 0 );
+			assertEquals( q[ i ] - p[ i ], c.get().get(), 1e-5 );
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package bigwarp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class N5PyramidWriterTest
+{
+	@Test
+	public void testMortonCoversGrid()
+	{
+		final long[] gridSize = new long[] { 5, 3, 1, 2 };
+		final int[] bits = new int[ 4 ];
+		final long length = N5PyramidWriter.mortonLength( gridSize, bits );
+		assertEquals( 8 * 4 * 1 * 2, length );
+
+		final Set< String > visited = new HashSet<>();
+		final long[] pos = new long[ 4 ];
+		for ( long i = 0; i < length; i++ )
+		{
+			N5PyramidWriter.mortonToGrid( i, bits, pos );
+			boolean inside = true;
+			for ( int d = 0; d < 4; d++ )
+				inside &= pos[ d ] < gridSize[ d ];
+
+			if ( inside )
+				assertTrue( visited.add( pos[ 0 ] + "," + pos[ 1 ] + "," + pos[ 2 ] + "," + pos[ 3 ] ) );
+		}
+		assertEquals( 5 * 3 * 2, visited.size() );
+
+		// the first 2^3 indexes are the children of the first parent
+		for ( long i = 0; i < 8; i++ )
+		{
+			N5PyramidWriter.mortonToGrid( i, bits, pos );
+			assertTrue( pos[ 0 ] < 2 && pos[ 1 ] < 2 && pos[ 3 ] < 2 );
+		}
+	}
+
+	@Test
+	public void testNumScales()
+	{
+		final int[] blockSize = new int[] { 64, 64, 64, 1 };
+		final int[] factors = new int[] { 2, 2, 2, 1 };
+		assertEquals( 1, N5PyramidWriter.numScalesToSingleBlock( new long[] { 64, 10, 1, 3 }, blockSize, factors ) );
+		assertEquals( 2, N5PyramidWriter.numScalesToSingleBlock( new long[] { 65, 10, 1, 3 }, blockSize, factors ) );
+		assertEquals( 5, N5PyramidWriter.numScalesToSingleBlock( new long[] { 1000, 300, 100, 2 }, blockSize, factors ) );
+	}
+}
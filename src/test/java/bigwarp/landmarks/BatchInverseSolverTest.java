@@ -0,0 +1,74 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+public class BatchInverseSolverTest
+{
+	@Test
+	public void testBatch()
+	{
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final ThinPlateR2LogRSplineKernelTransform tps = SyntheticLandmarks.model( nd, 30, 7 ).getTransform();
+
+			// many points so that the inverse grid is used
+			final int n = 3000;
+			final double[][] x = SyntheticLandmarks.randomPoints( nd, n, 8 );
+			final double[][] y = new double[ n ][];
+			for ( int i = 0; i < n; i++ )
+				y[ i ] = tps.apply( x[ i ] );
+
+			final double tolerance = 1e-6;
+			final BatchInverseSolver.Result result = new BatchInverseSolver( tps )
+					.setTolerance( tolerance )
+					.setNumThreads( 4 )
+					.solve( y );
+
+			assertEquals( 0, result.numUnconverged() );
+			for ( int i = 0; i < n; i++ )
+			{
+				assertTrue( result.errors[ i ] <= tolerance );
+				assertArrayEquals( x[ i ], result.points[ i ], 1e-4 );
+			}
+
+			// the same result on a single thread
+			final BatchInverseSolver.Result serial = new BatchInverseSolver( tps )
+					.setTolerance( tolerance )
+					.setNumThreads( 1 )
+					.solve( y );
+			for ( int i = 0; i < n; i++ )
+				assertArrayEquals( result.points[ i ], serial.points[ i ], 0 );
+		}
+	}
+
+	@Test
+	public void testSinglePoint()
+	{
+		final ThinPlateR2LogRSplineKernelTransform tps = SyntheticLandmarks.model( 3, 10, 3 ).getTransform();
+		final double[] x = new double[] { 20, 50, 70 };
+		final double[] y = tps.apply( x );
+
+		final double[] result = new double[ 3 ];
+		final double err = new BatchInverseSolver( tps ).setTolerance( 1e-8 ).solve( y, result );
+		assertTrue( err <= 1e-8 );
+		assertArrayEquals( x, result, 1e-6 );
+	}
+
+	@Test
+	public void testAffineOnly()
+	{
+		final double[][] src = new double[][] { { 0, 10, 0, 10 }, { 0, 0, 10, 10 } };
+		final double[][] tgt = new double[][] { { 5, 25, 5, 25 }, { -1, -1, 9, 9 } };
+		final ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform( 2, src, tgt );
+
+		final double[] x = new double[ 2 ];
+		new BatchInverseSolver( tps ).affineInverse( new double[] { 15, 4 }, x );
+		assertArrayEquals( new double[] { 5, 5 }, x, 1e-9 );
+	}
+}
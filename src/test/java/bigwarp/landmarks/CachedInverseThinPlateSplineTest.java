@@ -0,0 +1,94 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+public class CachedInverseThinPlateSplineTest
+{
+	@Test
+	public void testAccuracy()
+	{
+		final Random rand = new Random( 5 );
+		final int nd = 3;
+		final double size = SyntheticLandmarks.SIZE;
+		final ThinPlateR2LogRSplineKernelTransform tps = SyntheticLandmarks.model( nd, 25, 5 ).getTransform();
+
+		final double tolerance = 1e-3;
+		final CachedInverseThinPlateSpline inv = new CachedInverseThinPlateSpline( tps,
+				new FinalRealInterval( new double[] { 0, 0, 0 }, new double[] { size, size, size } ),
+				new double[] { size / 10 }, tolerance, 200, 2 );
+
+		assertEquals( 11 * 11 * 11, inv.getGrid().numNodes() );
+		assertTrue( inv.getGrid().numValidNodes() > 0 );
+
+		// inside and outside of the grid
+		final CachedInverseThinPlateSpline copy = inv.copy();
+		final double[] y = new double[ nd ];
+		final double[] x = new double[ nd ];
+		final double[] fx = new double[ nd ];
+		for ( int k = 0; k < 500; k++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				y[ d ] = size * ( 1.4 * rand.nextDouble() - 0.2 );
+
+			copy.apply( y, x );
+			assertTrue( copy.getLastError() <= tolerance );
+
+			tps.apply( x, fx );
+			assertArrayEquals( y, fx, tolerance );
+		}
+	}
+
+	@Test
+	public void testInverse()
+	{
+		final double[][] src = new double[][] { { 0, 10, 0, 10, 5 }, { 0, 0, 10, 10, 5 } };
+		final double[][] tgt = new double[][] { { 1, 11, 1, 12, 6 }, { 2, 2, 11, 13, 8 } };
+		final ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform( 2, src, tgt );
+
+		final CachedInverseThinPlateSpline inv = new CachedInverseThinPlateSpline( tps,
+				new FinalRealInterval( new double[] { 0, 0 }, new double[] { 15, 15 } ),
+				new double[] { 1 }, 1e-6, 100, 1 );
+
+		final InvertibleRealTransform fwd = inv.inverse();
+		final double[] p = new double[] { 3, 7 };
+		final double[] q = new double[ 2 ];
+		final double[] r = new double[ 2 ];
+		fwd.apply( p, q );
+		assertArrayEquals( tps.apply( p ), q, 1e-12 );
+
+		fwd.applyInverse( r, q );
+		assertArrayEquals( p, r, 1e-5 );
+	}
+
+	@Test
+	public void testApplyInPlace()
+	{
+		final double[][] src = new double[][] { { 0, 10, 0, 10, 5 }, { 0, 0, 10, 10, 5 } };
+		final double[][] tgt = new double[][] { { 1, 11, 1, 12, 6 }, { 2, 2, 11, 13, 8 } };
+		final ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform( 2, src, tgt );
+
+		final CachedInverseThinPlateSpline inv = new CachedInverseThinPlateSpline( tps,
+				new FinalRealInterval( new double[] { 0, 0 }, new double[] { 15, 15 } ),
+				new double[] { 5 }, 1e-6, 100, 1 );
+
+		final double[] y = new double[] { 6.5, 7.5 };
+		final double[] expected = new double[ 2 ];
+		inv.apply( y, expected );
+
+		// the initial guess must not overwrite the query before it is solved
+		final double[] p = y.clone();
+		inv.apply( p, p );
+		assertArrayEquals( expected, p, 1e-9 );
+		assertArrayEquals( y, tps.apply( p ), 1e-6 );
+	}
+}
@@ -0,0 +1,151 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+public class IncrementalThinPlateSplineSolverTest
+{
+	private static final double EPS = 1e-6;
+
+	private final Random rand = new Random( 7 );
+
+	@Test
+	public void testMoveAddRemove()
+	{
+		final int nd = 3;
+		final int n = 40;
+		double[][] src = randomPoints( nd, n, 100 );
+		double[][] tgt = perturb( src, 5 );
+
+		final IncrementalThinPlateSplineSolver solver = new IncrementalThinPlateSplineSolver( nd );
+		assertSame( src, tgt, solver.solve( src, tgt ) );
+
+		// move a source landmark
+		src = copy( src );
+		src[ 0 ][ 11 ] += 3.5;
+		src[ 2 ][ 11 ] -= 1.25;
+		assertSame( src, tgt, solver.solve( src, tgt ) );
+
+		// move a target landmark
+		tgt = copy( tgt );
+		tgt[ 1 ][ 3 ] += 2.0;
+		assertSame( src, tgt, solver.solve( src, tgt ) );
+
+		// insert a landmark in the middle
+		final double[] newSrc = new double[]{ 12.0, 55.0, 71.0 };
+		final double[] newTgt = new double[]{ 14.0, 53.0, 72.0 };
+		src = insert( src, 20, newSrc );
+		tgt = insert( tgt, 20, newTgt );
+		assertSame( src, tgt, solver.solve( src, tgt ) );
+
+		// remove a landmark
+		src = remove( src, 5 );
+		tgt = remove( tgt, 5 );
+		assertSame( src, tgt, solver.solve( src, tgt ) );
+
+		// many moves in a row
+		for ( int k = 0; k < 20; k++ )
+		{
+			src = copy( src );
+			src[ k % nd ][ 17 ] += 0.5;
+		}
+		assertSame( src, tgt, solver.solve( src, tgt ) );
+	}
+
+	@Test
+	public void test2d()
+	{
+		final int nd = 2;
+		double[][] src = randomPoints( nd, 25, 50 );
+		double[][] tgt = perturb( src, 3 );
+
+		final IncrementalThinPlateSplineSolver solver = new IncrementalThinPlateSplineSolver( nd );
+		solver.solve( src, tgt );
+
+		for ( int k = 0; k < 10; k++ )
+		{
+			src = copy( src );
+			src[ 0 ][ 4 ] += 0.3;
+			src[ 1 ][ 4 ] -= 0.2;
+			assertSame( src, tgt, solver.solve( src, tgt ) );
+		}
+	}
+
+	private void assertSame( final double[][] src, final double[][] tgt, final ThinPlateR2LogRSplineKernelTransform xfm )
+	{
+		final int nd = src.length;
+		final ThinPlateR2LogRSplineKernelTransform expected = new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt );
+		final double[] p = new double[ nd ];
+		final double[] q = new double[ nd ];
+		final double[] r = new double[ nd ];
+		for ( int i = 0; i < 50; i++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				p[ d ] = 100 * rand.nextDouble();
+
+			expected.apply( p, q );
+			xfm.apply( p, r );
+			for ( int d = 0; d < nd; d++ )
+				assertEquals( q[ d ], r[ d ], EPS );
+		}
+	}
+
+	private double[][] randomPoints( final int nd, final int n, final double scale )
+	{
+		final double[][] pts = new double[ nd ][ n ];
+		for ( int d = 0; d < nd; d++ )
+			for ( int i = 0; i < n; i++ )
+				pts[ d ][ i ] = scale * rand.nextDouble();
+
+		return pts;
+	}
+
+	private double[][] perturb( final double[][] pts, final double amount )
+	{
+		final double[][] out = copy( pts );
+		for ( int d = 0; d < pts.length; d++ )
+			for ( int i = 0; i < pts[ d ].length; i++ )
+				out[ d ][ i ] += amount * ( rand.nextDouble() - 0.5 );
+
+		return out;
+	}
+
+	private static double[][] copy( final double[][] pts )
+	{
+		final double[][] out = new double[ pts.length ][];
+		for ( int d = 0; d < pts.length; d++ )
+			out[ d ] = pts[ d ].clone();
+
+		return out;
+	}
+
+	private static double[][] insert( final double[][] pts, final int k, final double[] pt )
+	{
+		final int n = pts[ 0 ].length;
+		final double[][] out = new double[ pts.length ][ n + 1 ];
+		for ( int d = 0; d < pts.length; d++ )
+		{
+			System.arraycopy( pts[ d ], 0, out[ d ], 0, k );
+			out[ d ][ k ] = pt[ d ];
+			System.arraycopy( pts[ d ], k, out[ d ], k + 1, n - k );
+		}
+		return out;
+	}
+
+	private static double[][] remove( final double[][] pts, final int k )
+	{
+		final int n = pts[ 0 ].length;
+		final double[][] out = new double[ pts.length ][ n - 1 ];
+		for ( int d = 0; d < pts.length; d++ )
+		{
+			System.arraycopy( pts[ d ], 0, out[ d ], 0, k );
+			System.arraycopy( pts[ d ], k + 1, out[ d ], k, n - k - 1 );
+		}
+		return out;
+	}
+}
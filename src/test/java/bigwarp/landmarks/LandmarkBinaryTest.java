@@ -0,0 +1,88 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LandmarkBinaryTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final Random rand = new Random( 9 );
+		final int n = 1000;
+		final Landmarks lm = new Landmarks( 2, 4 );
+		final double[] p = new double[ 2 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			lm.names.add( i == 3 ? "\u00e9t\u00e9, \"quoted\"" : "Pt-" + i );
+			if ( rand.nextBoolean() )
+				lm.active.set( i );
+
+			p[ 0 ] = i == 7 ? Double.POSITIVE_INFINITY : rand.nextGaussian();
+			p[ 1 ] = rand.nextGaussian();
+			lm.movingPts.add( p );
+			lm.targetPts.add( p );
+			lm.warpedPts.insert( i );
+			if ( i % 3 == 0 )
+			{
+				lm.warped.set( i );
+				lm.warpedPts.set( i, new double[] { i, -i } );
+			}
+		}
+
+		final File f = folder.newFile( "lm.bin" );
+		LandmarkBinary.write( f, lm );
+		assertTrue( LandmarkBinary.isBinary( f ) );
+
+		final Landmarks read = LandmarkBinary.read( f );
+		assertEquals( 2, read.ndims );
+		assertEquals( n, read.size() );
+		assertEquals( lm.names, read.names );
+		assertEquals( lm.active, read.active );
+		assertEquals( lm.warped, read.warped );
+		assertFalse( read.movingPts.isSet( 7 ) );
+		for ( int i = 0; i < n; i++ )
+			for ( int d = 0; d < 2; d++ )
+			{
+				assertEquals( lm.movingPts.get( i, d ), read.movingPts.get( i, d ), 0 );
+				assertEquals( lm.targetPts.get( i, d ), read.targetPts.get( i, d ), 0 );
+				if ( lm.warped.get( i ) )
+					assertEquals( lm.warpedPts.get( i, d ), read.warpedPts.get( i, d ), 0 );
+			}
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		final File f = folder.newFile( "empty.bin" );
+		LandmarkBinary.write( f, new Landmarks( 3, 0 ) );
+		assertEquals( 0, LandmarkBinary.read( f ).size() );
+	}
+
+	@Test( expected = IOException.class )
+	public void testTruncated() throws IOException
+	{
+		final Landmarks lm = new Landmarks( 3, 1 );
+		lm.names.add( "a" );
+		lm.movingPts.add( new double[] { 1, 2, 3 } );
+		lm.targetPts.add( new double[] { 1, 2, 3 } );
+		lm.warpedPts.insert( 0 );
+
+		final File f = folder.newFile( "trunc.bin" );
+		LandmarkBinary.write( f, lm );
+		new java.io.RandomAccessFile( f, "rw" ).setLength( f.length() - 8 );
+		LandmarkBinary.read( f );
+	}
+}
@@ -0,0 +1,115 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LandmarkCsvTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRead2d() throws IOException
+	{
+		final File f = folder.newFile( "lm2d.csv" );
+		final String csv = "\"Pt-0\",\"true\",\"1.5\",\"-2\",\"3e2\",\"0.004\"\r\n"
+				+ "\"a, \"\"quoted\"\" name\",\"false\",\"Infinity\",\"-Infinity\",\"12345678.123456789\",\"-0.1\"\r\n"
+				+ "\n"
+				+ "Pt-2,TRUE, 7 ,8,9,10";
+		Files.write( f.toPath(), csv.getBytes( StandardCharsets.UTF_8 ) );
+
+		final Landmarks lm = LandmarkCsv.read( f );
+		assertEquals( 2, lm.ndims );
+		assertEquals( 3, lm.size() );
+		assertEquals( "a, \"quoted\" name", lm.names.get( 1 ) );
+		assertTrue( lm.active.get( 0 ) );
+		assertFalse( lm.active.get( 1 ) );
+		assertTrue( lm.active.get( 2 ) );
+
+		assertEquals( 1.5, lm.movingPts.get( 0, 0 ), 0 );
+		assertEquals( -2, lm.movingPts.get( 0, 1 ), 0 );
+		assertEquals( 300, lm.targetPts.get( 0, 0 ), 0 );
+		assertEquals( 0.004, lm.targetPts.get( 0, 1 ), 0 );
+		assertFalse( lm.movingPts.isSet( 1 ) );
+		assertEquals( 12345678.123456789, lm.targetPts.get( 1, 0 ), 0 );
+		assertEquals( 7, lm.movingPts.get( 2, 0 ), 0 );
+	}
+
+	@Test( expected = IOException.class )
+	public void testWrongColumns() throws IOException
+	{
+		final File f = folder.newFile( "bad.csv" );
+		Files.write( f.toPath(), "a,true,1,2,3,4,5,6\nb,true,1,2,3,4\n".getBytes( StandardCharsets.UTF_8 ) );
+		LandmarkCsv.read( f );
+	}
+
+	@Test
+	public void testBuffer() throws IOException
+	{
+		final File f = folder.newFile( "bytes.csv" );
+		Files.write( f.toPath(), "0123456789".getBytes( StandardCharsets.UTF_8 ) );
+		try ( final FileChannel channel = FileChannel.open( f.toPath() ) )
+		{
+			for ( final boolean map : new boolean[] { false, true } )
+			{
+				final ByteBuffer buf = LandmarkCsv.buffer( channel, 3, 4, map );
+				assertEquals( 4, buf.remaining() );
+				assertEquals( '3', buf.get( 0 ) );
+				assertEquals( '6', buf.get( 3 ) );
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTripParallel() throws IOException
+	{
+		final Random rand = new Random( 5 );
+		final int n = 50000;
+		final Landmarks lm = new Landmarks( 3, n );
+		final double[] p = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			lm.names.add( "Pt-" + i );
+			if ( rand.nextBoolean() )
+				lm.active.set( i );
+
+			for ( int d = 0; d < 3; d++ )
+				p[ d ] = 1000 * rand.nextGaussian();
+			lm.movingPts.add( p );
+
+			for ( int d = 0; d < 3; d++ )
+				p[ d ] = Math.round( 1000 * rand.nextDouble() ) / 8.0;
+			lm.targetPts.add( p );
+		}
+
+		final File f = folder.newFile( "lm3d.csv" );
+		LandmarkCsv.write( f, lm.names, lm.active, lm.movingPts, lm.targetPts, 4 );
+
+		final Landmarks read = LandmarkCsv.read( f, 4, 1024 );
+		assertEquals( 3, read.ndims );
+		assertEquals( n, read.size() );
+		assertEquals( lm.active, read.active );
+		for ( int i = 0; i < n; i++ )
+		{
+			assertEquals( lm.names.get( i ), read.names.get( i ) );
+			for ( int d = 0; d < 3; d++ )
+			{
+				assertEquals( lm.movingPts.get( i, d ), read.movingPts.get( i, d ), 0 );
+				assertEquals( lm.targetPts.get( i, d ), read.targetPts.get( i, d ), 0 );
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LandmarkIndexTest
+{
+	@Test
+	public void testQueriesMatchBruteForce()
+	{
+		final Random rand = new Random( 7 );
+		final LandmarkIndex index = new LandmarkIndex( 3 );
+		final ArrayList< double[] > points = new ArrayList<>();
+
+		// random edits: inserts, moves, removals, and unset points
+		for ( int iter = 0; iter < 3000; iter++ )
+		{
+			final int op = rand.nextInt( 10 );
+			if ( points.isEmpty() || op < 4 )
+			{
+				final int row = rand.nextInt( points.size() + 1 );
+				points.add( row, null );
+				index.insertRow( row );
+				final double[] p = randomPoint( rand );
+				points.set( row, p );
+				index.set( row, p );
+			}
+			else if ( op < 8 )
+			{
+				final int row = rand.nextInt( points.size() );
+				final double[] p = randomPoint( rand );
+				points.set( row, p );
+				index.set( row, p );
+			}
+			else if ( op < 9 )
+			{
+				final int row = rand.nextInt( points.size() );
+				points.remove( row );
+				index.removeRow( row );
+			}
+			else
+			{
+				final int row = rand.nextInt( points.size() );
+				final double[] p = new double[] { Double.POSITIVE_INFINITY, 0, 0 };
+				points.set( row, p );
+				index.set( row, p );
+			}
+
+			if ( iter % 50 == 0 )
+				checkQueries( rand, index, points );
+		}
+		checkQueries( rand, index, points );
+	}
+
+	@Test
+	public void testAcceptAndMaxDistance()
+	{
+		final LandmarkIndex index = new LandmarkIndex( 2 );
+		for ( int i = 0; i < 10; i++ )
+		{
+			index.insertRow( i );
+			index.set( i, new double[] { i, 0 } );
+		}
+
+		final double[] q = new double[] { 3.2, 0 };
+		assertEquals( 3, index.nearest( q ) );
+		assertEquals( 4, index.nearest( q, 10, n -> n % 2 == 0 ) );
+		assertEquals( -1, index.nearest( q, 0.1, null ) );
+		assertArrayEquals( new int[] { 3, 4, 2 }, index.kNearest( q, 3 ) );
+		assertArrayEquals( new int[] { 3, 4, 2 }, index.withinRadius( q, 1.5 ) );
+
+		index.clear( 3 );
+		assertEquals( 4, index.nearest( q ) );
+		assertEquals( 9, index.size() );
+	}
+
+	private static void checkQueries( final Random rand, final LandmarkIndex index, final ArrayList< double[] > points )
+	{
+		for ( int i = 0; i < 20; i++ )
+		{
+			final double[] q = randomPoint( rand );
+			final double[] dists = new double[ points.size() ];
+			final Integer[] order = new Integer[ points.size() ];
+			int numValid = 0;
+			for ( int r = 0; r < points.size(); r++ )
+			{
+				dists[ r ] = squaredDistance( points.get( r ), q );
+				if ( !Double.isInfinite( dists[ r ] ) )
+					order[ numValid++ ] = r;
+			}
+			final Integer[] valid = Arrays.copyOf( order, numValid );
+			Arrays.sort( valid, ( a, b ) -> Double.compare( dists[ a ], dists[ b ] ) );
+
+			assertEquals( numValid, index.size() );
+			assertEquals( numValid == 0 ? -1 : valid[ 0 ].intValue(), index.nearest( q ) );
+
+			final int[] knn = index.kNearest( q, 5 );
+			assertEquals( Math.min( 5, numValid ), knn.length );
+			for ( int k = 0; k < knn.length; k++ )
+				assertEquals( dists[ valid[ k ] ], dists[ knn[ k ] ], 1e-12 );
+
+			final double radius = 20;
+			final int[] inRadius = index.withinRadius( q, radius );
+			int expected = 0;
+			for ( final int r : valid )
+				if ( dists[ r ] <= radius * radius )
+					expected++;
+
+			assertEquals( expected, inRadius.length );
+			for ( int k = 0; k < inRadius.length; k++ )
+				assertEquals( dists[ valid[ k ] ], dists[ inRadius[ k ] ], 1e-12 );
+		}
+	}
+
+	private static double[] randomPoint( final Random rand )
+	{
+		return new double[] { 100 * rand.nextDouble(), 100 * rand.nextDouble(), 100 * rand.nextDouble() };
+	}
+
+	private static double squaredDistance( final double[] p, final double[] q )
+	{
+		double dist = 0;
+		for ( int d = 0; d < 3; d++ )
+			dist += ( p[ d ] - q[ d ] ) * ( p[ d ] - q[ d ] );
+
+		return Double.isNaN( dist ) ? Double.POSITIVE_INFINITY : dist;
+	}
+}
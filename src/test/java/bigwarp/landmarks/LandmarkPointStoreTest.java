@@ -0,0 +1,123 @@
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LandmarkPointStoreTest
+{
+	@Test
+	public void testInsertRemove()
+	{
+		final LandmarkPointStore store = new LandmarkPointStore( 2, 1 );
+		for ( int i = 0; i < 5; i++ )
+			store.add( new double[] { i, 10 * i } );
+
+		store.insert( 2 );
+		assertEquals( 6, store.size() );
+		assertFalse( store.isSet( 2 ) );
+		assertArrayEquals( new double[] { 2, 20 }, store.get( 3 ), 0 );
+
+		store.remove( 0 );
+		assertEquals( 5, store.size() );
+		assertArrayEquals( new double[] { 1, 10 }, store.get( 0 ), 0 );
+		assertEquals( 40, store.asList().get( 4 )[ 1 ], 0 );
+	}
+
+	@Test
+	public void testListEdits()
+	{
+		final LandmarkPointStore store = new LandmarkPointStore( 2 );
+		for ( int i = 0; i < 3; i++ )
+			store.add( new double[] { i, 10 * i } );
+
+		// edits of the boxed points change the store
+		final List< Double[] > list = store.asList();
+		list.get( 1 )[ 0 ] = 5.0;
+		assertEquals( 5, store.get( 1, 0 ), 0 );
+		assertEquals( 5, store.data()[ 0 ][ 1 ], 0 );
+
+		// and edits of the store change the boxed points
+		store.set( 2, 1, 7 );
+		assertEquals( 7, list.get( 2 )[ 1 ], 0 );
+
+		store.insert( 0 );
+		assertFalse( store.isSet( 0 ) );
+		assertEquals( 5, list.get( 2 )[ 0 ], 0 );
+
+		store.remove( 0 );
+		store.add( new double[] { 3, 30 } );
+		assertEquals( 4, list.size() );
+		assertEquals( 30, list.get( 3 )[ 1 ], 0 );
+	}
+
+	@Test
+	public void testReleaseList()
+	{
+		final LandmarkPointStore store = new LandmarkPointStore( 2 );
+		for ( int i = 0; i < 3; i++ )
+			store.add( new double[] { i, 10 * i } );
+
+		final ArrayList< Double[] > list = store.asList();
+		list.get( 0 )[ 1 ] = 3.0;
+		store.releaseList();
+		assertEquals( 3, store.get( 0, 1 ), 0 );
+
+		// the released list is detached
+		list.get( 0 )[ 1 ] = 4.0;
+		assertEquals( 3, store.get( 0, 1 ), 0 );
+		assertNotSame( list, store.asList() );
+	}
+
+	@Test( expected = UnsupportedOperationException.class )
+	public void testListCanNotGrow()
+	{
+		final LandmarkPointStore store = new LandmarkPointStore( 2 );
+		store.asList().add( new Double[] { 1.0, 2.0 } );
+	}
+
+	@Test
+	public void testCopy()
+	{
+		final LandmarkPointStore store = new LandmarkPointStore( 3 );
+		for ( int i = 0; i < 4; i++ )
+			store.add( new double[] { i, i, i } );
+
+		final BitSet rows = new BitSet();
+		rows.set( 1 );
+		rows.set( 3 );
+		final double[][] some = store.copy( rows, 2 );
+		assertArrayEquals( new double[] { 1, 3 }, some[ 0 ], 0 );
+
+		rows.set( 0, 4 );
+		final double[][] all = store.copy( rows, 4 );
+		assertNotSame( store.data(), all );
+		assertEquals( 4, all[ 2 ].length );
+
+		store.set( 0, 0, 9 );
+		assertEquals( 0, all[ 0 ][ 0 ], 0 );
+	}
+
+	@Test
+	public void testBits()
+	{
+		final BitSet bits = new BitSet();
+		bits.set( 1 );
+		bits.set( 3 );
+
+		LandmarkPointStore.insertBit( bits, 2 );
+		assertTrue( bits.get( 1 ) && !bits.get( 2 ) && !bits.get( 3 ) && bits.get( 4 ) );
+
+		LandmarkPointStore.removeBit( bits, 1 );
+		assertEquals( 1, bits.cardinality() );
+		assertTrue( bits.get( 3 ) );
+	}
+}
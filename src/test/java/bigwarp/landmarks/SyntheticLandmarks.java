@@ -0,0 +1,96 @@
+package bigwarp.landmarks;
+
+import java.util.Random;
+
+/**
+ * Reproducible landmark sets for benchmarks and tests.
+ * <p>
+ * Target points are uniformly distributed in a cube of side {@link #SIZE},
+ * moving points are displaced from them by a smooth deformation of about
+ * {@link #AMPLITUDE} plus a little noise, so the thin plate spline stays well
+ * conditioned and invertible for any number of landmarks.
+ */
+public class SyntheticLandmarks
+{
+	public static final double SIZE = 512;
+
+	public static final double AMPLITUDE = 10;
+
+	public static final double NOISE = 1;
+
+	private SyntheticLandmarks()
+	{}
+
+	/**
+	 * @param nd the number of dimensions
+	 * @param n the number of landmarks
+	 * @param seed the random seed
+	 * @return n active landmarks
+	 */
+	public static Landmarks create( final int nd, final int n, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final Landmarks landmarks = new Landmarks( nd, n );
+		final double[] tgt = new double[ nd ];
+		final double[] mvg = new double[ nd ];
+		for ( int i = 0; i < n; i++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				tgt[ d ] = SIZE * rand.nextDouble();
+
+			displace( tgt, mvg );
+			for ( int d = 0; d < nd; d++ )
+				mvg[ d ] += NOISE * ( rand.nextDouble() - 0.5 );
+
+			landmarks.names.add( String.format( "Pt-%d", i ) );
+			landmarks.active.set( i );
+			landmarks.movingPts.add( mvg );
+			landmarks.targetPts.add( tgt );
+			landmarks.warpedPts.insert( i );
+		}
+		return landmarks;
+	}
+
+	/**
+	 * @param nd the number of dimensions
+	 * @param n the number of landmarks
+	 * @param seed the random seed
+	 * @return a table holding n landmarks, with its transformation estimated
+	 */
+	public static LandmarkTableModel model( final int nd, final int n, final long seed )
+	{
+		final LandmarkTableModel model = new LandmarkTableModel( nd );
+		model.setLandmarks( create( nd, n, seed ), false );
+		return model;
+	}
+
+	/**
+	 * @param nd the number of dimensions
+	 * @param n the number of points
+	 * @param seed the random seed
+	 * @return n points [ n ][ nd ] uniformly distributed in the cube
+	 */
+	public static double[][] randomPoints( final int nd, final int n, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] pts = new double[ n ][ nd ];
+		for ( int i = 0; i < n; i++ )
+			for ( int d = 0; d < nd; d++ )
+				pts[ i ][ d ] = SIZE * rand.nextDouble();
+
+		return pts;
+	}
+
+	/**
+	 * The smooth part of the deformation from target to moving space.
+	 *
+	 * @param tgt the target point
+	 * @param mvg receives the moving point
+	 */
+	public static void displace( final double[] tgt, final double[] mvg )
+	{
+		final int nd = tgt.length;
+		for ( int d = 0; d < nd; d++ )
+			mvg[ d ] = tgt[ d ] + AMPLITUDE * Math.sin( 2 * Math.PI * tgt[ ( d + 1 ) % nd ] / SIZE );
+	}
+}
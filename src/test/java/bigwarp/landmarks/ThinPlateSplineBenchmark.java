@@ -0,0 +1,146 @@
+package bigwarp.landmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * Per-point cost of the thin plate spline and of the ways to invert it.
+ * <p>
+ * The spline maps target to moving space. The forward benchmark transforms
+ * target points, the inverse benchmarks find the target point of moving
+ * points with the iterative inverse used by the viewer, the Newton solver of
+ * {@link BatchInverseSolver}, and the grid of
+ * {@link CachedInverseThinPlateSpline}. Setting up 10<sup>4</sup> landmarks
+ * takes a while, select sizes with e.g. {@code -p numLandmarks=10,100}.
+ *
+ * @see ThinPlateSplineSolveBenchmark
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx8g" )
+public class ThinPlateSplineBenchmark
+{
+	private static final int NUM_QUERIES = 4096;
+
+	private static final double TOLERANCE = 0.01;
+
+	private static final int MAX_ITERS = 200;
+
+	private static final double GRID_SPACING = 32;
+
+	@Param( { "2", "3" } )
+	public int nd;
+
+	@Param( { "10", "100", "1000", "10000" } )
+	public int numLandmarks;
+
+	private ThinPlateR2LogRSplineKernelTransform tps;
+
+	private WrappedIterativeInvertibleRealTransform< ThinplateSplineTransform > iterative;
+
+	private BatchInverseSolver.Worker newton;
+
+	private CachedInverseThinPlateSpline cached;
+
+	private double[][] targetQueries;
+
+	private double[][] movingQueries;
+
+	private double[] result;
+
+	private int i;
+
+	@Setup
+	public void setup()
+	{
+		tps = SyntheticLandmarks.model( nd, numLandmarks, 1 ).getTransform();
+		iterative = new WrappedIterativeInvertibleRealTransform<>( new ThinplateSplineTransform( tps ) );
+		iterative.getOptimzer().setTolerance( TOLERANCE );
+		iterative.getOptimzer().setMaxIters( MAX_ITERS );
+
+		newton = new BatchInverseSolver( tps )
+				.setTolerance( TOLERANCE )
+				.setMaxIters( MAX_ITERS )
+				.newWorker();
+
+		final double[] min = new double[ nd ];
+		final double[] max = new double[ nd ];
+		Arrays.fill( max, SyntheticLandmarks.SIZE );
+		cached = new CachedInverseThinPlateSpline( tps, new FinalRealInterval( min, max ),
+				new double[] { GRID_SPACING }, TOLERANCE, MAX_ITERS,
+				Runtime.getRuntime().availableProcessors() );
+
+		targetQueries = SyntheticLandmarks.randomPoints( nd, NUM_QUERIES, 2 );
+		movingQueries = new double[ NUM_QUERIES ][ nd ];
+		for ( int j = 0; j < NUM_QUERIES; j++ )
+			SyntheticLandmarks.displace( targetQueries[ j ], movingQueries[ j ] );
+
+		result = new double[ nd ];
+	}
+
+	private int next()
+	{
+		i = ( i + 1 ) % NUM_QUERIES;
+		return i;
+	}
+
+	@Benchmark
+	public double apply()
+	{
+		tps.apply( targetQueries[ next() ], result );
+		return result[ 0 ];
+	}
+
+	@Benchmark
+	public double inverseIterative()
+	{
+		iterative.applyInverse( result, movingQueries[ next() ] );
+		return result[ 0 ];
+	}
+
+	@Benchmark
+	public double inverseNewton()
+	{
+		return newton.solve( movingQueries[ next() ], result, false );
+	}
+
+	@Benchmark
+	public double inverseCached()
+	{
+		cached.apply( movingQueries[ next() ], result );
+		return result[ 0 ];
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( ThinPlateSplineBenchmark.class.getSimpleName() + "\\." )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,92 @@
+package bigwarp.landmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time to estimate the thin plate spline of a landmark table with
+ * {@link LandmarkTableModel#initTransformation()}.
+ * <p>
+ * Before every invocation one landmark is moved a little, as when dragging a
+ * point. The full solve discards the factorization kept by the
+ * {@link IncrementalThinPlateSplineSolver} first, the incremental solve
+ * updates it. A full solve of 10<sup>4</sup> landmarks takes minutes and a
+ * few GB, select sizes with e.g. {@code -p numLandmarks=10,100,1000}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx8g" )
+public class ThinPlateSplineSolveBenchmark
+{
+	@Param( { "2", "3" } )
+	public int nd;
+
+	@Param( { "10", "100", "1000", "10000" } )
+	public int numLandmarks;
+
+	private LandmarkTableModel model;
+
+	private final Random rand = new Random( 3 );
+
+	@Setup
+	public void setup()
+	{
+		model = SyntheticLandmarks.model( nd, numLandmarks, 1 );
+	}
+
+	@Setup( Level.Invocation )
+	public void moveLandmark()
+	{
+		final int row = rand.nextInt( numLandmarks );
+		final double[] pt = model.getLandmarks().targetPts.get( row );
+		for ( int d = 0; d < nd; d++ )
+			pt[ d ] += rand.nextDouble() - 0.5;
+
+		model.setPoint( row, false, pt, false );
+		model.resetLastPoint();
+	}
+
+	@Benchmark
+	public LandmarkTableModel fullSolve()
+	{
+		model.solver.invalidate();
+		model.initTransformation();
+		return model;
+	}
+
+	@Benchmark
+	public LandmarkTableModel incrementalSolve()
+	{
+		model.initTransformation();
+		return model;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( ThinPlateSplineSolveBenchmark.class.getSimpleName() )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
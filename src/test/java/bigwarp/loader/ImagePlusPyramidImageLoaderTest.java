@@ -0,0 +1,111 @@
+package bigwarp.loader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.image.IndexColorModel;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class ImagePlusPyramidImageLoaderTest
+{
+	@Test
+	public void testProposeFactors()
+	{
+		final int[] blockSize = new int[] { 64, 64, 16 };
+
+		// isotropic: halve every dimension until one block remains
+		final int[][] iso = ImagePlusPyramidImageLoader.proposeFactors( new long[] { 256, 256, 64 }, new double[] { 1, 1, 1 }, blockSize );
+		assertEquals( 3, iso.length );
+		assertArrayEquals( new int[] { 1, 1, 1 }, iso[ 0 ] );
+		assertArrayEquals( new int[] { 4, 4, 4 }, iso[ 2 ] );
+
+		// anisotropic: z is kept until x and y catch up
+		final int[][] aniso = ImagePlusPyramidImageLoader.proposeFactors( new long[] { 512, 512, 64 }, new double[] { 1, 1, 4 }, blockSize );
+		assertArrayEquals( new int[] { 2, 2, 1 }, aniso[ 1 ] );
+		assertArrayEquals( new int[] { 4, 4, 1 }, aniso[ 2 ] );
+		assertArrayEquals( new int[] { 8, 8, 2 }, aniso[ 3 ] );
+
+		// 2d images are never downsampled in z
+		final int[][] flat = ImagePlusPyramidImageLoader.proposeFactors( new long[] { 100, 100, 1 }, new double[] { 1, 1, 1 }, blockSize );
+		assertEquals( 2, flat.length );
+		assertArrayEquals( new int[] { 2, 2, 1 }, flat[ 1 ] );
+	}
+
+	@Test
+	public void testLevels()
+	{
+		final int w = 37;
+		final int h = 21;
+		final ImageStack stack = new ImageStack( w, h );
+		for ( int z = 0; z < 3; z++ )
+		{
+			final ByteProcessor ip = new ByteProcessor( w, h );
+			for ( int y = 0; y < h; y++ )
+				for ( int x = 0; x < w; x++ )
+					ip.set( x, y, ( x + 3 * y + 7 * z ) % 200 );
+			stack.addSlice( ip );
+		}
+		final ImagePlus imp = new ImagePlus( "test", stack );
+		imp.getCalibration().pixelDepth = 4;
+
+		@SuppressWarnings( "unchecked" )
+		final ImagePlusPyramidImageLoader< UnsignedByteType, ?, ? > loader = ( ImagePlusPyramidImageLoader< UnsignedByteType, ?, ? > ) ImagePlusPyramidImageLoader
+				.create( imp, 0, new int[] { 8, 8, 2 }, 1, ImagePlusPyramidImageLoader.MAX_NUM_LEVELS );
+
+		assertEquals( 4, loader.numMipmapLevels() );
+
+		final RandomAccessibleInterval< UnsignedByteType > level0 = loader.getSetupImgLoader( 0 ).getImage( 0, 0 );
+		final RandomAccessibleInterval< UnsignedByteType > level1 = loader.getSetupImgLoader( 0 ).getImage( 0, 1 );
+		assertEquals( 19, level1.dimension( 0 ) );
+		assertEquals( 11, level1.dimension( 1 ) );
+		assertEquals( 3, level1.dimension( 2 ) );
+
+		final RandomAccess< UnsignedByteType > ra0 = level0.randomAccess();
+		final RandomAccess< UnsignedByteType > ra1 = level1.randomAccess();
+		for ( int z = 0; z < 3; z++ )
+			for ( int y = 0; y < 11; y++ )
+				for ( int x = 0; x < 19; x++ )
+				{
+					double sum = 0;
+					int n = 0;
+					for ( int dy = 0; dy < 2; dy++ )
+						for ( int dx = 0; dx < 2; dx++ )
+							if ( 2 * x + dx < w && 2 * y + dy < h )
+							{
+								ra0.setPosition( new int[] { 2 * x + dx, 2 * y + dy, z } );
+								assertEquals( imp.getStack().getProcessor( z + 1 ).get( 2 * x + dx, 2 * y + dy ), ra0.get().get() );
+								sum += ra0.get().get();
+								n++;
+							}
+
+					ra1.setPosition( new int[] { x, y, z } );
+					assertEquals( Math.round( sum / n ), ra1.get().get() );
+				}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testUnsupportedType()
+	{
+		assertFalse( ImagePlusPyramidImageLoader.isSupported( ImagePlus.COLOR_256 ) );
+
+		// an 8-bit image with a color lookup table
+		final byte[] r = new byte[ 256 ];
+		final byte[] g = new byte[ 256 ];
+		final byte[] b = new byte[ 256 ];
+		for ( int i = 0; i < 256; i++ )
+			r[ i ] = ( byte ) i;
+
+		final ByteProcessor ip = new ByteProcessor( 4, 4 );
+		ip.setColorModel( new IndexColorModel( 8, 256, r, g, b ) );
+		ImagePlusPyramidImageLoader.create( new ImagePlus( "color", ip ), 0 );
+	}
+}
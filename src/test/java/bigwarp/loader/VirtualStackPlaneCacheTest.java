@@ -0,0 +1,77 @@
+package bigwarp.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+public class VirtualStackPlaneCacheTest
+{
+	@Test
+	public void testEviction() throws InterruptedException
+	{
+		final CountingStack stack = new CountingStack( 10 );
+		final VirtualStackPlaneCache cache = new VirtualStackPlaneCache( stack, 3 );
+
+		final Object first = cache.get( 1 );
+		assertSame( first, cache.get( 1 ) );
+		assertEquals( 1, stack.reads.get() );
+
+		cache.get( 2 );
+		cache.get( 3 );
+		cache.get( 1 ); // 2 is now the least recently used
+		cache.get( 4 );
+		assertEquals( 3, cache.size() );
+		assertTrue( cache.contains( 1 ) );
+		assertFalse( cache.contains( 2 ) );
+		assertEquals( 4, stack.reads.get() );
+
+		cache.get( 2 );
+		assertEquals( 5, stack.reads.get() );
+	}
+
+	@Test
+	public void testPrefetch() throws InterruptedException
+	{
+		final CountingStack stack = new CountingStack( 10 );
+		final VirtualStackPlaneCache cache = new VirtualStackPlaneCache( stack, 10 );
+
+		cache.prefetch( 0 );
+		cache.prefetch( 11 );
+		for ( int i = 1; i <= 5; i++ )
+			cache.prefetch( i );
+
+		// requests either wait for or take over the prefetches
+		for ( int i = 1; i <= 5; i++ )
+			cache.get( i );
+
+		assertEquals( 5, stack.reads.get() );
+		assertEquals( 5, cache.size() );
+	}
+
+	private static class CountingStack extends ImageStack
+	{
+		final AtomicInteger reads = new AtomicInteger();
+
+		CountingStack( final int n )
+		{
+			super( 4, 4 );
+			for ( int i = 0; i < n; i++ )
+				addSlice( new ByteProcessor( 4, 4 ) );
+		}
+
+		@Override
+		public Object getPixels( final int n )
+		{
+			reads.incrementAndGet();
+			return super.getPixels( n );
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package bigwarp.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class MetricsTest
+{
+	@Test
+	public void testHistogram()
+	{
+		final Histogram h = new Histogram();
+		assertEquals( 0, h.getCount() );
+		assertEquals( 0, h.getMax() );
+		assertEquals( 0, h.get50thPercentile() );
+
+		for ( int i = 1; i <= 1000; i++ )
+			h.update( i );
+
+		assertEquals( 1000, h.getCount() );
+		assertEquals( 1, h.getMin() );
+		assertEquals( 1000, h.getMax() );
+		assertEquals( 500.5, h.getMean(), 1e-9 );
+
+		// within a factor of two
+		final long p50 = h.get50thPercentile();
+		assertTrue( p50 >= 500 && p50 < 1000 );
+		final long p99 = h.get99thPercentile();
+		assertTrue( p99 >= 990 && p99 <= 1000 );
+	}
+
+	@Test
+	public void testBuckets()
+	{
+		assertEquals( 0, Histogram.bucket( 0 ) );
+		assertEquals( 1, Histogram.bucket( 1 ) );
+		assertEquals( 2, Histogram.bucket( 2 ) );
+		assertEquals( 2, Histogram.bucket( 3 ) );
+		assertEquals( 3, Histogram.bucket( 4 ) );
+		assertEquals( 63, Histogram.bucket( Long.MAX_VALUE ) );
+		assertEquals( 3, Histogram.bucketMax( 2 ) );
+	}
+
+	@Test
+	public void testConcurrentCounter()
+	{
+		final Counter c = Metrics.counter( "test.concurrent" );
+		assertSame( c, Metrics.counter( "test.concurrent" ) );
+
+		IntStream.range( 0, 10000 ).parallel().forEach( i -> c.inc() );
+		assertEquals( 10000, c.getCount() );
+		assertTrue( Metrics.report().contains( "test.concurrent: count=10000" ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testTypeMismatch()
+	{
+		Metrics.timer( "test.mismatch" );
+		Metrics.counter( "test.mismatch" );
+	}
+
+	@Test
+	public void testTimer()
+	{
+		final Timer t = Metrics.timer( "test.timer" );
+		t.update( 2000000 );
+		t.update( 4000000 );
+		assertEquals( 2, t.getCount() );
+		assertEquals( 3.0, t.getMeanMillis(), 1e-9 );
+		assertEquals( 6.0, t.getTotalMillis(), 1e-9 );
+	}
+}
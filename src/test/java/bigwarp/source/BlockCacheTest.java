@@ -0,0 +1,173 @@
+package bigwarp.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.position.FunctionRealRandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.view.Views;
+
+public class BlockCacheTest
+{
+	private final AtomicInteger evaluations = new AtomicInteger();
+
+	private volatile double scale = 1;
+
+	private final FunctionRealRandomAccessible< FloatType > function = new FunctionRealRandomAccessible<>( 3,
+			( p, v ) -> {
+				evaluations.incrementAndGet();
+				v.setReal( scale * ( p.getDoublePosition( 0 ) + 100 * p.getDoublePosition( 1 ) + 10000 * p.getDoublePosition( 2 ) ) );
+			}, FloatType::new );
+
+	private RealRandomAccess< FloatType > access()
+	{
+		return function.realRandomAccess();
+	}
+
+	@Test
+	public void testValues()
+	{
+		final FinalInterval interval = new FinalInterval( new long[] { -3, 2, 0 }, new long[] { 40, 30, 4 } );
+		final BlockCache cache = new BlockCache( interval, new int[] { 8, 8, 2 }, this::access );
+
+		final Cursor< FloatType > c = Views.flatIterable( cache.getImage() ).localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			assertEquals( c.getDoublePosition( 0 ) + 100 * c.getDoublePosition( 1 ) + 10000 * c.getDoublePosition( 2 ), c.get().get(), 1e-2 );
+		}
+		final int n = evaluations.get();
+		assertEquals( 44 * 29 * 5, n );
+
+		// cached
+		for ( final FloatType t : Views.iterable( cache.getImage() ) )
+			t.get();
+		assertEquals( n, evaluations.get() );
+
+		final double[] minmax = cache.minMax();
+		assertEquals( -3 + 200, minmax[ 0 ], 1e-2 );
+		assertEquals( 40 + 3000 + 40000, minmax[ 1 ], 1e-2 );
+		assertEquals( n, evaluations.get() );
+
+		// invalidated
+		scale = 2;
+		cache.invalidate();
+		assertEquals( 0, cache.size() );
+		assertEquals( 2 * ( -3 + 200 ), cache.minMax()[ 0 ], 1e-2 );
+		assertEquals( 2 * n, evaluations.get() );
+	}
+
+	@Test
+	public void testEviction()
+	{
+		final FinalInterval interval = new FinalInterval( 64, 64, 1 );
+		final BlockCache cache = new BlockCache( interval, new int[] { 16, 16, 1 }, this::access );
+
+		// room for four blocks of 16 x 16 floats
+		final long budget = BlockCache.getMemoryBudget();
+		BlockCache.setMemoryBudget( 4 * 16 * 16 * 4 );
+		try
+		{
+			for ( final FloatType t : Views.iterable( cache.getImage() ) )
+				t.get();
+			assertEquals( 4, cache.size() );
+			assertTrue( BlockCache.getMemoryUsed() <= BlockCache.getMemoryBudget() );
+
+			// the range is kept for evicted blocks
+			final int n = evaluations.get();
+			final double[] minmax = cache.minMax();
+			assertEquals( 0, minmax[ 0 ], 1e-2 );
+			assertEquals( 63 + 6300, minmax[ 1 ], 1e-2 );
+			assertEquals( n, evaluations.get() );
+			assertTrue( cache.size() <= 4 );
+
+			cache.invalidate();
+			assertEquals( 0, cache.size() );
+		}
+		finally
+		{
+			BlockCache.setMemoryBudget( budget );
+		}
+	}
+
+	@Test
+	public void testSharedBudget()
+	{
+		final FinalInterval interval = new FinalInterval( 64, 64, 1 );
+		final BlockCache a = new BlockCache( interval, new int[] { 16, 16, 1 }, this::access );
+		final BlockCache b = new BlockCache( interval, new int[] { 16, 16, 1 }, this::access );
+
+		final long budget = BlockCache.getMemoryBudget();
+		BlockCache.setMemoryBudget( 4 * 16 * 16 * 4 );
+		try
+		{
+			for ( final FloatType t : Views.iterable( a.getImage() ) )
+				t.get();
+			for ( final FloatType t : Views.iterable( b.getImage() ) )
+				t.get();
+
+			// the most recently used blocks are kept, whichever cache they belong to
+			assertEquals( 0, a.size() );
+			assertEquals( 4, b.size() );
+		}
+		finally
+		{
+			a.invalidate();
+			b.invalidate();
+			BlockCache.setMemoryBudget( budget );
+		}
+	}
+
+	@Test
+	public void testVolatile() throws InterruptedException
+	{
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final FunctionRealRandomAccessible< FloatType > blocked = new FunctionRealRandomAccessible<>( 2,
+				( p, v ) -> {
+					try
+					{
+						release.await();
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+					v.setReal( p.getDoublePosition( 0 ) + 100 * p.getDoublePosition( 1 ) );
+				}, FloatType::new );
+
+		final FinalInterval interval = new FinalInterval( new long[] { 5, 5 }, new long[] { 36, 36 } );
+		final BlockCache cache = new BlockCache( interval, new int[] { 16, 16 }, blocked::realRandomAccess );
+		try
+		{
+			final RandomAccess< VolatileFloatType > ra = cache.getVolatileImage().randomAccess();
+			ra.setPosition( new long[] { 7, 30 } );
+
+			// does not wait for the block
+			assertFalse( ra.get().isValid() );
+
+			release.countDown();
+			for ( int i = 0; i < 1000 && cache.size() == 0; i++ )
+				Thread.sleep( 10 );
+
+			final RandomAccess< VolatileFloatType > valid = cache.getVolatileImage().randomAccess();
+			valid.setPosition( new long[] { 7, 30 } );
+			assertTrue( valid.get().isValid() );
+			assertEquals( 3007, valid.get().get().get(), 1e-2 );
+		}
+		finally
+		{
+			cache.invalidate();
+		}
+	}
+}
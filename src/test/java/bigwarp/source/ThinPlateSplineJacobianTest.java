@@ -0,0 +1,79 @@
+package bigwarp.source;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import bigwarp.landmarks.SyntheticLandmarks;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+public class ThinPlateSplineJacobianTest
+{
+	@Test
+	public void testFiniteDifferences()
+	{
+		final Random rand = new Random( 11 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final ThinPlateR2LogRSplineKernelTransform tps = SyntheticLandmarks.model( nd, 20, 11 ).getTransform();
+			final ThinPlateSplineJacobian jacobian = new ThinPlateSplineJacobian( tps ).copy();
+
+			final double h = 1e-5;
+			final double[] p = new double[ nd ];
+			final double[] pp = new double[ nd ];
+			final double[] qp = new double[ nd ];
+			final double[] qm = new double[ nd ];
+			final double[][] fd = new double[ nd ][ nd ];
+			for ( int k = 0; k < 20; k++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = SyntheticLandmarks.SIZE * rand.nextDouble();
+
+				for ( int j = 0; j < nd; j++ )
+				{
+					System.arraycopy( p, 0, pp, 0, nd );
+					pp[ j ] += h;
+					tps.apply( pp, qp );
+					pp[ j ] -= 2 * h;
+					tps.apply( pp, qm );
+					for ( int i = 0; i < nd; i++ )
+						fd[ i ][ j ] = ( qp[ i ] - qm[ i ] ) / ( 2 * h );
+				}
+
+				final double[][] jac = jacobian.jacobian( p );
+				for ( int i = 0; i < nd; i++ )
+					for ( int j = 0; j < nd; j++ )
+						assertEquals( fd[ i ][ j ], jac[ i ][ j ], 1e-4 );
+
+				assertEquals( ThinPlateSplineJacobian.determinant( fd, nd, null ), jacobian.jacobianDeterminant( p ), 1e-3 );
+			}
+		}
+	}
+
+	@Test
+	public void testDeterminant()
+	{
+		final double[][] m = new double[][]{
+			{ 2, 1, 0, 3 },
+			{ 1, 4, 1, 0 },
+			{ 0, 1, 5, 2 },
+			{ 1, 0, 2, 6 } };
+
+		// cofactor expansion along the first row of the 4x4 matrix
+		final double[][] buffer = new double[ 4 ][ 4 ];
+		double expected = 0;
+		for ( int c = 0; c < 4; c++ )
+		{
+			final double[][] minor = new double[ 3 ][ 3 ];
+			for ( int i = 1; i < 4; i++ )
+				for ( int j = 0, k = 0; j < 4; j++ )
+					if ( j != c )
+						minor[ i - 1 ][ k++ ] = m[ i ][ j ];
+
+			expected += ( c % 2 == 0 ? 1 : -1 ) * m[ 0 ][ c ] * ThinPlateSplineJacobian.determinant( minor, 3, null );
+		}
+		assertEquals( expected, ThinPlateSplineJacobian.determinant( m, 4, buffer ), 1e-9 );
+	}
+}
@@ -0,0 +1,118 @@
+package bigwarp.source;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bigwarp.landmarks.SyntheticLandmarks;
+import net.imglib2.FinalInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Per-sample cost of the warp visualization sources.
+ * <p>
+ * Run the main method. The GC profiler reports gc.alloc.rate.norm, the bytes
+ * allocated per sample, which should be zero (up to measurement noise) for
+ * every benchmark.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx8g" )
+public class VisualizationSourceBenchmark
+{
+	@Param( { "10", "100", "1000", "10000" } )
+	public int numLandmarks;
+
+	private RealRandomAccess< FloatType > warpMagnitude;
+
+	private RealRandomAccess< FloatType > grid;
+
+	private RealRandomAccess< FloatType > jacobianDeterminant;
+
+	private final double[] position = new double[ 3 ];
+
+	@Setup
+	public void setup()
+	{
+		final ThinplateSplineTransform warp = new ThinplateSplineTransform(
+				SyntheticLandmarks.model( 3, numLandmarks, 1 ).getTransform() );
+
+		final AffineTransform3D baseline = new AffineTransform3D();
+		baseline.set( 1.01, 0.02, 0, 3, -0.01, 0.99, 0, -2, 0, 0, 1, 1 );
+
+		final FinalInterval interval = new FinalInterval( 512, 512, 512 );
+		warpMagnitude = new WarpMagnitudeRandomAccessibleInterval< FloatType >( interval, new FloatType(), warp, baseline ).realRandomAccess();
+		grid = new GridRealRandomAccessibleRealInterval< FloatType >( interval, new FloatType(), warp ).realRandomAccess();
+		jacobianDeterminant = new JacobianDeterminantRandomAccess.JacobianDeterminantRandomAccessibleInterval< FloatType >(
+				interval, new FloatType(), warp ).realRandomAccess();
+	}
+
+	/*
+	 * walk through the volume like a renderer would
+	 */
+	private void next()
+	{
+		position[ 0 ] += 0.731;
+		if ( position[ 0 ] > 512 )
+		{
+			position[ 0 ] = 0;
+			position[ 1 ] = ( position[ 1 ] + 1.37 ) % 512;
+			position[ 2 ] = ( position[ 2 ] + 0.11 ) % 512;
+		}
+	}
+
+	@Benchmark
+	public double warpMagnitude()
+	{
+		next();
+		warpMagnitude.setPosition( position );
+		return warpMagnitude.get().getRealDouble();
+	}
+
+	@Benchmark
+	public double grid()
+	{
+		next();
+		grid.setPosition( position );
+		return grid.get().getRealDouble();
+	}
+
+	@Benchmark
+	public double jacobianDeterminant()
+	{
+		next();
+		jacobianDeterminant.setPosition( position );
+		return jacobianDeterminant.get().getRealDouble();
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( VisualizationSourceBenchmark.class.getSimpleName() )
+				.addProfiler( GCProfiler.class )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,160 @@
+package bigwarp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+public class BoundingBoxEstimatorTest
+{
+	@Test
+	public void testAffineIsExact()
+	{
+		final FinalInterval interval = new FinalInterval( new long[]{ 0, 0, 0 }, new long[]{ 99, 49, 9 } );
+		final Interval bounds = BoundingBoxEstimator.estimateInterval( new Bulge( 0, 2 ), interval );
+
+		assertEquals( 0, bounds.min( 0 ) );
+		assertEquals( 198, bounds.max( 0 ) );
+		assertEquals( 0, bounds.min( 1 ) );
+		assertEquals( 98, bounds.max( 1 ) );
+		assertEquals( 18, bounds.max( 2 ) );
+	}
+
+	@Test
+	public void testBulge()
+	{
+		// the faces bulge out by 20 in the middle, the corners do not move
+		final Bulge bulge = new Bulge( 20, 1 );
+		final FinalInterval interval = new FinalInterval( new long[]{ 0, 0, 0 }, new long[]{ 99, 99, 99 } );
+		final Interval bounds = BoundingBoxEstimator.estimateInterval( bulge, interval );
+
+		// dense sampling of the faces
+		final double[] p = new double[ 3 ];
+		final double[] q = new double[ 3 ];
+		final double[] min = new double[]{ Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[]{ -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		for ( int normal = 0; normal < 3; normal++ )
+			for ( int side = 0; side < 2; side++ )
+				for ( int i = 0; i <= 99; i++ )
+					for ( int j = 0; j <= 99; j++ )
+					{
+						p[ normal ] = side * 99;
+						p[ ( normal + 1 ) % 3 ] = i;
+						p[ ( normal + 2 ) % 3 ] = j;
+						bulge.apply( p, q );
+						for ( int d = 0; d < 3; d++ )
+						{
+							min[ d ] = Math.min( min[ d ], q[ d ] );
+							max[ d ] = Math.max( max[ d ], q[ d ] );
+						}
+					}
+
+		for ( int d = 0; d < 3; d++ )
+		{
+			assertTrue( bounds.min( d ) <= min[ d ] );
+			assertTrue( bounds.max( d ) >= max[ d ] );
+			assertTrue( bounds.min( d ) >= min[ d ] - 2 );
+			assertTrue( bounds.max( d ) <= max[ d ] + 2 );
+		}
+	}
+
+	@Test
+	public void testFlatDimension()
+	{
+		// a 2d image as a 3d interval with a single slice
+		final FinalInterval interval = new FinalInterval( new long[]{ 0, 0, 0 }, new long[]{ 99, 99, 0 } );
+		final Interval bounds = BoundingBoxEstimator.estimateInterval( new Bulge( 0, 1 ), interval );
+
+		assertEquals( 100, bounds.dimension( 0 ) );
+		assertEquals( 100, bounds.dimension( 1 ) );
+		assertEquals( 1, bounds.dimension( 2 ) );
+	}
+
+	@Test
+	public void testNonFinite()
+	{
+		final RealTransform nan = new Bulge( 0, 1 )
+		{
+			@Override
+			public void apply( final double[] source, final double[] target )
+			{
+				for ( int d = 0; d < 3; d++ )
+					target[ d ] = Double.NaN;
+			}
+		};
+		assertNull( BoundingBoxEstimator.estimate( nan, new FinalInterval( 10, 10, 10 ) ) );
+	}
+
+	/**
+	 * Scales by a factor, and moves the points of the box [0,99]^3 outwards
+	 * by up to the given amount, most at the centers of its faces.
+	 */
+	private static class Bulge implements RealTransform
+	{
+		private final double amount;
+
+		private final double scale;
+
+		public Bulge( final double amount, final double scale )
+		{
+			this.amount = amount;
+			this.scale = scale;
+		}
+
+		@Override
+		public int numSourceDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public int numTargetDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public void apply( final double[] source, final double[] target )
+		{
+			double w = 1;
+			for ( int d = 0; d < 3; d++ )
+				w *= Math.sin( Math.PI * Math.min( Math.max( source[ d ], 0 ), 99 ) / 99 );
+
+			for ( int d = 0; d < 3; d++ )
+				target[ d ] = scale * source[ d ];
+
+			for ( int d = 0; d < 3; d++ )
+			{
+				double wd = 1;
+				for ( int e = 0; e < 3; e++ )
+					if ( e != d )
+						wd *= Math.sin( Math.PI * Math.min( Math.max( source[ e ], 0 ), 99 ) / 99 );
+
+				target[ d ] += amount * ( source[ d ] < 49.5 ? -wd : wd ) * ( 1 - w );
+			}
+		}
+
+		@Override
+		public void apply( final RealLocalizable source, final RealPositionable target )
+		{
+			final double[] p = new double[ 3 ];
+			final double[] q = new double[ 3 ];
+			source.localize( p );
+			apply( p, q );
+			target.setPosition( q );
+		}
+
+		@Override
+		public RealTransform copy()
+		{
+			return this;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package net.imglib2.realtransform;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+
+/**
+ * A smooth displacement that is largest around a center point.
+ */
+class Bump implements RealTransform
+{
+	private final double[] center;
+
+	/**
+	 * the number of points transformed
+	 */
+	long count = 0;
+
+	public Bump( final double... center )
+	{
+		this.center = center;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		count++;
+		double r2 = 0;
+		for ( int d = 0; d < 3; d++ )
+			r2 += ( source[ d ] - center[ d ] ) * ( source[ d ] - center[ d ] );
+
+		final double w = 8 * Math.exp( -r2 / 200 );
+		target[ 0 ] = source[ 0 ] + w;
+		target[ 1 ] = source[ 1 ] - 0.5 * w;
+		target[ 2 ] = source[ 2 ];
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		final double[] p = new double[ 3 ];
+		source.localize( p );
+		apply( p, p );
+		target.setPosition( p );
+	}
+
+	@Override
+	public RealTransform copy()
+	{
+		return this;
+	}
+}
@@ -0,0 +1,66 @@
+package net.imglib2.realtransform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.FinalRealInterval;
+
+public class DisplacementGridApproximationTest
+{
+	@Test
+	public void testApproximation() throws InterruptedException
+	{
+		final double tolerance = 0.05;
+		final RealTransform xfm = new Bump( 50, 50, 50 );
+		final FinalRealInterval interval = new FinalRealInterval( new double[]{ 0, 0, 0 }, new double[]{ 100, 100, 100 } );
+
+		final DisplacementGridApproximation approx = DisplacementGridApproximation.build( xfm, interval, 20, tolerance, 3, 4 );
+		assertTrue( approx.numRefinedCells() > 0 );
+
+		final Random rand = new Random( 3 );
+		final double[] p = new double[ 3 ];
+		final double[] q = new double[ 3 ];
+		final double[] r = new double[ 3 ];
+		for ( int i = 0; i < 500; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				p[ d ] = 100 * rand.nextDouble();
+
+			xfm.apply( p, q );
+			approx.apply( p, r );
+			for ( int d = 0; d < 3; d++ )
+				assertEquals( q[ d ], r[ d ], 4 * tolerance );
+		}
+
+		// outside the interval the exact transform is used
+		p[ 0 ] = -10; p[ 1 ] = 120; p[ 2 ] = 50;
+		xfm.apply( p, q );
+		approx.copy().apply( p, r );
+		for ( int d = 0; d < 3; d++ )
+			assertEquals( q[ d ], r[ d ], 1e-12 );
+	}
+
+	@Test
+	public void testFlatDimension() throws InterruptedException
+	{
+		final RealTransform xfm = new Bump( 30, 30, 0 );
+		final FinalRealInterval interval = new FinalRealInterval( new double[]{ 0, 0, 0 }, new double[]{ 60, 60, 0 } );
+		final DisplacementGridApproximation approx = DisplacementGridApproximation.build( xfm, interval, 10, 0.01, 4, 2 );
+
+		final double[] q = new double[ 3 ];
+		final double[] r = new double[ 3 ];
+		for ( double x = 0; x <= 60; x += 2.5 )
+			for ( double y = 0; y <= 60; y += 3.5 )
+			{
+				final double[] p = new double[]{ x, y, 0 };
+				xfm.apply( p, q );
+				approx.apply( p, r );
+				for ( int d = 0; d < 3; d++ )
+					assertEquals( q[ d ], r[ d ], 0.05 );
+			}
+	}
+}
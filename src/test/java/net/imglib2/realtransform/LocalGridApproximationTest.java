@@ -0,0 +1,57 @@
+package net.imglib2.realtransform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LocalGridApproximationTest
+{
+	@Test
+	public void testApproximation()
+	{
+		final Bump exact = new Bump( 50, 50, 50 );
+		final Bump counted = new Bump( 50, 50, 50 );
+		final double[] spacing = new double[]{ 4, 4, 4 };
+		final LocalGridApproximation approx = new LocalGridApproximation( counted, new double[ 3 ], spacing, 0.1 );
+
+		final double[] p = new double[ 3 ];
+		final double[] q = new double[ 3 ];
+		final double[] r = new double[ 3 ];
+		long n = 0;
+		for ( int z = 20; z < 52; z++ )
+			for ( int y = 20; y < 52; y++ )
+				for ( int x = 20; x < 52; x++ )
+				{
+					p[ 0 ] = x; p[ 1 ] = y; p[ 2 ] = z;
+					exact.apply( p, q );
+					approx.apply( p, r );
+					for ( int d = 0; d < 3; d++ )
+					{
+						// lattice nodes are exact
+						final boolean node = x % 4 == 0 && y % 4 == 0 && z % 4 == 0;
+						assertEquals( q[ d ], r[ d ], node ? 1e-12 : 0.2 );
+					}
+					n++;
+				}
+
+		// far fewer exact evaluations than points
+		assertTrue( counted.count < n / 4 );
+	}
+
+	@Test
+	public void testExactFallback()
+	{
+		// a zero tolerance forces every cell with a curved transform to be exact
+		final LocalGridApproximation approx = new LocalGridApproximation( new Bump( 10, 10, 10 ), new double[ 3 ], new double[]{ 8, 8, 8 }, 0 );
+		final Bump exact = new Bump( 10, 10, 10 );
+
+		final double[] p = new double[]{ 11.3, 9.7, 12.1 };
+		final double[] q = new double[ 3 ];
+		final double[] r = new double[ 3 ];
+		exact.apply( p, q );
+		approx.copy().apply( p, r );
+		for ( int d = 0; d < 3; d++ )
+			assertEquals( q[ d ], r[ d ], 1e-12 );
+	}
+}